@@ -38,9 +38,11 @@ import android.os.Build;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Message;
+import android.os.Parcel;
 import android.os.PersistableBundle;
 import android.os.RemoteException;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.UserHandle;
 import android.preference.PreferenceManager;
 import android.service.carrier.CarrierIdentifier;
@@ -50,6 +52,7 @@ import android.telephony.CarrierConfigManager;
 import android.telephony.SubscriptionManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.AtomicFile;
 import android.util.Log;
 
 import com.android.internal.telephony.ICarrierConfigLoader;
@@ -58,20 +61,19 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
 import com.android.internal.telephony.PhoneFactory;
 import com.android.internal.telephony.TelephonyIntents;
-import com.android.internal.util.FastXmlSerializer;
-
-import org.xmlpull.v1.XmlPullParser;
-import org.xmlpull.v1.XmlPullParserException;
-import org.xmlpull.v1.XmlPullParserFactory;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileDescriptor;
-import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.List;
 
 /**
@@ -93,6 +95,12 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private PersistableBundle[] mConfigFromCarrierApp;
     // Service connection for binding to config app.
     private CarrierServiceConnection[] mServiceConnection;
+    // Merged default + carrier app configs, indexed by phoneID. The array is replaced as a whole
+    // whenever an entry changes so that readers on binder threads never see a partial update.
+    private volatile ConfigSnapshot[] mMergedConfig;
+    // Platform defaults, built once; handed out for invalid or not yet loaded phoneIDs.
+    private final ConfigSnapshot mDefaultConfig =
+            new ConfigSnapshot(CarrierConfigManager.getDefaultConfig(), 0);
 
     // Broadcast receiver for Boot intents, register intent filter in construtor.
     private final BroadcastReceiver mBootReceiver = new ConfigLoaderBroadcastReceiver();
@@ -110,9 +118,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     private static final int EVENT_LOADED_FROM_DEFAULT = 5;
     // Config has been loaded from carrier app.
     private static final int EVENT_LOADED_FROM_CARRIER = 6;
-    // Attempt to fetch from default app or read from XML.
+    // Attempt to fetch from default app or read from cache file.
     private static final int EVENT_FETCH_DEFAULT = 7;
-    // Attempt to fetch from carrier app or read from XML.
+    // Attempt to fetch from carrier app or read from cache file.
     private static final int EVENT_FETCH_CARRIER = 8;
     // A package has been installed, uninstalled, or updated.
     private static final int EVENT_PACKAGE_CHANGED = 9;
@@ -127,10 +135,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     private static final int BIND_TIMEOUT_MILLIS = 30000;
 
-    // Tags used for saving and restoring XML documents.
-    private static final String TAG_DOCUMENT = "carrier_config";
-    private static final String TAG_VERSION = "package_version";
-    private static final String TAG_BUNDLE = "bundle_data";
+    // Header fields of the binary config cache files.
+    private static final int CACHE_FILE_MAGIC = 0x43434647; // "CCFG"
+    private static final int CACHE_FILE_FORMAT_VERSION = 1;
 
     // SharedPreferences key for last known build fingerprint.
     private static final String KEY_FINGERPRINT = "build_fingerprint";
@@ -173,6 +180,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     mConfigFromDefaultApp[phoneId] = null;
                     mConfigFromCarrierApp[phoneId] = null;
                     mServiceConnection[phoneId] = null;
+                    updateMergedConfig(phoneId);
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
@@ -198,10 +206,10 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     iccid = getIccIdForPhoneId(phoneId);
                     operatorNumeric = TelephonyManager.from(mContext)
                             .getSimOperatorNumericForPhone(phoneId);
-                    config = restoreConfigFromXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid,
+                    config = restoreConfigFromFile(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid,
                             operatorNumeric);
                     if (config != null) {
-                        log("Loaded config from XML. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
+                        log("Loaded config from file. package=" + DEFAULT_CARRIER_CONFIG_PACKAGE
                                 + " phoneId=" + phoneId + " operator=" + operatorNumeric);
                         mConfigFromDefaultApp[phoneId] = config;
                         Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
@@ -234,7 +242,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                                 .asInterface(conn.service);
                         config = carrierService.getCarrierConfig(carrierId);
                         iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid, operatorNumeric,
+                        saveConfigToFile(DEFAULT_CARRIER_CONFIG_PACKAGE, iccid, operatorNumeric,
                                 config);
                         mConfigFromDefaultApp[phoneId] = config;
                         Message newMsg = obtainMessage(EVENT_LOADED_FROM_DEFAULT, phoneId, -1);
@@ -261,6 +269,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             && mServiceConnection[phoneId] == null) {
                         break;
                     }
+                    updateMergedConfig(phoneId);
                     carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                     if (carrierPackageName != null) {
                         log("Found carrier config app: " + carrierPackageName + " operator: "
@@ -277,9 +286,9 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                     carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                     operatorNumeric = msg.getData().getString(KEY_OPERATOR, "");
                     iccid = getIccIdForPhoneId(phoneId);
-                    config = restoreConfigFromXml(carrierPackageName, iccid, operatorNumeric);
+                    config = restoreConfigFromFile(carrierPackageName, iccid, operatorNumeric);
                     if (config != null) {
-                        log("Loaded config from XML. package=" + carrierPackageName + " phoneId="
+                        log("Loaded config from file. package=" + carrierPackageName + " phoneId="
                                 + phoneId + " operator=" + operatorNumeric);
                         mConfigFromCarrierApp[phoneId] = config;
                         Message newMsg = obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1);
@@ -315,7 +324,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                         config = carrierService.getCarrierConfig(carrierId);
                         carrierPackageName = getCarrierPackageForPhoneId(phoneId);
                         iccid = getIccIdForPhoneId(phoneId);
-                        saveConfigToXml(carrierPackageName, iccid, operatorNumeric, config);
+                        saveConfigToFile(carrierPackageName, iccid, operatorNumeric, config);
                         mConfigFromCarrierApp[phoneId] = config;
                         sendMessage(obtainMessage(EVENT_LOADED_FROM_CARRIER, phoneId, -1));
                     } catch (Exception ex) {
@@ -338,6 +347,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
                             && mServiceConnection[phoneId] == null) {
                         break;
                     }
+                    updateMergedConfig(phoneId);
                     broadcastConfigChangedIntent(phoneId);
                     break;
 
@@ -380,6 +390,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         mConfigFromDefaultApp = new PersistableBundle[numPhones];
         mConfigFromCarrierApp = new PersistableBundle[numPhones];
         mServiceConnection = new CarrierServiceConnection[numPhones];
+        mMergedConfig = new ConfigSnapshot[numPhones];
         // Make this service available through ServiceManager.
         ServiceManager.addService(Context.CARRIER_CONFIG_SERVICE, this);
         log("CarrierConfigLoader has started");
@@ -473,11 +484,13 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
     }
 
     /**
-     * Writes a bundle to an XML file.
+     * Writes a bundle to a binary cache file.
      *
      * The bundle will be written to a file named after the package name and ICCID, so that it can
-     * be restored later with {@link @restoreConfigFromXml}. The XML output will include the bundle
-     * and the current version of the specified package.
+     * be restored later with {@link #restoreConfigFromFile}. The file starts with a header holding
+     * the current version of the specified package and the build fingerprint, followed by the
+     * parceled bundle. The file is replaced atomically, so a crash mid-write leaves the previous
+     * file intact.
      *
      * In case of errors or invalid input, no file will be written.
      *
@@ -485,7 +498,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
      * @param config the bundle to be written. Null will be treated as an empty bundle.
      */
-    private void saveConfigToXml(String packageName, String iccid, String operator,
+    private void saveConfigToFile(String packageName, String iccid, String operator,
             PersistableBundle config) {
         if (packageName == null || iccid == null) {
             loge("Cannot save config with null packageName or iccid.");
@@ -509,48 +522,52 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             iccid += "-" + operator;
         }
 
+        byte[] payload;
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writePersistableBundle(config);
+            payload = parcel.marshall();
+        } finally {
+            parcel.recycle();
+        }
+
+        AtomicFile file = new AtomicFile(
+                new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
         FileOutputStream outFile = null;
         try {
-            outFile = new FileOutputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
-            FastXmlSerializer out = new FastXmlSerializer();
-            out.setOutput(outFile, "utf-8");
-            out.startDocument("utf-8", true);
-            out.startTag(null, TAG_DOCUMENT);
-            out.startTag(null, TAG_VERSION);
-            out.text(version);
-            out.endTag(null, TAG_VERSION);
-            out.startTag(null, TAG_BUNDLE);
-            config.saveToXml(out);
-            out.endTag(null, TAG_BUNDLE);
-            out.endTag(null, TAG_DOCUMENT);
-            out.endDocument();
+            outFile = file.startWrite();
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(outFile));
+            out.writeInt(CACHE_FILE_MAGIC);
+            out.writeInt(CACHE_FILE_FORMAT_VERSION);
+            writeHeaderString(out, version);
+            writeHeaderString(out, Build.FINGERPRINT);
+            out.writeInt(payload.length);
+            out.write(payload);
             out.flush();
-            outFile.close();
-        }
-        catch (IOException e) {
-            loge(e.toString());
-        }
-        catch (XmlPullParserException e) {
+            file.finishWrite(outFile);
+        } catch (IOException e) {
             loge(e.toString());
+            file.failWrite(outFile);
         }
     }
 
     /**
-     * Reads a bundle from an XML file.
+     * Reads a bundle from a binary cache file.
      *
-     * This restores a bundle that was written with {@link #saveConfigToXml}. This returns the saved
-     * config bundle for the given package and ICCID.
+     * This restores a bundle that was written with {@link #saveConfigToFile}. This returns the
+     * saved config bundle for the given package and ICCID. The file is read in one go, falling back
+     * to the backup left by an interrupted write, and the payload is unparceled straight from what
+     * was read.
      *
-     * In case of errors, or if the saved config is from a different package version than the
-     * current version, then null will be returned.
+     * In case of errors, or if the saved config is from a different package version or build than
+     * the current one, then null will be returned.
      *
      * @param packageName the name of the package from which we fetched this bundle.
      * @param iccid the ICCID of the subscription for which this bundle was fetched.
-     * @return the bundle from the XML file. Returns null if there is no saved config, the saved
+     * @return the bundle from the cache file. Returns null if there is no saved config, the saved
      *         version does not match, or reading config fails.
      */
-    private PersistableBundle restoreConfigFromXml(String packageName, String iccid,
+    private PersistableBundle restoreConfigFromFile(String packageName, String iccid,
             String operator) {
         final String version = getPackageVersion(packageName);
         if (version == null) {
@@ -565,48 +582,87 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             iccid += "-" + operator;
         }
 
-        PersistableBundle restoredBundle = null;
-        FileInputStream inFile = null;
-        try {
-            inFile = new FileInputStream(
-                    new File(mContext.getFilesDir(), getFilenameForConfig(packageName, iccid)));
-            XmlPullParser parser = XmlPullParserFactory.newInstance().newPullParser();
-            parser.setInput(inFile, "utf-8");
-
-            int event;
-            while (((event = parser.next()) != XmlPullParser.END_DOCUMENT)) {
-
-                if (event == XmlPullParser.START_TAG && TAG_VERSION.equals(parser.getName())) {
-                    String savedVersion = parser.nextText();
-                    if (!version.equals(savedVersion)) {
-                        log("Saved version mismatch: " + version + " vs " + savedVersion);
-                        break;
-                    }
-                }
+        final long startTime = SystemClock.elapsedRealtime();
+        String fileName = getFilenameForConfig(packageName, iccid);
+        AtomicFile file = new AtomicFile(new File(mContext.getFilesDir(), fileName));
 
-                if (event == XmlPullParser.START_TAG && TAG_BUNDLE.equals(parser.getName())) {
-                    restoredBundle = PersistableBundle.restoreFromXml(parser);
-                }
-            }
-            inFile.close();
-        }
-        catch (FileNotFoundException e) {
+        byte[] data;
+        int payloadOffset;
+        int payloadLength;
+        try {
+            data = file.readFully();
+        } catch (FileNotFoundException e) {
+            log("No saved config: " + fileName);
+            return null;
+        } catch (IOException e) {
             loge(e.toString());
+            return null;
         }
-        catch (XmlPullParserException e) {
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            if (buffer.getInt() != CACHE_FILE_MAGIC
+                    || buffer.getInt() != CACHE_FILE_FORMAT_VERSION) {
+                log("Unknown config file format: " + fileName);
+                return null;
+            }
+            String savedVersion = readHeaderString(buffer);
+            if (!version.equals(savedVersion)) {
+                log("Saved version mismatch: " + version + " vs " + savedVersion);
+                return null;
+            }
+            String savedFingerprint = readHeaderString(buffer);
+            if (!Build.FINGERPRINT.equals(savedFingerprint)) {
+                log("Saved fingerprint mismatch: " + savedFingerprint);
+                return null;
+            }
+            payloadLength = buffer.getInt();
+            if (payloadLength < 0 || payloadLength > buffer.remaining()) {
+                loge("Corrupt config file: " + fileName);
+                return null;
+            }
+            payloadOffset = buffer.position();
+        } catch (BufferUnderflowException e) {
+            // The file is truncated.
             loge(e.toString());
+            return null;
         }
-        catch (IOException e) {
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.unmarshall(data, payloadOffset, payloadLength);
+            parcel.setDataPosition(0);
+            PersistableBundle config = parcel.readPersistableBundle();
+            log("Restored config from " + fileName + " in "
+                    + (SystemClock.elapsedRealtime() - startTime) + " ms");
+            return config;
+        } catch (RuntimeException e) {
             loge(e.toString());
+            return null;
+        } finally {
+            parcel.recycle();
         }
+    }
 
-        return restoredBundle;
+    private static void writeHeaderString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readHeaderString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
     }
 
     /**
      * Clears cached carrier config.
-     * This deletes all saved XML files associated with the given package name. If packageName is
-     * null, then it deletes all saved XML files.
+     * This deletes all saved config files associated with the given package name. If packageName is
+     * null, then it deletes all saved config files.
      *
      * @param packageName the name of a carrier package, or null if all cached config should be
      *                    cleared.
@@ -633,7 +689,7 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
 
     /** Builds a canonical file name for a config file. */
     private String getFilenameForConfig(@NonNull String packageName, @NonNull String iccid) {
-        return "carrierconfig-" + packageName + "-" + iccid + ".xml";
+        return "carrierconfig-" + packageName + "-" + iccid + ".bin";
     }
 
     /** Return the current version code of a package, or null if the name is not found. */
@@ -658,10 +714,64 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         if (mConfigFromCarrierApp[phoneId] != null &&
                 getCarrierPackageForPhoneId(phoneId) == null) {
             mConfigFromCarrierApp[phoneId] = null;
+            updateMergedConfig(phoneId);
         }
         mHandler.sendMessage(mHandler.obtainMessage(EVENT_FETCH_DEFAULT, phoneId, -1));
     }
 
+    /**
+     * Rebuilds the merged config for the given phoneId from the default and carrier app configs.
+     *
+     * Must be called on the handler thread whenever either source config changes.
+     */
+    private void updateMergedConfig(int phoneId) {
+        PersistableBundle merged = CarrierConfigManager.getDefaultConfig();
+        PersistableBundle config = mConfigFromDefaultApp[phoneId];
+        if (config != null) {
+            merged.putAll(config);
+        }
+        config = mConfigFromCarrierApp[phoneId];
+        if (config != null) {
+            merged.putAll(config);
+        }
+        ConfigSnapshot[] snapshots = mMergedConfig.clone();
+        int version = snapshots[phoneId] == null ? 1 : snapshots[phoneId].version + 1;
+        snapshots[phoneId] = new ConfigSnapshot(merged, version);
+        mMergedConfig = snapshots;
+    }
+
+    private ConfigSnapshot getSnapshotForSubId(int subId) {
+        int phoneId = SubscriptionManager.getPhoneId(subId);
+        if (SubscriptionManager.isValidPhoneId(phoneId)) {
+            ConfigSnapshot[] snapshots = mMergedConfig;
+            if (phoneId < snapshots.length && snapshots[phoneId] != null) {
+                return snapshots[phoneId];
+            }
+        }
+        return mDefaultConfig;
+    }
+
+    /**
+     * Returns a copy of the merged config for the given subId, for callers inside the phone
+     * process. This skips the permission check; callers that only read typed values should use
+     * {@link #getFeaturesForSubId} instead, which does not copy.
+     */
+    /* package */
+    @NonNull
+    PersistableBundle getConfigSnapshotForSubId(int subId) {
+        return new PersistableBundle(getSnapshotForSubId(subId).config);
+    }
+
+    /**
+     * Returns the typed carrier features resolved from the merged config for the given subId, for
+     * callers inside the phone process.
+     */
+    /* package */
+    @NonNull
+    CarrierFeatures getFeaturesForSubId(int subId) {
+        return getSnapshotForSubId(subId).features;
+    }
+
     @Override public
     @NonNull
     PersistableBundle getConfigForSubId(int subId) {
@@ -671,17 +781,8 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
         } catch (SecurityException e) {
             mContext.enforceCallingOrSelfPermission(READ_PHONE_STATE, null);
         }
-        int phoneId = SubscriptionManager.getPhoneId(subId);
-        PersistableBundle retConfig = CarrierConfigManager.getDefaultConfig();
-        if (SubscriptionManager.isValidPhoneId(phoneId)) {
-            PersistableBundle config = mConfigFromDefaultApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-            config = mConfigFromCarrierApp[phoneId];
-            if (config != null)
-                retConfig.putAll(config);
-        }
-        return retConfig;
+        // In-process binder calls are not parceled, so hand out a copy of the shared snapshot.
+        return getConfigSnapshotForSubId(subId);
     }
 
     @Override
@@ -746,6 +847,24 @@ public class CarrierConfigLoader extends ICarrierConfigLoader.Stub {
             pw.println("  Phone Id=" + i);
             pw.println("  mConfigFromDefaultApp=" + mConfigFromDefaultApp[i]);
             pw.println("  mConfigFromCarrierApp=" + mConfigFromCarrierApp[i]);
+            ConfigSnapshot snapshot = mMergedConfig[i];
+            pw.println("  mergedConfigVersion=" + (snapshot == null ? 0 : snapshot.version));
+        }
+    }
+
+    /**
+     * An immutable pairing of a merged config bundle, the typed values resolved from it, and the
+     * version it was built at.
+     */
+    private static final class ConfigSnapshot {
+        final PersistableBundle config;
+        final CarrierFeatures features;
+        final int version;
+
+        ConfigSnapshot(PersistableBundle config, int version) {
+            this.config = config;
+            this.features = new CarrierFeatures(config);
+            this.version = version;
         }
     }
 
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.os.PersistableBundle;
+import android.telephony.CarrierConfigManager;
+
+/**
+ * Carrier config values read by the phone process, resolved once from a merged carrier config
+ * bundle.
+ *
+ * Instances are built by {@link CarrierConfigLoader} each time the config for a phone is reloaded
+ * and are immutable, so hot paths can read the values without going through the bundle.
+ */
+public final class CarrierFeatures {
+    private final boolean mAllowHoldInImsCall;
+    private final boolean mDisplayHdAudioProperty;
+    private final boolean mWifiCallsCanBeHdAudio;
+    private final boolean mVideoCallsCanBeHdAudio;
+    private final boolean mSupportPauseImsVideoCalls;
+    private final boolean mUseRcsPresence;
+    private final boolean mInstantLetteringAvailable;
+    private final int mInstantLetteringLengthLimit;
+    private final String mInstantLetteringEncoding;
+    private final boolean mSupportConferenceCall;
+    private final boolean mSupportVideoConferenceCall;
+    private final boolean mAllowEmergencyVideoCalls;
+    private final boolean mAllowMergeWifiCallsWhenVoWifiOff;
+    private final boolean mVoicemailNotificationPersistent;
+    private final boolean mWorldPhone;
+    private final boolean mShowApnSettingCdma;
+    private final boolean mApnExpand;
+    private final boolean mOperatorSelectionExpand;
+    private final boolean mCspEnabled;
+    private final boolean mCarrierSettingsEnable;
+    private final boolean mShowCdmaChoices;
+    private final boolean mHideCarrierNetworkSettings;
+
+    /* package */ CarrierFeatures(PersistableBundle b) {
+        mAllowHoldInImsCall = b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
+        mDisplayHdAudioProperty =
+                b.getBoolean(CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        mWifiCallsCanBeHdAudio = b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
+        mVideoCallsCanBeHdAudio =
+                b.getBoolean(CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
+        mSupportPauseImsVideoCalls =
+                b.getBoolean(CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
+        mUseRcsPresence = b.getBoolean(CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL);
+        mInstantLetteringAvailable =
+                b.getBoolean(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
+        mInstantLetteringLengthLimit =
+                b.getInt(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT);
+        mInstantLetteringEncoding =
+                b.getString(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING);
+        mSupportConferenceCall =
+                b.getBoolean(CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
+        mSupportVideoConferenceCall =
+                b.getBoolean(CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
+        mAllowEmergencyVideoCalls =
+                b.getBoolean(CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
+        mAllowMergeWifiCallsWhenVoWifiOff =
+                b.getBoolean(CarrierConfigManager.KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL);
+        mVoicemailNotificationPersistent =
+                b.getBoolean(CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL);
+        mWorldPhone = b.getBoolean(CarrierConfigManager.KEY_WORLD_PHONE_BOOL);
+        mShowApnSettingCdma = b.getBoolean(CarrierConfigManager.KEY_SHOW_APN_SETTING_CDMA_BOOL);
+        mApnExpand = b.getBoolean(CarrierConfigManager.KEY_APN_EXPAND_BOOL);
+        mOperatorSelectionExpand =
+                b.getBoolean(CarrierConfigManager.KEY_OPERATOR_SELECTION_EXPAND_BOOL);
+        mCspEnabled = b.getBoolean(CarrierConfigManager.KEY_CSP_ENABLED_BOOL);
+        mCarrierSettingsEnable =
+                b.getBoolean(CarrierConfigManager.KEY_CARRIER_SETTINGS_ENABLE_BOOL);
+        mShowCdmaChoices = b.getBoolean(CarrierConfigManager.KEY_SHOW_CDMA_CHOICES_BOOL);
+        mHideCarrierNetworkSettings =
+                b.getBoolean(CarrierConfigManager.KEY_HIDE_CARRIER_NETWORK_SETTINGS_BOOL);
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL */
+    public boolean allowHoldInImsCall() {
+        return mAllowHoldInImsCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL */
+    public boolean displayHdAudioProperty() {
+        return mDisplayHdAudioProperty;
+    }
+
+    /** @see CarrierConfigManager#KEY_WIFI_CALLS_CAN_BE_HD_AUDIO */
+    public boolean wifiCallsCanBeHdAudio() {
+        return mWifiCallsCanBeHdAudio;
+    }
+
+    /** @see CarrierConfigManager#KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO */
+    public boolean videoCallsCanBeHdAudio() {
+        return mVideoCallsCanBeHdAudio;
+    }
+
+    /** @see CarrierConfigManager#KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL */
+    public boolean supportPauseImsVideoCalls() {
+        return mSupportPauseImsVideoCalls;
+    }
+
+    /** @see CarrierConfigManager#KEY_USE_RCS_PRESENCE_BOOL */
+    public boolean useRcsPresence() {
+        return mUseRcsPresence;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL */
+    public boolean instantLetteringAvailable() {
+        return mInstantLetteringAvailable;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT */
+    public int instantLetteringLengthLimit() {
+        return mInstantLetteringLengthLimit;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING */
+    public String instantLetteringEncoding() {
+        return mInstantLetteringEncoding;
+    }
+
+    /** @see CarrierConfigManager#KEY_SUPPORT_CONFERENCE_CALL_BOOL */
+    public boolean supportConferenceCall() {
+        return mSupportConferenceCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL */
+    public boolean supportVideoConferenceCall() {
+        return mSupportVideoConferenceCall;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL */
+    public boolean allowEmergencyVideoCalls() {
+        return mAllowEmergencyVideoCalls;
+    }
+
+    /** @see CarrierConfigManager#KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL */
+    public boolean allowMergeWifiCallsWhenVoWifiOff() {
+        return mAllowMergeWifiCallsWhenVoWifiOff;
+    }
+
+    /** @see CarrierConfigManager#KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL */
+    public boolean voicemailNotificationPersistent() {
+        return mVoicemailNotificationPersistent;
+    }
+
+    /** @see CarrierConfigManager#KEY_WORLD_PHONE_BOOL */
+    public boolean worldPhone() {
+        return mWorldPhone;
+    }
+
+    /** @see CarrierConfigManager#KEY_SHOW_APN_SETTING_CDMA_BOOL */
+    public boolean showApnSettingCdma() {
+        return mShowApnSettingCdma;
+    }
+
+    /** @see CarrierConfigManager#KEY_APN_EXPAND_BOOL */
+    public boolean apnExpand() {
+        return mApnExpand;
+    }
+
+    /** @see CarrierConfigManager#KEY_OPERATOR_SELECTION_EXPAND_BOOL */
+    public boolean operatorSelectionExpand() {
+        return mOperatorSelectionExpand;
+    }
+
+    /** @see CarrierConfigManager#KEY_CSP_ENABLED_BOOL */
+    public boolean cspEnabled() {
+        return mCspEnabled;
+    }
+
+    /** @see CarrierConfigManager#KEY_CARRIER_SETTINGS_ENABLE_BOOL */
+    public boolean carrierSettingsEnable() {
+        return mCarrierSettingsEnable;
+    }
+
+    /** @see CarrierConfigManager#KEY_SHOW_CDMA_CHOICES_BOOL */
+    public boolean showCdmaChoices() {
+        return mShowCdmaChoices;
+    }
+
+    /** @see CarrierConfigManager#KEY_HIDE_CARRIER_NETWORK_SETTINGS_BOOL */
+    public boolean hideCarrierNetworkSettings() {
+        return mHideCarrierNetworkSettings;
+    }
+}
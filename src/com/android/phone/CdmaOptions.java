@@ -20,13 +20,11 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.net.Uri;
-import android.os.PersistableBundle;
 import android.os.SystemProperties;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
-import android.telephony.CarrierConfigManager;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
 
@@ -66,11 +64,10 @@ public class CdmaOptions {
 
         mButtonAPNExpand = (PreferenceScreen) mPrefScreen.findPreference(BUTTON_APN_EXPAND_KEY);
         boolean removedAPNExpand = false;
-        PersistableBundle carrierConfig =
-                PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
+        CarrierFeatures carrierFeatures =
+                PhoneGlobals.getInstance().getCarrierFeaturesForSubId(mPhone.getSubId());
         // Some CDMA carriers want the APN settings.
-        if ((!carrierConfig.getBoolean(CarrierConfigManager.KEY_SHOW_APN_SETTING_CDMA_BOOL)
-                || carrierConfig.getBoolean(CarrierConfigManager.KEY_WORLD_PHONE_BOOL))
+        if ((!carrierFeatures.showApnSettingCdma() || carrierFeatures.worldPhone())
                 && mButtonAPNExpand != null) {
             mPrefScreen.removePreference(mButtonAPNExpand);
             removedAPNExpand = true;
@@ -120,8 +117,7 @@ public class CdmaOptions {
         }
 
         // Read platform settings for carrier settings
-        final boolean isCarrierSettingsEnabled = carrierConfig.getBoolean(
-                CarrierConfigManager.KEY_CARRIER_SETTINGS_ENABLE_BOOL);
+        final boolean isCarrierSettingsEnabled = carrierFeatures.carrierSettingsEnable();
         if (!isCarrierSettingsEnabled) {
             Preference pref = mPrefScreen.findPreference(BUTTON_CARRIER_SETTINGS_KEY);
             if (pref != null) {
@@ -0,0 +1,281 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.location.Country;
+import android.location.CountryDetector;
+import android.location.CountryListener;
+import android.os.Looper;
+import android.os.SystemProperties;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.TelephonyManager;
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.util.Arrays;
+
+/**
+ * Answers emergency number queries in process, from the ECC lists the RIL publishes for each
+ * phone, so the dial path does not make a binder call into IExtTelephony for every number.
+ *
+ * The lists are compiled into a trie per phone. The ECC list properties are re-read on every
+ * query, which is cheap, and the tries are rebuilt when they have changed. Matching follows
+ * {@link PhoneNumberUtils}: a number is an emergency number if it equals an entry of the list, and
+ * a potential emergency number if it starts with one, except in Brazil where numbers with extra
+ * digits do not connect.
+ *
+ * When a phone has no ECC list the framework falls back to country specific lists, which are not
+ * indexed here; {@link #getIndex()} then returns null and callers should use the slow path.
+ */
+public class EmergencyNumberMatcher {
+    private static final String LOG_TAG = "EmergencyNumberMatcher";
+
+    private static final String ECC_LIST_PROPERTY = "ril.ecclist";
+    /** Used by older RILs, and by the framework when a phone has no {@link #ECC_LIST_PROPERTY}. */
+    private static final String READ_ONLY_ECC_LIST_PROPERTY = "ro.ril.ecclist";
+
+    private static EmergencyNumberMatcher sInstance;
+
+    private final int mPhoneCount;
+    private volatile Index mIndex;
+    /** The country used for potential matches, kept up to date by the CountryDetector. */
+    private volatile String mCountryIso;
+    private final CountryDetector mCountryDetector;
+
+    /**
+     * Initialize the singleton EmergencyNumberMatcher instance. This is only done once, at
+     * startup, from PhoneGlobals.onCreate().
+     */
+    static EmergencyNumberMatcher init(Context context) {
+        synchronized (EmergencyNumberMatcher.class) {
+            if (sInstance == null) {
+                sInstance = new EmergencyNumberMatcher(context);
+            } else {
+                Log.wtf(LOG_TAG, "init() called multiple times!  sInstance = " + sInstance);
+            }
+            return sInstance;
+        }
+    }
+
+    /**
+     * @return the matcher, or null if it has not been initialized yet.
+     */
+    public static EmergencyNumberMatcher getInstance() {
+        synchronized (EmergencyNumberMatcher.class) {
+            return sInstance;
+        }
+    }
+
+    private EmergencyNumberMatcher(Context context) {
+        mPhoneCount = TelephonyManager.getDefault().getPhoneCount();
+        mCountryDetector = (CountryDetector) context.getSystemService(
+                Context.COUNTRY_DETECTOR);
+        if (mCountryDetector != null) {
+            mCountryDetector.addCountryListener(new CountryListener() {
+                @Override
+                public void onCountryDetected(Country country) {
+                    mCountryIso = country.getCountryIso();
+                }
+            }, Looper.getMainLooper());
+            Country country = mCountryDetector.detectCountry();
+            mCountryIso = country == null ? null : country.getCountryIso();
+        }
+    }
+
+    /**
+     * Drops the index, for example after a SIM state change, so that it is rebuilt from the
+     * current ECC lists on the next query.
+     */
+    public void invalidate() {
+        mIndex = null;
+    }
+
+    /**
+     * @return whether {@code number} is an emergency number on any phone, or null if that cannot
+     *         be decided in process.
+     */
+    public Boolean isEmergencyNumber(String number) {
+        Index index = getIndex();
+        return index == null ? null : index.isEmergencyNumber(number, true);
+    }
+
+    /**
+     * @return whether {@code number} is, or starts with, an emergency number on any phone, or null
+     *         if that cannot be decided in process.
+     */
+    public Boolean isPotentialEmergencyNumber(String number) {
+        Index index = getIndex();
+        // It is not possible to append additional digits to an emergency number to dial the
+        // number in Brazil - it won't connect.
+        return index == null ? null
+                : index.isEmergencyNumber(number, "BR".equalsIgnoreCase(mCountryIso));
+    }
+
+    /**
+     * @return the index of the current ECC lists, or null if some phone has none.
+     */
+    @VisibleForTesting
+    Index getIndex() {
+        String[] eccLists = new String[mPhoneCount];
+        for (int i = 0; i < mPhoneCount; i++) {
+            eccLists[i] = getEccList(i);
+            if (TextUtils.isEmpty(eccLists[i])) {
+                return null;
+            }
+        }
+        Index index = mIndex;
+        if (index == null || !Arrays.equals(index.mEccLists, eccLists)) {
+            index = new Index(eccLists);
+            mIndex = index;
+        }
+        return index;
+    }
+
+    /**
+     * @return the ECC list the framework uses for the phone in {@code slotId}, or an empty string.
+     */
+    @VisibleForTesting
+    static String getEccList(int slotId) {
+        String eccList = SystemProperties.get(
+                slotId <= 0 ? ECC_LIST_PROPERTY : ECC_LIST_PROPERTY + slotId, "");
+        if (TextUtils.isEmpty(eccList)) {
+            eccList = SystemProperties.get(READ_ONLY_ECC_LIST_PROPERTY, "");
+        }
+        return eccList;
+    }
+
+    /**
+     * The ECC lists of all phones, compiled into one trie per phone.
+     */
+    @VisibleForTesting
+    static class Index {
+        private final String[] mEccLists;
+        private final Node[] mTries;
+
+        @VisibleForTesting
+        Index(String[] eccLists) {
+            mEccLists = eccLists;
+            mTries = new Node[eccLists.length];
+            for (int i = 0; i < eccLists.length; i++) {
+                mTries[i] = new Node();
+                // Split the same way as PhoneNumberUtils, so empty entries behave the same.
+                for (String emergencyNumber : eccLists[i].split(",")) {
+                    mTries[i].add(emergencyNumber);
+                }
+            }
+        }
+
+        /**
+         * @param exactMatch whether the number must equal an entry, rather than start with one.
+         * @return whether {@code number} matches the ECC list of any phone.
+         */
+        boolean isEmergencyNumber(String number, boolean exactMatch) {
+            String networkPortion = getNetworkPortion(number);
+            if (networkPortion == null) {
+                return false;
+            }
+            for (Node trie : mTries) {
+                if (trie.matches(networkPortion, exactMatch)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * @return whether {@code number} matches the ECC list of the phone in {@code slotId}.
+         */
+        @VisibleForTesting
+        boolean isEmergencyNumber(int slotId, String number, boolean exactMatch) {
+            String networkPortion = getNetworkPortion(number);
+            return networkPortion != null && mTries[slotId].matches(networkPortion, exactMatch);
+        }
+
+        /**
+         * @return the part of {@code number} to match against the ECC lists, or null if it cannot
+         *         be an emergency number.
+         */
+        private static String getNetworkPortion(String number) {
+            // Emergency numbers are only meaningful for calls over the cell network. Check this
+            // before extracting the network portion, which would turn 'abc911def@example.com'
+            // into '911'.
+            if (number == null || PhoneNumberUtils.isUriNumber(number)) {
+                return null;
+            }
+            return PhoneNumberUtils.extractNetworkPortionAlt(number);
+        }
+    }
+
+    /**
+     * A node of a trie of emergency numbers. Nodes have few children, at most one per dialable
+     * character, so they are kept in small arrays and scanned linearly.
+     */
+    private static class Node {
+        private char[] mKeys = new char[0];
+        private Node[] mChildren = new Node[0];
+        /** Whether an emergency number ends at this node. */
+        private boolean mIsEnd;
+
+        void add(String number) {
+            Node node = this;
+            for (int i = 0; i < number.length(); i++) {
+                char c = number.charAt(i);
+                Node child = node.getChild(c);
+                if (child == null) {
+                    child = new Node();
+                    int size = node.mKeys.length;
+                    node.mKeys = Arrays.copyOf(node.mKeys, size + 1);
+                    node.mChildren = Arrays.copyOf(node.mChildren, size + 1);
+                    node.mKeys[size] = c;
+                    node.mChildren[size] = child;
+                }
+                node = child;
+            }
+            node.mIsEnd = true;
+        }
+
+        /**
+         * @param exactMatch whether {@code number} must be in the trie, rather than start with a
+         *         number in it.
+         */
+        boolean matches(String number, boolean exactMatch) {
+            Node node = this;
+            for (int i = 0; i < number.length(); i++) {
+                if (node.mIsEnd && !exactMatch) {
+                    return true;
+                }
+                node = node.getChild(number.charAt(i));
+                if (node == null) {
+                    return false;
+                }
+            }
+            return node.mIsEnd;
+        }
+
+        private Node getChild(char c) {
+            for (int i = 0; i < mKeys.length; i++) {
+                if (mKeys[i] == c) {
+                    return mChildren[i];
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -19,12 +19,10 @@ package com.android.phone;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Resources;
-import android.os.PersistableBundle;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
 import android.preference.PreferenceScreen;
 import android.provider.Settings;
-import android.telephony.CarrierConfigManager;
 import android.content.ComponentName;
 
 import com.android.internal.telephony.PhoneConstants;
@@ -68,26 +66,25 @@ public class GsmUmtsOptions {
         } else {
             log("Not a CDMA phone");
             Resources res = mPrefActivity.getResources();
-            PersistableBundle carrierConfig =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mSubId);
+            CarrierFeatures carrierFeatures =
+                    PhoneGlobals.getInstance().getCarrierFeaturesForSubId(mSubId);
 
             // Determine which options to display. For GSM these are defaulted to true in
             // CarrierConfigManager, but they maybe overriden by DefaultCarrierConfigService or a
             // carrier app.
             // Note: these settings used to be controlled with overlays in
             // Telephony/res/values/config.xml
-            if (!carrierConfig.getBoolean(CarrierConfigManager.KEY_APN_EXPAND_BOOL)
+            if (!carrierFeatures.apnExpand()
                     && mButtonAPNExpand != null) {
                 mPrefScreen.removePreference(mButtonAPNExpand);
                 removedAPNExpand = true;
             }
-            if (!carrierConfig.getBoolean(
-                    CarrierConfigManager.KEY_OPERATOR_SELECTION_EXPAND_BOOL)) {
+            if (!carrierFeatures.operatorSelectionExpand()) {
                 mPrefScreen.removePreference(mPrefScreen
                         .findPreference(BUTTON_OPERATOR_SELECTION_EXPAND_KEY));
             }
 
-            if (carrierConfig.getBoolean(CarrierConfigManager.KEY_CSP_ENABLED_BOOL)) {
+            if (carrierFeatures.cspEnabled()) {
                 if (PhoneFactory.getDefaultPhone().isCspPlmnEnabled()) {
                     log("[CSP] Enabling Operator Selection menu.");
                     mButtonOperatorSelectionExpand.setEnabled(true);
@@ -99,8 +96,7 @@ public class GsmUmtsOptions {
             }
 
             // Read platform settings for carrier settings
-            final boolean isCarrierSettingsEnabled = carrierConfig.getBoolean(
-                CarrierConfigManager.KEY_CARRIER_SETTINGS_ENABLE_BOOL);
+            final boolean isCarrierSettingsEnabled = carrierFeatures.carrierSettingsEnable();
             if (!isCarrierSettingsEnabled) {
                 Preference pref = mPrefScreen.findPreference(BUTTON_CARRIER_SETTINGS_KEY);
                 if (pref != null) {
@@ -574,9 +574,10 @@ public class MobileNetworkSettings extends PreferenceActivity
 
         PersistableBundle carrierConfig =
                 PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-        mIsGlobalCdma = isLteOnCdma
-                && carrierConfig.getBoolean(CarrierConfigManager.KEY_SHOW_CDMA_CHOICES_BOOL);
-        if (carrierConfig.getBoolean(CarrierConfigManager.KEY_HIDE_CARRIER_NETWORK_SETTINGS_BOOL)) {
+        CarrierFeatures carrierFeatures =
+                PhoneGlobals.getInstance().getCarrierFeaturesForSubId(mPhone.getSubId());
+        mIsGlobalCdma = isLteOnCdma && carrierFeatures.showCdmaChoices();
+        if (carrierFeatures.hideCarrierNetworkSettings()) {
             prefSet.removePreference(mButtonPreferredNetworkMode);
             prefSet.removePreference(mButtonEnabledNetworks);
             prefSet.removePreference(mLteDataServicePref);
@@ -602,7 +603,7 @@ public class MobileNetworkSettings extends PreferenceActivity
             // in case it is currently something else. That is possible if user
             // changed the setting while roaming and is now back to home network.
             settingsNetworkMode = preferredNetworkMode;
-        } else if (carrierConfig.getBoolean(CarrierConfigManager.KEY_WORLD_PHONE_BOOL) == true) {
+        } else if (carrierFeatures.worldPhone()) {
             prefSet.removePreference(mButtonEnabledNetworks);
             // set the listener for the mButtonPreferredNetworkMode list preference so we can issue
             // change Preferred Network Mode.
@@ -27,7 +27,6 @@ import android.content.SharedPreferences;
 import android.content.pm.UserInfo;
 import android.content.res.Resources;
 import android.net.Uri;
-import android.os.PersistableBundle;
 import android.os.RemoteException;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
@@ -38,7 +37,6 @@ import android.provider.ContactsContract.PhoneLookup;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
-import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
@@ -371,8 +369,8 @@ public class NotificationMgr {
             }
 
             Resources res = mContext.getResources();
-            PersistableBundle carrierConfig = PhoneGlobals.getInstance().getCarrierConfigForSubId(
-                    subId);
+            CarrierFeatures carrierFeatures =
+                    PhoneGlobals.getInstance().getCarrierFeaturesForSubId(subId);
             Notification.Builder builder = new Notification.Builder(mContext);
             builder.setSmallIcon(resId)
                     .setWhen(System.currentTimeMillis())
@@ -382,8 +380,7 @@ public class NotificationMgr {
                     .setContentIntent(pendingIntent)
                     .setSound(ringtoneUri)
                     .setColor(res.getColor(R.color.dialer_theme_color))
-                    .setOngoing(carrierConfig.getBoolean(
-                            CarrierConfigManager.KEY_VOICEMAIL_NOTIFICATION_PERSISTENT_BOOL));
+                    .setOngoing(carrierFeatures.voicemailNotificationPersistent());
             //User should not be able to clear VMNotification without
             //reading it by clear or swipe option.
             if (mContext.getResources().getBoolean(
@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.telephony.SubscriptionManager;
+
+import com.android.internal.telephony.Phone;
+
+/**
+ * A set of serial handler threads, one per phone, used to run RIL commands.
+ *
+ * Commands for one phone run in the order they were posted, while commands for different phones
+ * run in parallel, so a burst of requests on one SIM slot does not delay requests on the other.
+ */
+public class PhoneCommandLanes {
+
+    /** Creates the handler which will process commands on a lane's looper. */
+    public interface HandlerFactory {
+        Handler createHandler(Looper looper);
+    }
+
+    private final HandlerThread[] mThreads;
+    private final Handler[] mHandlers;
+
+    /**
+     * @param numPhones the number of lanes to create; at least one lane is always created.
+     * @param name the prefix for the lane thread names.
+     * @param factory creates the handler for each lane.
+     */
+    public PhoneCommandLanes(int numPhones, String name, HandlerFactory factory) {
+        int numLanes = Math.max(numPhones, 1);
+        mThreads = new HandlerThread[numLanes];
+        mHandlers = new Handler[numLanes];
+        for (int i = 0; i < numLanes; i++) {
+            mThreads[i] = new HandlerThread(name + "-" + i);
+            mThreads[i].start();
+            mHandlers[i] = factory.createHandler(mThreads[i].getLooper());
+        }
+    }
+
+    /**
+     * Returns the handler for the lane of the given phone. Commands with no phone go to the first
+     * lane.
+     */
+    public Handler getHandlerForPhone(Phone phone) {
+        return getHandlerForPhoneId(phone == null
+                ? SubscriptionManager.INVALID_PHONE_INDEX : phone.getPhoneId());
+    }
+
+    /** Returns the handler for the given phoneId, or the first lane if it is out of range. */
+    public Handler getHandlerForPhoneId(int phoneId) {
+        if (phoneId < 0 || phoneId >= mHandlers.length) {
+            return mHandlers[0];
+        }
+        return mHandlers[phoneId];
+    }
+
+    /** Returns true if the calling thread is one of the lane threads. */
+    public boolean isOnLaneThread() {
+        Looper looper = Looper.myLooper();
+        for (Handler handler : mHandlers) {
+            if (handler.getLooper() == looper) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Stops all lane threads. Pending commands are discarded. */
+    public void quit() {
+        for (HandlerThread thread : mThreads) {
+            thread.quitSafely();
+        }
+    }
+}
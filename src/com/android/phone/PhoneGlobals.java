@@ -343,6 +343,10 @@ public class PhoneGlobals extends ContextWrapper {
 
             configLoader = CarrierConfigLoader.init(this);
 
+            // Create the EmergencyNumberMatcher singleton, which answers emergency number
+            // queries from the ECC lists without a binder call.
+            EmergencyNumberMatcher.init(this);
+
             // Create the CallNotifer singleton, which handles
             // asynchronous events from the telephony layer (like
             // launching the incoming-call UI when an incoming call comes
@@ -444,8 +448,19 @@ public class PhoneGlobals extends ContextWrapper {
         return getCarrierConfigForSubId(SubscriptionManager.getDefaultSubscriptionId());
     }
 
+    /**
+     * Returns a copy of the carrier config for the given subId.
+     */
     public PersistableBundle getCarrierConfigForSubId(int subId) {
-        return configLoader.getConfigForSubId(subId);
+        return configLoader.getConfigSnapshotForSubId(subId);
+    }
+
+    /**
+     * Returns the typed carrier features for the given subId. Prefer this over
+     * {@link #getCarrierConfigForSubId} for values that are read on hot paths.
+     */
+    public CarrierFeatures getCarrierFeaturesForSubId(int subId) {
+        return configLoader.getFeaturesForSubId(subId);
     }
 
     /**
@@ -792,6 +807,7 @@ public class PhoneGlobals extends ContextWrapper {
                     mHandler.sendMessage(msg);
                 }
             } else if (action.equals(TelephonyIntents.ACTION_SIM_STATE_CHANGED)) {
+                EmergencyNumberMatcher.getInstance().invalidate();
                 if (mPUKEntryActivity != null) {
                     // if an attempt to un-PUK-lock the device was made, while we're
                     // receiving this state change notification, notify the handler.
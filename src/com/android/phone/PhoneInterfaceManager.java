@@ -36,6 +36,7 @@ import android.os.Message;
 import android.os.Process;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SystemClock;
 import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
@@ -64,6 +65,7 @@ import android.util.Log;
 import android.util.Pair;
 import android.util.Slog;
 import com.android.ims.ImsManager;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.CallManager;
 import com.android.internal.telephony.CellNetworkScanResult;
 import com.android.internal.telephony.CommandException;
@@ -93,6 +95,8 @@ import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Implementation of the ITelephony interface.
@@ -104,7 +108,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final boolean DBG_MERGE = false;
 
     // Message codes used with mMainThreadHandler
-    private static final int CMD_HANDLE_PIN_MMI = 1;
+    @VisibleForTesting
+    static final int CMD_HANDLE_PIN_MMI = 1;
     private static final int CMD_HANDLE_NEIGHBORING_CELL = 2;
     private static final int EVENT_NEIGHBORING_CELL_DONE = 3;
     private static final int CMD_ANSWER_RINGING_CALL = 4;
@@ -123,7 +128,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final int EVENT_NV_WRITE_CDMA_PRL_DONE = 18;
     private static final int CMD_NV_RESET_CONFIG = 19;
     private static final int EVENT_NV_RESET_CONFIG_DONE = 20;
-    private static final int CMD_GET_PREFERRED_NETWORK_TYPE = 21;
+    @VisibleForTesting
+    static final int CMD_GET_PREFERRED_NETWORK_TYPE = 21;
     private static final int EVENT_GET_PREFERRED_NETWORK_TYPE_DONE = 22;
     private static final int CMD_SET_PREFERRED_NETWORK_TYPE = 23;
     private static final int EVENT_SET_PREFERRED_NETWORK_TYPE_DONE = 24;
@@ -156,6 +162,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private static final String PRIMARY_CARD_PROPERTY_NAME = "persist.radio.primarycard";
     private static final int CMD_TOGGLE_LTE = 99; // not used yet
 
+    // How long a binder thread waits in sendRequest() before giving up on a command.
+    private static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 60 * 1000;
+    // Manual network scans can legitimately take minutes on some modems.
+    private static final long NETWORK_SCAN_REQUEST_TIMEOUT_MILLIS = 5 * 60 * 1000;
+    // Commands with side effects are waited for until they complete, since reporting a failure
+    // for a change which is then applied anyway would mislead the caller.
+    private static final long NO_REQUEST_TIMEOUT = 0;
+
     /** The singleton instance. */
     private static PhoneInterfaceManager sInstance;
 
@@ -165,6 +179,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     private UserManager mUserManager;
     private AppOpsManager mAppOps;
     private MainThreadHandler mMainThreadHandler;
+    // Handle commands which only talk to the RIL or UICC, one serial lane per phone, so they don't
+    // queue behind the UI or behind commands for another SIM slot.
+    private PhoneCommandLanes mCommandLanes;
+    private final RequestStats mRequestStats = new RequestStats();
+    private PhoneStateCache mStateCache;
     private SubscriptionController mSubscriptionController;
     private SharedPreferences mTelephonySharedPreferences;
 
@@ -205,8 +224,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A request object for use with {@link MainThreadHandler}. Requesters should wait() on the
-     * request after sending. The main thread will notify the request when it is complete.
+     * A request object for use with {@link MainThreadHandler}. Requesters should call
+     * {@link #await} on the request after sending. The handler will call {@link #complete} once
+     * {@link #result} holds the final value.
      */
     private static final class MainThreadRequest {
         /** The argument to use for the request */
@@ -216,6 +236,12 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         // The subscriber id that this request applies to. Defaults to
         // SubscriptionManager.INVALID_SUBSCRIPTION_ID
         public Integer subId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
+        // Time the request was created, for latency stats.
+        public final long creationTimeMillis = SystemClock.elapsedRealtime();
+
+        private boolean mIsDone;
+        // Set once the requester has stopped waiting; the result will never be read.
+        private volatile boolean mIsCancelled;
 
         public MainThreadRequest(Object argument) {
             this.argument = argument;
@@ -227,6 +253,93 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                 this.subId = subId;
             }
         }
+
+        /**
+         * Marks the request as done and wakes up the requesting thread.
+         *
+         * @return {@code false} if the requester already gave up, so the result will not be read.
+         */
+        public synchronized boolean complete() {
+            mIsDone = true;
+            notifyAll();
+            return !mIsCancelled;
+        }
+
+        /**
+         * Waits for the request to complete.
+         *
+         * @param timeoutMillis how long to wait for, or {@link #NO_REQUEST_TIMEOUT} to wait until
+         *         the request completes.
+         * @return {@code true} if the request completed, or {@code false} if it timed out, in which
+         *         case the request is cancelled.
+         */
+        public synchronized boolean await(long timeoutMillis) {
+            long deadline = SystemClock.elapsedRealtime() + timeoutMillis;
+            long remaining = timeoutMillis;
+            while (!mIsDone && (timeoutMillis == NO_REQUEST_TIMEOUT || remaining > 0)) {
+                try {
+                    wait(timeoutMillis == NO_REQUEST_TIMEOUT ? 0 : remaining);
+                } catch (InterruptedException e) {
+                    // Do nothing, go back and wait until the request is complete
+                }
+                remaining = deadline - SystemClock.elapsedRealtime();
+            }
+            if (!mIsDone) {
+                mIsCancelled = true;
+            }
+            return mIsDone;
+        }
+
+        public boolean isCancelled() {
+            return mIsCancelled;
+        }
+    }
+
+    /**
+     * Counters for requests sent through {@link #sendRequest}, shown in dumpsys.
+     */
+    private static final class RequestStats {
+        private final AtomicInteger mInFlight = new AtomicInteger();
+        private final AtomicLong mCompleted = new AtomicLong();
+        private final AtomicLong mTimedOut = new AtomicLong();
+        private final AtomicLong mDroppedBeforeDispatch = new AtomicLong();
+        private final AtomicLong mTotalLatencyMillis = new AtomicLong();
+        private final AtomicLong mMaxLatencyMillis = new AtomicLong();
+
+        void onSent() {
+            mInFlight.incrementAndGet();
+        }
+
+        void onCompleted(long latencyMillis) {
+            mInFlight.decrementAndGet();
+            mCompleted.incrementAndGet();
+            mTotalLatencyMillis.addAndGet(latencyMillis);
+            long max;
+            do {
+                max = mMaxLatencyMillis.get();
+            } while (latencyMillis > max && !mMaxLatencyMillis.compareAndSet(max, latencyMillis));
+        }
+
+        void onTimedOut() {
+            mInFlight.decrementAndGet();
+            mTimedOut.incrementAndGet();
+        }
+
+        void onDroppedBeforeDispatch() {
+            mDroppedBeforeDispatch.incrementAndGet();
+        }
+
+        void dump(PrintWriter writer) {
+            long completed = mCompleted.get();
+            writer.println("PhoneInterfaceManager requests:");
+            writer.println("  inFlight=" + mInFlight.get());
+            writer.println("  completed=" + completed);
+            writer.println("  timedOut=" + mTimedOut.get());
+            writer.println("  droppedBeforeDispatch=" + mDroppedBeforeDispatch.get());
+            writer.println("  avgLatencyMs="
+                    + (completed == 0 ? 0 : mTotalLatencyMillis.get() / completed));
+            writer.println("  maxLatencyMs=" + mMaxLatencyMillis.get());
+        }
     }
 
     private static final class IncomingThirdPartyCallArgs {
@@ -243,18 +356,27 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * A handler that processes messages on the main thread in the phone process. Since many
-     * of the Phone calls are not thread safe this is needed to shuttle the requests from the
-     * inbound binder threads to the main thread in the phone process.  The Binder thread
+     * A handler that processes the requests of the inbound binder threads. Since many of the
+     * Phone calls are not thread safe this is needed to shuttle the requests from the binder
+     * threads to the main thread in the phone process, see {@link MainThreadHandler}. Commands
+     * which only issue RIL or UICC requests run on the lane of their phone instead, see
+     * {@link CommandLaneHandler} and {@link #getHandlerForCommand}.  The Binder thread
      * may provide a {@link MainThreadRequest} object in the msg.obj field that they are waiting
      * on, which will be notified when the operation completes and will contain the result of the
      * request.
      *
      * <p>If a MainThreadRequest object is provided in the msg.obj field,
-     * note that request.result must be set to something non-null for the calling thread to
-     * unblock.
+     * note that {@link #notifyRequester} must be called for the calling thread to unblock.
      */
-    private final class MainThreadHandler extends Handler {
+    private class RequestHandler extends Handler {
+        RequestHandler() {
+            super();
+        }
+
+        RequestHandler(Looper looper) {
+            super(looper);
+        }
+
         @Override
         public void handleMessage(Message msg) {
             MainThreadRequest request;
@@ -263,6 +385,14 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
             UiccCard uiccCard;
             IccAPDUArgument iccArgument;
 
+            if (msg.obj instanceof MainThreadRequest
+                    && ((MainThreadRequest) msg.obj).isCancelled()) {
+                // The requester timed out while this command was still queued.
+                loge("Dropping cancelled request: " + msg.what);
+                mRequestStats.onDroppedBeforeDispatch();
+                return;
+            }
+
             switch (msg.what) {
                 case CMD_HANDLE_PIN_MMI: {
                     request = (MainThreadRequest) msg.obj;
@@ -271,9 +401,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             getPhoneFromRequest(request).handlePinMmi((String) request.argument)
                             : false;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
                 }
 
@@ -294,9 +422,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         request.result = new ArrayList<NeighboringCellInfo>(0);
                     }
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_ANSWER_RINGING_CALL:
@@ -305,9 +431,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     answerRingingCallInternal(answer_subId);
                     request.result = ""; // dummy result for notifying the waiting thread
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_END_CALL:
@@ -317,6 +441,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     Phone phone = getPhone(end_subId);
                     if (phone == null) {
                         if (DBG) log("CMD_END_CALL: no phone for id: " + end_subId);
+                        request.result = false;
+                        notifyRequester(request);
                         break;
                     }
                     int phoneType = phone.getPhoneType();
@@ -333,9 +459,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (DBG) log("CMD_END_CALL: " + (hungUp ? "hung up!" : "no call to hang up"));
                     request.result = hungUp;
                     // Wake up the requesting thread
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
@@ -345,9 +469,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_LOGICAL_CHANNEL_DONE,
                             request);
@@ -377,9 +499,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduLogicalChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
@@ -389,9 +509,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccTransmitApduBasicChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_TRANSMIT_APDU_BASIC_CHANNEL_DONE,
                             request);
@@ -419,9 +537,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_EXCHANGE_SIM_IO:
@@ -431,9 +547,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccExchangeSimIO: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_EXCHANGE_SIM_IO_DONE,
                                 request);
@@ -461,9 +575,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SEND_ENVELOPE:
@@ -472,9 +584,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("sendEnvelopeWithStatus: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_SEND_ENVELOPE_DONE, request);
                         uiccCard.sendEnvelopeWithStatus((String)request.argument, onCompleted);
@@ -497,9 +607,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("sendEnvelopeWithStatus: exception:" + ar.exception);
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_OPEN_CHANNEL:
@@ -509,9 +617,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         loge("iccOpenLogicalChannel: No UICC");
                         request.result = new IccOpenLogicalChannelResponse(-1,
                             IccOpenLogicalChannelResponse.STATUS_MISSING_RESOURCE, null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_OPEN_CHANNEL_DONE, request);
                         uiccCard.iccOpenLogicalChannel((String)request.argument, onCompleted);
@@ -526,9 +632,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         loge("iccOpenLogicalChannel: No UICC");
                         request.result = new IccOpenLogicalChannelResponse(-1,
                             IccOpenLogicalChannelResponse.STATUS_MISSING_RESOURCE, null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_OPEN_CHANNEL_DONE, request);
                         uiccCard.iccOpenLogicalChannel(openChannelArgs.first,
@@ -574,8 +678,17 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             IccOpenLogicalChannelResponse.INVALID_CHANNEL, errorCode, null);
                     }
                     request.result = openChannelResp;
-                    synchronized (request) {
-                        request.notifyAll();
+                    if (!request.complete() && openChannelResp.getStatus()
+                            == IccOpenLogicalChannelResponse.STATUS_NO_ERROR) {
+                        // The requester timed out and was told that no channel was opened, so
+                        // nobody would ever close this one.
+                        loge("iccOpenLogicalChannel: closing channel "
+                                + openChannelResp.getChannel()
+                                + " opened after the request timed out");
+                        uiccCard = getUiccCardFromRequest(request);
+                        if (uiccCard != null) {
+                            uiccCard.iccCloseLogicalChannel(openChannelResp.getChannel(), null);
+                        }
                     }
                     break;
 
@@ -585,9 +698,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("iccCloseLogicalChannel: No UICC");
                         request.result = new IccIoResult(0x6F, 0, (byte[])null);
-                        synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_CLOSE_CHANNEL_DONE, request);
                         uiccCard.iccCloseLogicalChannel((Integer) request.argument, onCompleted);
@@ -620,9 +731,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("nvReadItem: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_NV_WRITE_ITEM:
@@ -678,9 +787,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("getPreferredNetworkType: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_PREFERRED_NETWORK_TYPE:
@@ -704,9 +811,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     ar = (AsyncResult)msg.obj;
                     request = (MainThreadRequest)ar.userObj;
                     request.result = ar;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_VOICEMAIL_NUMBER:
@@ -766,9 +871,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                         cellScanResult = new CellNetworkScanResult(errorCode, null);
                     }
                     request.result = cellScanResult;
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_NETWORK_SELECTION_MODE_MANUAL:
@@ -810,9 +913,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ModemActivityInfo(0, 0, 0, null, 0, 0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SET_ALLOWED_CARRIERS:
@@ -842,9 +943,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new int[]{-1};
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_GET_ALLOWED_CARRIERS:
@@ -872,9 +971,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (request.result == null) {
                         request.result = new ArrayList<CarrierIdentifier>(0);
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 case CMD_SIM_GET_ATR:
@@ -883,9 +980,7 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     if (uiccCard == null) {
                         loge("getAtr: No UICC");
                         request.result = "";
-                         synchronized (request) {
-                            request.notifyAll();
-                        }
+                        notifyRequester(request);
                     } else {
                         onCompleted = obtainMessage(EVENT_SIM_GET_ATR_DONE, request);
                         uiccCard.getAtr(onCompleted);
@@ -908,13 +1003,11 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                             loge("iccTransmitApduBasicChannel: Unknown exception");
                         }
                     }
-                    synchronized (request) {
-                        request.notifyAll();
-                    }
+                    notifyRequester(request);
                     break;
 
                 default:
-                    Log.w(LOG_TAG, "MainThreadHandler: unexpected message code: " + msg.what);
+                    Log.w(LOG_TAG, "RequestHandler: unexpected message code: " + msg.what);
                     break;
             }
         }
@@ -932,9 +1025,25 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
                     loge(command + ": Unknown exception");
                 }
             }
-            synchronized (request) {
-                request.notifyAll();
-            }
+            notifyRequester(request);
+        }
+    }
+
+    /** Runs the requests which must run on the main thread of the phone process. */
+    private final class MainThreadHandler extends RequestHandler {
+        MainThreadHandler() {
+            super();
+        }
+
+        MainThreadHandler(Looper looper) {
+            super(looper);
+        }
+    }
+
+    /** Runs the RIL and UICC requests of one phone, see {@link PhoneCommandLanes}. */
+    private final class CommandLaneHandler extends RequestHandler {
+        CommandLaneHandler(Looper looper) {
+            super(looper);
         }
     }
 
@@ -948,32 +1057,137 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     /**
-     * Posts the specified command to be executed on the main thread,
-     * waits for the request to complete, and returns the result.
+     * Posts the specified command to be executed on the main thread, or on the command lane of
+     * its phone for RIL-only commands, waits for the request to complete, and returns the result.
+     *
+     * If the command does not complete within its timeout, the request is cancelled and the
+     * command's failure result is returned instead; see {@link #getFailureResultForCommand}.
      * @see #sendRequestAsync
      */
-    private Object sendRequest(int command, Object argument, Integer subId) {
-        if (Looper.myLooper() == mMainThreadHandler.getLooper()) {
-            throw new RuntimeException("This method will deadlock if called from the main thread.");
+    @VisibleForTesting
+    Object sendRequest(int command, Object argument, Integer subId) {
+        Handler handler = getHandlerForCommand(command, subId);
+        // Lanes never wait for other threads, so only the main thread may block on them. A lane
+        // waiting for the main thread or another lane could end up waiting for itself.
+        if (Looper.myLooper() == handler.getLooper() || mCommandLanes.isOnLaneThread()) {
+            throw new RuntimeException("This method will deadlock if called from the thread"
+                    + " running the command or from a command lane thread.");
         }
 
         MainThreadRequest request = new MainThreadRequest(argument, subId);
-        Message msg = mMainThreadHandler.obtainMessage(command, request);
+        Message msg = handler.obtainMessage(command, request);
+        mRequestStats.onSent();
         msg.sendToTarget();
 
         // Wait for the request to complete
-        synchronized (request) {
-            while (request.result == null) {
-                try {
-                    request.wait();
-                } catch (InterruptedException e) {
-                    // Do nothing, go back and wait until the request is complete
-                }
-            }
+        if (!request.await(getTimeoutForCommand(command))) {
+            loge("sendRequest: command " + command + " timed out");
+            mRequestStats.onTimedOut();
+            return getFailureResultForCommand(command);
         }
+        mRequestStats.onCompleted(SystemClock.elapsedRealtime() - request.creationTimeMillis);
         return request.result;
     }
 
+    /**
+     * Wakes up the thread waiting on the given request. {@code request.result} must be set first.
+     */
+    private static void notifyRequester(MainThreadRequest request) {
+        request.complete();
+    }
+
+    /**
+     * Returns the handler that the given command should run on. Commands which only send a request
+     * to the RIL or UICC and read back the response don't touch UI or call state, so they are
+     * handled on the lane of the phone they target and don't wait behind, or hold up, the main
+     * thread or commands for other phones.
+     */
+    private Handler getHandlerForCommand(int command, Integer subId) {
+        switch (command) {
+            case CMD_HANDLE_NEIGHBORING_CELL:
+            case CMD_TRANSMIT_APDU_LOGICAL_CHANNEL:
+            case CMD_TRANSMIT_APDU_BASIC_CHANNEL:
+            case CMD_EXCHANGE_SIM_IO:
+            case CMD_SEND_ENVELOPE:
+            case CMD_OPEN_CHANNEL:
+            case CMD_OPEN_CHANNEL_WITH_P2:
+            case CMD_CLOSE_CHANNEL:
+            case CMD_NV_READ_ITEM:
+            case CMD_NV_WRITE_ITEM:
+            case CMD_NV_WRITE_CDMA_PRL:
+            case CMD_NV_RESET_CONFIG:
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+            case CMD_SET_PREFERRED_NETWORK_TYPE:
+            case CMD_INVOKE_OEM_RIL_REQUEST_RAW:
+            case CMD_PERFORM_NETWORK_SCAN:
+            case CMD_GET_MODEM_ACTIVITY_INFO:
+            case CMD_SET_ALLOWED_CARRIERS:
+            case CMD_GET_ALLOWED_CARRIERS:
+            case CMD_SIM_GET_ATR:
+                Phone phone = (subId == null
+                        || subId == SubscriptionManager.INVALID_SUBSCRIPTION_ID)
+                        ? mPhone : getPhone(subId);
+                return mCommandLanes.getHandlerForPhone(phone);
+            default:
+                return mMainThreadHandler;
+        }
+    }
+
+    /**
+     * Returns how long {@link #sendRequest} waits for the given command. Only commands which
+     * don't change anything, or whose change is undone if they complete after the requester gave
+     * up, have a timeout.
+     */
+    private static long getTimeoutForCommand(int command) {
+        switch (command) {
+            case CMD_PERFORM_NETWORK_SCAN:
+                return NETWORK_SCAN_REQUEST_TIMEOUT_MILLIS;
+            case CMD_HANDLE_NEIGHBORING_CELL:
+            case CMD_NV_READ_ITEM:
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+            case CMD_GET_MODEM_ACTIVITY_INFO:
+            case CMD_GET_ALLOWED_CARRIERS:
+            case CMD_SIM_GET_ATR:
+            // A channel opened after the requester gave up is closed again, see
+            // EVENT_OPEN_CHANNEL_DONE.
+            case CMD_OPEN_CHANNEL:
+            case CMD_OPEN_CHANNEL_WITH_P2:
+                return DEFAULT_REQUEST_TIMEOUT_MILLIS;
+            default:
+                return NO_REQUEST_TIMEOUT;
+        }
+    }
+
+    /**
+     * Returns the result {@link #sendRequest} hands back when the given command times out. These
+     * match what the handler reports when the command itself fails. Only commands with a timeout,
+     * see {@link #getTimeoutForCommand}, have one.
+     */
+    private static Object getFailureResultForCommand(int command) {
+        switch (command) {
+            case CMD_HANDLE_NEIGHBORING_CELL:
+                return new ArrayList<NeighboringCellInfo>(0);
+            case CMD_OPEN_CHANNEL:
+            case CMD_OPEN_CHANNEL_WITH_P2:
+                return new IccOpenLogicalChannelResponse(
+                        IccOpenLogicalChannelResponse.INVALID_CHANNEL,
+                        IccOpenLogicalChannelResponse.STATUS_UNKNOWN_ERROR, null);
+            case CMD_NV_READ_ITEM:
+            case CMD_SIM_GET_ATR:
+                return "";
+            case CMD_PERFORM_NETWORK_SCAN:
+                return new CellNetworkScanResult(CellNetworkScanResult.STATUS_UNKNOWN_ERROR, null);
+            case CMD_GET_MODEM_ACTIVITY_INFO:
+                return new ModemActivityInfo(0, 0, 0, null, 0, 0);
+            case CMD_GET_ALLOWED_CARRIERS:
+                return new ArrayList<CarrierIdentifier>(0);
+            case CMD_GET_PREFERRED_NETWORK_TYPE:
+                return null;
+            default:
+                throw new IllegalArgumentException("Command " + command + " has no timeout");
+        }
+    }
+
     /**
      * Asynchronous ("fire and forget") version of sendRequest():
      * Posts the specified command to be executed on the main thread, and
@@ -1017,6 +1231,9 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         mUserManager = (UserManager) app.getSystemService(Context.USER_SERVICE);
         mAppOps = (AppOpsManager)app.getSystemService(Context.APP_OPS_SERVICE);
         mMainThreadHandler = new MainThreadHandler();
+        mCommandLanes = new PhoneCommandLanes(TelephonyManager.getDefault().getPhoneCount(),
+                LOG_TAG, looper -> new CommandLaneHandler(looper));
+        mStateCache = new PhoneStateCache(app);
         mTelephonySharedPreferences =
                 PreferenceManager.getDefaultSharedPreferences(mPhone.getContext());
         mSubscriptionController = SubscriptionController.getInstance();
@@ -1024,6 +1241,23 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
         publish();
     }
 
+    /**
+     * Creates an instance which is not published, for testing how requests are dispatched.
+     * Commands for other phones than the default one need {@link #getPhone} to be overridden.
+     */
+    @VisibleForTesting
+    PhoneInterfaceManager(Phone phone, int numPhones) {
+        mPhone = phone;
+        mMainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
+        mCommandLanes = new PhoneCommandLanes(numPhones, LOG_TAG,
+                looper -> new CommandLaneHandler(looper));
+    }
+
+    @VisibleForTesting
+    PhoneCommandLanes getCommandLanes() {
+        return mCommandLanes;
+    }
+
     private void publish() {
         if (DBG) log("publish: " + this);
 
@@ -1042,7 +1276,8 @@ public class PhoneInterfaceManager extends ITelephony.Stub {
     }
 
     // returns phone associated with the subId.
-    private Phone getPhone(int subId) {
+    @VisibleForTesting
+    Phone getPhone(int subId) {
         return PhoneFactory.getPhone(mSubscriptionController.getPhoneId(subId));
     }
 
@@ -1676,13 +1911,18 @@ public void toggleLTE(boolean on) {
         if (checkIfCallerIsSelfOrForegroundUser() ||
                 checkCallerInteractAcrossUsersFull()) {
             if (DBG_LOC) log("getCellLocation: is active user");
-            Bundle data = new Bundle();
-            Phone phone = getPhone(mSubscriptionController.getDefaultDataSubId());
+            final Phone phone = getPhone(mSubscriptionController.getDefaultDataSubId());
             if (phone == null) {
                 return null;
             }
-            phone.getCellLocation().fillInNotifierBundle(data);
-            return data;
+            Bundle data = mStateCache.get(phone.getPhoneId(), PhoneStateCache.KEY_CELL_LOCATION,
+                    () -> {
+                        Bundle b = new Bundle();
+                        phone.getCellLocation().fillInNotifierBundle(b);
+                        return b;
+                    });
+            // The cached bundle is shared; hand out a copy.
+            return new Bundle(data);
         } else {
             log("getCellLocation: suppress non-active user");
             return null;
@@ -1785,8 +2025,9 @@ public void toggleLTE(boolean on) {
             if (DBG_LOC) log("getAllCellInfo: is active user");
             List<CellInfo> cellInfos = new ArrayList<CellInfo>();
             for (Phone phone : PhoneFactory.getPhones()) {
-                final List<CellInfo> info = phone.getAllCellInfo();
-                if (info != null) cellInfos.addAll(phone.getAllCellInfo());
+                final List<CellInfo> info = mStateCache.get(phone.getPhoneId(),
+                        PhoneStateCache.KEY_ALL_CELL_INFO, phone::getAllCellInfo);
+                if (info != null) cellInfos.addAll(info);
             }
             return cellInfos;
         } else {
@@ -2011,7 +2252,8 @@ public void toggleLTE(boolean on) {
         }
         final Phone phone = getPhone(subId);
         if (phone != null) {
-            return phone.getCdmaEriText();
+            return mStateCache.get(phone.getPhoneId(), PhoneStateCache.KEY_CDMA_ERI_TEXT,
+                    phone::getCdmaEriText);
         } else {
             return null;
         }
@@ -2843,6 +3085,7 @@ public void toggleLTE(boolean on) {
         }
 
         editor.commit();
+        mStateCache.invalidate(phone.getPhoneId(), PhoneStateCache.KEY_LINE1_ALPHA_TAG);
         return true;
     }
 
@@ -2873,6 +3116,15 @@ public void toggleLTE(boolean on) {
             return null;
         }
 
+        final Phone phone = getPhone(subId);
+        if (phone == null) {
+            return getLine1AlphaTag(subId);
+        }
+        return mStateCache.get(phone.getPhoneId(), PhoneStateCache.KEY_LINE1_ALPHA_TAG,
+                () -> getLine1AlphaTag(subId));
+    }
+
+    private String getLine1AlphaTag(int subId) {
         String iccId = getIccId(subId);
         if (iccId != null) {
             String alphaTagPrefKey = PREF_CARRIERS_ALPHATAG_PREFIX + iccId;
@@ -3582,6 +3834,8 @@ public void toggleLTE(boolean on) {
             return;
         }
         DumpsysHandler.dump(mPhone.getContext(), fd, writer, args);
+        mRequestStats.dump(writer);
+        mStateCache.dump(writer);
     }
 
     /**
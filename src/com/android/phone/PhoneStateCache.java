@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import android.content.Context;
+import android.os.AsyncResult;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+import android.os.SystemClock;
+import android.telephony.CellInfo;
+import android.telephony.CellLocation;
+import android.telephony.PhoneStateListener;
+import android.telephony.SubscriptionManager;
+import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
+import android.telephony.TelephonyManager;
+
+import com.android.internal.telephony.Phone;
+import com.android.internal.telephony.PhoneFactory;
+
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived cache of per-phone values that apps poll through {@link PhoneInterfaceManager}.
+ *
+ * Values are dropped when the service state, cell info or cell location of their phone changes,
+ * and in any case once they are older than the staleness bound. Callers are still responsible for
+ * permission checks; only the lookup into {@link Phone} is cached.
+ */
+public class PhoneStateCache {
+    // Upper bound on the age of a cached value, in case an invalidation event is missed.
+    private static final long DEFAULT_MAX_AGE_MILLIS = 1000;
+
+    // Cached values, indexed within each phone's entry.
+    public static final int KEY_CDMA_ERI_TEXT = 0;
+    public static final int KEY_CELL_LOCATION = 1;
+    public static final int KEY_ALL_CELL_INFO = 2;
+    public static final int KEY_LINE1_ALPHA_TAG = 3;
+    private static final int NUM_KEYS = 4;
+
+    private static final int EVENT_SERVICE_STATE_CHANGED = 1;
+
+    /** Computes a value on a cache miss. */
+    public interface Loader<T> {
+        T load();
+    }
+
+    private static final class Entry {
+        final Object[] values = new Object[NUM_KEYS];
+        final long[] loadTimes = new long[NUM_KEYS];
+        final boolean[] present = new boolean[NUM_KEYS];
+        // Bumped on every invalidation, so a load racing with one is not stored.
+        final int[] generations = new int[NUM_KEYS];
+    }
+
+    private final Context mContext;
+    private final long mMaxAgeMillis;
+    private final Entry[] mEntries;
+    private final PhoneStateListener[] mListeners;
+
+    private final AtomicLong mHits = new AtomicLong();
+    private final AtomicLong mMisses = new AtomicLong();
+    private final AtomicLong mExpired = new AtomicLong();
+    private final AtomicLong mInvalidations = new AtomicLong();
+
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            // Invalidate on the thread that notifies the change rather than once the message
+            // reaches the main looper, so stale values are not served in between.
+            if (msg.what == EVENT_SERVICE_STATE_CHANGED) {
+                AsyncResult ar = (AsyncResult) msg.obj;
+                onServiceStateChanged((Integer) ar.userObj);
+                msg.recycle();
+                return true;
+            }
+            return super.sendMessageAtTime(msg, uptimeMillis);
+        }
+    };
+
+    private final OnSubscriptionsChangedListener mOnSubscriptionsChangedListener =
+            new OnSubscriptionsChangedListener() {
+                @Override
+                public void onSubscriptionsChanged() {
+                    for (int i = 0; i < mEntries.length; i++) {
+                        invalidateAll(i);
+                    }
+                    registerPhoneStateListeners();
+                }
+            };
+
+    /**
+     * Must be called on the main thread, since listeners are bound to the calling looper.
+     */
+    public PhoneStateCache(Context context) {
+        this(context, DEFAULT_MAX_AGE_MILLIS);
+    }
+
+    /**
+     * @param maxAgeMillis how long a value may be served without being reloaded, or 0 to rely on
+     *         invalidation events only.
+     */
+    public PhoneStateCache(Context context, long maxAgeMillis) {
+        mContext = context;
+        mMaxAgeMillis = maxAgeMillis;
+        int numPhones = TelephonyManager.from(context).getPhoneCount();
+        mEntries = new Entry[numPhones];
+        mListeners = new PhoneStateListener[numPhones];
+        for (int i = 0; i < numPhones; i++) {
+            mEntries[i] = new Entry();
+            Phone phone = PhoneFactory.getPhone(i);
+            if (phone != null) {
+                phone.registerForServiceStateChanged(mHandler, EVENT_SERVICE_STATE_CHANGED,
+                        Integer.valueOf(i));
+            }
+        }
+
+        registerPhoneStateListeners();
+        SubscriptionManager.from(context).addOnSubscriptionsChangedListener(
+                mOnSubscriptionsChangedListener);
+    }
+
+    /**
+     * Returns the cached value for the given phone and key, loading it if it is missing or stale.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> T get(int phoneId, int key, Loader<T> loader) {
+        if (phoneId < 0 || phoneId >= mEntries.length) {
+            return loader.load();
+        }
+        Entry entry = mEntries[phoneId];
+        int generation;
+        synchronized (entry) {
+            if (entry.present[key]) {
+                if (mMaxAgeMillis <= 0
+                        || SystemClock.elapsedRealtime() - entry.loadTimes[key] < mMaxAgeMillis) {
+                    mHits.incrementAndGet();
+                    return (T) entry.values[key];
+                }
+                mExpired.incrementAndGet();
+            }
+            generation = entry.generations[key];
+        }
+
+        mMisses.incrementAndGet();
+        T value = loader.load();
+        synchronized (entry) {
+            if (entry.generations[key] == generation) {
+                entry.values[key] = value;
+                entry.loadTimes[key] = SystemClock.elapsedRealtime();
+                entry.present[key] = true;
+            }
+        }
+        return value;
+    }
+
+    /** Drops the cached value for the given phone and key. */
+    public void invalidate(int phoneId, int key) {
+        if (phoneId < 0 || phoneId >= mEntries.length) {
+            return;
+        }
+        Entry entry = mEntries[phoneId];
+        synchronized (entry) {
+            entry.generations[key]++;
+            if (entry.present[key]) {
+                entry.present[key] = false;
+                entry.values[key] = null;
+                mInvalidations.incrementAndGet();
+            }
+        }
+    }
+
+    /** Drops all cached values for the given phone. */
+    public void invalidateAll(int phoneId) {
+        for (int key = 0; key < NUM_KEYS; key++) {
+            invalidate(phoneId, key);
+        }
+    }
+
+    private void onServiceStateChanged(int phoneId) {
+        invalidate(phoneId, KEY_CDMA_ERI_TEXT);
+        invalidate(phoneId, KEY_CELL_LOCATION);
+    }
+
+    private void registerPhoneStateListeners() {
+        TelephonyManager tm = TelephonyManager.from(mContext);
+        for (int i = 0; i < mEntries.length; i++) {
+            if (mListeners[i] != null) {
+                tm.listen(mListeners[i], PhoneStateListener.LISTEN_NONE);
+                mListeners[i] = null;
+            }
+            int[] subIds = SubscriptionManager.getSubId(i);
+            if (subIds == null || subIds.length == 0
+                    || !SubscriptionManager.isValidSubscriptionId(subIds[0])) {
+                continue;
+            }
+            final int phoneId = i;
+            mListeners[i] = new PhoneStateListener(subIds[0]) {
+                @Override
+                public void onCellInfoChanged(List<CellInfo> cellInfo) {
+                    invalidate(phoneId, KEY_ALL_CELL_INFO);
+                }
+
+                @Override
+                public void onCellLocationChanged(CellLocation location) {
+                    invalidate(phoneId, KEY_CELL_LOCATION);
+                }
+            };
+            tm.listen(mListeners[i],
+                    PhoneStateListener.LISTEN_CELL_INFO | PhoneStateListener.LISTEN_CELL_LOCATION);
+        }
+    }
+
+    public void dump(PrintWriter writer) {
+        long hits = mHits.get();
+        long misses = mMisses.get();
+        writer.println("PhoneStateCache:");
+        writer.println("  hits=" + hits + " misses=" + misses + " expired=" + mExpired.get()
+                + " invalidations=" + mInvalidations.get());
+        writer.println("  hitRate=" + (hits + misses == 0 ? 0 : hits * 100 / (hits + misses))
+                + "%");
+    }
+}
@@ -2530,7 +2530,28 @@ public class PhoneUtils {
         return IExtTelephony.Stub.asInterface(ServiceManager.getService("extphone"));
     }
 
+    /**
+     * Matches {@code address} against the ECC lists of all phones in process, without a binder
+     * call.
+     *
+     * @param potential whether a number starting with an emergency number also matches.
+     * @return the result, or null if it cannot be decided in process.
+     */
+    private static Boolean getEmergencyNumberMatcherResult(String address, boolean potential) {
+        EmergencyNumberMatcher matcher = EmergencyNumberMatcher.getInstance();
+        if (matcher == null) {
+            return null;
+        }
+        return potential ? matcher.isPotentialEmergencyNumber(address)
+                : matcher.isEmergencyNumber(address);
+    }
+
     public static boolean isLocalEmergencyNumber(Context context, String address) {
+        Boolean isEmergency = getEmergencyNumberMatcherResult(address, false);
+        if (isEmergency != null) {
+            return isEmergency;
+        }
+
         IExtTelephony extTelephony = getIExtTelephony();
         if (extTelephony == null) {
             return PhoneNumberUtils.isLocalEmergencyNumber(context, address);
@@ -2545,6 +2566,11 @@ public class PhoneUtils {
     }
 
     public static boolean isPotentialLocalEmergencyNumber(Context context, String address) {
+        Boolean isEmergency = getEmergencyNumberMatcherResult(address, true);
+        if (isEmergency != null) {
+            return isEmergency;
+        }
+
         IExtTelephony extTelephony = getIExtTelephony();
         if (extTelephony == null) {
             return PhoneNumberUtils.isPotentialLocalEmergencyNumber(context, address);
@@ -2559,6 +2585,11 @@ public class PhoneUtils {
     }
 
     public static boolean isEmergencyNumber(String address) {
+        Boolean isEmergency = getEmergencyNumberMatcherResult(address, false);
+        if (isEmergency != null) {
+            return isEmergency;
+        }
+
         IExtTelephony extTelephony = getIExtTelephony();
         if (extTelephony == null) {
             return PhoneNumberUtils.isEmergencyNumber(address);
@@ -17,6 +17,7 @@ package com.android.phone.common.mail;
 
 import android.content.Context;
 import android.net.Network;
+import android.os.SystemClock;
 
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.common.mail.store.ImapStore;
@@ -24,7 +25,6 @@ import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.vvm.omtp.OmtpEvents;
 import com.android.phone.vvm.omtp.imap.ImapHelper;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -56,16 +56,18 @@ public class MailTransport {
             HttpsURLConnection.getDefaultHostnameVerifier();
 
     private final Context mContext;
-    private final ImapHelper mImapHelper;
+    private ImapHelper mImapHelper;
     private final Network mNetwork;
     private final String mHost;
     private final int mPort;
     private Socket mSocket;
-    private BufferedInputStream mIn;
+    private PeekableInputStream mIn;
     private BufferedOutputStream mOut;
     private final int mFlags;
     private SocketCreator mSocketCreator;
     private InetSocketAddress mAddress;
+    private long mHandshakeMillis = -1;
+    private boolean mSessionResumed;
 
     public MailTransport(Context context, ImapHelper imapHelper, Network network, String address,
             int port, int flags) {
@@ -137,7 +139,7 @@ public class MailTransport {
                      */
                     reopenTls();
                 } else {
-                    mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
+                    mIn = new PeekableInputStream(mSocket.getInputStream());
                     mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
                     mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
                 }
@@ -201,15 +203,17 @@ public class MailTransport {
     public void reopenTls() throws MessagingException {
         try {
             LogUtils.d(TAG, "open: converting to TLS socket");
-            mSocket = HttpsURLConnection.getDefaultSSLSocketFactory()
+            // The host and port given here are what the session is cached under.
+            mSocket = TlsSessionCache.getInstance().getSocketFactory(mNetwork)
                     .createSocket(mSocket, mAddress.getHostName(), mAddress.getPort(), true);
+            startHandshake((SSLSocket) mSocket);
             // After the socket connects to an SSL server, confirm that the hostname is as
             // expected
             if (!canTrustAllCertificates()) {
                 verifyHostname(mSocket, mHost);
             }
             mSocket.setSoTimeout(SOCKET_READ_TIMEOUT);
-            mIn = new BufferedInputStream(mSocket.getInputStream(), 1024);
+            mIn = new PeekableInputStream(mSocket.getInputStream());
             mOut = new BufferedOutputStream(mSocket.getOutputStream(), 512);
 
         } catch (SSLException e) {
@@ -221,6 +225,40 @@ public class MailTransport {
         }
     }
 
+    /**
+     * Runs the TLS handshake now rather than on the first read, and records whether it resumed a
+     * cached session and how long it took.
+     */
+    private void startHandshake(SSLSocket socket) throws IOException {
+        TlsSessionCache cache = TlsSessionCache.getInstance();
+        // Sessions are cached under the host and port the socket was layered with.
+        final byte[] cachedSessionId = cache.getCachedSessionId(mNetwork,
+                mAddress.getHostName(), mAddress.getPort());
+        final long start = SystemClock.elapsedRealtime();
+        socket.startHandshake();
+        mHandshakeMillis = SystemClock.elapsedRealtime() - start;
+        mSessionResumed = TlsSessionCache.isResumed(cachedSessionId, socket.getSession());
+        cache.recordHandshake(mSessionResumed);
+        LogUtils.d(TAG, "TLS handshake with " + mHost + ":" + mPort + " took " + mHandshakeMillis
+                + "ms, " + (mSessionResumed ? "resumed" : "full") + " ("
+                + cache.getFullHandshakeCount() + " full, " + cache.getResumedHandshakeCount()
+                + " resumed so far)");
+    }
+
+    /**
+     * @return how long the TLS handshake of this connection took, or -1 if there was none.
+     */
+    public long getHandshakeMillis() {
+        return mHandshakeMillis;
+    }
+
+    /**
+     * @return whether the TLS handshake of this connection resumed a cached session.
+     */
+    public boolean isSessionResumed() {
+        return mSessionResumed;
+    }
+
     /**
      * Lightweight version of SSLCertificateSocketFactory.verifyHostname, which provides this
      * service but is not in the public API.
@@ -293,6 +331,18 @@ public class MailTransport {
         return mHost;
     }
 
+    public ImapHelper getImapHelper() {
+        return mImapHelper;
+    }
+
+    /**
+     * Sets the helper which the events of this transport are reported to, e.g. when its
+     * connection is handed to another task.
+     */
+    public void setImapHelper(ImapHelper imapHelper) {
+        mImapHelper = imapHelper;
+    }
+
     public InputStream getInputStream() {
         return mIn;
     }
@@ -305,6 +355,15 @@ public class MailTransport {
      * Writes a single line to the server using \r\n termination.
      */
     public void writeLine(String s, String sensitiveReplacement) throws IOException {
+        queueLine(s, sensitiveReplacement);
+        flush();
+    }
+
+    /**
+     * Like {@link #writeLine} but leaves the line in the output buffer, so that several lines can
+     * be sent together. {@link #flush()} must be called once they have all been queued.
+     */
+    public void queueLine(String s, String sensitiveReplacement) throws IOException {
         if (sensitiveReplacement != null) {
             LogUtils.d(TAG, ">>> " + sensitiveReplacement);
         } else {
@@ -315,30 +374,25 @@ public class MailTransport {
         out.write(s.getBytes());
         out.write('\r');
         out.write('\n');
-        out.flush();
+    }
+
+    public void flush() throws IOException {
+        getOutputStream().flush();
     }
 
     /**
      * Reads a single line from the server, using either \r\n or \n as the delimiter.  The
-     * delimiter char(s) are not included in the result.
+     * delimiter char(s) are not included in the result.  A line cut short by the end of the
+     * stream, e.g. a final BYE, is returned as it is.
      */
     public String readLine(boolean loggable) throws IOException {
-        StringBuffer sb = new StringBuffer();
-        InputStream in = getInputStream();
-        int d;
-        while ((d = in.read()) != -1) {
-            if (((char)d) == '\r') {
-                continue;
-            } else if (((char)d) == '\n') {
-                break;
-            } else {
-                sb.append((char)d);
-            }
-        }
-        if (d == -1) {
+        String ret = mIn.readAsciiUntilOrEnd('\n');
+        if (ret == null) {
             LogUtils.d(TAG, "End of stream reached while trying to read line.");
+            ret = "";
+        } else if (ret.indexOf('\r') != -1) {
+            ret = ret.replace("\r", "");
         }
-        String ret = sb.toString();
         if (loggable) {
             LogUtils.d(TAG, "<<< " + ret);
         }
@@ -18,53 +18,90 @@ package com.android.phone.common.mail;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
 
 /**
- * A filtering InputStream that allows single byte "peeks" without consuming the byte. The
+ * A buffering InputStream that allows single byte "peeks" without consuming the byte. The
  * client of this stream can call peek() to see the next available byte in the stream
  * and a subsequent read will still return the peeked byte.
+ *
+ * It also lets protocol parsers scan for delimiters directly over its buffer with
+ * {@link #readAsciiUntil(int)} and {@link #readAsciiUntilAny(boolean[])}, so a token costs one
+ * String allocation rather than one virtual call per byte, or none if it is in an
+ * {@link AtomTable}.
  */
 public class PeekableInputStream extends InputStream {
+    private static final int DEFAULT_BUFFER_SIZE = 8 * 1024;
+
     private final InputStream mIn;
-    private boolean mPeeked;
-    private int mPeekedByte;
+    private final byte[] mBuffer;
+    private int mPos;
+    private int mLimit;
+
+    /** Joins the parts of a token which spans more than one fill of {@link #mBuffer}. */
+    private byte[] mToken = new byte[256];
 
     public PeekableInputStream(InputStream in) {
+        this(in, DEFAULT_BUFFER_SIZE);
+    }
+
+    public PeekableInputStream(InputStream in, int bufferSize) {
         this.mIn = in;
+        mBuffer = new byte[bufferSize];
+    }
+
+    /**
+     * Makes sure there is at least one byte in the buffer.
+     *
+     * @return false if the end of the stream was reached.
+     */
+    private boolean fill() throws IOException {
+        if (mPos < mLimit) {
+            return true;
+        }
+        int n;
+        do {
+            n = mIn.read(mBuffer, 0, mBuffer.length);
+        } while (n == 0);
+        if (n == -1) {
+            return false;
+        }
+        mPos = 0;
+        mLimit = n;
+        return true;
     }
 
     @Override
     public int read() throws IOException {
-        if (!mPeeked) {
-            return mIn.read();
-        } else {
-            mPeeked = false;
-            return mPeekedByte;
+        if (!fill()) {
+            return -1;
         }
+        return mBuffer[mPos++] & 0xff;
     }
 
     public int peek() throws IOException {
-        if (!mPeeked) {
-            mPeekedByte = read();
-            mPeeked = true;
+        if (!fill()) {
+            return -1;
         }
-        return mPeekedByte;
+        return mBuffer[mPos] & 0xff;
     }
 
     @Override
     public int read(byte[] b, int offset, int length) throws IOException {
-        if (!mPeeked) {
+        if (length == 0) {
+            return 0;
+        }
+        if (mPos == mLimit && length >= mBuffer.length) {
+            // Nothing buffered and a large read; skip the copy through our buffer.
             return mIn.read(b, offset, length);
-        } else {
-            b[0] = (byte)mPeekedByte;
-            mPeeked = false;
-            int r = mIn.read(b, offset + 1, length - 1);
-            if (r == -1) {
-                return 1;
-            } else {
-                return r + 1;
-            }
         }
+        if (!fill()) {
+            return -1;
+        }
+        int n = Math.min(length, mLimit - mPos);
+        System.arraycopy(mBuffer, mPos, b, offset, n);
+        mPos += n;
+        return n;
     }
 
     @Override
@@ -72,9 +109,214 @@ public class PeekableInputStream extends InputStream {
         return read(b, 0, b.length);
     }
 
+    @Override
+    public long skip(long n) throws IOException {
+        if (n <= 0) {
+            return 0;
+        }
+        if (mPos < mLimit) {
+            int skipped = (int) Math.min(n, mLimit - mPos);
+            mPos += skipped;
+            return skipped;
+        }
+        return mIn.skip(n);
+    }
+
+    @Override
+    public int available() throws IOException {
+        return (mLimit - mPos) + mIn.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        mIn.close();
+    }
+
+    /**
+     * A fixed set of ASCII strings which the scanning methods return as the same instances every
+     * time they are read, instead of allocating a new String. Matching is case sensitive.
+     */
+    public static final class AtomTable {
+        private final String[] mSlots;
+        private final int mMask;
+        private int mMaxLength;
+
+        public AtomTable(String... atoms) {
+            int size = 16;
+            while (size < atoms.length * 2) {
+                size <<= 1;
+            }
+            mSlots = new String[size];
+            mMask = size - 1;
+            for (String atom : atoms) {
+                // String.hashCode() is the same as hash() below for ASCII strings.
+                int slot = atom.hashCode() & mMask;
+                while (mSlots[slot] != null && !mSlots[slot].equals(atom)) {
+                    slot = (slot + 1) & mMask;
+                }
+                mSlots[slot] = atom;
+                mMaxLength = Math.max(mMaxLength, atom.length());
+            }
+        }
+
+        /**
+         * @return the atom equal to the given bytes, or null if there is none.
+         */
+        String get(byte[] bytes, int offset, int length) {
+            if (length > mMaxLength) {
+                return null;
+            }
+            int hash = 0;
+            for (int i = offset; i < offset + length; i++) {
+                hash = 31 * hash + (bytes[i] & 0xff);
+            }
+            for (int slot = hash & mMask; ; slot = (slot + 1) & mMask) {
+                final String atom = mSlots[slot];
+                if (atom == null) {
+                    return null;
+                }
+                if (matches(atom, bytes, offset, length)) {
+                    return atom;
+                }
+            }
+        }
+
+        private static boolean matches(String atom, byte[] bytes, int offset, int length) {
+            if (atom.length() != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (atom.charAt(i) != (bytes[offset + i] & 0xff)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Reads bytes until {@code end} and returns them as a string, one char per byte. {@code end}
+     * is consumed but not included in the result.
+     *
+     * @return the string, or null if the end of the stream is reached before {@code end}.
+     */
+    public String readAsciiUntil(int end) throws IOException {
+        return readAsciiUntil(end, null);
+    }
+
+    /**
+     * Same as {@link #readAsciiUntil(int)}, but returns the shared instance if the string is one
+     * of {@code atoms}.
+     */
+    public String readAsciiUntil(int end, AtomTable atoms) throws IOException {
+        return readAsciiUntil(end, atoms, false);
+    }
+
+    /**
+     * Same as {@link #readAsciiUntil(int)}, but if the end of the stream is reached before
+     * {@code end}, returns the bytes read so far.
+     *
+     * @return the string, or null if the end of the stream is reached before any byte is read.
+     */
+    public String readAsciiUntilOrEnd(int end) throws IOException {
+        return readAsciiUntil(end, null, true);
+    }
+
+    private String readAsciiUntil(int end, AtomTable atoms, boolean partialAtEnd)
+            throws IOException {
+        final byte endByte = (byte) end;
+        int tokenLength = 0;
+        for (;;) {
+            if (!fill()) {
+                return partialAtEnd && tokenLength > 0
+                        ? toAscii(mToken, 0, tokenLength, atoms) : null;
+            }
+            final byte[] buffer = mBuffer;
+            final int start = mPos;
+            final int limit = mLimit;
+            for (int i = start; i < limit; i++) {
+                if (buffer[i] == endByte) {
+                    mPos = i + 1;
+                    if (tokenLength == 0) {
+                        return toAscii(buffer, start, i - start, atoms);
+                    }
+                    tokenLength = appendToken(buffer, start, i - start, tokenLength);
+                    return toAscii(mToken, 0, tokenLength, atoms);
+                }
+            }
+            tokenLength = appendToken(buffer, start, limit - start, tokenLength);
+            mPos = limit;
+        }
+    }
+
+    /**
+     * Reads bytes until one for which {@code delimiters} is true, and returns them as a string,
+     * one char per byte. The delimiter is not consumed; it is the next byte to be read. Bytes
+     * with a value of {@code delimiters.length} or more are never delimiters.
+     *
+     * @return the string, which is empty if the next byte is a delimiter, or null if the end of
+     *         the stream is reached first.
+     */
+    public String readAsciiUntilAny(boolean[] delimiters) throws IOException {
+        return readAsciiUntilAny(delimiters, null);
+    }
+
+    /**
+     * Same as {@link #readAsciiUntilAny(boolean[])}, but returns the shared instance if the string
+     * is one of {@code atoms}.
+     */
+    public String readAsciiUntilAny(boolean[] delimiters, AtomTable atoms) throws IOException {
+        int tokenLength = 0;
+        for (;;) {
+            if (!fill()) {
+                return null;
+            }
+            final byte[] buffer = mBuffer;
+            final int start = mPos;
+            final int limit = mLimit;
+            for (int i = start; i < limit; i++) {
+                final int b = buffer[i] & 0xff;
+                if (b < delimiters.length && delimiters[b]) {
+                    mPos = i;
+                    if (tokenLength == 0) {
+                        return toAscii(buffer, start, i - start, atoms);
+                    }
+                    tokenLength = appendToken(buffer, start, i - start, tokenLength);
+                    return toAscii(mToken, 0, tokenLength, atoms);
+                }
+            }
+            tokenLength = appendToken(buffer, start, limit - start, tokenLength);
+            mPos = limit;
+        }
+    }
+
+    private int appendToken(byte[] src, int offset, int length, int tokenLength) {
+        if (tokenLength + length > mToken.length) {
+            byte[] token = new byte[Math.max(mToken.length * 2, tokenLength + length)];
+            System.arraycopy(mToken, 0, token, 0, tokenLength);
+            mToken = token;
+        }
+        System.arraycopy(src, offset, mToken, tokenLength, length);
+        return tokenLength + length;
+    }
+
+    private static String toAscii(byte[] bytes, int offset, int length, AtomTable atoms) {
+        if (length == 0) {
+            return "";
+        }
+        if (atoms != null) {
+            final String atom = atoms.get(bytes, offset, length);
+            if (atom != null) {
+                return atom;
+            }
+        }
+        // ISO-8859-1 maps every byte to the char of the same value, like a (char) cast.
+        return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+    }
+
     @Override
     public String toString() {
-        return String.format("PeekableInputStream(in=%s, peeked=%b, peekedByte=%d)",
-                mIn.toString(), mPeeked, mPeekedByte);
+        return String.format("PeekableInputStream(in=%s, buffered=%d)",
+                mIn.toString(), mLimit - mPos);
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.android.phone.common.mail;
+
+import android.net.Network;
+
+import com.android.phone.common.mail.utils.LogUtils;
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Process-wide TLS client session cache for {@link MailTransport}, so that connections to a
+ * voicemail server the phone has already talked to can resume the earlier session with an
+ * abbreviated handshake instead of a full one, which saves a round trip and the certificate
+ * exchange on slow links.
+ *
+ * Sessions are cached per {@link Network}, and within a network by the host and port passed when
+ * the socket is layered, so a session negotiated over one network is never offered on another.
+ * Also counts how many handshakes were resumed, which is told apart from a full handshake by the
+ * session ID it ends up with.
+ */
+public class TlsSessionCache {
+    private static final String TAG = "TlsSessionCache";
+
+    /** Sessions kept per network. There are only a few voicemail hosts. */
+    private static final int SESSIONS_PER_NETWORK = 16;
+    /** Networks with cached sessions, least recently used ones are dropped first. */
+    private static final int MAX_NETWORKS = 4;
+
+    private static TlsSessionCache sInstance;
+
+    private final Map<Network, SSLContext> mContexts =
+            new LinkedHashMap<Network, SSLContext>(MAX_NETWORKS, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Network, SSLContext> eldest) {
+                    return size() > MAX_NETWORKS;
+                }
+            };
+    private int mFullHandshakes;
+    private int mResumedHandshakes;
+
+    /* package for test */ TlsSessionCache() {
+    }
+
+    public static synchronized TlsSessionCache getInstance() {
+        if (sInstance == null) {
+            sInstance = new TlsSessionCache();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the factory to layer TLS sockets over connections made on {@code network}, which may
+     *         be null for the default network. Sockets it creates share one session cache.
+     */
+    public synchronized SSLSocketFactory getSocketFactory(Network network) {
+        SSLContext context = getContext(network);
+        if (context == null) {
+            return HttpsURLConnection.getDefaultSSLSocketFactory();
+        }
+        return context.getSocketFactory();
+    }
+
+    /**
+     * @return the ID of the session cached for {@code host} and {@code port} on {@code network},
+     *         or null if there is none. A handshake which ends up with this ID resumed it.
+     */
+    public synchronized byte[] getCachedSessionId(Network network, String host, int port) {
+        SSLContext context = getContext(network);
+        if (context == null) {
+            return null;
+        }
+        return findSessionId(context.getClientSessionContext(), host, port);
+    }
+
+    private SSLContext getContext(Network network) {
+        SSLContext context = mContexts.get(network);
+        if (context == null) {
+            try {
+                context = SSLContext.getInstance("TLS");
+                // Default key and trust managers, as for the default SSLSocketFactory.
+                context.init(null, null, null);
+                context.getClientSessionContext().setSessionCacheSize(SESSIONS_PER_NETWORK);
+            } catch (GeneralSecurityException e) {
+                LogUtils.w(TAG, e, "Cannot create SSLContext, sessions will not be cached");
+                return null;
+            }
+            mContexts.put(network, context);
+        }
+        return context;
+    }
+
+    /* package for test */ static byte[] findSessionId(SSLSessionContext sessionContext,
+            String host, int port) {
+        Enumeration<byte[]> ids = sessionContext.getIds();
+        while (ids.hasMoreElements()) {
+            byte[] id = ids.nextElement();
+            SSLSession session = sessionContext.getSession(id);
+            if (session != null && port == session.getPeerPort()
+                    && host != null && host.equalsIgnoreCase(session.getPeerHost())) {
+                return id;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return whether the handshake that negotiated {@code session} resumed the session whose ID
+     *         was cached before it started, see {@link #getCachedSessionId}.
+     */
+    public static boolean isResumed(byte[] cachedSessionId, SSLSession session) {
+        return cachedSessionId != null && cachedSessionId.length > 0 && session != null
+                && Arrays.equals(cachedSessionId, session.getId());
+    }
+
+    /* package */ synchronized void recordHandshake(boolean resumed) {
+        if (resumed) {
+            mResumedHandshakes++;
+        } else {
+            mFullHandshakes++;
+        }
+    }
+
+    public synchronized int getFullHandshakeCount() {
+        return mFullHandshakes;
+    }
+
+    public synchronized int getResumedHandshakeCount() {
+        return mResumedHandshakes;
+    }
+}
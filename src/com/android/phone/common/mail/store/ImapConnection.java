@@ -15,6 +15,7 @@
  */
 package com.android.phone.common.mail.store;
 
+import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Base64;
 import com.android.phone.common.mail.AuthenticationFailedException;
@@ -49,6 +50,8 @@ public class ImapConnection {
     private MailTransport mTransport;
     private ImapResponseParser mParser;
     private Set<String> mCapabilities = new ArraySet<>();
+    private ImapResponseParser.LiteralConsumer mLiteralConsumer;
+    private boolean mLoggedIn;
 
     static final String IMAP_REDACTED_LOG = "[IMAP command redacted]";
 
@@ -70,6 +73,15 @@ public class ImapConnection {
         // changed, the connection will not be reestablished.
         mImapStore = store;
         mLoginPhrase = null;
+        if (mTransport != null) {
+            // A pooled connection keeps its transport, which must stop holding on to the helper
+            // of the task which used it before.
+            mTransport.setImapHelper(store.getImapHelper());
+        }
+    }
+
+    /* package for test */ MailTransport getTransport() {
+        return mTransport;
     }
 
     /**
@@ -123,6 +135,7 @@ public class ImapConnection {
 
             // LOGIN
             doLogin();
+            mLoggedIn = true;
         } catch (SSLException e) {
             LogUtils.d(TAG, "SSLException ", e);
             mImapStore.getImapHelper().handleEvent(OmtpEvents.DATA_SSL_EXCEPTION);
@@ -155,6 +168,7 @@ public class ImapConnection {
      * until {@link #setStore(ImapStore)} is called.
      */
     void close() {
+        mLoggedIn = false;
         if (mTransport != null) {
             logout();
             mTransport.close();
@@ -165,6 +179,36 @@ public class ImapConnection {
         mImapStore = null;
     }
 
+    /**
+     * @return whether the connection is open and logged in, and so can be handed to another
+     *         {@link ImapStore} through {@link ImapConnectionPool}.
+     */
+    boolean isReusable() {
+        return mLoggedIn && mTransport != null && mTransport.isOpen();
+    }
+
+    /**
+     * Sends a NOOP to check that the server is still there and that no response of an earlier
+     * command is left unread on the connection.
+     *
+     * @return whether the NOOP completed with its own tagged OK.
+     */
+    boolean noop() {
+        try {
+            final String tag = sendCommand(ImapConstants.NOOP, false);
+            ImapResponse response;
+            do {
+                response = mParser.readResponse(false);
+            } while (!response.isTagged());
+            return tag.equals(response.getTag()) && response.isOk();
+        } catch (IOException | MessagingException | RuntimeException e) {
+            VvmLog.w(TAG, "NOOP failed: " + e);
+            return false;
+        } finally {
+            destroyResponses();
+        }
+    }
+
     /**
      * Attempts to convert the connection into secure connection.
      */
@@ -313,7 +357,7 @@ public class ImapConnection {
         LogUtils.d(TAG, "Capabilities: " + mCapabilities.toString());
     }
 
-    private boolean hasCapability(String capability) {
+    boolean hasCapability(String capability) {
         return mCapabilities.contains(capability);
     }
     /**
@@ -326,6 +370,18 @@ public class ImapConnection {
     private void createParser() {
         destroyResponses();
         mParser = new ImapResponseParser(mTransport.getInputStream());
+        mParser.setLiteralConsumer(mLiteralConsumer);
+    }
+
+    /**
+     * Hands the literals of the following responses to {@code consumer} as they are read off the
+     * connection, or parses them into the responses again if {@code consumer} is null.
+     */
+    public void setLiteralConsumer(ImapResponseParser.LiteralConsumer consumer) {
+        mLiteralConsumer = consumer;
+        if (mParser != null) {
+            mParser.setLiteralConsumer(consumer);
+        }
     }
 
 
@@ -400,14 +456,88 @@ public class ImapConnection {
         } while (!(response.isTagged() || response.isContinuationRequest()));
 
         if (!(response.isOk() || response.isContinuationRequest())) {
-            final String toString = response.toString();
-            final String status = response.getStatusOrEmpty().getString();
-            final String statusMessage = response.getStatusResponseTextOrEmpty().getString();
-            final String alert = response.getAlertTextOrEmpty().getString();
-            final String responseCode = response.getResponseCodeOrEmpty().getString();
-            destroyResponses();
-            throw new ImapException(toString, status, statusMessage, alert, responseCode);
+            throw toImapException(response);
         }
         return responses;
     }
+
+    /**
+     * Sends all of {@code commands} before reading any response, then reads the responses of all
+     * of them, so that they take about one round trip together instead of one each. The commands
+     * must not depend on each other's results, and must not need a continuation. A command which
+     * only makes sense if an earlier one succeeded, like EXPUNGE after STORE +FLAGS (\Deleted),
+     * has to be sent once the earlier one completed.
+     *
+     * Untagged responses are given to the oldest command which has not completed yet, as the
+     * server runs pipelined commands in order.
+     *
+     * @return the responses of each command, in the order of {@code commands}, each list ending
+     *         with the tagged response of the command.
+     * @throws ImapException for the first command which did not complete with OK, once the
+     *         responses of all the commands have been read.
+     */
+    public List<List<ImapResponse>> executePipelinedCommands(List<String> commands)
+            throws IOException, MessagingException {
+        open();
+
+        if (mTransport == null) {
+            throw new IOException("Null transport");
+        }
+        final int count = commands.size();
+        final ArrayMap<String, Integer> indexByTag = new ArrayMap<>(count);
+        final List<List<ImapResponse>> results = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            final String tag = Integer.toString(mNextCommandTag.incrementAndGet());
+            mTransport.queueLine(tag + " " + commands.get(i), commands.get(i));
+            indexByTag.put(tag, i);
+            results.add(new ArrayList<ImapResponse>());
+        }
+        mTransport.flush();
+
+        final boolean[] completed = new boolean[count];
+        int oldest = 0;
+        int remaining = count;
+        ImapResponse failure = null;
+        while (remaining > 0) {
+            final ImapResponse response = mParser.readResponse(false);
+            if (response.isContinuationRequest()) {
+                // The server is waiting for data the command never meant to send.
+                throw new IOException("Unexpected continuation request in pipeline");
+            }
+            if (!response.isTagged()) {
+                results.get(oldest).add(response);
+                continue;
+            }
+            final Integer index = indexByTag.get(response.getTag());
+            if (index == null || completed[index]) {
+                throw new IOException("Unexpected tag in pipeline: " + response.getTag());
+            }
+            results.get(index).add(response);
+            completed[index] = true;
+            remaining--;
+            while (oldest < count && completed[oldest]) {
+                oldest++;
+            }
+            if (failure == null && !response.isOk()) {
+                failure = response;
+            }
+        }
+        if (failure != null) {
+            throw toImapException(failure);
+        }
+        return results;
+    }
+
+    /**
+     * Converts a failed tagged response into an {@link ImapException} and destroys the responses.
+     */
+    private ImapException toImapException(ImapResponse response) {
+        final String toString = response.toString();
+        final String status = response.getStatusOrEmpty().getString();
+        final String statusMessage = response.getStatusResponseTextOrEmpty().getString();
+        final String alert = response.getAlertTextOrEmpty().getString();
+        final String responseCode = response.getResponseCodeOrEmpty().getString();
+        destroyResponses();
+        return new ImapException(toString, status, statusMessage, alert, responseCode);
+    }
 }
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import android.util.ArrayMap;
+
+import com.android.phone.vvm.omtp.VvmLog;
+
+/**
+ * Keeps logged in {@link ImapConnection}s around for a short while after a task is done with
+ * them, so that the next task for the same account can skip the TCP and TLS handshakes, the
+ * greeting, the capability query and the login. Sync, fetch and upload tasks often run back to
+ * back, and each of them used to pay for all of that.
+ *
+ * At most one idle connection is kept per account, credentials and {@link android.net.Network}.
+ * A connection is checked with a NOOP before it is handed out again, and idle ones are logged out
+ * after {@link #MAX_IDLE_MILLIS}. No keepalive is sent while idle, so that the radio is not woken
+ * up for a connection which might never be used again.
+ */
+public class ImapConnectionPool {
+    private static final String TAG = "ImapConnectionPool";
+
+    /** How long an idle connection is kept, well below the 30 minute autologout of RFC 3501. */
+    /* package */ static final long MAX_IDLE_MILLIS = 60 * 1000;
+
+    private static ImapConnectionPool sInstance;
+
+    private final long mMaxIdleMillis;
+    private final ArrayMap<String, IdleConnection> mIdleConnections = new ArrayMap<>();
+    private Handler mHandler;
+
+    private static class IdleConnection {
+        final ImapConnection connection;
+        final long idleSinceMillis;
+
+        IdleConnection(ImapConnection connection, long idleSinceMillis) {
+            this.connection = connection;
+            this.idleSinceMillis = idleSinceMillis;
+        }
+    }
+
+    /* package for test */ ImapConnectionPool(long maxIdleMillis) {
+        mMaxIdleMillis = maxIdleMillis;
+    }
+
+    public static synchronized ImapConnectionPool getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapConnectionPool(MAX_IDLE_MILLIS);
+        }
+        return sInstance;
+    }
+
+    /**
+     * Takes the idle connection for {@code key} out of the pool and binds it to {@code store}.
+     *
+     * @return the connection, or null if there is none or it is no longer usable, in which case the
+     *         caller should open a new one.
+     */
+    public ImapConnection acquire(String key, ImapStore store) {
+        final IdleConnection idle;
+        synchronized (this) {
+            idle = mIdleConnections.remove(key);
+        }
+        if (idle == null) {
+            return null;
+        }
+        final ImapConnection connection = idle.connection;
+        if (SystemClock.elapsedRealtime() - idle.idleSinceMillis > mMaxIdleMillis) {
+            connection.close();
+            return null;
+        }
+        // Events of the reused connection, including those of its transport, go to the new task.
+        connection.setStore(store);
+        if (!connection.isReusable() || !connection.noop()) {
+            VvmLog.i(TAG, "Idle connection is no longer usable");
+            connection.close();
+            return null;
+        }
+        return connection;
+    }
+
+    /**
+     * Hands {@code connection} back to the pool once its user is done with it. Connections which
+     * are closed or not logged in are closed instead.
+     */
+    public void release(String key, ImapConnection connection) {
+        connection.destroyResponses();
+        connection.setLiteralConsumer(null);
+        if (!connection.isReusable()) {
+            connection.close();
+            return;
+        }
+        final IdleConnection idle =
+                new IdleConnection(connection, SystemClock.elapsedRealtime());
+        final IdleConnection previous;
+        synchronized (this) {
+            previous = mIdleConnections.put(key, idle);
+            getHandler().postDelayed(() -> expire(key, idle), mMaxIdleMillis);
+        }
+        if (previous != null) {
+            previous.connection.close();
+        }
+    }
+
+    private void expire(String key, IdleConnection idle) {
+        synchronized (this) {
+            if (mIdleConnections.get(key) != idle) {
+                // Already reused or replaced.
+                return;
+            }
+            mIdleConnections.remove(key);
+        }
+        VvmLog.i(TAG, "Closing idle connection");
+        idle.connection.close();
+    }
+
+    /** Logging out does network I/O, so idle connections are closed on a background thread. */
+    private Handler getHandler() {
+        if (mHandler == null) {
+            final HandlerThread thread = new HandlerThread(TAG);
+            thread.start();
+            mHandler = new Handler(thread.getLooper());
+        }
+        return mHandler;
+    }
+
+    /* package for test */ synchronized int getIdleCountForTest() {
+        return mIdleConnections.size();
+    }
+}
@@ -25,6 +25,7 @@ import com.android.phone.common.R;
 import com.android.phone.common.mail.AuthenticationFailedException;
 import com.android.phone.common.mail.Body;
 import com.android.phone.common.mail.FetchProfile;
+import com.android.phone.common.mail.FixedLengthInputStream;
 import com.android.phone.common.mail.Flag;
 import com.android.phone.common.mail.Message;
 import com.android.phone.common.mail.MessagingException;
@@ -40,20 +41,25 @@ import com.android.phone.common.mail.store.imap.ImapConstants;
 import com.android.phone.common.mail.store.imap.ImapElement;
 import com.android.phone.common.mail.store.imap.ImapList;
 import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.common.mail.store.imap.ImapResponseParser;
 import com.android.phone.common.mail.store.imap.ImapString;
 import com.android.phone.common.mail.utils.LogUtils;
 import com.android.phone.common.mail.utils.Utility;
 import com.android.phone.vvm.omtp.OmtpEvents;
 
+import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 public class ImapFolder {
     private static final String TAG = "ImapFolder";
@@ -64,6 +70,9 @@ public class ImapFolder {
     private final ImapStore mStore;
     private final String mName;
     private int mMessageCount = -1;
+    private long mUidValidity = NO_UID;
+    private long mUidNext = NO_UID;
+    private long mHighestModSeq = NO_MODSEQ;
     private ImapConnection mConnection;
     private String mMode;
     private boolean mExists;
@@ -73,6 +82,11 @@ public class ImapFolder {
     public static final String MODE_READ_ONLY = "mode_read_only";
     public static final String MODE_READ_WRITE = "mode_read_write";
 
+    /** Returned when the server did not report a UID value on select. */
+    public static final long NO_UID = -1;
+    /** Returned when the server does not support mod-sequences for the folder. */
+    public static final long NO_MODSEQ = -1;
+
     public ImapFolder(ImapStore store, String name) {
         mStore = store;
         mName = name;
@@ -85,6 +99,35 @@ public class ImapFolder {
         public void messageRetrieved(Message message);
     }
 
+    /**
+     * Receives the content of a part fetched by {@link #fetchPartToStream}.
+     */
+    public interface PartStreamListener {
+        /**
+         * Called once with the decoded content of the part, read straight off the connection.
+         * {@code in} is only valid during the call.
+         */
+        void onPartStream(Message message, InputStream in) throws IOException;
+
+        /**
+         * Called as the encoded content of the part is received.
+         */
+        void onProgress(Message message, long bytesReceived, long totalBytes);
+    }
+
+    /**
+     * Receives the content of a part fetched by {@link #fetchPartChunks}.
+     */
+    public interface PartChunkListener {
+        /**
+         * Called with each chunk of the encoded content of the part, read straight off the
+         * connection. {@code in} must be read to the end, and is only valid during the call.
+         *
+         * @param offset the offset of the chunk in the encoded part.
+         */
+        void onPartChunk(Message message, long offset, InputStream in) throws IOException;
+    }
+
     private void destroyResponses() {
         if (mConnection != null) {
             mConnection.destroyResponses();
@@ -153,6 +196,29 @@ public class ImapFolder {
         return mMessageCount;
     }
 
+    /**
+     * Returns the UIDVALIDITY of the folder, or {@link #NO_UID}. UIDs from a previous session can
+     * only be reused if it has not changed.
+     */
+    public long getUidValidity() {
+        return mUidValidity;
+    }
+
+    /**
+     * Returns the UID the next message added to the folder will get at least, or {@link #NO_UID}.
+     */
+    public long getUidNext() {
+        return mUidNext;
+    }
+
+    /**
+     * Returns the highest mod-sequence of the folder (RFC 7162), or {@link #NO_MODSEQ} if the
+     * server does not support CONDSTORE.
+     */
+    public long getHighestModSeq() {
+        return mHighestModSeq;
+    }
+
     String[] getSearchUids(List<ImapResponse> responses) {
         // S: * SEARCH 2 3 6
         final ArrayList<String> uids = new ArrayList<String>();
@@ -194,6 +260,26 @@ public class ImapFolder {
         }
     }
 
+    /**
+     * Returns the UIDs in {@code uidSet} of the messages which are still in the folder and not
+     * flagged as deleted.
+     *
+     * @throws MessagingException if the search fails, unlike {@link #getMessages(String[])}, so
+     *         an empty result can be trusted.
+     */
+    public String[] getUndeletedUids(String uidSet) throws MessagingException {
+        checkOpen();
+        try {
+            return getSearchUids(mConnection.executeSimpleCommand(ImapConstants.UID_SEARCH + " "
+                    + ImapConstants.UID + " " + uidSet + " NOT DELETED"));
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
     @Nullable
     public Message getMessage(String uid) throws MessagingException {
         checkOpen();
@@ -256,57 +342,13 @@ public class ImapFolder {
             messageMap.put(m.getUid(), m);
         }
 
-        /*
-         * Figure out what command we are going to run:
-         * FLAGS     - UID FETCH (FLAGS)
-         * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
-         *                            HEADER.FIELDS (date subject from content-type to cc)])
-         * STRUCTURE - UID FETCH (BODYSTRUCTURE)
-         * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
-         * BODY      - UID FETCH (BODY.PEEK[])
-         * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
-         */
-
-        final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
-
-        fetchFields.add(ImapConstants.UID);
-        if (fp.contains(FetchProfile.Item.FLAGS)) {
-            fetchFields.add(ImapConstants.FLAGS);
-        }
-        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-            fetchFields.add(ImapConstants.INTERNALDATE);
-            fetchFields.add(ImapConstants.RFC822_SIZE);
-            fetchFields.add(ImapConstants.FETCH_FIELD_HEADERS);
-        }
-        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-            fetchFields.add(ImapConstants.BODYSTRUCTURE);
-        }
-
-        if (fp.contains(FetchProfile.Item.BODY_SANE)) {
-            fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_SANE);
-        }
-        if (fp.contains(FetchProfile.Item.BODY)) {
-            fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK);
-        }
-
         // TODO Why are we only fetching the first part given?
         final Part fetchPart = fp.getFirstPart();
-        if (fetchPart != null) {
-            final String[] partIds =
-                    fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
-            // TODO Why can a single part have more than one Id? And why should we only fetch
-            // the first id if there are more than one?
-            if (partIds != null) {
-                fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
-                        + "[" + partIds[0] + "]");
-            }
-        }
 
         try {
             mConnection.sendCommand(String.format(Locale.US,
                     ImapConstants.UID_FETCH + " %s (%s)", ImapStore.joinMessageUids(messages),
-                    Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ')
-            ), false);
+                    getFetchFields(fp, fetchPart)), false);
             ImapResponse response;
             do {
                 response = null;
@@ -324,99 +366,510 @@ public class ImapFolder {
                     ImapMessage message = (ImapMessage) messageMap.get(uid);
                     if (message == null) continue;
 
-                    if (fp.contains(FetchProfile.Item.FLAGS)) {
-                        final ImapList flags =
-                            fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
-                        for (int i = 0, count = flags.size(); i < count; i++) {
-                            final ImapString flag = flags.getStringOrEmpty(i);
-                            if (flag.is(ImapConstants.FLAG_DELETED)) {
-                                message.setFlagInternal(Flag.DELETED, true);
-                            } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
-                                message.setFlagInternal(Flag.ANSWERED, true);
-                            } else if (flag.is(ImapConstants.FLAG_SEEN)) {
-                                message.setFlagInternal(Flag.SEEN, true);
-                            } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
-                                message.setFlagInternal(Flag.FLAGGED, true);
-                            }
-                        }
+                    handleFetchResponse(fetchList, message, fp, fetchPart, listener);
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Fetches the items in {@code fp} for every message in the folder with a single
+     * {@code UID FETCH 1:*}, instead of searching for the UIDs first and fetching them one by
+     * one. A message is created for each UID returned by the server and passed to
+     * {@code listener}; deleted messages are included, so callers fetching
+     * {@link FetchProfile.Item#FLAGS} should filter them out.
+     *
+     * @throws MessagingException if the server does not complete the command successfully, so an
+     *         empty result can be trusted to mean an empty folder.
+     */
+    public void fetchAll(FetchProfile fp, MessageRetrievalListener listener)
+            throws MessagingException {
+        fetchUidSet("1:*", fp, NO_MODSEQ, listener);
+    }
+
+    /**
+     * Like {@link #fetchAll}, but only for the messages in {@code uidSet}.
+     *
+     * @param uidSet an IMAP sequence set of UIDs, e.g. "1:100" or "101:*". Note that "n:*" also
+     *         matches the message with the highest UID when it is lower than n.
+     * @param changedSince if not {@link #NO_MODSEQ}, only the messages whose metadata changed
+     *         after this mod-sequence are returned. The server must support CONDSTORE.
+     */
+    public void fetchUidSet(String uidSet, FetchProfile fp, long changedSince,
+            MessageRetrievalListener listener) throws MessagingException {
+        checkOpen();
+        if (mMessageCount == 0) {
+            // "1:*" is not a valid set for an empty mailbox on some servers.
+            return;
+        }
+        final Part fetchPart = fp.getFirstPart();
+        String command = String.format(Locale.US, ImapConstants.UID_FETCH + " %s (%s)", uidSet,
+                getFetchFields(fp, fetchPart));
+        if (changedSince != NO_MODSEQ) {
+            command += String.format(Locale.US, " (" + ImapConstants.CHANGEDSINCE + " %d)",
+                    changedSince);
+        }
+        try {
+            mConnection.sendCommand(command, false);
+            ImapResponse response;
+            do {
+                response = null;
+                try {
+                    response = mConnection.readResponse();
+                    if (response.isTagged()) {
+                        checkTaggedResponse(response);
+                        continue;
                     }
-                    if (fp.contains(FetchProfile.Item.ENVELOPE)) {
-                        final Date internalDate = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.INTERNALDATE).getDateOrNull();
-                        final int size = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.RFC822_SIZE).getNumberOrZero();
-                        final String header = fetchList.getKeyedStringOrEmpty(
-                                ImapConstants.BODY_BRACKET_HEADER, true).getString();
-
-                        message.setInternalDate(internalDate);
-                        message.setSize(size);
-                        message.parse(Utility.streamFromAsciiString(header));
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        handleUntaggedResponse(response);
+                        continue;
                     }
-                    if (fp.contains(FetchProfile.Item.STRUCTURE)) {
-                        ImapList bs = fetchList.getKeyedListOrEmpty(
-                                ImapConstants.BODYSTRUCTURE);
-                        if (!bs.isEmpty()) {
-                            try {
-                                parseBodyStructure(bs, message, ImapConstants.TEXT);
-                            } catch (MessagingException e) {
-                                LogUtils.v(TAG, e, "Error handling message");
-                                message.setBody(null);
-                            }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString();
+                    if (TextUtils.isEmpty(uid)) continue;
+
+                    handleFetchResponse(fetchList, new ImapMessage(uid, this), fp, fetchPart,
+                            listener);
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        }
+    }
+
+    /**
+     * Fetches one body part for each of the given messages. Messages sharing the same part ID are
+     * fetched by the same {@code UID FETCH} command, and all commands are sent before any
+     * response is read, so the whole batch costs a single round trip.
+     *
+     * @param parts the part to fetch, keyed by message. Each part must come from a previous
+     *         {@link FetchProfile.Item#STRUCTURE} fetch.
+     */
+    public void fetchParts(Map<Message, Part> parts, MessageRetrievalListener listener)
+            throws MessagingException {
+        if (parts.isEmpty()) {
+            return;
+        }
+        checkOpen();
+
+        // Group the messages by part ID, since a single FETCH can only name one section.
+        final LinkedHashMap<String, ArrayList<Message>> messagesByPartId = new LinkedHashMap<>();
+        final HashMap<String, Message> messageMap = new HashMap<String, Message>();
+        final HashMap<String, Part> partMap = new HashMap<String, Part>();
+        for (Map.Entry<Message, Part> entry : parts.entrySet()) {
+            final String[] partIds = entry.getValue()
+                    .getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            if (partIds == null) {
+                continue;
+            }
+            ArrayList<Message> messages = messagesByPartId.get(partIds[0]);
+            if (messages == null) {
+                messages = new ArrayList<Message>();
+                messagesByPartId.put(partIds[0], messages);
+            }
+            messages.add(entry.getKey());
+            messageMap.put(entry.getKey().getUid(), entry.getKey());
+            partMap.put(entry.getKey().getUid(), entry.getValue());
+        }
+        if (messagesByPartId.isEmpty()) {
+            return;
+        }
+
+        try {
+            for (Map.Entry<String, ArrayList<Message>> entry : messagesByPartId.entrySet()) {
+                mConnection.sendCommand(String.format(Locale.US,
+                        ImapConstants.UID_FETCH + " %s (%s %s[%s])",
+                        ImapStore.joinMessageUids(entry.getValue().toArray(Message.EMPTY_ARRAY)),
+                        ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+                        entry.getKey()), false);
+            }
+
+            int pendingCommands = messagesByPartId.size();
+            while (pendingCommands > 0) {
+                try {
+                    final ImapResponse response = mConnection.readResponse();
+                    if (response.isTagged()) {
+                        pendingCommands--;
+                        if (!response.isOk()) {
+                            LogUtils.w(TAG, "Part fetch failed: "
+                                    + response.getStatusResponseTextOrEmpty());
                         }
+                        continue;
                     }
-                    if (fp.contains(FetchProfile.Item.BODY)
-                            || fp.contains(FetchProfile.Item.BODY_SANE)) {
-                        // Body is keyed by "BODY[]...".
-                        // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
-                        // TODO Should we accept "RFC822" as well??
-                        ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
-                        InputStream bodyStream = body.getAsStream();
-                        message.parse(bodyStream);
+                    if (!response.isDataResponse(1, ImapConstants.FETCH)) {
+                        continue; // Ignore
                     }
-                    if (fetchPart != null) {
-                        InputStream bodyStream =
-                                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
-                        String encodings[] = fetchPart.getHeader(
-                                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
-
-                        String contentTransferEncoding = null;
-                        if (encodings != null && encodings.length > 0) {
-                            contentTransferEncoding = encodings[0];
-                        } else {
-                            // According to http://tools.ietf.org/html/rfc2045#section-6.1
-                            // "7bit" is the default.
-                            contentTransferEncoding = "7bit";
-                        }
+                    final ImapList fetchList = response.getListOrEmpty(2);
+                    final String uid = fetchList.getKeyedStringOrEmpty(ImapConstants.UID)
+                            .getString();
+                    final ImapMessage message = (ImapMessage) messageMap.get(uid);
+                    if (message == null) continue;
 
-                        try {
-                            // TODO Don't create 2 temp files.
-                            // decodeBody creates BinaryTempFileBody, but we could avoid this
-                            // if we implement ImapStringBody.
-                            // (We'll need to share a temp file.  Protect it with a ref-count.)
-                            message.setBody(decodeBody(mStore.getContext(), bodyStream,
-                                    contentTransferEncoding, fetchPart.getSize(), listener));
-                        } catch(Exception e) {
-                            // TODO: Figure out what kinds of exceptions might actually be thrown
-                            // from here. This blanket catch-all is because we're not sure what to
-                            // do if we don't have a contentTransferEncoding, and we don't have
-                            // time to figure out what exceptions might be thrown.
-                            LogUtils.e(TAG, "Error fetching body %s", e);
-                        }
-                    }
+                    Body body = decodeFetchedPart(fetchList, partMap.get(uid), listener);
+                    if (body == null) continue;
 
+                    message.setBody(body);
                     if (listener != null) {
                         listener.messageRetrieved(message);
                     }
                 } finally {
                     destroyResponses();
                 }
-            } while (!response.isTagged());
+            }
         } catch (IOException ioe) {
             mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
             throw ioExceptionHandler(mConnection, ioe);
         }
     }
 
+    /**
+     * Fetches one body part of {@code message} and streams its decoded content to
+     * {@code listener} while it is being received, so the part is never held in memory or copied
+     * to a temp file as a whole.
+     *
+     * @param part the part to fetch, which must come from a previous
+     *         {@link FetchProfile.Item#STRUCTURE} fetch.
+     * @return whether the server returned the part.
+     */
+    public boolean fetchPartToStream(final Message message, Part part,
+            final PartStreamListener listener) throws MessagingException {
+        checkOpen();
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        if (partIds == null) {
+            throw new MessagingException("No part ID for " + message.getUid());
+        }
+        final String[] encodings = part.getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1 "7bit" is the default.
+        final String contentTransferEncoding =
+                encodings != null && encodings.length > 0 ? encodings[0] : "7bit";
+
+        final boolean[] received = new boolean[1];
+        final ImapConnection connection = mConnection;
+        connection.setLiteralConsumer(new ImapResponseParser.LiteralConsumer() {
+            @Override
+            public void consumeLiteral(FixedLengthInputStream in) throws IOException {
+                received[0] = true;
+                listener.onPartStream(message, MimeUtility.getInputStreamForContentTransferEncoding(
+                        new ProgressInputStream(in, message, listener), contentTransferEncoding));
+            }
+        });
+        try {
+            connection.sendCommand(String.format(Locale.US,
+                    ImapConstants.UID_FETCH + " %s (%s %s[%s])", message.getUid(),
+                    ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE, partIds[0]),
+                    false);
+            ImapResponse response;
+            do {
+                response = null;
+                try {
+                    response = connection.readResponse();
+                    if (response.isTagged()) {
+                        checkTaggedResponse(response);
+                    }
+                } finally {
+                    destroyResponses();
+                }
+            } while (!response.isTagged());
+            return received[0];
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(connection, ioe);
+        } finally {
+            connection.setLiteralConsumer(null);
+        }
+    }
+
+    /**
+     * Fetches the encoded content of one body part of {@code message} from {@code offset} to its
+     * end, in {@code BODY.PEEK[part]<offset.chunkSize>} ranges, so that a download which fails
+     * part way through can be resumed from where it stopped instead of from the start.
+     *
+     * The next chunk is always requested before the current one is handed to {@code listener},
+     * so the server is already sending it while the listener handles the current one.
+     *
+     * @param part the part to fetch, which must come from a previous
+     *         {@link FetchProfile.Item#STRUCTURE} fetch.
+     * @return the offset at which the part ends, which is {@code offset} if there was nothing left
+     *         to fetch.
+     */
+    public long fetchPartChunks(final Message message, Part part, long offset,
+            final int chunkSize, final PartChunkListener listener) throws MessagingException {
+        checkOpen();
+        final String[] partIds = part.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+        if (partIds == null) {
+            throw new MessagingException("No part ID for " + message.getUid());
+        }
+
+        // Offsets of the chunks requested and not completed yet, oldest first. Responses come
+        // back in the order of the commands, so a literal belongs to the oldest chunk.
+        final ArrayDeque<Long> pendingOffsets = new ArrayDeque<Long>();
+        // Size of the literal received for the oldest chunk, or -1 if none was.
+        final long[] received = {-1};
+        final boolean[] done = {false};
+        final ImapConnection connection = mConnection;
+        connection.setLiteralConsumer(new ImapResponseParser.LiteralConsumer() {
+            @Override
+            public void consumeLiteral(FixedLengthInputStream in) throws IOException {
+                received[0] = in.getLength();
+                if (!done[0] && in.getLength() > 0) {
+                    listener.onPartChunk(message, pendingOffsets.peek(), in);
+                }
+            }
+        });
+        try {
+            long end = offset;
+            long nextOffset = offset;
+            MessagingException failure = null;
+            while (!done[0] || !pendingOffsets.isEmpty()) {
+                while (!done[0] && pendingOffsets.size() < 2) {
+                    connection.sendCommand(String.format(Locale.US,
+                            ImapConstants.UID_FETCH + " %s (%s %s[%s]<%d.%d>)", message.getUid(),
+                            ImapConstants.UID, ImapConstants.FETCH_FIELD_BODY_PEEK_BARE,
+                            partIds[0], nextOffset, chunkSize), false);
+                    pendingOffsets.add(nextOffset);
+                    nextOffset += chunkSize;
+                }
+                ImapResponse response;
+                String error = null;
+                do {
+                    try {
+                        response = connection.readResponse();
+                        if (response.isTagged() && !response.isOk()) {
+                            error = response.getStatusResponseTextOrEmpty().getString();
+                        }
+                    } finally {
+                        destroyResponses();
+                    }
+                } while (!response.isTagged());
+
+                final long chunkOffset = pendingOffsets.remove();
+                if (!done[0]) {
+                    if (error != null) {
+                        failure = new MessagingException(MessagingException.SERVER_ERROR,
+                                "Command failed: " + error);
+                        // Stop requesting chunks, and drain the one already requested.
+                        done[0] = true;
+                    } else {
+                        end = chunkOffset + Math.max(received[0], 0);
+                        // A short chunk is the last one.
+                        done[0] = received[0] < chunkSize;
+                    }
+                }
+                received[0] = -1;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return end;
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(connection, ioe);
+        } finally {
+            connection.setLiteralConsumer(null);
+        }
+    }
+
+    /**
+     * Reports the progress of a literal being read to a {@link PartStreamListener}.
+     */
+    private static class ProgressInputStream extends FilterInputStream {
+        private final Message mMessage;
+        private final PartStreamListener mListener;
+        private final long mTotalBytes;
+        private long mBytesReceived;
+
+        ProgressInputStream(FixedLengthInputStream in, Message message,
+                PartStreamListener listener) {
+            super(in);
+            mMessage = message;
+            mListener = listener;
+            mTotalBytes = in.getLength();
+        }
+
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                onBytesReceived(1);
+            }
+            return b;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int count) throws IOException {
+            int n = super.read(buffer, offset, count);
+            if (n > 0) {
+                onBytesReceived(n);
+            }
+            return n;
+        }
+
+        private void onBytesReceived(int count) {
+            mBytesReceived += count;
+            mListener.onProgress(mMessage, mBytesReceived, mTotalBytes);
+        }
+    }
+
+    /**
+     * Figure out what command we are going to run:
+     * FLAGS     - UID FETCH (FLAGS)
+     * ENVELOPE  - UID FETCH (INTERNALDATE UID RFC822.SIZE FLAGS BODY.PEEK[
+     *                            HEADER.FIELDS (date subject from content-type to cc)])
+     * STRUCTURE - UID FETCH (BODYSTRUCTURE)
+     * BODY_SANE - UID FETCH (BODY.PEEK[]<0.N>) where N = max bytes returned
+     * BODY      - UID FETCH (BODY.PEEK[])
+     * Part      - UID FETCH (BODY.PEEK[ID]) where ID = mime part ID
+     */
+    private static String getFetchFields(FetchProfile fp, Part fetchPart)
+            throws MessagingException {
+        final LinkedHashSet<String> fetchFields = new LinkedHashSet<String>();
+
+        fetchFields.add(ImapConstants.UID);
+        if (fp.contains(FetchProfile.Item.FLAGS)) {
+            fetchFields.add(ImapConstants.FLAGS);
+        }
+        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+            fetchFields.add(ImapConstants.INTERNALDATE);
+            fetchFields.add(ImapConstants.RFC822_SIZE);
+            fetchFields.add(ImapConstants.FETCH_FIELD_HEADERS);
+        }
+        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+            fetchFields.add(ImapConstants.BODYSTRUCTURE);
+        }
+
+        if (fp.contains(FetchProfile.Item.BODY_SANE)) {
+            fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_SANE);
+        }
+        if (fp.contains(FetchProfile.Item.BODY)) {
+            fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK);
+        }
+
+        if (fetchPart != null) {
+            final String[] partIds =
+                    fetchPart.getHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA);
+            // TODO Why can a single part have more than one Id? And why should we only fetch
+            // the first id if there are more than one?
+            if (partIds != null) {
+                fetchFields.add(ImapConstants.FETCH_FIELD_BODY_PEEK_BARE
+                        + "[" + partIds[0] + "]");
+            }
+        }
+        return Utility.combine(fetchFields.toArray(new String[fetchFields.size()]), ' ');
+    }
+
+    /**
+     * Applies the items of a single FETCH response to {@code message} and notifies the listener.
+     */
+    private void handleFetchResponse(ImapList fetchList, ImapMessage message, FetchProfile fp,
+            Part fetchPart, MessageRetrievalListener listener)
+            throws IOException, MessagingException {
+        if (fp.contains(FetchProfile.Item.FLAGS)) {
+            final ImapList flags =
+                fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS);
+            for (int i = 0, count = flags.size(); i < count; i++) {
+                final ImapString flag = flags.getStringOrEmpty(i);
+                if (flag.is(ImapConstants.FLAG_DELETED)) {
+                    message.setFlagInternal(Flag.DELETED, true);
+                } else if (flag.is(ImapConstants.FLAG_ANSWERED)) {
+                    message.setFlagInternal(Flag.ANSWERED, true);
+                } else if (flag.is(ImapConstants.FLAG_SEEN)) {
+                    message.setFlagInternal(Flag.SEEN, true);
+                } else if (flag.is(ImapConstants.FLAG_FLAGGED)) {
+                    message.setFlagInternal(Flag.FLAGGED, true);
+                }
+            }
+        }
+        if (fp.contains(FetchProfile.Item.ENVELOPE)) {
+            final Date internalDate = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.INTERNALDATE).getDateOrNull();
+            final int size = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.RFC822_SIZE).getNumberOrZero();
+            final String header = fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.BODY_BRACKET_HEADER, true).getString();
+
+            message.setInternalDate(internalDate);
+            message.setSize(size);
+            message.parse(Utility.streamFromAsciiString(header));
+        }
+        if (fp.contains(FetchProfile.Item.STRUCTURE)) {
+            ImapList bs = fetchList.getKeyedListOrEmpty(
+                    ImapConstants.BODYSTRUCTURE);
+            if (!bs.isEmpty()) {
+                try {
+                    parseBodyStructure(bs, message, ImapConstants.TEXT);
+                } catch (MessagingException e) {
+                    LogUtils.v(TAG, e, "Error handling message");
+                    message.setBody(null);
+                }
+            }
+        }
+        if (fp.contains(FetchProfile.Item.BODY)
+                || fp.contains(FetchProfile.Item.BODY_SANE)) {
+            // Body is keyed by "BODY[]...".
+            // Previously used "BODY[..." but this can be confused with "BODY[HEADER..."
+            // TODO Should we accept "RFC822" as well??
+            ImapString body = fetchList.getKeyedStringOrEmpty("BODY[]", true);
+            InputStream bodyStream = body.getAsStream();
+            message.parse(bodyStream);
+        }
+        if (fetchPart != null) {
+            Body body = decodeFetchedPart(fetchList, fetchPart, listener);
+            if (body != null) {
+                message.setBody(body);
+            }
+        }
+
+        if (listener != null) {
+            listener.messageRetrieved(message);
+        }
+    }
+
+    /**
+     * Decodes the "BODY[...]" item of a FETCH response using the transfer encoding of
+     * {@code fetchPart}, or returns null if it cannot be decoded.
+     */
+    private Body decodeFetchedPart(ImapList fetchList, Part fetchPart,
+            MessageRetrievalListener listener) throws MessagingException {
+        InputStream bodyStream =
+                fetchList.getKeyedStringOrEmpty("BODY[", true).getAsStream();
+        String encodings[] = fetchPart.getHeader(
+                MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+
+        String contentTransferEncoding = null;
+        if (encodings != null && encodings.length > 0) {
+            contentTransferEncoding = encodings[0];
+        } else {
+            // According to http://tools.ietf.org/html/rfc2045#section-6.1
+            // "7bit" is the default.
+            contentTransferEncoding = "7bit";
+        }
+
+        try {
+            // TODO Don't create 2 temp files.
+            // decodeBody creates BinaryTempFileBody, but we could avoid this
+            // if we implement ImapStringBody.
+            // (We'll need to share a temp file.  Protect it with a ref-count.)
+            return decodeBody(mStore.getContext(), bodyStream,
+                    contentTransferEncoding, fetchPart.getSize(), listener);
+        } catch(Exception e) {
+            // TODO: Figure out what kinds of exceptions might actually be thrown
+            // from here. This blanket catch-all is because we're not sure what to
+            // do if we don't have a contentTransferEncoding, and we don't have
+            // time to figure out what exceptions might be thrown.
+            LogUtils.e(TAG, "Error fetching body %s", e);
+            return null;
+        }
+    }
+
     /**
      * Removes any content transfer encoding from the stream and returns a Body.
      * This code is taken/condensed from MimeUtility.decodeBody
@@ -660,6 +1113,54 @@ public class ImapFolder {
             throws MessagingException {
         checkOpen();
 
+        try {
+            mConnection.executeSimpleCommand(getStoreFlagsCommand(messages, flags, value));
+
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    /**
+     * Adds flags to messages and then expunges the folder. The flag changes are pipelined, so they
+     * take about one round trip together. EXPUNGE removes the messages flagged as deleted, so it
+     * is only sent once all of the changes succeeded.
+     *
+     * @param messagesByFlag the messages to add each flag to, e.g. {@link Flag#SEEN}. Empty
+     *         arrays are skipped.
+     */
+    public void addFlagsAndExpunge(Map<String, Message[]> messagesByFlag)
+            throws MessagingException {
+        checkOpen();
+
+        final ArrayList<String> commands = new ArrayList<String>();
+        for (Map.Entry<String, Message[]> entry : messagesByFlag.entrySet()) {
+            if (entry.getValue().length > 0) {
+                commands.add(getStoreFlagsCommand(entry.getValue(),
+                        new String[] { entry.getKey() }, true));
+            }
+        }
+        try {
+            if (!commands.isEmpty()) {
+                for (List<ImapResponse> responses :
+                        mConnection.executePipelinedCommands(commands)) {
+                    handleUntaggedResponses(responses);
+                }
+            }
+            handleUntaggedResponses(mConnection.executeSimpleCommand(ImapConstants.EXPUNGE));
+        } catch (IOException ioe) {
+            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
+            throw ioExceptionHandler(mConnection, ioe);
+        } finally {
+            destroyResponses();
+        }
+    }
+
+    private static String getStoreFlagsCommand(Message[] messages, String[] flags,
+            boolean value) {
         String allFlags = "";
         if (flags.length > 0) {
             StringBuilder flagList = new StringBuilder();
@@ -677,19 +1178,11 @@ public class ImapFolder {
             }
             allFlags = flagList.substring(1);
         }
-        try {
-            mConnection.executeSimpleCommand(String.format(Locale.US,
-                    ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
-                    ImapStore.joinMessageUids(messages),
-                    value ? "+" : "-",
-                    allFlags));
-
-        } catch (IOException ioe) {
-            mStore.getImapHelper().handleEvent(OmtpEvents.DATA_GENERIC_IMAP_IOE);
-            throw ioExceptionHandler(mConnection, ioe);
-        } finally {
-            destroyResponses();
-        }
+        return String.format(Locale.US,
+                ImapConstants.UID_STORE + " %s %s" + ImapConstants.FLAGS_SILENT + " (%s)",
+                ImapStore.joinMessageUids(messages),
+                value ? "+" : "-",
+                allFlags);
     }
 
     /**
@@ -697,11 +1190,20 @@ public class ImapFolder {
      * must be selected.
      */
     private void doSelect() throws IOException, MessagingException {
-        final List<ImapResponse> responses = mConnection.executeSimpleCommand(
-                String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", mName));
+        // Make sure the capabilities are known before choosing the SELECT parameters.
+        mConnection.open();
+        String command = String.format(Locale.US, ImapConstants.SELECT + " \"%s\"", mName);
+        if (mConnection.hasCapability(ImapConstants.CAPABILITY_CONDSTORE)) {
+            // Ask for HIGHESTMODSEQ, so the next sync can fetch only the changed flags.
+            command += " (" + ImapConstants.CONDSTORE + ")";
+        }
+        final List<ImapResponse> responses = mConnection.executeSimpleCommand(command);
 
         // Assume the folder is opened read-write; unless we are notified otherwise
         mMode = MODE_READ_WRITE;
+        mUidValidity = NO_UID;
+        mUidNext = NO_UID;
+        mHighestModSeq = NO_MODSEQ;
         int messageCount = -1;
         for (ImapResponse response : responses) {
             if (response.isDataResponse(1, ImapConstants.EXISTS)) {
@@ -712,6 +1214,12 @@ public class ImapFolder {
                     mMode = MODE_READ_ONLY;
                 } else if (responseCode.is(ImapConstants.READ_WRITE)) {
                     mMode = MODE_READ_WRITE;
+                } else if (responseCode.is(ImapConstants.UIDVALIDITY)) {
+                    mUidValidity = getResponseCodeValue(response, NO_UID);
+                } else if (responseCode.is(ImapConstants.UIDNEXT)) {
+                    mUidNext = getResponseCodeValue(response, NO_UID);
+                } else if (responseCode.is(ImapConstants.HIGHESTMODSEQ)) {
+                    mHighestModSeq = getResponseCodeValue(response, NO_MODSEQ);
                 }
             } else if (response.isTagged()) { // Not OK
                 mStore.getImapHelper().handleEvent(OmtpEvents.DATA_MAILBOX_OPEN_FAILED);
@@ -726,6 +1234,18 @@ public class ImapFolder {
         mExists = true;
     }
 
+    /**
+     * Returns the numeric argument of a response code, e.g. 123 for "* OK [UIDNEXT 123]". The
+     * values can be larger than an int.
+     */
+    private static long getResponseCodeValue(ImapResponse response, long defaultValue) {
+        try {
+            return Long.parseLong(response.getListOrEmpty(1).getStringOrEmpty(1).getString());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
+    }
+
     public class Quota {
 
         public final int occupied;
@@ -771,6 +1291,13 @@ public class ImapFolder {
         }
     }
 
+    private void checkTaggedResponse(ImapResponse response) throws MessagingException {
+        if (!response.isOk()) {
+            throw new MessagingException(MessagingException.SERVER_ERROR,
+                    "Command failed: " + response.getStatusResponseTextOrEmpty());
+        }
+    }
+
     private MessagingException ioExceptionHandler(ImapConnection connection, IOException ioe) {
         LogUtils.d(TAG, "IO Exception detected: ", ioe);
         connection.close();
@@ -18,6 +18,7 @@ package com.android.phone.common.mail.store;
 
 import android.content.Context;
 import android.net.Network;
+import android.util.Base64;
 
 import com.android.phone.common.mail.MailTransport;
 import com.android.phone.common.mail.Message;
@@ -27,6 +28,9 @@ import com.android.phone.vvm.omtp.imap.ImapHelper;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 
 public class ImapStore {
     /**
@@ -39,6 +43,7 @@ public class ImapStore {
     private final String mUsername;
     private final String mPassword;
     private final MailTransport mTransport;
+    private final String mPoolKey;
     private ImapConnection mConnection;
 
     public static final int FLAG_NONE         = 0x00;    // No flags
@@ -59,6 +64,28 @@ public class ImapStore {
         mPassword = password;
         mTransport = new MailTransport(context, this.getImapHelper(),
                 network, serverName, port, flags);
+        // Connections are only shared between stores which would log into the same account the
+        // same way, over the same network.
+        mPoolKey = hashCredentials(username, password) + "\n" + serverName + ":" + port + "\n"
+                + flags + "\n" + network;
+    }
+
+    /**
+     * Hashes the credentials for the connection pool key, so that the password is not kept in the
+     * pool for longer than the store itself lives.
+     */
+    private static String hashCredentials(String username, String password) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new AssertionError(e);
+        }
+        // The NUL separator keeps "ab"+"c" and "a"+"bc" apart.
+        digest.update(String.valueOf(username).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        digest.update(String.valueOf(password).getBytes(StandardCharsets.UTF_8));
+        return Base64.encodeToString(digest.digest(), Base64.NO_WRAP);
     }
 
     public Context getContext() {
@@ -160,14 +187,21 @@ public class ImapStore {
         }
     }
 
+    /**
+     * Hands the connection back to {@link ImapConnectionPool}, which keeps it logged in for the
+     * next store of the same account if it is still healthy.
+     */
     public void closeConnection() {
         if (mConnection != null) {
-            mConnection.close();
+            ImapConnectionPool.getInstance().release(mPoolKey, mConnection);
             mConnection = null;
         }
     }
 
     public ImapConnection getConnection() {
+        if (mConnection == null) {
+            mConnection = ImapConnectionPool.getInstance().acquire(mPoolKey, this);
+        }
         if (mConnection == null) {
             mConnection = new ImapConnection(this);
         }
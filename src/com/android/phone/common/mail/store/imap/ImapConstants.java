@@ -130,12 +130,16 @@ public final class ImapConstants {
     public static final String GETQUOTAROOT = "GETQUOTAROOT";
     public static final String QUOTAROOT = "QUOTAROOT";
     public static final String QUOTA = "QUOTA";
+    public static final String CONDSTORE = "CONDSTORE";
+    public static final String HIGHESTMODSEQ = "HIGHESTMODSEQ";
+    public static final String CHANGEDSINCE = "CHANGEDSINCE";
 
     /**
      * capabilities
      */
     public static final String CAPABILITY_AUTH_DIGEST_MD5 = "AUTH=DIGEST-MD5";
     public static final String CAPABILITY_STARTTLS = "STARTTLS";
+    public static final String CAPABILITY_CONDSTORE = "CONDSTORE";
 
     /**
      * authentication
@@ -0,0 +1,82 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store.imap;
+
+import java.util.ArrayList;
+
+/**
+ * Keeps the {@link ImapList}s and {@link ImapSimpleString}s of destroyed responses for the next
+ * responses to be parsed, so that a long run of similar responses, such as the results of a
+ * {@code UID FETCH} over the whole mailbox, does not allocate new ones for each.
+ *
+ * Not thread safe; each {@link ImapResponseParser} owns one.
+ */
+/* package */ class ImapElementPool {
+    private static final int MAX_POOLED_LISTS = 64;
+    private static final int MAX_POOLED_STRINGS = 256;
+
+    private final ArrayList<ImapList> mLists = new ArrayList<ImapList>();
+    private final ArrayList<ImapSimpleString> mStrings = new ArrayList<ImapSimpleString>();
+
+    public ImapList obtainList() {
+        final int size = mLists.size();
+        return size > 0 ? mLists.remove(size - 1) : new ImapList();
+    }
+
+    public ImapSimpleString obtainString(String string) {
+        final int size = mStrings.size();
+        if (size == 0) {
+            return new ImapSimpleString(string);
+        }
+        final ImapSimpleString ret = mStrings.remove(size - 1);
+        ret.setString(string);
+        return ret;
+    }
+
+    /**
+     * Destroys {@code response}, keeping its lists and strings for reuse. They must not be used
+     * by anyone else afterwards.
+     */
+    public void recycle(ImapResponse response) {
+        recycleElements(response);
+        response.destroy();
+    }
+
+    private void recycleElements(ImapList list) {
+        for (int i = 0; i < list.size(); i++) {
+            final ImapElement e = list.getElementOrNone(i);
+            // Exact class checks, so that shared instances such as ImapString.EMPTY and literals
+            // backed by temp files are destroyed instead.
+            if (e.getClass() == ImapList.class) {
+                final ImapList child = (ImapList) e;
+                recycleElements(child);
+                if (mLists.size() < MAX_POOLED_LISTS) {
+                    mLists.add(child);
+                }
+            } else if (e.getClass() == ImapSimpleString.class) {
+                if (mStrings.size() < MAX_POOLED_STRINGS) {
+                    final ImapSimpleString string = (ImapSimpleString) e;
+                    string.setString(null);
+                    mStrings.add(string);
+                }
+            } else {
+                e.destroy();
+            }
+        }
+        list.clear();
+    }
+}
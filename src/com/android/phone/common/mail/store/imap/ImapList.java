@@ -45,6 +45,14 @@ public class ImapList extends ImapElement {
         mList.add(e);
     }
 
+    /**
+     * Removes the elements without destroying them, so that they can be reused by
+     * {@link ImapElementPool}.
+     */
+    /* package */ void clear() {
+        mList.clear();
+    }
+
     @Override
     public final boolean isString() {
         return false;
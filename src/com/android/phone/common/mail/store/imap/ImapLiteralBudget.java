@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store.imap;
+
+/**
+ * Limits the bytes held by {@link ImapMemoryLiteral}s at any one time. The process-wide instance
+ * is shared by every connection, so that several accounts syncing at once on a multi-SIM device
+ * cannot run the phone process out of memory; literals which do not fit are spilled to temp files
+ * instead.
+ */
+/* package */ class ImapLiteralBudget {
+    /** Fraction of the heap that in-memory literals may take, all connections together. */
+    private static final int HEAP_FRACTION_TOTAL = 8;
+    /** Fraction of the heap that a single in-memory literal may take. */
+    private static final int HEAP_FRACTION_PER_LITERAL = 64;
+    private static final int MIN_LITERAL_KEEP_IN_MEMORY_THRESHOLD = 64 * 1024;
+
+    private static ImapLiteralBudget sInstance;
+
+    private final long mCapacity;
+    private long mUsed;
+
+    /* package for test */ ImapLiteralBudget(long capacity) {
+        mCapacity = capacity;
+    }
+
+    public static synchronized ImapLiteralBudget getInstance() {
+        if (sInstance == null) {
+            sInstance = new ImapLiteralBudget(Runtime.getRuntime().maxMemory()
+                    / HEAP_FRACTION_TOTAL);
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return the size above which a literal is never kept in memory, derived from the heap size
+     *         and capped at {@link ImapResponseParser#LITERAL_KEEP_IN_MEMORY_THRESHOLD}.
+     */
+    public static int getDefaultLiteralKeepInMemoryThreshold() {
+        final long threshold = Runtime.getRuntime().maxMemory() / HEAP_FRACTION_PER_LITERAL;
+        return (int) Math.max(MIN_LITERAL_KEEP_IN_MEMORY_THRESHOLD,
+                Math.min(threshold, ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD));
+    }
+
+    /**
+     * Reserves {@code bytes} if they fit in what is left of the budget.
+     *
+     * @return whether they were reserved, in which case {@link #release} must be called with the
+     *         same value once they are no longer used.
+     */
+    public synchronized boolean tryAcquire(int bytes) {
+        if (mUsed + bytes > mCapacity) {
+            return false;
+        }
+        mUsed += bytes;
+        return true;
+    }
+
+    public synchronized void release(int bytes) {
+        mUsed -= bytes;
+    }
+
+    public synchronized long getUsed() {
+        return mUsed;
+    }
+}
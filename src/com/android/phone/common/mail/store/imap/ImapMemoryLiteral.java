@@ -30,26 +30,45 @@ import java.io.UnsupportedEncodingException;
 public class ImapMemoryLiteral extends ImapString {
     private final String TAG = "ImapMemoryLiteral";
     private byte[] mData;
+    /** Budget the size of {@link #mData} was taken from, or null once it is given back. */
+    private ImapLiteralBudget mBudget;
+    private final int mLength;
 
-    /* package */ ImapMemoryLiteral(FixedLengthInputStream in) throws IOException {
-        // We could use ByteArrayOutputStream and IOUtils.copy, but it'd perform an unnecessary
-        // copy....
-        mData = new byte[in.getLength()];
-        int pos = 0;
-        while (pos < mData.length) {
-            int read = in.read(mData, pos, mData.length - pos);
-            if (read < 0) {
-                break;
+    /**
+     * @param budget the budget {@code in.getLength()} bytes have been acquired from. They are
+     *         released when this literal is destroyed, or if it cannot be read.
+     */
+    /* package */ ImapMemoryLiteral(FixedLengthInputStream in, ImapLiteralBudget budget)
+            throws IOException {
+        mBudget = budget;
+        mLength = in.getLength();
+        try {
+            // We could use ByteArrayOutputStream and IOUtils.copy, but it'd perform an
+            // unnecessary copy....
+            mData = new byte[mLength];
+            int pos = 0;
+            while (pos < mData.length) {
+                int read = in.read(mData, pos, mData.length - pos);
+                if (read < 0) {
+                    break;
+                }
+                pos += read;
             }
-            pos += read;
-        }
-        if (pos != mData.length) {
-            VvmLog.w(TAG, "length mismatch");
+            if (pos != mData.length) {
+                VvmLog.w(TAG, "length mismatch");
+            }
+        } catch (IOException | RuntimeException e) {
+            destroy();
+            throw e;
         }
     }
 
     @Override
     public void destroy() {
+        if (mBudget != null) {
+            mBudget.release(mLength);
+            mBudget = null;
+        }
         mData = null;
         super.destroy();
     }
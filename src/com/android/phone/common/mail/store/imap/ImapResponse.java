@@ -43,6 +43,13 @@ public class ImapResponse extends ImapList {
         return mTag != null;
     }
 
+    /**
+     * @return the tag of a tagged response, or null.
+     */
+    public String getTag() {
+        return mTag;
+    }
+
     /**
      * @return whether it's a continuation request.
      */
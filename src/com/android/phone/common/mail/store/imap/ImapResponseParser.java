@@ -27,6 +27,7 @@ import com.android.phone.vvm.omtp.VvmLog;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.HashMap;
 
 /**
  * IMAP response parser.
@@ -35,7 +36,8 @@ public class ImapResponseParser {
     private static final String TAG = "ImapResponseParser";
 
     /**
-     * Literal larger than this will be stored in temp file.
+     * Literal larger than this will be stored in temp file. The threshold is lower on small heaps,
+     * and when the in-memory literals of all connections use up {@link ImapLiteralBudget}.
      */
     public static final int LITERAL_KEEP_IN_MEMORY_THRESHOLD = 2 * 1024 * 1024;
 
@@ -44,8 +46,62 @@ public class ImapResponseParser {
 
     private final int mLiteralKeepInMemoryThreshold;
 
-    /** StringBuilder used by readUntil() */
-    private final StringBuilder mBufferReadUntil = new StringBuilder();
+    /** Shared limit on the bytes of all the in-memory literals. */
+    private final ImapLiteralBudget mLiteralBudget;
+
+    /**
+     * Bytes which end a bare string. '[' is included so parseBareString() can take everything up
+     * to the next ']' as a part of the atom.
+     */
+    private static final boolean[] BARE_STRING_DELIMITERS = new boolean[128];
+    static {
+        for (int ch = 0x00; ch <= 0x1f; ch++) {
+            BARE_STRING_DELIMITERS[ch] = true;
+        }
+        // TODO Can we clean this up?  (This condition is from the old parser.)
+        // ']' is not part of atom (it's in resp-specials).
+        // Docs claim that flags are \ atom but atom isn't supposed to contain * and some flags
+        // contain *, so '*' is not a delimiter. '\\' should probably be recognized as a flag.
+        for (char ch : new char[] {'(', ')', '{', ' ', ']', '%', '"', '[', 0x7f}) {
+            BARE_STRING_DELIMITERS[ch] = true;
+        }
+    }
+
+    /**
+     * Atoms and quoted strings which come up in most responses, FETCH results in particular. They
+     * are parsed into shared elements without allocating anything.
+     */
+    private static final String[] SHARED_STRINGS = {
+            ImapConstants.OK, ImapConstants.NO, ImapConstants.BAD, ImapConstants.BYE,
+            ImapConstants.EXISTS, ImapConstants.EXPUNGE, ImapConstants.FETCH, ImapConstants.SEARCH,
+            ImapConstants.UID, ImapConstants.FLAGS, ImapConstants.BODYSTRUCTURE,
+            ImapConstants.BODY, ImapConstants.RFC822_SIZE, ImapConstants.INTERNALDATE,
+            ImapConstants.UIDNEXT, ImapConstants.UIDVALIDITY, ImapConstants.HIGHESTMODSEQ,
+            ImapConstants.PERMANENTFLAGS, ImapConstants.READ_WRITE, ImapConstants.READ_ONLY,
+            "RECENT", "MODSEQ", "ENVELOPE",
+            "\\Seen", "\\Deleted", "\\Answered", "\\Flagged", "\\Draft", "\\Recent",
+            // BODYSTRUCTURE
+            "TEXT", "PLAIN", "HTML", "AUDIO", "AMR", "AMR-WB", "WAV", "MIXED", "ALTERNATIVE",
+            "CHARSET", "US-ASCII", "UTF-8", "ISO-8859-1", "NAME", "FILENAME", "attachment",
+            "inline", "7BIT", "8BIT", "BASE64", "QUOTED-PRINTABLE",
+    };
+    private static final PeekableInputStream.AtomTable SHARED_STRING_TABLE =
+            new PeekableInputStream.AtomTable(SHARED_STRINGS);
+    private static final HashMap<String, ImapString> SHARED_ELEMENTS = new HashMap<>();
+    static {
+        for (String s : SHARED_STRINGS) {
+            SHARED_ELEMENTS.put(s, new ImapSimpleString(s) {
+                @Override
+                public void destroy() {
+                    // Don't call super.destroy().
+                    // It's a shared object.  We don't want the mDestroyed to be set on this.
+                }
+            });
+        }
+    }
+
+    /** Reuses the elements of destroyed responses. */
+    private final ImapElementPool mPool = new ImapElementPool();
 
     /** StringBuilder used by parseBareString() */
     private final StringBuilder mParseBareString = new StringBuilder();
@@ -56,6 +112,21 @@ public class ImapResponseParser {
      */
     private final ArrayList<ImapResponse> mResponsesToDestroy = new ArrayList<ImapResponse>();
 
+    /**
+     * Receives literals straight from the connection, instead of having them kept in memory or in
+     * a temp file.
+     */
+    public interface LiteralConsumer {
+        /**
+         * Reads the literal from {@code in}. Any part of it which is left unread is skipped once
+         * this method returns.
+         */
+        void consumeLiteral(FixedLengthInputStream in) throws IOException;
+    }
+
+    /** If set, receives every literal; the parsed response holds an empty string instead. */
+    private LiteralConsumer mLiteralConsumer;
+
     /**
      * Exception thrown when we receive BYE.  It derives from IOException, so it'll be treated
      * in the same way EOF does.
@@ -71,15 +142,35 @@ public class ImapResponseParser {
      * Public constructor for normal use.
      */
     public ImapResponseParser(InputStream in) {
-        this(in, LITERAL_KEEP_IN_MEMORY_THRESHOLD);
+        this(in, ImapLiteralBudget.getDefaultLiteralKeepInMemoryThreshold(),
+                ImapLiteralBudget.getInstance());
     }
 
     /**
      * Constructor for testing to override the literal size threshold.
      */
     /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold) {
-        mIn = new PeekableInputStream(in);
+        this(in, literalKeepInMemoryThreshold, ImapLiteralBudget.getInstance());
+    }
+
+    /**
+     * Constructor for testing to override the literal size threshold and budget.
+     */
+    /* package for test */ ImapResponseParser(InputStream in, int literalKeepInMemoryThreshold,
+            ImapLiteralBudget literalBudget) {
+        // Share the transport's buffer if it already has one.
+        mIn = in instanceof PeekableInputStream
+                ? (PeekableInputStream) in : new PeekableInputStream(in);
         mLiteralKeepInMemoryThreshold = literalKeepInMemoryThreshold;
+        mLiteralBudget = literalBudget;
+    }
+
+    /**
+     * Sets the consumer for the literals of the following responses, or null to parse literals
+     * into the responses again.
+     */
+    public void setLiteralConsumer(LiteralConsumer consumer) {
+        mLiteralConsumer = consumer;
     }
 
     private static IOException newEOSException() {
@@ -119,11 +210,14 @@ public class ImapResponseParser {
     /**
      * Destroy all the {@link ImapResponse}s stored in the internal storage and clear it.
      *
+     * Their elements are reused by the following responses, so nothing obtained from them may be
+     * used afterwards.
+     *
      * @see #readResponse()
      */
     public void destroyResponses() {
         for (ImapResponse r : mResponsesToDestroy) {
-            r.destroy();
+            mPool.recycle(r);
         }
         mResponsesToDestroy.clear();
     }
@@ -201,15 +295,11 @@ public class ImapResponseParser {
      * The {@code end} will be read (rather than peeked) and won't be included in the result.
      */
     /* package for test */ String readUntil(char end) throws IOException {
-        mBufferReadUntil.setLength(0);
-        for (;;) {
-            final int ch = readByte();
-            if (ch != end) {
-                mBufferReadUntil.append((char) ch);
-            } else {
-                return mBufferReadUntil.toString();
-            }
+        final String ret = mIn.readAsciiUntil(end);
+        if (ret == null) {
+            throw newEOSException();
         }
+        return ret;
     }
 
     /**
@@ -242,7 +332,7 @@ public class ImapResponseParser {
                 responseToDestroy = new ImapResponse(null, true);
 
                 // If it's continuation request, we don't really care what's in it.
-                responseToDestroy.add(new ImapSimpleString(readUntilEol()));
+                responseToDestroy.add(mPool.obtainString(readUntilEol()));
 
                 // Response has successfully been built.  Let's return it.
                 responseToReturn = responseToDestroy;
@@ -282,7 +372,7 @@ public class ImapResponseParser {
                         String rest = readUntilEol();
                         if (!TextUtils.isEmpty(rest)) {
                             // The rest is free-form text.
-                            responseToDestroy.add(new ImapSimpleString(rest));
+                            responseToDestroy.add(mPool.obtainString(rest));
                         }
                     } else { // It's a response data.
                         parseElements(responseToDestroy, '\0');
@@ -314,8 +404,7 @@ public class ImapResponseParser {
             case '[':
                 return parseList('[', ']');
             case '"':
-                readByte(); // Skip "
-                return new ImapSimpleString(readUntil('"'));
+                return parseQuotedString();
             case '{':
                 return parseLiteral();
             case '\r':  // CR
@@ -340,42 +429,54 @@ public class ImapResponseParser {
      * If the value is "NIL", returns an empty string.
      */
     private ImapString parseBareString() throws IOException, MessagingException {
-        mParseBareString.setLength(0);
-        for (;;) {
-            final int ch = peek();
-
-            // TODO Can we clean this up?  (This condition is from the old parser.)
-            if (ch == '(' || ch == ')' || ch == '{' || ch == ' ' ||
-                    // ']' is not part of atom (it's in resp-specials)
-                    ch == ']' ||
-                    // docs claim that flags are \ atom but atom isn't supposed to
-                    // contain
-                    // * and some flags contain *
-                    // ch == '%' || ch == '*' ||
-                    ch == '%' ||
-                    // TODO probably should not allow \ and should recognize
-                    // it as a flag instead
-                    // ch == '"' || ch == '\' ||
-                    ch == '"' || (0x00 <= ch && ch <= 0x1f) || ch == 0x7f) {
-                if (mParseBareString.length() == 0) {
-                    throw new MessagingException("Expected string, none found.");
-                }
-                String s = mParseBareString.toString();
-
-                // NIL will be always converted into the empty string.
-                if (ImapConstants.NIL.equalsIgnoreCase(s)) {
-                    return ImapString.EMPTY;
-                }
-                return new ImapSimpleString(s);
-            } else if (ch == '[') {
+        String s = readAtom();
+        if (peek() == '[') {
+            mParseBareString.setLength(0);
+            mParseBareString.append(s);
+            do {
                 // Eat all until next ']'
                 mParseBareString.append((char) readByte());
                 mParseBareString.append(readUntil(']'));
                 mParseBareString.append(']'); // readUntil won't include the end char.
-            } else {
-                mParseBareString.append((char) readByte());
-            }
+                mParseBareString.append(readAtom());
+            } while (peek() == '[');
+            s = mParseBareString.toString();
+        }
+        if (s.length() == 0) {
+            throw new MessagingException("Expected string, none found.");
+        }
+
+        // NIL will be always converted into the empty string.
+        if (ImapConstants.NIL.equalsIgnoreCase(s)) {
+            return ImapString.EMPTY;
+        }
+        return newString(s);
+    }
+
+    private ImapString parseQuotedString() throws IOException {
+        readByte(); // Skip "
+        final String s = mIn.readAsciiUntil('"', SHARED_STRING_TABLE);
+        if (s == null) {
+            throw newEOSException();
         }
+        return newString(s);
+    }
+
+    private ImapString newString(String s) {
+        final ImapString shared = SHARED_ELEMENTS.get(s);
+        return shared != null ? shared : mPool.obtainString(s);
+    }
+
+    /**
+     * Reads up to the next {@link #BARE_STRING_DELIMITERS bare string delimiter}, which is not
+     * consumed.
+     */
+    private String readAtom() throws IOException {
+        final String ret = mIn.readAsciiUntilAny(BARE_STRING_DELIMITERS, SHARED_STRING_TABLE);
+        if (ret == null) {
+            throw newEOSException();
+        }
+        return ret;
     }
 
     private void parseElements(ImapList list, char end)
@@ -403,9 +504,15 @@ public class ImapResponseParser {
     private ImapList parseList(char opening, char closing)
             throws IOException, MessagingException {
         expect(opening);
-        final ImapList list = new ImapList();
-        parseElements(list, closing);
-        expect(closing);
+        final ImapList list = mPool.obtainList();
+        try {
+            parseElements(list, closing);
+            expect(closing);
+        } catch (IOException | MessagingException | RuntimeException e) {
+            // The list isn't part of the response yet, so destroy its literals here.
+            list.destroy();
+            throw e;
+        }
         return list;
     }
 
@@ -423,10 +530,22 @@ public class ImapResponseParser {
         expect('\r');
         expect('\n');
         FixedLengthInputStream in = new FixedLengthInputStream(mIn, size);
-        if (size > mLiteralKeepInMemoryThreshold) {
+        if (mLiteralConsumer != null) {
+            mLiteralConsumer.consumeLiteral(in);
+            // Skip whatever the consumer did not read, so parsing can carry on after the literal.
+            while (in.available() > 0) {
+                if (in.read() == -1) {
+                    throw newEOSException();
+                }
+            }
+            return ImapString.EMPTY;
+        }
+        // Spill to a temp file if the literal is too large, or if the other connections are
+        // already holding as much as the process can afford.
+        if (size > mLiteralKeepInMemoryThreshold || !mLiteralBudget.tryAcquire(size)) {
             return new ImapTempFileLiteral(in);
         } else {
-            return new ImapMemoryLiteral(in);
+            return new ImapMemoryLiteral(in, mLiteralBudget);
         }
     }
 }
\ No newline at end of file
@@ -33,6 +33,14 @@ public class ImapSimpleString extends ImapString {
         mString = (string != null) ? string : "";
     }
 
+    /**
+     * Reuses this instance for another string. Only for {@link ImapElementPool}.
+     */
+    /* package */ void setString(String string) {
+        mString = (string != null) ? string : "";
+        clearParsedValues();
+    }
+
     @Override
     public void destroy() {
         mString = null;
@@ -64,6 +64,15 @@ public abstract class ImapString extends ImapElement {
     private int mParsedInteger;
     private Date mParsedDate;
 
+    /**
+     * Forgets the parsed values, for subclasses whose string can change.
+     */
+    protected final void clearParsedValues() {
+        mIsInteger = false;
+        mParsedInteger = 0;
+        mParsedDate = null;
+    }
+
     @Override
     public final boolean isList() {
         return false;
@@ -32,16 +32,20 @@ import libcore.io.IoUtils;
 
 /**
  * Callback for when a voicemail payload is fetched. It copies the returned stream to the data
- * file corresponding to the voicemail.
+ * file corresponding to the voicemail, either at once or as it is being received.
  */
 public class VoicemailFetchedCallback {
     private static final String TAG = "VoicemailFetchedCallback";
 
+    private static final int PROGRESS_LOG_STEP_PERCENT = 25;
+
     private final Context mContext;
     private final ContentResolver mContentResolver;
     private final Uri mUri;
     private final PhoneAccountHandle mPhoneAccountHandle;
 
+    private int mLastLoggedProgress = -1;
+
     public VoicemailFetchedCallback(Context context, Uri uri,
         PhoneAccountHandle phoneAccountHandle) {
         mContext = context;
@@ -67,29 +71,67 @@ public class VoicemailFetchedCallback {
             return;
         }
 
-        VvmLog.d(TAG, String.format("Writing new voicemail content: %s", mUri));
         OutputStream outputStream = null;
 
         try {
-            outputStream = mContentResolver.openOutputStream(mUri);
+            outputStream = openVoicemailContentStream();
             byte[] inputBytes = voicemailPayload.getBytes();
             if (inputBytes != null) {
                 outputStream.write(inputBytes);
             }
         } catch (IOException e) {
-            VvmLog.w(TAG, String.format("File not found for %s", mUri));
             return;
         } finally {
             IoUtils.closeQuietly(outputStream);
         }
 
+        setVoicemailContentWritten(voicemailPayload.getMimeType());
+    }
+
+    /**
+     * Opens the data file of the voicemail for writing, so the content can be streamed into it.
+     * Once the stream is closed, {@link #setVoicemailContentWritten(String)} must be called to
+     * publish the content.
+     */
+    public OutputStream openVoicemailContentStream() throws IOException {
+        VvmLog.d(TAG, String.format("Writing new voicemail content: %s", mUri));
+        try {
+            return mContentResolver.openOutputStream(mUri);
+        } catch (IOException e) {
+            VvmLog.w(TAG, String.format("File not found for %s", mUri));
+            throw e;
+        }
+    }
+
+    /**
+     * Sets the mime type and the "has_content" bit of the voicemail once its content has been
+     * written.
+     */
+    public void setVoicemailContentWritten(String mimeType) {
         // Update mime_type & has_content after we are done with file update.
         ContentValues values = new ContentValues();
-        values.put(Voicemails.MIME_TYPE, voicemailPayload.getMimeType());
+        values.put(Voicemails.MIME_TYPE, mimeType);
         values.put(Voicemails.HAS_CONTENT, true);
         updateVoicemail(values);
     }
 
+    /**
+     * Called as the content of the voicemail is received.
+     *
+     * @param bytesReceived the number of encoded bytes received so far.
+     * @param totalBytes the encoded size of the content.
+     */
+    public void onProgress(long bytesReceived, long totalBytes) {
+        if (totalBytes <= 0) {
+            return;
+        }
+        int percent = (int) (bytesReceived * 100 / totalBytes);
+        if (percent / PROGRESS_LOG_STEP_PERCENT != mLastLoggedProgress) {
+            mLastLoggedProgress = percent / PROGRESS_LOG_STEP_PERCENT;
+            VvmLog.v(TAG, String.format("Received %d%% of %s", percent, mUri));
+        }
+    }
+
     private void updateVoicemail(ContentValues values) {
         int updatedCount = mContentResolver.update(mUri, values, null, null);
         if (updatedCount != 1) {
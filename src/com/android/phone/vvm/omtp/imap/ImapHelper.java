@@ -19,10 +19,13 @@ import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.Network;
 import android.net.NetworkInfo;
+import android.net.Uri;
 import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
+import android.text.TextUtils;
 import android.util.Base64;
+import android.util.Base64OutputStream;
 import com.android.phone.PhoneUtils;
 import com.android.phone.VoicemailStatus;
 import com.android.phone.common.mail.Address;
@@ -33,7 +36,9 @@ import com.android.phone.common.mail.Flag;
 import com.android.phone.common.mail.Message;
 import com.android.phone.common.mail.MessagingException;
 import com.android.phone.common.mail.Multipart;
+import com.android.phone.common.mail.Part;
 import com.android.phone.common.mail.TempDirectory;
+import com.android.phone.common.mail.internet.MimeHeader;
 import com.android.phone.common.mail.internet.MimeMessage;
 import com.android.phone.common.mail.store.ImapConnection;
 import com.android.phone.common.mail.store.ImapFolder;
@@ -52,11 +57,21 @@ import com.android.phone.vvm.omtp.sync.OmtpVvmSyncService.TranscriptionFetchedCa
 import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import libcore.io.IoUtils;
 
 /**
@@ -66,6 +81,15 @@ public class ImapHelper implements Closeable {
 
     private static final String TAG = "ImapHelper";
 
+    private static final int COPY_BUFFER_SIZE = 16 * 1024;
+
+    /** Size of the ranges in which the audio of a voicemail is fetched. */
+    /* package for test */ static final int PAYLOAD_CHUNK_SIZE = 64 * 1024;
+    /** Directory, in the cache directory, of the audio of interrupted downloads. */
+    /* package for test */ static final String PARTIAL_PAYLOAD_DIRECTORY = "vvm_partial_payloads";
+    /** Interrupted downloads which have not been resumed for this long are dropped. */
+    /* package for test */ static final long PARTIAL_PAYLOAD_MAX_AGE_MILLIS = 24 * 60 * 60 * 1000;
+
     private ImapFolder mFolder;
     private ImapStore mImapStore;
 
@@ -77,6 +101,11 @@ public class ImapHelper implements Closeable {
     VisualVoicemailPreferences mPrefs;
     private static final String PREF_KEY_QUOTA_OCCUPIED = "quota_occupied_";
     private static final String PREF_KEY_QUOTA_TOTAL = "quota_total_";
+    /* package for test */ static final String PREF_KEY_SYNC_UID_VALIDITY = "sync_uid_validity_";
+    /* package for test */ static final String PREF_KEY_SYNC_HIGHEST_UID = "sync_highest_uid_";
+    private static final String PREF_KEY_SYNC_HIGHEST_MODSEQ = "sync_highest_modseq_";
+
+    private static final String ALL_UIDS = "1:*";
 
     private int mQuotaOccupied;
     private int mQuotaTotal;
@@ -175,6 +204,39 @@ public class ImapHelper implements Closeable {
         return setFlags(voicemails, Flag.DELETED);
     }
 
+    /**
+     * Marks {@code readVoicemails} as read and {@code deletedVoicemails} as deleted on the server,
+     * and expunges the deleted ones. After the folder is selected, all of it is pipelined into a
+     * single round trip. The caller thread will block until the method returns.
+     *
+     * @return {@code true} if all the changes were made, {@code false} otherwise.
+     */
+    public boolean updateVoicemailFlags(List<Voicemail> readVoicemails,
+            List<Voicemail> deletedVoicemails) {
+        if (readVoicemails.isEmpty() && deletedVoicemails.isEmpty()) {
+            return false;
+        }
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                return false;
+            }
+            Map<String, Message[]> messagesByFlag = new HashMap<>();
+            messagesByFlag.put(Flag.DELETED, convertToImapMessages(deletedVoicemails));
+            messagesByFlag.put(Flag.SEEN, convertToImapMessages(readVoicemails));
+            mFolder.addFlagsAndExpunge(messagesByFlag);
+            return true;
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging exception");
+            return false;
+        } finally {
+            if (mFolder != null) {
+                // Already expunged along with the flag changes.
+                mFolder.close(false);
+            }
+        }
+    }
+
     public void handleEvent(OmtpEvents event) {
         mConfig.handleEvent(mStatus, event);
     }
@@ -208,29 +270,106 @@ public class ImapHelper implements Closeable {
     /**
      * Fetch a list of voicemails from the server.
      *
+     * The structure and envelope of every message are fetched with a single command, and the
+     * transcriptions of all voicemails with one more pipelined batch, so the number of round trips
+     * does not grow with the number of voicemails.
+     *
      * @return A list of voicemail objects containing data about voicemails stored on the server.
      */
     public List<Voicemail> fetchAllVoicemails() {
-        List<Voicemail> result = new ArrayList<Voicemail>();
-        Message[] messages;
         try {
             mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
             if (mFolder == null) {
                 // This means we were unable to successfully open the folder.
                 return null;
             }
+            return fetchVoicemails(ALL_UIDS, 0, new MessageStructureFetchedListener());
+        } catch (MessagingException e) {
+            LogUtils.e(TAG, e, "Messaging Exception");
+            return null;
+        } finally {
+            closeImapFolder();
+        }
+    }
 
-            // This method retrieves lightweight messages containing only the uid of the message.
-            messages = mFolder.getMessages(null);
+    /**
+     * Fetch the changes to the voicemails on the server since the last sync committed with
+     * {@link #commitSyncState(VoicemailDelta)}.
+     *
+     * Only new UIDs and changed flags are fetched, plus the list of the UIDs still on the server
+     * to find the deleted voicemails. Voicemails still on the server that are missing locally,
+     * e.g. because an earlier sync was not fully applied, are fetched again as new ones. If there
+     * was no previous sync, or the UIDVALIDITY of the folder has changed since, all voicemails
+     * are fetched instead and {@link VoicemailDelta#isFullSync()} is true.
+     *
+     * @param localSourceData the source data, i.e. the UIDs, of the local voicemails.
+     * @return the changes, or null if the fetch failed.
+     */
+    public VoicemailDelta fetchVoicemailDelta(Set<String> localSourceData) {
+        try {
+            mFolder = openImapFolder(ImapFolder.MODE_READ_WRITE);
+            if (mFolder == null) {
+                // This means we were unable to successfully open the folder.
+                return null;
+            }
+            long uidValidity = mFolder.getUidValidity();
+            long highestModSeq = mFolder.getHighestModSeq();
+            long lastUidValidity = mPrefs.getLong(PREF_KEY_SYNC_UID_VALIDITY, ImapFolder.NO_UID);
+            long lastHighestUid = mPrefs.getLong(PREF_KEY_SYNC_HIGHEST_UID, 0);
+            long lastModSeq = mPrefs.getLong(PREF_KEY_SYNC_HIGHEST_MODSEQ, ImapFolder.NO_MODSEQ);
+
+            MessageStructureFetchedListener structureListener =
+                    new MessageStructureFetchedListener();
+            if (uidValidity == ImapFolder.NO_UID || uidValidity != lastUidValidity) {
+                VvmLog.i(TAG, "UIDVALIDITY changed from " + lastUidValidity + " to "
+                        + uidValidity + ", fetching all voicemails");
+                List<Voicemail> voicemails =
+                        fetchVoicemails(ALL_UIDS, 0, structureListener);
+                return new VoicemailDelta(true, voicemails, null,
+                        Collections.<String, Boolean>emptyMap(), uidValidity,
+                        structureListener.getHighestUid(), highestModSeq);
+            }
+
+            Set<String> remainingUids = new HashSet<>();
+            Map<String, Boolean> readStates = new HashMap<>();
+            if (lastHighestUid > 0) {
+                String knownUids = "1:" + lastHighestUid;
+                remainingUids.addAll(Arrays.asList(mFolder.getUndeletedUids(knownUids)));
 
-            for (Message message : messages) {
-                // Get the voicemail details (message structure).
-                MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
-                if (messageStructureWrapper != null) {
-                    result.add(getVoicemailFromMessageStructure(messageStructureWrapper));
+                if (highestModSeq == ImapFolder.NO_MODSEQ || lastModSeq == ImapFolder.NO_MODSEQ
+                        || highestModSeq != lastModSeq) {
+                    FlagsFetchedListener flagsListener = new FlagsFetchedListener(readStates);
+                    FetchProfile fetchProfile = new FetchProfile();
+                    fetchProfile.add(FetchProfile.Item.FLAGS);
+                    mFolder.fetchUidSet(knownUids, fetchProfile,
+                            highestModSeq == ImapFolder.NO_MODSEQ
+                                    ? ImapFolder.NO_MODSEQ : lastModSeq,
+                            flagsListener);
                 }
             }
-            return result;
+
+            List<Voicemail> newVoicemails = new ArrayList<>();
+            List<String> missingUids = new ArrayList<>();
+            for (String uid : remainingUids) {
+                if (!localSourceData.contains(uid)) {
+                    missingUids.add(uid);
+                }
+            }
+            if (!missingUids.isEmpty()) {
+                VvmLog.i(TAG, missingUids.size() + " known voicemails missing locally");
+                newVoicemails.addAll(fetchVoicemails(TextUtils.join(",", missingUids), 0,
+                        new MessageStructureFetchedListener()));
+            }
+            long uidNext = mFolder.getUidNext();
+            if (uidNext == ImapFolder.NO_UID || uidNext > lastHighestUid + 1) {
+                newVoicemails.addAll(fetchVoicemails((lastHighestUid + 1) + ":*",
+                        lastHighestUid + 1, structureListener));
+            }
+            VvmLog.v(TAG, "Delta sync: " + newVoicemails.size() + " new, " + readStates.size()
+                    + " changed, " + remainingUids.size() + " remaining");
+            return new VoicemailDelta(false, newVoicemails, remainingUids, readStates,
+                    uidValidity, Math.max(lastHighestUid, structureListener.getHighestUid()),
+                    highestModSeq);
         } catch (MessagingException e) {
             LogUtils.e(TAG, e, "Messaging Exception");
             return null;
@@ -240,21 +379,79 @@ public class ImapHelper implements Closeable {
     }
 
     /**
-     * Extract voicemail details from the message structure. Also fetch transcription if a
-     * transcription exists.
+     * Persists the sync state reached by {@code delta}, once its changes have been applied to the
+     * voicemail provider.
      */
-    private Voicemail getVoicemailFromMessageStructure(
-            MessageStructureWrapper messageStructureWrapper) throws MessagingException {
-        Message messageDetails = messageStructureWrapper.messageStructure;
+    public void commitSyncState(VoicemailDelta delta) {
+        mPrefs.edit()
+                .putLong(PREF_KEY_SYNC_UID_VALIDITY, delta.mUidValidity)
+                .putLong(PREF_KEY_SYNC_HIGHEST_UID, delta.mHighestUid)
+                .putLong(PREF_KEY_SYNC_HIGHEST_MODSEQ, delta.mHighestModSeq)
+                .apply();
+    }
 
-        TranscriptionFetchedListener listener = new TranscriptionFetchedListener();
-        if (messageStructureWrapper.transcriptionBodyPart != null) {
-            FetchProfile fetchProfile = new FetchProfile();
-            fetchProfile.add(messageStructureWrapper.transcriptionBodyPart);
+    /**
+     * Fetches the voicemails in {@code uidSet} from the open folder, skipping deleted messages and
+     * messages with a UID lower than {@code minUid}.
+     */
+    private List<Voicemail> fetchVoicemails(String uidSet, long minUid,
+            MessageStructureFetchedListener structureListener) throws MessagingException {
+        // Get the voicemail details (message structure) of all messages at once.
+        FetchProfile fetchProfile = new FetchProfile();
+        fetchProfile.addAll(Arrays.asList(FetchProfile.Item.FLAGS, FetchProfile.Item.ENVELOPE,
+                FetchProfile.Item.STRUCTURE));
+        mFolder.fetchUidSet(uidSet, fetchProfile, ImapFolder.NO_MODSEQ, structureListener);
+
+        List<MessageStructureWrapper> messageStructures = new ArrayList<>();
+        Map<Message, Part> transcriptionParts = new HashMap<>();
+        for (MessageStructureWrapper wrapper : structureListener.getMessageStructures()) {
+            if (wrapper.messageStructure.isSet(Flag.DELETED)
+                    || parseUid(wrapper.messageStructure.getUid()) < minUid) {
+                continue;
+            }
+            messageStructures.add(wrapper);
+            if (wrapper.transcriptionBodyPart != null) {
+                transcriptionParts.put(wrapper.messageStructure,
+                        wrapper.transcriptionBodyPart);
+            }
+        }
 
-            mFolder.fetch(new Message[]{messageDetails}, fetchProfile, listener);
+        // Pull the envelope values out before the transcription fetch replaces the bodies.
+        List<Voicemail.Builder> builders = new ArrayList<>(messageStructures.size());
+        for (MessageStructureWrapper wrapper : messageStructures) {
+            builders.add(getVoicemailBuilderFromMessageStructure(wrapper));
         }
 
+        TranscriptionFetchedListener transcriptionListener =
+                new TranscriptionFetchedListener();
+        mFolder.fetchParts(transcriptionParts, transcriptionListener);
+
+        List<Voicemail> result = new ArrayList<Voicemail>(messageStructures.size());
+        for (int i = 0; i < messageStructures.size(); i++) {
+            String uid = messageStructures.get(i).messageStructure.getUid();
+            result.add(builders.get(i)
+                    .setTranscription(transcriptionListener.getVoicemailTranscription(uid))
+                    .build());
+        }
+        return result;
+    }
+
+    private static long parseUid(String uid) {
+        try {
+            return Long.parseLong(uid);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Extract voicemail details from the message structure. The transcription, if any, is fetched
+     * separately.
+     */
+    private Voicemail.Builder getVoicemailBuilderFromMessageStructure(
+            MessageStructureWrapper messageStructureWrapper) throws MessagingException {
+        Message messageDetails = messageStructureWrapper.messageStructure;
+
         // Found an audio attachment, this is a valid voicemail.
         long time = messageDetails.getSentDate().getTime();
         String number = getNumber(messageDetails.getFrom());
@@ -263,9 +460,7 @@ public class ImapHelper implements Closeable {
                 .setPhoneAccount(mPhoneAccount)
                 .setSourcePackage(mContext.getPackageName())
                 .setSourceData(messageDetails.getUid())
-                .setIsRead(isRead)
-                .setTranscription(listener.getVoicemailTranscription())
-                .build();
+                .setIsRead(isRead);
     }
 
     /**
@@ -324,9 +519,13 @@ public class ImapHelper implements Closeable {
             if (message == null) {
                 return false;
             }
-            VoicemailPayload voicemailPayload = fetchVoicemailPayload(message);
-            callback.setVoicemailContent(voicemailPayload);
-            return true;
+            MessageStructureWrapper messageStructureWrapper = fetchMessageStructure(message);
+            if (messageStructureWrapper == null) {
+                LogUtils.e(TAG, "No audio attachment found on this voicemail");
+                callback.setVoicemailContent(null);
+                return true;
+            }
+            return fetchVoicemailPayload(callback, messageStructureWrapper);
         } catch (MessagingException e) {
         } finally {
             closeImapFolder();
@@ -335,21 +534,198 @@ public class ImapHelper implements Closeable {
     }
 
     /**
-     * Fetches the body of the given message and returns the parsed voicemail payload.
+     * Writes the audio attachment of the given message into the voicemail provider. Base64 and
+     * unencoded audio is fetched in chunks which can be resumed, other encodings in one go.
      *
-     * @throws MessagingException if fetching the body of the message fails
+     * @throws MessagingException if fetching the attachment fails
      */
-    private VoicemailPayload fetchVoicemailPayload(Message message)
+    private boolean fetchVoicemailPayload(final VoicemailFetchedCallback callback,
+            MessageStructureWrapper messageStructureWrapper) throws MessagingException {
+        String[] encodings = messageStructureWrapper.audioBodyPart
+                .getHeader(MimeHeader.HEADER_CONTENT_TRANSFER_ENCODING);
+        // According to http://tools.ietf.org/html/rfc2045#section-6.1 "7bit" is the default.
+        String encoding = encodings != null && encodings.length > 0
+                ? encodings[0].trim().toLowerCase(Locale.US) : "7bit";
+        switch (encoding) {
+            case "base64":
+                return fetchVoicemailPayloadChunked(callback, messageStructureWrapper, true);
+            case "7bit":
+            case "8bit":
+            case "binary":
+                return fetchVoicemailPayloadChunked(callback, messageStructureWrapper, false);
+            default:
+                return streamVoicemailPayload(callback, messageStructureWrapper);
+        }
+    }
+
+    /**
+     * Fetches the audio attachment of the given message in {@link #PAYLOAD_CHUNK_SIZE} ranges and
+     * decodes it into the voicemail provider as the chunks arrive. The encoded audio is also kept
+     * in a file until the download completes, so that if the connection is lost the next attempt
+     * only fetches what is missing.
+     *
+     * @throws MessagingException if fetching the attachment fails, in which case the next
+     *         attempt resumes from what was received.
+     */
+    private boolean fetchVoicemailPayloadChunked(final VoicemailFetchedCallback callback,
+            MessageStructureWrapper messageStructureWrapper, boolean base64)
             throws MessagingException {
-        LogUtils.d(TAG, "Fetching message body for " + message.getUid());
+        Message message = messageStructureWrapper.messageStructure;
+        BodyPart part = messageStructureWrapper.audioBodyPart;
+        File partialFile = getPartialPayloadFile(message.getUid());
+
+        OutputStream contentStream;
+        try {
+            contentStream = callback.openVoicemailContentStream();
+        } catch (IOException e) {
+            // The voicemail is gone from the provider, there is nothing to retry.
+            partialFile.delete();
+            return true;
+        }
+        final OutputStream decoder = base64
+                ? new Base64OutputStream(contentStream, Base64.DEFAULT, false) : contentStream;
+        FileOutputStream partialOut = null;
+        long end;
+        try {
+            // The provider file is rewritten on every attempt, so decode what the earlier ones
+            // received first.
+            long offset = copyPartialPayload(partialFile, decoder);
+            if (offset > 0) {
+                VvmLog.i(TAG, "Resuming fetch of " + message.getUid() + " at " + offset);
+            }
+            partialOut = new FileOutputStream(partialFile, true);
+            final FileOutputStream out = partialOut;
+            final long totalBytes = part.getSize();
+            end = mFolder.fetchPartChunks(message, part, offset, PAYLOAD_CHUNK_SIZE,
+                    new ImapFolder.PartChunkListener() {
+                        @Override
+                        public void onPartChunk(Message message, long chunkOffset,
+                                InputStream in) throws IOException {
+                            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                            long received = chunkOffset;
+                            int n;
+                            while ((n = in.read(buffer)) != -1) {
+                                out.write(buffer, 0, n);
+                                decoder.write(buffer, 0, n);
+                                received += n;
+                                callback.onProgress(received, totalBytes);
+                            }
+                        }
+                    });
+            // Flushes the end of the base64 content.
+            decoder.close();
+        } catch (IOException e) {
+            LogUtils.e(TAG, e, "Cannot write voicemail content");
+            return false;
+        } finally {
+            IoUtils.closeQuietly(partialOut);
+            IoUtils.closeQuietly(decoder);
+        }
+        partialFile.delete();
+        if (end == 0) {
+            LogUtils.e(TAG, "Server did not return the audio attachment of " + message.getUid());
+            return false;
+        }
+        LogUtils.d(TAG, String.format("Fetched %s bytes of data", end));
+        callback.setVoicemailContentWritten(part.getMimeType().toLowerCase());
+        return true;
+    }
 
-        MessageBodyFetchedListener listener = new MessageBodyFetchedListener();
+    /**
+     * @return the file the encoded audio of {@code uid} is kept in while it is being fetched.
+     */
+    private File getPartialPayloadFile(String uid) {
+        File directory = new File(mContext.getCacheDir(), PARTIAL_PAYLOAD_DIRECTORY);
+        File[] files = directory.listFiles();
+        if (files == null) {
+            directory.mkdirs();
+        } else {
+            long now = System.currentTimeMillis();
+            for (File file : files) {
+                if (now - file.lastModified() > PARTIAL_PAYLOAD_MAX_AGE_MILLIS) {
+                    file.delete();
+                }
+            }
+        }
+        // UIDs are only unique within an account and a UIDVALIDITY.
+        return new File(directory, Uri.encode(mPhoneAccount.getId()) + "_"
+                + mFolder.getUidValidity() + "_" + uid);
+    }
 
-        FetchProfile fetchProfile = new FetchProfile();
-        fetchProfile.add(FetchProfile.Item.BODY);
+    /**
+     * Copies what was received of a payload by earlier attempts to {@code out}.
+     *
+     * @return the number of bytes copied, which is the offset to resume fetching from.
+     */
+    private static long copyPartialPayload(File partialFile, OutputStream out)
+            throws IOException {
+        if (!partialFile.exists()) {
+            return 0;
+        }
+        long count = 0;
+        try (FileInputStream in = new FileInputStream(partialFile)) {
+            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) != -1) {
+                out.write(buffer, 0, n);
+                count += n;
+            }
+        }
+        return count;
+    }
 
-        mFolder.fetch(new Message[]{message}, fetchProfile, listener);
-        return listener.getVoicemailPayload();
+    /**
+     * Streams the audio attachment of the given message into the voicemail provider. The audio is
+     * decoded as it is read from the connection and written through a fixed size buffer, so memory
+     * use does not depend on the length of the voicemail.
+     *
+     * @throws MessagingException if fetching the attachment fails
+     */
+    private boolean streamVoicemailPayload(final VoicemailFetchedCallback callback,
+            MessageStructureWrapper messageStructureWrapper) throws MessagingException {
+        Message message = messageStructureWrapper.messageStructure;
+        LogUtils.d(TAG, "Fetching message body for " + message.getUid());
+
+        final OutputStream outputStream;
+        try {
+            outputStream = callback.openVoicemailContentStream();
+        } catch (IOException e) {
+            // The voicemail is gone from the provider, there is nothing to retry.
+            return true;
+        }
+        boolean received;
+        try {
+            received = mFolder.fetchPartToStream(message,
+                    messageStructureWrapper.audioBodyPart, new ImapFolder.PartStreamListener() {
+                        @Override
+                        public void onPartStream(Message message, InputStream in)
+                                throws IOException {
+                            byte[] buffer = new byte[COPY_BUFFER_SIZE];
+                            long count = 0;
+                            int n;
+                            while ((n = in.read(buffer)) != -1) {
+                                outputStream.write(buffer, 0, n);
+                                count += n;
+                            }
+                            LogUtils.d(TAG, String.format("Fetched %s bytes of data", count));
+                        }
+
+                        @Override
+                        public void onProgress(Message message, long bytesReceived,
+                                long totalBytes) {
+                            callback.onProgress(bytesReceived, totalBytes);
+                        }
+                    });
+        } finally {
+            IoUtils.closeQuietly(outputStream);
+        }
+        if (!received) {
+            LogUtils.e(TAG, "Server did not return the audio attachment of " + message.getUid());
+            return false;
+        }
+        callback.setVoicemailContentWritten(
+                messageStructureWrapper.audioBodyPart.getMimeType().toLowerCase());
+        return true;
     }
 
     public boolean fetchTranscription(TranscriptionFetchedCallback callback, String uid) {
@@ -504,6 +880,62 @@ public class ImapHelper implements Closeable {
         VvmLog.v(TAG, "Quota changed to " + mQuotaOccupied + "/" + mQuotaTotal);
     }
 
+    /**
+     * The changes to the voicemails on the server since the last sync.
+     */
+    public static class VoicemailDelta {
+
+        private final boolean mIsFullSync;
+        private final List<Voicemail> mNewVoicemails;
+        private final Set<String> mRemainingUids;
+        private final Map<String, Boolean> mReadStates;
+        private final long mUidValidity;
+        private final long mHighestUid;
+        private final long mHighestModSeq;
+
+        VoicemailDelta(boolean isFullSync, List<Voicemail> newVoicemails,
+                Set<String> remainingUids, Map<String, Boolean> readStates, long uidValidity,
+                long highestUid, long highestModSeq) {
+            mIsFullSync = isFullSync;
+            mNewVoicemails = newVoicemails;
+            mRemainingUids = remainingUids;
+            mReadStates = readStates;
+            mUidValidity = uidValidity;
+            mHighestUid = highestUid;
+            mHighestModSeq = highestModSeq;
+        }
+
+        /**
+         * Whether all voicemails were fetched. If so, {@link #getNewVoicemails()} is the complete
+         * list of voicemails on the server, and local voicemails not in it should be deleted.
+         */
+        public boolean isFullSync() {
+            return mIsFullSync;
+        }
+
+        /**
+         * The voicemails added since the last sync, or all voicemails for a full sync.
+         */
+        public List<Voicemail> getNewVoicemails() {
+            return mNewVoicemails;
+        }
+
+        /**
+         * Whether the voicemail with the given UID, known from a previous sync, is still on the
+         * server. Always true for a full sync.
+         */
+        public boolean isRemaining(String uid) {
+            return mRemainingUids == null || mRemainingUids.contains(uid);
+        }
+
+        /**
+         * The read state of the voicemails whose flags changed since the last sync, by UID.
+         */
+        public Map<String, Boolean> getChangedReadStates() {
+            return mReadStates;
+        }
+    }
+
     /**
      * A wrapper to hold a message with its header details and the structure for transcriptions (so
      * they can be fetched in the future).
@@ -511,6 +943,7 @@ public class ImapHelper implements Closeable {
     public class MessageStructureWrapper {
 
         public Message messageStructure;
+        public BodyPart audioBodyPart;
         public BodyPart transcriptionBodyPart;
 
         public MessageStructureWrapper() {
@@ -523,25 +956,42 @@ public class ImapHelper implements Closeable {
     private final class MessageStructureFetchedListener
             implements ImapFolder.MessageRetrievalListener {
 
-        private MessageStructureWrapper mMessageStructure;
+        private final List<MessageStructureWrapper> mMessageStructures = new ArrayList<>();
+        private long mHighestUid;
 
         public MessageStructureFetchedListener() {
         }
 
+        /**
+         * Returns the highest UID of all fetched messages, voicemails or not.
+         */
+        public long getHighestUid() {
+            return mHighestUid;
+        }
+
         public MessageStructureWrapper getMessageStructure() {
-            return mMessageStructure;
+            return mMessageStructures.isEmpty() ? null : mMessageStructures.get(0);
+        }
+
+        /**
+         * Returns the structures of all fetched messages which are valid voicemails.
+         */
+        public List<MessageStructureWrapper> getMessageStructures() {
+            return mMessageStructures;
         }
 
         @Override
         public void messageRetrieved(Message message) {
             LogUtils.d(TAG, "Fetched message structure for " + message.getUid());
             LogUtils.d(TAG, "Message retrieved: " + message);
+            mHighestUid = Math.max(mHighestUid, parseUid(message.getUid()));
             try {
-                mMessageStructure = getMessageOrNull(message);
-                if (mMessageStructure == null) {
+                MessageStructureWrapper messageStructure = getMessageOrNull(message);
+                if (messageStructure == null) {
                     LogUtils.d(TAG, "This voicemail does not have an attachment...");
                     return;
                 }
+                mMessageStructures.add(messageStructure);
             } catch (MessagingException e) {
                 LogUtils.e(TAG, e, "Messaging Exception");
                 closeImapFolder();
@@ -572,6 +1022,7 @@ public class ImapHelper implements Closeable {
 
                 if (bodyPartMimeType.startsWith("audio/")) {
                     messageStructureWrapper.messageStructure = message;
+                    messageStructureWrapper.audioBodyPart = bodyPart;
                 } else if (bodyPartMimeType.startsWith("text/")) {
                     messageStructureWrapper.transcriptionBodyPart = bodyPart;
                 } else {
@@ -589,48 +1040,23 @@ public class ImapHelper implements Closeable {
     }
 
     /**
-     * Listener for the message body being fetched.
+     * Listener for the flags of known messages being fetched.
      */
-    private final class MessageBodyFetchedListener implements ImapFolder.MessageRetrievalListener {
+    private static final class FlagsFetchedListener
+            implements ImapFolder.MessageRetrievalListener {
 
-        private VoicemailPayload mVoicemailPayload;
+        private final Map<String, Boolean> mReadStates;
 
-        /**
-         * Returns the fetch voicemail payload.
-         */
-        public VoicemailPayload getVoicemailPayload() {
-            return mVoicemailPayload;
+        public FlagsFetchedListener(Map<String, Boolean> readStates) {
+            mReadStates = readStates;
         }
 
         @Override
         public void messageRetrieved(Message message) {
-            LogUtils.d(TAG, "Fetched message body for " + message.getUid());
-            LogUtils.d(TAG, "Message retrieved: " + message);
-            try {
-                mVoicemailPayload = getVoicemailPayloadFromMessage(message);
-            } catch (MessagingException e) {
-                LogUtils.e(TAG, "Messaging Exception:", e);
-            } catch (IOException e) {
-                LogUtils.e(TAG, "IO Exception:", e);
-            }
-        }
-
-        private VoicemailPayload getVoicemailPayloadFromMessage(Message message)
-                throws MessagingException, IOException {
-            Multipart multipart = (Multipart) message.getBody();
-            List<String> mimeTypes = new ArrayList<>();
-            for (int i = 0; i < multipart.getCount(); ++i) {
-                BodyPart bodyPart = multipart.getBodyPart(i);
-                String bodyPartMimeType = bodyPart.getMimeType().toLowerCase();
-                mimeTypes.add(bodyPartMimeType);
-                if (bodyPartMimeType.startsWith("audio/")) {
-                    byte[] bytes = getDataFromBody(bodyPart.getBody());
-                    LogUtils.d(TAG, String.format("Fetched %s bytes of data", bytes.length));
-                    return new VoicemailPayload(bodyPartMimeType, bytes);
-                }
+            if (message.isSet(Flag.DELETED)) {
+                return;
             }
-            LogUtils.e(TAG, "No audio attachment found on this voicemail, mimeTypes:" + mimeTypes);
-            return null;
+            mReadStates.put(message.getUid(), message.isSet(Flag.SEEN));
         }
     }
 
@@ -641,6 +1067,7 @@ public class ImapHelper implements Closeable {
             ImapFolder.MessageRetrievalListener {
 
         private String mVoicemailTranscription;
+        private final Map<String, String> mTranscriptionsByUid = new HashMap<>();
 
         /**
          * Returns the fetched voicemail transcription.
@@ -649,11 +1076,19 @@ public class ImapHelper implements Closeable {
             return mVoicemailTranscription;
         }
 
+        /**
+         * Returns the transcription fetched for the message with the given UID, or null.
+         */
+        public String getVoicemailTranscription(String uid) {
+            return mTranscriptionsByUid.get(uid);
+        }
+
         @Override
         public void messageRetrieved(Message message) {
             LogUtils.d(TAG, "Fetched transcription for " + message.getUid());
             try {
                 mVoicemailTranscription = new String(getDataFromBody(message.getBody()));
+                mTranscriptionsByUid.put(message.getUid(), mVoicemailTranscription);
             } catch (MessagingException e) {
                 LogUtils.e(TAG, "Messaging Exception:", e);
             } catch (IOException e) {
@@ -95,8 +95,8 @@ public interface Task {
      * @return number of milliSeconds the scheduler should wait before running this task. A value
      * less than {@link TaskSchedulerService#READY_TOLERANCE_MILLISECONDS} will be considered ready.
      * If no tasks are ready, the scheduler will sleep for this amount of time before doing another
-     * check (it will still wake if a new task is added). The first task in the queue that is ready
-     * will be executed.
+     * check (it will still wake if a new task is added). Of the ready tasks, the one which became
+     * ready first is executed, once no other task of the same subId is running.
      */
     @MainThread
     long getReadyInMilliSeconds();
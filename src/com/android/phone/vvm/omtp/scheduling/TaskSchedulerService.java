@@ -33,18 +33,25 @@ import android.os.Message;
 import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.os.SystemClock;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+import android.util.SparseArray;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.phone.Assert;
 import com.android.phone.NeededForTesting;
 import com.android.phone.vvm.omtp.VvmLog;
 import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
 
 /**
- * A service to queue and run {@link Task} on a worker thread. Only one task will be ran at a time,
- * and same task cannot exist in the queue at the same time. The service will be started when a
- * intent is received, and stopped when there are no more tasks in the queue.
+ * A service to queue and run {@link Task} on worker threads. Each phone account, identified by
+ * {@link TaskId#subId}, has its own worker thread, so tasks of one account run one at a time and
+ * a slow task on one SIM does not hold up the other. At most {@link #MAX_CONCURRENT_TASKS} tasks
+ * run at the same time, and same task cannot exist in the queue at the same time. The service will
+ * be started when a intent is received, and stopped when there are no more tasks in the queue.
  */
 public class TaskSchedulerService extends Service {
 
@@ -54,6 +61,12 @@ public class TaskSchedulerService extends Service {
 
     private static final int READY_TOLERANCE_MILLISECONDS = 100;
 
+    /**
+     * Maximum number of tasks running at the same time, across all phone accounts.
+     */
+    @VisibleForTesting
+    static final int MAX_CONCURRENT_TASKS = 2;
+
     /**
      * Threshold to determine whether to do a short or long sleep when a task is scheduled in the
      * future.
@@ -78,8 +91,11 @@ public class TaskSchedulerService extends Service {
 
     private static final String WAKE_LOCK_TAG = "TaskSchedulerService_wakelock";
 
-    // The thread to run tasks on
-    private volatile WorkerThreadHandler mWorkerThreadHandler;
+    /**
+     * Main thread only. The threads to run tasks on, one per subId, created when the first task of
+     * the subId is run.
+     */
+    private final SparseArray<WorkerThreadHandler> mWorkerThreadHandlers = new SparseArray<>();
 
     private Context mContext = this;
     /**
@@ -93,10 +109,34 @@ public class TaskSchedulerService extends Service {
     private WakeLock mWakeLock;
 
     /**
-     * Main thread only, access through {@link #getTasks()}
+     * Main thread only. Tasks waiting to be run, the one expected to be ready first at the head.
      */
-    private final Queue<Task> mTasks = new ArrayDeque<>();
-    private boolean mWorkerThreadIsBusy = false;
+    private final PriorityQueue<QueuedTask> mQueue = new PriorityQueue<>(11,
+            new Comparator<QueuedTask>() {
+                @Override
+                public int compare(QueuedTask a, QueuedTask b) {
+                    if (a.readyAtMillis != b.readyAtMillis) {
+                        return a.readyAtMillis < b.readyAtMillis ? -1 : 1;
+                    }
+                    return Long.compare(a.sequence, b.sequence);
+                }
+            });
+    /**
+     * Main thread only. Queued and running tasks which do not allow duplicates, by their id.
+     */
+    private final ArrayMap<TaskId, Task> mTasks = new ArrayMap<>();
+    /**
+     * Main thread only. subIds which have a task running on their worker thread.
+     */
+    private final ArraySet<Integer> mBusySubIds = new ArraySet<>();
+    private long mNextSequence;
+
+    private final Runnable mRunNextTaskWithDelay = new Runnable() {
+        @Override
+        public void run() {
+            maybeRunNextTask();
+        }
+    };
 
     private final Runnable mStopServiceWithDelay = new Runnable() {
         @Override
@@ -110,6 +150,28 @@ public class TaskSchedulerService extends Service {
      */
     private boolean mTaskAutoRunDisabledForTesting = false;
 
+    /**
+     * A task in {@link #mQueue}.
+     */
+    private static final class QueuedTask {
+
+        final Task task;
+        /** Breaks ties between tasks ready at the same time, in the order they were added. */
+        final long sequence;
+        /**
+         * When the task was last known to become ready, in {@link SystemClock#elapsedRealtime()}.
+         * Tasks can be postponed while queued, so this is checked against the task before it is
+         * run.
+         */
+        long readyAtMillis;
+
+        QueuedTask(Task task, long sequence, long readyAtMillis) {
+            this.task = task;
+            this.sequence = sequence;
+            this.readyAtMillis = readyAtMillis;
+        }
+    }
+
     @VisibleForTesting
     final class WorkerThreadHandler extends Handler {
 
@@ -147,9 +209,11 @@ public class TaskSchedulerService extends Service {
         public void handleMessage(Message msg) {
             Assert.isMainThread();
             Task task = (Task) msg.obj;
-            getTasks().remove(task);
+            if (mTasks.get(task.getId()) == task) {
+                mTasks.remove(task.getId());
+            }
             task.onCompleted();
-            mWorkerThreadIsBusy = false;
+            mBusySubIds.remove(task.getId().subId);
             maybeRunNextTask();
         }
     }
@@ -161,16 +225,15 @@ public class TaskSchedulerService extends Service {
         mWakeLock = getSystemService(PowerManager.class)
                 .newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, WAKE_LOCK_TAG);
         mWakeLock.setReferenceCounted(false);
-        HandlerThread thread = new HandlerThread("VvmTaskSchedulerService");
-        thread.start();
-
-        mWorkerThreadHandler = new WorkerThreadHandler(thread.getLooper());
         mMainThreadHandler = new MainThreadHandler(Looper.getMainLooper());
     }
 
     @Override
     public void onDestroy() {
-        mWorkerThreadHandler.getLooper().quit();
+        for (int i = 0; i < mWorkerThreadHandlers.size(); i++) {
+            mWorkerThreadHandlers.valueAt(i).getLooper().quit();
+        }
+        mWorkerThreadHandlers.clear();
         mWakeLock.release();
     }
 
@@ -212,7 +275,11 @@ public class TaskSchedulerService extends Service {
             }
         }
         mMainThreadHandler.removeCallbacks(mStopServiceWithDelay);
-        getTasks().add(task);
+        if (task.getId().id != Task.TASK_ALLOW_DUPLICATES) {
+            mTasks.put(task.getId(), task);
+        }
+        mQueue.add(new QueuedTask(task, mNextSequence++,
+                SystemClock.elapsedRealtime() + task.getReadyInMilliSeconds()));
         maybeRunNextTask();
     }
 
@@ -220,18 +287,20 @@ public class TaskSchedulerService extends Service {
     @Nullable
     private Task getTask(TaskId taskId) {
         Assert.isMainThread();
-        for (Task task : getTasks()) {
-            if (task.getId().equals(taskId)) {
-                return task;
-            }
-        }
-        return null;
+        return mTasks.get(taskId);
     }
 
     @MainThread
-    private Queue<Task> getTasks() {
+    private WorkerThreadHandler getWorkerThreadHandler(int subId) {
         Assert.isMainThread();
-        return mTasks;
+        WorkerThreadHandler handler = mWorkerThreadHandlers.get(subId);
+        if (handler == null) {
+            HandlerThread thread = new HandlerThread("VvmTaskSchedulerService-" + subId);
+            thread.start();
+            handler = new WorkerThreadHandler(thread.getLooper());
+            mWorkerThreadHandlers.put(subId, handler);
+        }
+        return handler;
     }
 
     /**
@@ -268,60 +337,115 @@ public class TaskSchedulerService extends Service {
     @MainThread
     private void maybeRunNextTask() {
         Assert.isMainThread();
-        if (mWorkerThreadIsBusy) {
-            return;
-        }
         if (mTaskAutoRunDisabledForTesting) {
             // If mTaskAutoRunDisabledForTesting is true, runNextTask() must be explicitly called
             // to run the next task.
             return;
         }
 
-        runNextTask();
+        while (runNextTask()) {
+            // Keep starting tasks until none are ready or the concurrency limit is reached.
+        }
     }
 
+    /**
+     * Starts the first ready task whose subId has no task running, if fewer than {@link
+     * #MAX_CONCURRENT_TASKS} are running. If no task can be started, sleeps until the next one
+     * should be ready.
+     *
+     * @return whether a task was started.
+     */
     @VisibleForTesting
     @MainThread
-    void runNextTask() {
+    boolean runNextTask() {
         Assert.isMainThread();
         // The current alarm is no longer valid, a new one will be set up if required.
         getSystemService(AlarmManager.class).cancel(getWakeupIntent());
-        if (getTasks().isEmpty()) {
-            prepareStop();
-            return;
+        mMainThreadHandler.removeCallbacks(mRunNextTaskWithDelay);
+        if (mQueue.isEmpty()) {
+            if (mBusySubIds.isEmpty()) {
+                prepareStop();
+            }
+            return false;
         }
-        Long minimalWaitTime = null;
-        for (Task task : getTasks()) {
-            long waitTime = task.getReadyInMilliSeconds();
-            if (waitTime < READY_TOLERANCE_MILLISECONDS) {
-                task.onBeforeExecute();
-                Message message = mWorkerThreadHandler.obtainMessage();
-                message.obj = task;
-                mWorkerThreadIsBusy = true;
-                mMessageSender.send(message);
-                return;
-            } else {
-                if (minimalWaitTime == null || waitTime < minimalWaitTime) {
-                    minimalWaitTime = waitTime;
+        if (mBusySubIds.size() >= MAX_CONCURRENT_TASKS) {
+            // A new task will be picked when one of the running tasks has completed.
+            return false;
+        }
+
+        QueuedTask next = null;
+        // Ready tasks whose subId is busy, put back once a task has been picked.
+        List<QueuedTask> blocked = new ArrayList<>();
+        boolean refreshed = false;
+        while (!mQueue.isEmpty()) {
+            QueuedTask head = mQueue.peek();
+            if (head.task.getReadyInMilliSeconds() >= READY_TOLERANCE_MILLISECONDS) {
+                if (refreshed) {
+                    break;
                 }
+                // The head is not ready. Ready times might have changed since the tasks were
+                // queued, so re-read them all before concluding that no other task is either.
+                refreshReadyTimes();
+                refreshed = true;
+                continue;
             }
+            mQueue.poll();
+            if (mBusySubIds.contains(head.task.getId().subId)) {
+                blocked.add(head);
+                continue;
+            }
+            next = head;
+            break;
+        }
+        // The first task waiting for its time, if any.
+        QueuedTask waiting = mQueue.peek();
+        mQueue.addAll(blocked);
+
+        if (next != null) {
+            Task task = next.task;
+            task.onBeforeExecute();
+            Message message = getWorkerThreadHandler(task.getId().subId).obtainMessage();
+            message.obj = task;
+            mBusySubIds.add(task.getId().subId);
+            mMessageSender.send(message);
+            return true;
+        }
+
+        if (waiting == null) {
+            // Everything left is ready but waiting for a running task of the same subId.
+            return false;
         }
+        long minimalWaitTime = waiting.readyAtMillis - SystemClock.elapsedRealtime();
         VvmLog.d(TAG, "minimal wait time:" + minimalWaitTime);
-        if (!mTaskAutoRunDisabledForTesting && minimalWaitTime != null) {
+        if (!mTaskAutoRunDisabledForTesting) {
             // No tasks are currently ready. Sleep until the next one should be.
             // If a new task is added during the sleep the service will wake immediately.
             sleep(minimalWaitTime);
         }
+        return false;
+    }
+
+    /**
+     * Re-reads {@link Task#getReadyInMilliSeconds()} of every queued task and re-sorts the queue.
+     */
+    @MainThread
+    private void refreshReadyTimes() {
+        long now = SystemClock.elapsedRealtime();
+        List<QueuedTask> tasks = new ArrayList<>(mQueue);
+        mQueue.clear();
+        for (QueuedTask queuedTask : tasks) {
+            queuedTask.readyAtMillis = now + queuedTask.task.getReadyInMilliSeconds();
+        }
+        mQueue.addAll(tasks);
     }
 
     private void sleep(long timeMillis) {
         if (timeMillis < SHORT_SLEEP_THRESHOLD_MILLISECONDS) {
-            mMainThreadHandler.postDelayed(new Runnable() {
-                @Override
-                public void run() {
-                    maybeRunNextTask();
-                }
-            }, timeMillis);
+            mMainThreadHandler.postDelayed(mRunNextTaskWithDelay, timeMillis);
+            return;
+        }
+        if (!mBusySubIds.isEmpty()) {
+            // Keep the wake lock, the next task will be looked at when a running one completes.
             return;
         }
 
@@ -372,7 +496,9 @@ public class TaskSchedulerService extends Service {
 
     @NeededForTesting
     void clearTasksForTest() {
+        mQueue.clear();
         mTasks.clear();
+        mBusySubIds.clear();
     }
 
     @Override
@@ -18,7 +18,6 @@ package com.android.phone.vvm.omtp.sync;
 import android.content.Context;
 import android.net.Network;
 import android.net.Uri;
-import android.provider.VoicemailContract;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
 import android.text.TextUtils;
@@ -37,9 +36,12 @@ import com.android.phone.vvm.omtp.scheduling.BaseTask;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.NetworkWrapper;
 import com.android.phone.vvm.omtp.sync.VvmNetworkRequest.RequestFailedException;
 import com.android.phone.vvm.omtp.utils.PhoneAccountHandleConverter;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Sync OMTP visual voicemail.
@@ -174,39 +176,42 @@ public class OmtpVvmSyncService {
         List<Voicemail> readVoicemails = mQueryHelper.getReadVoicemails();
         List<Voicemail> deletedVoicemails = mQueryHelper.getDeletedVoicemails();
 
-        boolean success = true;
+        if (deletedVoicemails.isEmpty() && readVoicemails.isEmpty()) {
+            return true;
+        }
+        // Both changes go to the server in one pipelined batch.
+        if (!imapHelper.updateVoicemailFlags(readVoicemails, deletedVoicemails)) {
+            return false;
+        }
 
         if (deletedVoicemails.size() > 0) {
-            if (imapHelper.markMessagesAsDeleted(deletedVoicemails)) {
-                // We want to delete selectively instead of all the voicemails for this provider
-                // in case the state changed since the IMAP query was completed.
-                mQueryHelper.deleteFromDatabase(deletedVoicemails);
-            } else {
-                success = false;
-            }
+            // We want to delete selectively instead of all the voicemails for this provider
+            // in case the state changed since the IMAP query was completed.
+            mQueryHelper.deleteFromDatabase(deletedVoicemails);
         }
-
         if (readVoicemails.size() > 0) {
-            if (imapHelper.markMessagesAsRead(readVoicemails)) {
-                mQueryHelper.markCleanInDatabase(readVoicemails);
-            } else {
-                success = false;
-            }
+            mQueryHelper.markCleanInDatabase(readVoicemails);
         }
-
-        return success;
+        return true;
     }
 
     private boolean download(ImapHelper imapHelper, PhoneAccountHandle account) {
-        List<Voicemail> serverVoicemails = imapHelper.fetchAllVoicemails();
         List<Voicemail> localVoicemails = mQueryHelper.getAllVoicemails();
-
-        if (localVoicemails == null || serverVoicemails == null) {
+        if (localVoicemails == null) {
             // Null value means the query failed.
             return false;
         }
+        Set<String> localSourceData = new HashSet<>(localVoicemails.size());
+        for (int i = 0; i < localVoicemails.size(); i++) {
+            localSourceData.add(localVoicemails.get(i).getSourceData());
+        }
+        ImapHelper.VoicemailDelta delta = imapHelper.fetchVoicemailDelta(localSourceData);
+        if (delta == null) {
+            return false;
+        }
 
-        Map<String, Voicemail> remoteMap = buildMap(serverVoicemails);
+        Map<String, Voicemail> remoteMap = buildMap(delta.getNewVoicemails());
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
 
         // Go through all the local voicemails and check if they are on the server.
         // They may be read or deleted on the server but not locally. Perform the
@@ -217,31 +222,54 @@ public class OmtpVvmSyncService {
             Voicemail localVoicemail = localVoicemails.get(i);
             Voicemail remoteVoicemail = remoteMap.remove(localVoicemail.getSourceData());
             if (remoteVoicemail == null) {
-                mQueryHelper.deleteFromDatabase(localVoicemail);
+                if (delta.isFullSync() || !delta.isRemaining(localVoicemail.getSourceData())) {
+                    batch.delete(localVoicemail);
+                    continue;
+                }
+                // Known from a previous sync and still on the server; only flags may differ.
+                Boolean isRead = delta.getChangedReadStates().get(localVoicemail.getSourceData());
+                if (isRead != null && isRead != localVoicemail.isRead()) {
+                    batch.markRead(localVoicemail);
+                }
             } else {
                 if (remoteVoicemail.isRead() != localVoicemail.isRead()) {
-                    mQueryHelper.markReadInDatabase(localVoicemail);
+                    batch.markRead(localVoicemail);
                 }
 
                 if (!TextUtils.isEmpty(remoteVoicemail.getTranscription()) &&
                         TextUtils.isEmpty(localVoicemail.getTranscription())) {
-                    mQueryHelper.updateWithTranscription(localVoicemail,
+                    batch.updateWithTranscription(localVoicemail,
                             remoteVoicemail.getTranscription());
                 }
             }
         }
 
         // The leftover messages are messages that exist on the server but not locally.
+        List<Voicemail> newVoicemails = new ArrayList<>(remoteMap.values());
+        int[] insertIndexes = new int[newVoicemails.size()];
+        for (int i = 0; i < newVoicemails.size(); i++) {
+            insertIndexes[i] = batch.insert(newVoicemails.get(i));
+        }
+        VvmLog.v(TAG, "Applying " + batch.size() + " voicemail changes");
+        if (!batch.apply()) {
+            return false;
+        }
+
         boolean prefetchEnabled = shouldPerformPrefetch(account, imapHelper);
-        for (Voicemail remoteVoicemail : remoteMap.values()) {
-            Uri uri = VoicemailContract.Voicemails.insert(mContext, remoteVoicemail);
-            if (prefetchEnabled) {
+        if (prefetchEnabled) {
+            for (int i = 0; i < newVoicemails.size(); i++) {
+                Uri uri = batch.getInsertedUri(insertIndexes[i]);
+                if (uri == null) {
+                    continue;
+                }
                 VoicemailFetchedCallback fetchedCallback =
                         new VoicemailFetchedCallback(mContext, uri, account);
-                imapHelper.fetchVoicemailPayload(fetchedCallback, remoteVoicemail.getSourceData());
+                imapHelper.fetchVoicemailPayload(fetchedCallback,
+                        newVoicemails.get(i).getSourceData());
             }
         }
 
+        imapHelper.commitSyncState(delta);
         return true;
     }
 
@@ -15,16 +15,21 @@
  */
 package com.android.phone.vvm.omtp.sync;
 
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
 import android.content.ContentResolver;
 import android.content.ContentUris;
 import android.content.ContentValues;
 import android.content.Context;
+import android.content.OperationApplicationException;
 import android.database.Cursor;
 import android.net.Uri;
+import android.os.RemoteException;
 import android.provider.VoicemailContract;
 import android.provider.VoicemailContract.Voicemails;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.Voicemail;
+import com.android.phone.vvm.omtp.VvmLog;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -32,6 +37,11 @@ import java.util.List;
  * Construct queries to interact with the voicemails table.
  */
 public class VoicemailsQueryHelper {
+    private static final String TAG = "VoicemailsQueryHelper";
+
+    /** Upper bound on the operations sent in one binder call. */
+    private static final int MAX_OPERATIONS_PER_BATCH = 250;
+
     final static String[] PROJECTION = new String[] {
             Voicemails._ID,              // 0
             Voicemails.SOURCE_DATA,      // 1
@@ -151,10 +161,11 @@ public class VoicemailsQueryHelper {
 
     public int markReadInDatabase(List<Voicemail> voicemails) {
         int count = voicemails.size();
+        Batch batch = newBatch();
         for (int i = 0; i < count; i++) {
-            markReadInDatabase(voicemails.get(i));
+            batch.markRead(voicemails.get(i));
         }
-        return count;
+        return batch.apply() ? count : 0;
     }
 
     /**
@@ -178,10 +189,11 @@ public class VoicemailsQueryHelper {
      */
     public int markCleanInDatabase(List<Voicemail> voicemails) {
         int count = voicemails.size();
+        Batch batch = newBatch();
         for (int i = 0; i < count; i++) {
-            markCleanInDatabase(voicemails.get(i));
+            batch.markClean(voicemails.get(i));
         }
-        return count;
+        return batch.apply() ? count : 0;
     }
 
     /**
@@ -203,6 +215,168 @@ public class VoicemailsQueryHelper {
         mContentResolver.update(uri, contentValues, null, null);
     }
 
+    /**
+     * Returns a new batch of writes to the voicemail content provider.
+     */
+    public Batch newBatch() {
+        return new Batch();
+    }
+
+    /**
+     * Gathers the inserts, updates and deletes of a sync so they are applied with a single
+     * {@link ContentResolver#applyBatch}, in one binder call and one provider transaction, instead
+     * of one of each per voicemail. The provider may yield its transaction between voicemails so
+     * readers are not blocked for the whole batch.
+     */
+    public class Batch {
+        private final ArrayList<ContentProviderOperation> mOperations = new ArrayList<>();
+        private final ArrayList<Long> mDeletedIds = new ArrayList<>();
+        private final ArrayList<Integer> mInsertIndexes = new ArrayList<>();
+        private final ArrayList<Uri> mInsertedUris = new ArrayList<>();
+
+        private Batch() {
+        }
+
+        /**
+         * Queues the insertion of a voicemail.
+         *
+         * @return the index of the insertion, to get its URI with {@link #getInsertedUri(int)}
+         *         once the batch is applied.
+         */
+        public int insert(Voicemail voicemail) {
+            mInsertIndexes.add(mOperations.size());
+            addOperation(ContentProviderOperation.newInsert(mSourceUri)
+                    .withValues(getContentValues(voicemail)));
+            return mInsertIndexes.size() - 1;
+        }
+
+        /**
+         * Queues marking a voicemail as read.
+         */
+        public void markRead(Voicemail voicemail) {
+            addOperation(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(mSourceUri, voicemail.getId()))
+                    .withValue(Voicemails.IS_READ, "1"));
+        }
+
+        /**
+         * Queues clearing the dirty bit of a voicemail. See {@link #markCleanInDatabase(List)}.
+         */
+        public void markClean(Voicemail voicemail) {
+            // A batched update cannot be blank, so clear the bit explicitly.
+            addOperation(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(mSourceUri, voicemail.getId()))
+                    .withValue(Voicemails.DIRTY, 0));
+        }
+
+        /**
+         * Queues adding a transcription to a voicemail.
+         */
+        public void updateWithTranscription(Voicemail voicemail, String transcription) {
+            addOperation(ContentProviderOperation.newUpdate(
+                    ContentUris.withAppendedId(mSourceUri, voicemail.getId()))
+                    .withValue(Voicemails.TRANSCRIPTION, transcription));
+        }
+
+        /**
+         * Queues the deletion of a voicemail. All deletions of a batch are merged into one.
+         */
+        public void delete(Voicemail voicemail) {
+            mDeletedIds.add(voicemail.getId());
+        }
+
+        public int size() {
+            return mOperations.size() + mDeletedIds.size();
+        }
+
+        /**
+         * Applies the queued writes, in chunks of at most {@link #MAX_OPERATIONS_PER_BATCH} to
+         * stay clear of the binder transaction limit.
+         *
+         * @return {@code true} if all writes were applied.
+         */
+        public boolean apply() {
+            if (!mDeletedIds.isEmpty()) {
+                StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < mDeletedIds.size(); i++) {
+                    if (i > 0) {
+                        sb.append(",");
+                    }
+                    sb.append(mDeletedIds.get(i));
+                }
+                mOperations.add(ContentProviderOperation.newDelete(Voicemails.CONTENT_URI)
+                        .withSelection(Voicemails._ID + " IN (" + sb + ")", null)
+                        .build());
+                mDeletedIds.clear();
+            }
+
+            ContentProviderResult[] results = new ContentProviderResult[mOperations.size()];
+            try {
+                for (int start = 0; start < mOperations.size();
+                        start += MAX_OPERATIONS_PER_BATCH) {
+                    int end = Math.min(start + MAX_OPERATIONS_PER_BATCH, mOperations.size());
+                    ContentProviderResult[] chunkResults = mContentResolver.applyBatch(
+                            VoicemailContract.AUTHORITY,
+                            new ArrayList<>(mOperations.subList(start, end)));
+                    System.arraycopy(chunkResults, 0, results, start, chunkResults.length);
+                }
+            } catch (RemoteException | OperationApplicationException e) {
+                VvmLog.e(TAG, "Failed to apply " + mOperations.size() + " operations", e);
+                return false;
+            } finally {
+                mOperations.clear();
+            }
+
+            mInsertedUris.clear();
+            for (int index : mInsertIndexes) {
+                mInsertedUris.add(results[index] == null ? null : results[index].uri);
+            }
+            mInsertIndexes.clear();
+            return true;
+        }
+
+        /**
+         * Returns the URI of an inserted voicemail once the batch is applied.
+         *
+         * @param index the value returned by {@link #insert(Voicemail)}.
+         */
+        public Uri getInsertedUri(int index) {
+            return index < mInsertedUris.size() ? mInsertedUris.get(index) : null;
+        }
+
+        private void addOperation(ContentProviderOperation.Builder builder) {
+            // Let the provider yield its transaction at the start of each operation after the
+            // first, so a large sync does not hold the database lock throughout.
+            mOperations.add(builder.withYieldAllowed(!mOperations.isEmpty()).build());
+        }
+    }
+
+    /**
+     * Same as the values {@link VoicemailContract.Voicemails#insert} writes.
+     */
+    private static ContentValues getContentValues(Voicemail voicemail) {
+        ContentValues contentValues = new ContentValues();
+        contentValues.put(Voicemails.DATE, String.valueOf(voicemail.getTimestampMillis()));
+        contentValues.put(Voicemails.NUMBER, voicemail.getNumber());
+        contentValues.put(Voicemails.DURATION, String.valueOf(voicemail.getDuration()));
+        contentValues.put(Voicemails.SOURCE_PACKAGE, voicemail.getSourcePackage());
+        contentValues.put(Voicemails.SOURCE_DATA, voicemail.getSourceData());
+        contentValues.put(Voicemails.IS_READ, voicemail.isRead() ? 1 : 0);
+
+        PhoneAccountHandle phoneAccount = voicemail.getPhoneAccount();
+        if (phoneAccount != null) {
+            contentValues.put(Voicemails.PHONE_ACCOUNT_COMPONENT_NAME,
+                    phoneAccount.getComponentName().flattenToString());
+            contentValues.put(Voicemails.PHONE_ACCOUNT_ID, phoneAccount.getId());
+        }
+
+        if (voicemail.getTranscription() != null) {
+            contentValues.put(Voicemails.TRANSCRIPTION, voicemail.getTranscription());
+        }
+
+        return contentValues;
+    }
+
     /**
      * Voicemail is unique if the tuple of (phone account component name, phone account id, source
      * data) is unique. If the phone account is missing, we also consider this unique since it's
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import android.net.Uri;
+import android.telecom.ConferenceParticipant;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Keeps track of the participants of a conference across conference event package updates and
+ * works out what changed in each of them.
+ * <p>
+ * Participants are identified by their handle and endpoint. Looking a participant up does not
+ * allocate, and a participant whose state did not change is not reported, so an update where
+ * nothing changed only costs a hash lookup per participant plus one pass over the known ones to
+ * find those which left.
+ * <p>
+ * Not thread safe; callers are expected to serialize updates.
+ *
+ * @param <T> what is kept for each participant, e.g. its connection.
+ */
+class ConferenceParticipantReconciler<T> {
+
+    /**
+     * Receives the changes found by {@link #update(List, Listener)}.
+     */
+    interface Listener<T> {
+        /**
+         * Called when a participant joins the conference.
+         *
+         * @param participant The participant information.
+         * @return What to keep for the participant, or {@code null} to leave it out of the
+         *         conference, in which case it is offered again on the next update.
+         */
+        T onParticipantAdded(ConferenceParticipant participant);
+
+        /**
+         * Called when the state of a participant changes. New participants are reported here
+         * after all of the participants of the update have been added.
+         *
+         * @param participant What was kept for the participant.
+         * @param state The new state of the participant.
+         */
+        void onParticipantStateChanged(T participant, int state);
+
+        /**
+         * Called when a participant is no longer part of the conference.
+         *
+         * @param participant What was kept for the participant.
+         */
+        void onParticipantRemoved(T participant);
+    }
+
+    /**
+     * The identity of a participant. The hash code is computed once.
+     */
+    private static class Key {
+        Uri mHandle;
+        Uri mEndpoint;
+        int mHashCode;
+
+        final Key set(Uri handle, Uri endpoint) {
+            mHandle = handle;
+            mEndpoint = endpoint;
+            mHashCode = 31 * Objects.hashCode(handle) + Objects.hashCode(endpoint);
+            return this;
+        }
+
+        @Override
+        public final boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return mHashCode == other.mHashCode && Objects.equals(mHandle, other.mHandle)
+                    && Objects.equals(mEndpoint, other.mEndpoint);
+        }
+
+        @Override
+        public final int hashCode() {
+            return mHashCode;
+        }
+    }
+
+    private static final class Entry<T> extends Key {
+        T mParticipant;
+        int mState;
+        /** The last update which mentioned this participant. */
+        int mGeneration;
+    }
+
+    private final HashMap<Key, Entry<T>> mEntries = new HashMap<>();
+    /** Reused to look participants up without allocating. */
+    private final Key mLookupKey = new Key();
+    /** Reused to hold the participants added by an update until their state is set. */
+    private final ArrayList<Entry<T>> mAddedEntries = new ArrayList<>();
+    /** Reused to hold the participants which left, so the listener is not called mid-walk. */
+    private final ArrayList<Entry<T>> mRemovedEntries = new ArrayList<>();
+    private int mGeneration;
+
+    /**
+     * Applies a conference event package update.
+     *
+     * @param participants All of the participants of the conference.
+     * @param listener Receives the changes.
+     * @return {@code true} if participants were added or removed.
+     */
+    boolean update(List<ConferenceParticipant> participants, Listener<T> listener) {
+        int generation = ++mGeneration;
+
+        for (int i = 0; i < participants.size(); i++) {
+            ConferenceParticipant participant = participants.get(i);
+            Entry<T> entry = mEntries.get(
+                    mLookupKey.set(participant.getHandle(), participant.getEndpoint()));
+            if (entry == null) {
+                T added = listener.onParticipantAdded(participant);
+                if (added == null) {
+                    continue;
+                }
+                entry = new Entry<>();
+                entry.set(participant.getHandle(), participant.getEndpoint());
+                entry.mParticipant = added;
+                entry.mState = participant.getState();
+                entry.mGeneration = generation;
+                mEntries.put(entry, entry);
+                mAddedEntries.add(entry);
+            } else if (entry.mGeneration != generation) {
+                entry.mGeneration = generation;
+                if (entry.mState != participant.getState()) {
+                    entry.mState = participant.getState();
+                    listener.onParticipantStateChanged(entry.mParticipant, entry.mState);
+                }
+            }
+        }
+        mLookupKey.set(null, null);
+
+        boolean participantsAdded = !mAddedEntries.isEmpty();
+        // Set the state of the new participants once they have all been added.
+        for (int i = 0; i < mAddedEntries.size(); i++) {
+            Entry<T> entry = mAddedEntries.get(i);
+            listener.onParticipantStateChanged(entry.mParticipant, entry.mState);
+        }
+        mAddedEntries.clear();
+
+        // The listener may have removed participants while the update was applied, e.g. when one
+        // disconnected, so a count of the participants seen cannot tell whether any are missing.
+        Iterator<Entry<T>> iterator = mEntries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry<T> entry = iterator.next();
+            if (entry.mGeneration != generation) {
+                iterator.remove();
+                mRemovedEntries.add(entry);
+            }
+        }
+        boolean participantsRemoved = !mRemovedEntries.isEmpty();
+        for (int i = 0; i < mRemovedEntries.size(); i++) {
+            listener.onParticipantRemoved(mRemovedEntries.get(i).mParticipant);
+        }
+        mRemovedEntries.clear();
+        return participantsAdded || participantsRemoved;
+    }
+
+    /**
+     * Forgets a participant, without notifying the listener.
+     *
+     * @return What was kept for the participant, or {@code null} if it was not known.
+     */
+    T remove(Uri handle, Uri endpoint) {
+        Entry<T> entry = mEntries.remove(mLookupKey.set(handle, endpoint));
+        mLookupKey.set(null, null);
+        return entry != null ? entry.mParticipant : null;
+    }
+
+    /**
+     * @return What is kept for each of the known participants.
+     */
+    List<T> getParticipants() {
+        List<T> participants = new ArrayList<>(mEntries.size());
+        for (Entry<T> entry : mEntries.values()) {
+            participants.add(entry.mParticipant);
+        }
+        return participants;
+    }
+
+    int size() {
+        return mEntries.size();
+    }
+
+    boolean isEmpty() {
+        return mEntries.isEmpty();
+    }
+
+    void clear() {
+        mEntries.clear();
+    }
+}
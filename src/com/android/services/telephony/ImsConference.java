@@ -24,7 +24,6 @@ import android.os.AsyncResult;
 import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
-import android.os.PersistableBundle;
 import android.telecom.Conference;
 import android.telecom.ConferenceParticipant;
 import android.telecom.Connection.VideoProvider;
@@ -34,26 +33,21 @@ import android.telecom.Log;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.StatusHints;
 import android.telecom.VideoProfile;
-import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneNumberUtils;
 import android.telephony.SubscriptionManager;
-import android.util.Pair;
 
 import com.android.internal.telephony.Call;
 import com.android.internal.telephony.CallStateException;
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneConstants;
+import com.android.phone.CarrierFeatures;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 
 import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Represents an IMS conference call.
@@ -244,12 +238,18 @@ public class ImsConference extends Conference {
     private Uri[] mConferenceHostAddress;
 
     /**
-     * The known conference participant connections.  The HashMap is keyed by a Pair containing
-     * the handle and endpoint Uris.
-     * Access to the hashmap is protected by the {@link #mUpdateSyncRoot}.
+     * The known conference participant connections, keyed by their handle and endpoint Uris.
+     * Access is protected by the {@link #mUpdateSyncRoot}.
      */
-    private final HashMap<Pair<Uri, Uri>, ConferenceParticipantConnection>
-            mConferenceParticipantConnections = new HashMap<>();
+    private final ConferenceParticipantReconciler<ConferenceParticipantConnection>
+            mConferenceParticipantConnections = new ConferenceParticipantReconciler<>();
+
+    /**
+     * Whether the conference host is kept when the carrier includes it in the conference event
+     * package.  Read from the config of the host's subscription on the first update, and
+     * protected by the {@link #mUpdateSyncRoot}.
+     */
+    private Boolean mIsHostFilterDisabled;
 
     /**
      * Sychronization root used to ensure that updates to the
@@ -758,93 +758,86 @@ public class ImsConference extends Conference {
         // update adds new participants, and the second does something like update the status of one
         // of the participants, we can get into a situation where the participant is added twice.
         synchronized (mUpdateSyncRoot) {
-            boolean newParticipantsAdded = false;
-            boolean oldParticipantsRemoved = false;
-            ArrayList<ConferenceParticipant> newParticipants = new ArrayList<>(participants.size());
-            HashSet<Pair<Uri,Uri>> participantUserEntities = new HashSet<>(participants.size());
-
-            // Add any new participants and update existing.
-            for (ConferenceParticipant participant : participants) {
-                Pair<Uri,Uri> userEntity = new Pair<>(participant.getHandle(),
-                        participant.getEndpoint());
-
-                participantUserEntities.add(userEntity);
-                if (!mConferenceParticipantConnections.containsKey(userEntity)) {
-                    // Some carriers will also include the conference host in the CEP.  We will
-                    // filter that out here.
-                    boolean disableFilter = false;
-                    Phone phone = parent.getPhone();
-                    if (phone != null) {
-                        Context context = phone.getContext();
-                        final int subId = phone.getSubId();
-                        disableFilter = SubscriptionManager.getResourcesForSubId(context, subId)
-                                     .getBoolean(R.bool.disable_filter_out_conference_host);
-                    }
-                    if (!isParticipantHost(mConferenceHostAddress, participant.getHandle())
-                            ||disableFilter) {
-                        createConferenceParticipantConnection(parent, participant);
-                        newParticipants.add(participant);
-                        newParticipantsAdded = true;
-                    }
-                } else {
-                    ConferenceParticipantConnection connection =
-                            mConferenceParticipantConnections.get(userEntity);
-                    Log.i(this, "handleConferenceParticipantsUpdate: updateState, participant = %s",
-                            participant);
-                    connection.updateState(participant.getState());
+            if (mIsHostFilterDisabled == null) {
+                // Some carriers will also include the conference host in the CEP.  Unless
+                // configured otherwise, we will filter that out.
+                boolean disableFilter = false;
+                Phone phone = parent.getPhone();
+                if (phone != null) {
+                    Context context = phone.getContext();
+                    final int subId = phone.getSubId();
+                    disableFilter = SubscriptionManager.getResourcesForSubId(context, subId)
+                                 .getBoolean(R.bool.disable_filter_out_conference_host);
                 }
+                mIsHostFilterDisabled = disableFilter;
             }
 
-            // Set state of new participants.
-            if (newParticipantsAdded) {
-                // Set the state of the new participants at once and add to the conference
-                for (ConferenceParticipant newParticipant : newParticipants) {
-                    ConferenceParticipantConnection connection =
-                            mConferenceParticipantConnections.get(new Pair<>(
-                                    newParticipant.getHandle(),
-                                    newParticipant.getEndpoint()));
-                    connection.updateState(newParticipant.getState());
-                }
-            }
-
-            // Finally, remove any participants from the conference that no longer exist in the
-            // conference event package data.
-            Iterator<Map.Entry<Pair<Uri, Uri>, ConferenceParticipantConnection>> entryIterator =
-                    mConferenceParticipantConnections.entrySet().iterator();
-            while (entryIterator.hasNext()) {
-                Map.Entry<Pair<Uri, Uri>, ConferenceParticipantConnection> entry =
-                        entryIterator.next();
-
-                if (!participantUserEntities.contains(entry.getKey())) {
-                    ConferenceParticipantConnection participant = entry.getValue();
-                    participant.setDisconnected(new DisconnectCause(DisconnectCause.CANCELED));
-                    participant.removeConnectionListener(mParticipantListener);
-                    mTelephonyConnectionService.removeConnection(participant);
-                    removeConnection(participant);
-                    entryIterator.remove();
-                    oldParticipantsRemoved = true;
-                }
-            }
+            // Add any new participants, update the state of existing ones and remove any
+            // participants from the conference that no longer exist in the conference event
+            // package data.
+            boolean participantsChanged = mConferenceParticipantConnections.update(participants,
+                    new ParticipantUpdater(parent));
 
             // If new participants were added or old ones were removed, we need to ensure the state
             // of the manage conference capability is updated.
-            if (newParticipantsAdded || oldParticipantsRemoved) {
+            if (participantsChanged) {
                 updateManageConference();
             }
         }
     }
 
+    /**
+     * Applies the changes found in a conference event package to the participant connections.
+     */
+    private final class ParticipantUpdater
+            implements ConferenceParticipantReconciler.Listener<ConferenceParticipantConnection> {
+        private final TelephonyConnection mParent;
+
+        ParticipantUpdater(TelephonyConnection parent) {
+            mParent = parent;
+        }
+
+        @Override
+        public ConferenceParticipantConnection onParticipantAdded(
+                ConferenceParticipant participant) {
+            if (isParticipantHost(mConferenceHostAddress, participant.getHandle())
+                    && !mIsHostFilterDisabled) {
+                return null;
+            }
+            return createConferenceParticipantConnection(mParent, participant);
+        }
+
+        @Override
+        public void onParticipantStateChanged(ConferenceParticipantConnection connection,
+                int state) {
+            Log.i(ImsConference.this,
+                    "handleConferenceParticipantsUpdate: updateState, participant = %s",
+                    connection);
+            connection.updateState(state);
+        }
+
+        @Override
+        public void onParticipantRemoved(ConferenceParticipantConnection connection) {
+            connection.setDisconnected(new DisconnectCause(DisconnectCause.CANCELED));
+            connection.removeConnectionListener(mParticipantListener);
+            mTelephonyConnectionService.removeConnection(connection);
+            removeConnection(connection);
+        }
+    }
+
     /**
      * Creates a new {@link ConferenceParticipantConnection} to represent a
      * {@link ConferenceParticipant}.
      * <p>
-     * The new connection is added to the conference controller and connection service.
+     * The new connection is added to the conference controller and connection service, and it is
+     * up to the caller to keep track of it.
      *
      * @param parent The connection which was notified of the participant change (e.g. the
      *                         parent connection).
      * @param participant The conference participant information.
+     * @return The new connection.
      */
-    private void createConferenceParticipantConnection(
+    private ConferenceParticipantConnection createConferenceParticipantConnection(
             TelephonyConnection parent, ConferenceParticipant participant) {
 
         // Create and add the new connection in holding state so that it does not become the
@@ -857,13 +850,10 @@ public class ImsConference extends Conference {
         Log.i(this, "createConferenceParticipantConnection: participant=%s, connection=%s",
                 participant, connection);
 
-        synchronized(mUpdateSyncRoot) {
-            mConferenceParticipantConnections.put(new Pair<>(participant.getHandle(),
-                    participant.getEndpoint()), connection);
-        }
         mTelephonyConnectionService.addExistingConnection(mConferenceHostPhoneAccountHandle,
                 connection);
         addConnection(connection);
+        return connection;
     }
 
     /**
@@ -876,7 +866,8 @@ public class ImsConference extends Conference {
 
         participant.removeConnectionListener(mParticipantListener);
         synchronized(mUpdateSyncRoot) {
-            mConferenceParticipantConnections.remove(participant.getUserEntity());
+            mConferenceParticipantConnections.remove(participant.getUserEntity(),
+                    participant.getEndpoint());
         }
         mTelephonyConnectionService.removeConnection(participant);
     }
@@ -889,7 +880,7 @@ public class ImsConference extends Conference {
 
         synchronized(mUpdateSyncRoot) {
             for (ConferenceParticipantConnection connection :
-                    mConferenceParticipantConnections.values()) {
+                    mConferenceParticipantConnections.getParticipants()) {
 
                 connection.removeConnectionListener(mParticipantListener);
                 // Mark disconnect cause as cancelled to ensure that the call is not logged in the
@@ -1111,12 +1102,12 @@ public class ImsConference extends Conference {
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierFeatures features = getCarrierFeatures();
         // Return true if the CarrierConfig is unavailable
-        return b == null || b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
+        return features == null || features.allowHoldInImsCall();
     }
 
-    private PersistableBundle getCarrierConfig() {
+    private CarrierFeatures getCarrierFeatures() {
         if (mConferenceHost == null) {
             return null;
         }
@@ -1125,6 +1116,6 @@ public class ImsConference extends Conference {
         if (phone == null) {
             return null;
         }
-        return PhoneGlobals.getInstance().getCarrierConfigForSubId(phone.getSubId());
+        return PhoneGlobals.getInstance().getCarrierFeaturesForSubId(phone.getSubId());
     }
 }
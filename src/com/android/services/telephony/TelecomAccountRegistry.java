@@ -29,7 +29,9 @@ import android.graphics.drawable.Drawable;
 import android.graphics.drawable.Icon;
 import android.net.Uri;
 import android.os.Bundle;
-import android.os.PersistableBundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
 import android.os.ServiceManager;
 import android.os.SystemProperties;
 import android.os.RemoteException;
@@ -39,7 +41,6 @@ import android.provider.Settings;
 import android.telecom.PhoneAccount;
 import android.telecom.PhoneAccountHandle;
 import android.telecom.TelecomManager;
-import android.telephony.CarrierConfigManager;
 import android.telephony.PhoneStateListener;
 import android.telephony.ServiceState;
 import android.telephony.SubscriptionInfo;
@@ -47,18 +48,22 @@ import android.telephony.SubscriptionManager;
 import android.telephony.SubscriptionManager.OnSubscriptionsChangedListener;
 import android.telephony.TelephonyManager;
 import android.text.TextUtils;
+import android.util.ArrayMap;
 
 import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.PhoneFactory;
+import com.android.phone.CarrierFeatures;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
 import com.android.phone.R;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
+import java.util.Objects;
 
 import org.codeaurora.internal.IExtTelephony;
 
@@ -77,12 +82,113 @@ final class TelecomAccountRegistry {
 
     private static final String APM_SIM_NOT_PWDN_PROPERTY = "persist.radio.apm_sim_not_pwdn";
 
+    private static final int EVENT_SETUP_ACCOUNTS = 1;
+    /**
+     * How long to wait for more subscription, service state or user changes before updating the
+     * phone accounts, so that a burst of them, such as a SIM loading or the radio flapping, is
+     * handled in one pass.
+     */
+    private static final int SETUP_ACCOUNTS_DELAY_MILLIS = 200;
+
     private enum Count {
         ZERO,
         ONE,
         TWO
     }
 
+    /**
+     * The data a PSTN {@link PhoneAccount} is built from. An account only needs to be registered
+     * with Telecom again when these change.
+     */
+    private static final class AccountAttributes {
+        final PhoneAccountHandle handle;
+        final String label;
+        final String description;
+        final String line1Number;
+        final String subNumber;
+        final int capabilities;
+        final int color;
+        /** The slot drawn on the icon of {@link #iconRecord}. */
+        final int slotId;
+        /** The subscription to draw the icon from, or null for the default icon. */
+        final SubscriptionInfo iconRecord;
+        final String groupId;
+        /** Set if instant lettering is supported. */
+        final Integer instantLetteringMaxLength;
+        final String instantLetteringEncoding;
+
+        AccountAttributes(PhoneAccountHandle handle, String label, String description,
+                String line1Number, String subNumber, int capabilities, int color, int slotId,
+                SubscriptionInfo iconRecord, String groupId,
+                CarrierFeatures instantLetteringFeatures) {
+            this.handle = handle;
+            this.label = label;
+            this.description = description;
+            this.line1Number = line1Number;
+            this.subNumber = subNumber;
+            this.capabilities = capabilities;
+            this.color = color;
+            this.slotId = slotId;
+            this.iconRecord = iconRecord;
+            this.groupId = groupId;
+            if (instantLetteringFeatures != null) {
+                instantLetteringMaxLength = instantLetteringFeatures.instantLetteringLengthLimit();
+                instantLetteringEncoding = instantLetteringFeatures.instantLetteringEncoding();
+            } else {
+                instantLetteringMaxLength = null;
+                instantLetteringEncoding = null;
+            }
+        }
+
+        @Override
+        public boolean equals(Object object) {
+            if (!(object instanceof AccountAttributes)) {
+                return false;
+            }
+            AccountAttributes other = (AccountAttributes) object;
+            // The icon of a subscription is drawn from its slot and color, which are compared.
+            return Objects.equals(handle, other.handle)
+                    && Objects.equals(label, other.label)
+                    && Objects.equals(description, other.description)
+                    && Objects.equals(line1Number, other.line1Number)
+                    && Objects.equals(subNumber, other.subNumber)
+                    && capabilities == other.capabilities
+                    && color == other.color
+                    && slotId == other.slotId
+                    && (iconRecord == null) == (other.iconRecord == null)
+                    && Objects.equals(groupId, other.groupId)
+                    && Objects.equals(instantLetteringMaxLength, other.instantLetteringMaxLength)
+                    && Objects.equals(instantLetteringEncoding, other.instantLetteringEncoding);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(handle, label, line1Number, capabilities, slotId);
+        }
+    }
+
+    /**
+     * What the rest of telephony asks about an {@link AccountEntry} while calls are set up and
+     * their capabilities refreshed. Snapshots are immutable, so they can be read without
+     * holding {@link #mAccountsLock}.
+     */
+    private static final class AccountSnapshot {
+        final Uri address;
+        final boolean isVideoPauseSupported;
+        final boolean isMergeCallSupported;
+        final boolean isVideoConferencingSupported;
+        final boolean isMergeOfWifiCallsAllowedWhenVoWifiOff;
+
+        AccountSnapshot(AccountEntry entry) {
+            address = entry.mAccount.getAddress();
+            isVideoPauseSupported = entry.isVideoPauseSupported();
+            isMergeCallSupported = entry.isMergeCallSupported();
+            isVideoConferencingSupported = entry.isVideoConferencingSupported();
+            isMergeOfWifiCallsAllowedWhenVoWifiOff =
+                    entry.isMergeOfWifiCallsAllowedWhenVoWifiOff();
+        }
+    }
+
     final class AccountEntry implements PstnPhoneCapabilitiesNotifier.Listener {
         private final Phone mPhone;
         private PhoneAccount mAccount;
@@ -96,12 +202,14 @@ final class TelecomAccountRegistry {
         private boolean mIsMergeCallSupported;
         private boolean mIsVideoConferencingSupported;
         private boolean mIsMergeOfWifiCallsAllowedWhenVoWifiOff;
+        /** What {@link #mAccount} was built from. */
+        private AccountAttributes mAttributes;
 
         AccountEntry(Phone phone, boolean isEmergency, boolean isDummy) {
             mPhone = phone;
             mIsEmergency = isEmergency;
             mIsDummy = isDummy;
-            mAccount = registerPstnPhoneAccount(isEmergency, isDummy);
+            updatePstnPhoneAccount();
             Log.i(this, "Registered phoneAccount: %s with handle: %s",
                     mAccount, mAccount.getAccountHandle());
             mIncomingCallNotifier = new PstnIncomingCallNotifier((Phone) mPhone);
@@ -115,9 +223,41 @@ final class TelecomAccountRegistry {
         }
 
         /**
-         * Registers the specified account with Telecom as a PhoneAccountHandle.
+         * Registers the account with Telecom as a PhoneAccountHandle, unless nothing it is built
+         * from has changed since it was last registered.
+         *
+         * @return {@code true} if the account was registered.
+         */
+        boolean updatePstnPhoneAccount() {
+            AccountAttributes attributes = getAccountAttributes(mIsEmergency, mIsDummy);
+            if (attributes.equals(mAttributes)) {
+                return false;
+            }
+            mAttributes = attributes;
+            mAccount = buildPstnPhoneAccount(attributes);
+
+            // Register with Telecom and put into the account entry.
+            mTelecomManager.registerPhoneAccount(mAccount);
+            return true;
+        }
+
+        /**
+         * @return whether this entry is the one to use for {@code phone} with the given flags,
+         *         which is the case as long as the SIM in the phone has not changed.
+         */
+        boolean matches(Phone phone, boolean isEmergency, boolean isDummy) {
+            return mPhone == phone && mIsEmergency == isEmergency && mIsDummy == isDummy
+                    && mAccount.getAccountHandle().equals(
+                            PhoneUtils.makePstnPhoneAccountHandleWithPrefix(phone,
+                                    isDummy ? "Dummy " : "", isEmergency));
+        }
+
+        /**
+         * Collects the data the phone account is built from, except for the icon which is only
+         * drawn if the account needs to be registered again.
          */
-        private PhoneAccount registerPstnPhoneAccount(boolean isEmergency, boolean isDummyAccount) {
+        private AccountAttributes getAccountAttributes(boolean isEmergency,
+                boolean isDummyAccount) {
             String dummyPrefix = isDummyAccount ? "Dummy " : "";
 
             // Build the Phone account handle.
@@ -141,7 +281,7 @@ final class TelecomAccountRegistry {
 
             String label;
             String description;
-            Icon icon = null;
+            SubscriptionInfo iconRecord = null;
             CharSequence subDisplayName = null;
 
             // We can only get the real slotId from the SubInfoRecord, we can't calculate the
@@ -171,7 +311,7 @@ final class TelecomAccountRegistry {
                 if (record != null) {
                     slotId = record.getSimSlotIndex();
                     color = record.getIconTint();
-                    icon = Icon.createWithBitmap(record.createIconBitmap(mContext));
+                    iconRecord = record;
                 }
 
                 String slotIdString;
@@ -225,10 +365,9 @@ final class TelecomAccountRegistry {
             }
 
             mIsVideoPauseSupported = isCarrierVideoPauseSupported();
-            Bundle instantLetteringExtras = null;
-            if (isCarrierInstantLetteringSupported()) {
+            boolean isInstantLetteringSupported = isCarrierInstantLetteringSupported();
+            if (isInstantLetteringSupported) {
                 capabilities |= PhoneAccount.CAPABILITY_CALL_SUBJECT;
-                instantLetteringExtras = getPhoneAccountExtras();
             }
             mIsMergeCallSupported = isCarrierMergeCallSupported();
             mIsVideoConferencingSupported = isCarrierVideoConferencingSupported();
@@ -240,6 +379,36 @@ final class TelecomAccountRegistry {
                 capabilities |= PhoneAccount.CAPABILITY_EMERGENCY_CALLS_ONLY;
             }
 
+            // Check to see if the newly registered account should replace the old account.
+            String groupId = "";
+            String[] mergedImsis = mTelephonyManager.getMergedSubscriberIds();
+            boolean isMergedSim = false;
+            if (mergedImsis != null && subscriberId != null && !isEmergency) {
+                for (String imsi : mergedImsis) {
+                    if (imsi.equals(subscriberId)) {
+                        isMergedSim = true;
+                        break;
+                    }
+                }
+            }
+            if(isMergedSim) {
+                groupId = GROUP_PREFIX + line1Number;
+                Log.i(this, "Adding Merged Account with group: " + Log.pii(groupId));
+            }
+
+            return new AccountAttributes(phoneAccountHandle, label, description, line1Number,
+                    subNumber, capabilities, color, slotId, iconRecord, groupId,
+                    isInstantLetteringSupported ? getCarrierFeatures() : null);
+        }
+
+        /**
+         * Builds the phone account described by {@code attributes}.
+         */
+        private PhoneAccount buildPstnPhoneAccount(AccountAttributes attributes) {
+            Icon icon = null;
+            if (attributes.iconRecord != null) {
+                icon = Icon.createWithBitmap(attributes.iconRecord.createIconBitmap(mContext));
+            }
             if (icon == null) {
                 // TODO: Switch to using Icon.createWithResource() once that supports tinting.
                 Resources res = mContext.getResources();
@@ -257,47 +426,35 @@ final class TelecomAccountRegistry {
                 icon = Icon.createWithBitmap(bitmap);
             }
 
-            // Check to see if the newly registered account should replace the old account.
-            String groupId = "";
-            String[] mergedImsis = mTelephonyManager.getMergedSubscriberIds();
-            boolean isMergedSim = false;
-            if (mergedImsis != null && subscriberId != null && !isEmergency) {
-                for (String imsi : mergedImsis) {
-                    if (imsi.equals(subscriberId)) {
-                        isMergedSim = true;
-                        break;
-                    }
-                }
-            }
-            if(isMergedSim) {
-                groupId = GROUP_PREFIX + line1Number;
-                Log.i(this, "Adding Merged Account with group: " + Log.pii(groupId));
+            Bundle instantLetteringExtras = null;
+            if (attributes.instantLetteringMaxLength != null) {
+                instantLetteringExtras = getPhoneAccountExtras(attributes);
             }
 
-            PhoneAccount account = PhoneAccount.builder(phoneAccountHandle, label)
-                    .setAddress(Uri.fromParts(PhoneAccount.SCHEME_TEL, line1Number, null))
+            return PhoneAccount.builder(attributes.handle, attributes.label)
+                    .setAddress(Uri.fromParts(PhoneAccount.SCHEME_TEL, attributes.line1Number,
+                            null))
                     .setSubscriptionAddress(
-                            Uri.fromParts(PhoneAccount.SCHEME_TEL, subNumber, null))
-                    .setCapabilities(capabilities)
+                            Uri.fromParts(PhoneAccount.SCHEME_TEL, attributes.subNumber, null))
+                    .setCapabilities(attributes.capabilities)
                     .setIcon(icon)
-                    .setHighlightColor(color)
-                    .setShortDescription(description)
+                    .setHighlightColor(attributes.color)
+                    .setShortDescription(attributes.description)
                     .setSupportedUriSchemes(Arrays.asList(
                             PhoneAccount.SCHEME_TEL, PhoneAccount.SCHEME_VOICEMAIL))
                     .setExtras(instantLetteringExtras)
-                    .setGroupId(groupId)
+                    .setGroupId(attributes.groupId)
                     .build();
-
-            // Register with Telecom and put into the account entry.
-            mTelecomManager.registerPhoneAccount(account);
-
-            return account;
         }
 
         public PhoneAccountHandle getPhoneAccountHandle() {
             return mAccount != null ? mAccount.getAccountHandle() : null;
         }
 
+        private CarrierFeatures getCarrierFeatures() {
+            return PhoneGlobals.getInstance().getCarrierFeaturesForSubId(mPhone.getSubId());
+        }
+
         /**
          * Determines from carrier configuration whether pausing of IMS video calls is supported.
          *
@@ -305,10 +462,7 @@ final class TelecomAccountRegistry {
          */
         private boolean isCarrierVideoPauseSupported() {
             // Check if IMS video pause is supported.
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_PAUSE_IMS_VIDEO_CALLS_BOOL);
+            return getCarrierFeatures().supportPauseImsVideoCalls();
         }
 
         /**
@@ -318,10 +472,7 @@ final class TelecomAccountRegistry {
          * @return {@code true} if RCS presence indication for video calls is supported.
          */
         private boolean isCarrierVideoPresenceSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_USE_RCS_PRESENCE_BOOL);
+            return getCarrierFeatures().useRcsPresence();
         }
 
         /**
@@ -330,10 +481,7 @@ final class TelecomAccountRegistry {
          * @return {@code true} if instant lettering is supported, {@code false} otherwise.
          */
         private boolean isCarrierInstantLetteringSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_AVAILABLE_BOOL);
+            return getCarrierFeatures().instantLetteringAvailable();
         }
 
         /**
@@ -342,10 +490,7 @@ final class TelecomAccountRegistry {
          * @return {@code true} if merging calls is supported, {@code false} otherwise.
          */
         private boolean isCarrierMergeCallSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_CONFERENCE_CALL_BOOL);
+            return getCarrierFeatures().supportConferenceCall();
         }
 
         /**
@@ -354,10 +499,7 @@ final class TelecomAccountRegistry {
          * @return {@code true} if emergency video calls are allowed, {@code false} otherwise.
          */
         private boolean isCarrierEmergencyVideoCallsAllowed() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_ALLOW_EMERGENCY_VIDEO_CALLS_BOOL);
+            return getCarrierFeatures().allowEmergencyVideoCalls();
         }
 
         /**
@@ -366,10 +508,7 @@ final class TelecomAccountRegistry {
          * @return {@code true} if video conferencing is supported, {@code false} otherwise.
          */
         private boolean isCarrierVideoConferencingSupported() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null &&
-                    b.getBoolean(CarrierConfigManager.KEY_SUPPORT_VIDEO_CONFERENCE_CALL_BOOL);
+            return getCarrierFeatures().supportVideoConferenceCall();
         }
 
         /**
@@ -380,29 +519,18 @@ final class TelecomAccountRegistry {
          *      {@code false} otherwise.
          */
         private boolean isCarrierMergeOfWifiCallsAllowedWhenVoWifiOff() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-            return b != null && b.getBoolean(
-                    CarrierConfigManager.KEY_ALLOW_MERGE_WIFI_CALLS_WHEN_VOWIFI_OFF_BOOL);
+            return getCarrierFeatures().allowMergeWifiCallsWhenVoWifiOff();
         }
 
         /**
          * @return The {@link PhoneAccount} extras associated with the current subscription.
          */
-        private Bundle getPhoneAccountExtras() {
-            PersistableBundle b =
-                    PhoneGlobals.getInstance().getCarrierConfigForSubId(mPhone.getSubId());
-
-            int instantLetteringMaxLength = b.getInt(
-                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_LENGTH_LIMIT_INT);
-            String instantLetteringEncoding = b.getString(
-                    CarrierConfigManager.KEY_CARRIER_INSTANT_LETTERING_ENCODING_STRING);
-
+        private Bundle getPhoneAccountExtras(AccountAttributes attributes) {
             Bundle phoneAccountExtras = new Bundle();
             phoneAccountExtras.putInt(PhoneAccount.EXTRA_CALL_SUBJECT_MAX_LENGTH,
-                    instantLetteringMaxLength);
+                    attributes.instantLetteringMaxLength);
             phoneAccountExtras.putString(PhoneAccount.EXTRA_CALL_SUBJECT_CHARACTER_ENCODING,
-                    instantLetteringEncoding);
+                    attributes.instantLetteringEncoding);
             return phoneAccountExtras;
         }
 
@@ -423,7 +551,8 @@ final class TelecomAccountRegistry {
                     // time we get here, the original phone account could have been torn down.
                     return;
                 }
-                mAccount = registerPstnPhoneAccount(mIsEmergency, mIsDummy);
+                updatePstnPhoneAccount();
+                updateAccountSnapshots();
             }
         }
 
@@ -466,8 +595,7 @@ final class TelecomAccountRegistry {
         @Override
         public void onSubscriptionsChanged() {
             // Any time the SubscriptionInfo changes...rerun the setup
-            tearDownAccounts();
-            setupAccounts();
+            scheduleSetupAccounts();
         }
     };
 
@@ -482,8 +610,7 @@ final class TelecomAccountRegistry {
                     .equals(currentUserHandle);
 
             // Any time the user changes, re-register the accounts.
-            tearDownAccounts();
-            setupAccounts();
+            scheduleSetupAccounts();
         }
     };
 
@@ -492,19 +619,35 @@ final class TelecomAccountRegistry {
         public void onServiceStateChanged(ServiceState serviceState) {
             int newState = serviceState.getState();
             if (newState == ServiceState.STATE_IN_SERVICE && mServiceState != newState) {
-                tearDownAccounts();
-                setupAccounts();
+                scheduleSetupAccounts();
             }
             mServiceState = newState;
         }
     };
 
+    private final Handler mHandler = new Handler(Looper.getMainLooper()) {
+        @Override
+        public void handleMessage(Message msg) {
+            switch (msg.what) {
+                case EVENT_SETUP_ACCOUNTS:
+                    setupAccounts();
+                    break;
+            }
+        }
+    };
+
     private static TelecomAccountRegistry sInstance;
     private final Context mContext;
     private final TelecomManager mTelecomManager;
     private final TelephonyManager mTelephonyManager;
     private final SubscriptionManager mSubscriptionManager;
     private List<AccountEntry> mAccounts = new LinkedList<AccountEntry>();
+    /**
+     * Snapshots of {@link #mAccounts} by handle. Replaced as a whole, under
+     * {@link #mAccountsLock}, whenever an entry changes; never modified.
+     */
+    private volatile Map<PhoneAccountHandle, AccountSnapshot> mAccountSnapshots =
+            Collections.emptyMap();
     private Object mAccountsLock = new Object();
     private int mServiceState = ServiceState.STATE_POWER_OFF;
     private boolean mIsPrimaryUser = true;
@@ -543,14 +686,8 @@ final class TelecomAccountRegistry {
      * @return {@code True} if video pausing is supported.
      */
     boolean isVideoPauseSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isVideoPauseSupported();
-                }
-            }
-        }
-        return false;
+        AccountSnapshot snapshot = mAccountSnapshots.get(handle);
+        return snapshot != null && snapshot.isVideoPauseSupported;
     }
 
     /**
@@ -561,14 +698,8 @@ final class TelecomAccountRegistry {
      * @return {@code True} if merging calls is supported.
      */
     boolean isMergeCallSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isMergeCallSupported();
-                }
-            }
-        }
-        return false;
+        AccountSnapshot snapshot = mAccountSnapshots.get(handle);
+        return snapshot != null && snapshot.isMergeCallSupported;
     }
 
     /**
@@ -579,14 +710,8 @@ final class TelecomAccountRegistry {
      * @return {@code True} if video conferencing is supported.
      */
     boolean isVideoConferencingSupported(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.isVideoConferencingSupported();
-                }
-            }
-        }
-        return false;
+        AccountSnapshot snapshot = mAccountSnapshots.get(handle);
+        return snapshot != null && snapshot.isVideoConferencingSupported;
     }
 
     /**
@@ -597,16 +722,8 @@ final class TelecomAccountRegistry {
      * @return {@code True} if merging of wifi calls is allowed when VoWIFI is disabled.
      */
     boolean isMergeOfWifiCallsAllowedWhenVoWifiOff(final PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            Optional<AccountEntry> result = mAccounts.stream().filter(
-                    entry -> entry.getPhoneAccountHandle().equals(handle)).findFirst();
-
-            if (result.isPresent()) {
-                return result.get().isMergeOfWifiCallsAllowedWhenVoWifiOff();
-            } else {
-                return false;
-            }
-        }
+        AccountSnapshot snapshot = mAccountSnapshots.get(handle);
+        return snapshot != null && snapshot.isMergeOfWifiCallsAllowedWhenVoWifiOff;
     }
 
     /**
@@ -623,14 +740,8 @@ final class TelecomAccountRegistry {
      * @return The address.
      */
     Uri getAddress(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return entry.mAccount.getAddress();
-                }
-            }
-        }
-        return null;
+        AccountSnapshot snapshot = mAccountSnapshots.get(handle);
+        return snapshot != null ? snapshot.address : null;
     }
 
     /**
@@ -665,14 +776,7 @@ final class TelecomAccountRegistry {
      * @return {@code True} if an entry exists.
      */
     boolean hasAccountEntryForPhoneAccount(PhoneAccountHandle handle) {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                if (entry.getPhoneAccountHandle().equals(handle)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+        return mAccountSnapshots.containsKey(handle);
     }
 
     /**
@@ -699,6 +803,20 @@ final class TelecomAccountRegistry {
         }
     }
 
+    /**
+     * Updates the phone accounts shortly, unless an update is already pending.
+     */
+    private void scheduleSetupAccounts() {
+        if (!mHandler.hasMessages(EVENT_SETUP_ACCOUNTS)) {
+            mHandler.sendEmptyMessageDelayed(EVENT_SETUP_ACCOUNTS, SETUP_ACCOUNTS_DELAY_MILLIS);
+        }
+    }
+
+    /**
+     * Brings the registered phone accounts in line with the current phones and subscriptions.
+     * Entries which are still wanted are kept, and their accounts are only registered again if
+     * something they are built from has changed.
+     */
     private void setupAccounts() {
         // Go through SIM-based phones and register ourselves -- registering an existing account
         // will cause the existing entry to be replaced.
@@ -711,10 +829,17 @@ final class TelecomAccountRegistry {
         int activeSubscriptionId = SubscriptionManager.INVALID_SUBSCRIPTION_ID;
 
         synchronized (mAccountsLock) {
+            List<AccountEntry> previousAccounts = mAccounts;
+            mAccounts = new LinkedList<AccountEntry>();
             if (phoneAccountsEnabled) {
                 // states we are interested in from what
                 // IExtTelephony.getCurrentUiccCardProvisioningStatus()can return
                 final int PROVISIONED = 1;
+                IExtTelephony mExtTelephony = null;
+                if (mTelephonyManager.getPhoneCount() > 1) {
+                    mExtTelephony = IExtTelephony.Stub
+                            .asInterface(ServiceManager.getService("extphone"));
+                }
 
                 for (Phone phone : phones) {
                     int provisionStatus = PROVISIONED;
@@ -722,9 +847,6 @@ final class TelecomAccountRegistry {
                     int slotId = phone.getPhoneId();
 
                     if (mTelephonyManager.getPhoneCount() > 1) {
-                        IExtTelephony mExtTelephony = IExtTelephony.Stub
-                                .asInterface(ServiceManager.getService("extphone"));
-
                         try {
                             //get current provision state of the SIM.
                             provisionStatus =
@@ -744,8 +866,8 @@ final class TelecomAccountRegistry {
                             (mSubscriptionManager.isActiveSubId(subscriptionId))) {
                         activeCount++;
                         activeSubscriptionId = subscriptionId;
-                        mAccounts.add(new AccountEntry(phone,
-                                 false /* emergency */, false /* isDummy */));
+                        mAccounts.add(getAccountEntry(previousAccounts, phone,
+                                false /* emergency */, false /* isDummy */));
                     }
                 }
             }
@@ -754,15 +876,21 @@ final class TelecomAccountRegistry {
             // for emergency numbers since no actual SIM is needed for dialing emergency
             // numbers but a phone account is.
             if (mAccounts.isEmpty()) {
-                mAccounts.add(new AccountEntry(PhoneFactory.getDefaultPhone(), true /* emergency */,
-                        false /* isDummy */));
+                mAccounts.add(getAccountEntry(previousAccounts, PhoneFactory.getDefaultPhone(),
+                        true /* emergency */, false /* isDummy */));
             }
 
             // Add a fake account entry.
             if (DBG && phones.length > 0 && "TRUE".equals(System.getProperty("dummy_sim"))) {
-                mAccounts.add(new AccountEntry(phones[0], false /* emergency */,
-                        true /* isDummy */));
+                mAccounts.add(getAccountEntry(previousAccounts, phones[0],
+                        false /* emergency */, true /* isDummy */));
             }
+
+            // The accounts of entries which are no longer wanted are unregistered below.
+            for (AccountEntry entry : previousAccounts) {
+                entry.teardown();
+            }
+            updateAccountSnapshots();
         }
 
         // Clean up any PhoneAccounts that are no longer relevant
@@ -854,12 +982,36 @@ final class TelecomAccountRegistry {
         return null;
     }
 
-    private void tearDownAccounts() {
-        synchronized (mAccountsLock) {
-            for (AccountEntry entry : mAccounts) {
-                entry.teardown();
+    /**
+     * Publishes new snapshots of {@link #mAccounts}. Must be called with {@link #mAccountsLock}
+     * held, after any change to the entries.
+     */
+    private void updateAccountSnapshots() {
+        Map<PhoneAccountHandle, AccountSnapshot> snapshots = new ArrayMap<>(mAccounts.size());
+        for (AccountEntry entry : mAccounts) {
+            snapshots.put(entry.getPhoneAccountHandle(), new AccountSnapshot(entry));
+        }
+        mAccountSnapshots = Collections.unmodifiableMap(snapshots);
+    }
+
+    /**
+     * Returns the entry in {@code previousAccounts} for the given phone and flags, removing it from
+     * the list and updating its account, or a newly registered entry if there is none.
+     */
+    private AccountEntry getAccountEntry(List<AccountEntry> previousAccounts, Phone phone,
+            boolean isEmergency, boolean isDummy) {
+        Iterator<AccountEntry> iterator = previousAccounts.iterator();
+        while (iterator.hasNext()) {
+            AccountEntry entry = iterator.next();
+            if (entry.matches(phone, isEmergency, isDummy)) {
+                iterator.remove();
+                if (entry.updatePstnPhoneAccount()) {
+                    Log.i(this, "Updated phoneAccount with handle: %s",
+                            entry.getPhoneAccountHandle());
+                }
+                return entry;
             }
-            mAccounts.clear();
         }
+        return new AccountEntry(phone, isEmergency, isDummy);
     }
 }
@@ -45,6 +45,7 @@ import android.util.Pair;
 
 import com.android.ims.ImsCall;
 import com.android.ims.ImsCallProfile;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.telephony.Call;
 import com.android.internal.telephony.CallStateException;
 import com.android.internal.telephony.Connection.Capability;
@@ -56,6 +57,7 @@ import com.android.internal.telephony.Phone;
 import com.android.internal.telephony.imsphone.ImsPhone;
 import com.android.internal.telephony.imsphone.ImsPhoneCallTracker;
 import com.android.internal.telephony.SubscriptionController;
+import com.android.phone.CarrierFeatures;
 import com.android.phone.ImsUtil;
 import com.android.phone.PhoneGlobals;
 import com.android.phone.PhoneUtils;
@@ -79,7 +81,8 @@ import org.codeaurora.ims.QtiCallConstants;
  */
 abstract class TelephonyConnection extends Connection
         implements TelephonyConnectionService.ConnectionRemovedListener {
-    private static final int MSG_PRECISE_CALL_STATE_CHANGED = 1;
+    @VisibleForTesting
+    static final int MSG_PRECISE_CALL_STATE_CHANGED = 1;
     private static final int MSG_RINGBACK_TONE = 2;
     private static final int MSG_HANDOVER_STATE_CHANGED = 3;
     private static final int MSG_DISCONNECT = 4;
@@ -93,17 +96,45 @@ abstract class TelephonyConnection extends Connection
      */
     private static final Map<String, String> sExtrasMap = createExtrasMap();
 
-    private static final int MSG_SET_VIDEO_STATE = 8;
-    private static final int MSG_SET_VIDEO_PROVIDER = 9;
-    private static final int MSG_SET_AUDIO_QUALITY = 10;
-    private static final int MSG_SET_CONFERENCE_PARTICIPANTS = 11;
-    private static final int MSG_CONNECTION_EXTRAS_CHANGED = 12;
-    private static final int MSG_SET_ORIGNAL_CONNECTION_CAPABILITIES = 13;
+    private static final int MSG_APPLY_PENDING_UPDATES = 8;
     private static final int MSG_ON_HOLD_TONE = 14;
     private static final int MSG_CDMA_VOICE_PRIVACY_ON = 15;
     private static final int MSG_CDMA_VOICE_PRIVACY_OFF = 16;
     private static final int MSG_CONNECTION_REMOVED = 17;
 
+    /**
+     * Kinds of changes reported by the original connection which are waiting to be applied, see
+     * {@link PendingUpdates}.
+     */
+    private static final int PENDING_VIDEO_STATE = 0;
+    private static final int PENDING_VIDEO_PROVIDER = 1;
+    private static final int PENDING_AUDIO_QUALITY = 2;
+    private static final int PENDING_CONFERENCE_PARTICIPANTS = 3;
+    private static final int PENDING_EXTRAS = 4;
+    private static final int PENDING_ORIGINAL_CONNECTION_CAPABILITIES = 5;
+
+    /**
+     * Changes reported by the original connection which are applied together by one
+     * {@link #MSG_APPLY_PENDING_UPDATES}.  Only the latest value of each kind of change is kept,
+     * and it is applied in the position of its latest report, so changes take effect in the order
+     * they were reported.
+     */
+    private static final class PendingUpdates {
+        /** The {@code PENDING_*} kinds of the changes, in the order to apply them. */
+        final ArrayList<Integer> mOrder = new ArrayList<>();
+        int mVideoState;
+        VideoProvider mVideoProvider;
+        int mAudioQuality;
+        List<ConferenceParticipant> mConferenceParticipants;
+        Bundle mExtras;
+        int mOriginalConnectionCapabilities;
+
+        void add(int update) {
+            mOrder.remove(Integer.valueOf(update));
+            mOrder.add(update);
+        }
+    }
+
     private boolean[] mIsPermDiscCauseReceived = new
             boolean[TelephonyManager.getDefault().getPhoneCount()];
 
@@ -115,7 +146,48 @@ abstract class TelephonyConnection extends Connection
     private String mDisplayName;
     private boolean mIsEmergencyNumber = false;
 
+    /**
+     * The batch which changes reported by the original connection are added to, or {@code null}
+     * if the next change starts a new one.  Accessed with {@link #mPendingUpdatesLock} held, since
+     * the original connection may report changes from another thread.
+     */
+    private final Object mPendingUpdatesLock = new Object();
+    private PendingUpdates mOpenPendingUpdates;
+    /** How many changes were folded into an update which was already pending. */
+    private int mCoalescedUpdateCount;
+    /** How many batches of pending updates were applied. */
+    private int mAppliedUpdateBatchCount;
+
+    /**
+     * Set while pending updates are applied, so that the capabilities and properties are only
+     * rebuilt and sent to Telecom once per batch.
+     */
+    private boolean mIsApplyingPendingUpdates;
+    private boolean mIsCapabilitiesUpdateDeferred;
+    private boolean mIsPropertiesUpdateDeferred;
+
     private final Handler mHandler = new Handler() {
+        /**
+         * Closes the open batch of pending updates when a message which depends on the changes
+         * reported before it is queued, so that changes reported after it go into a new batch
+         * applied after it.  All of the ways of sending a message, including the registrants of
+         * the phone, end up here.
+         */
+        @Override
+        public boolean sendMessageAtTime(Message msg, long uptimeMillis) {
+            switch (msg.what) {
+                case MSG_PRECISE_CALL_STATE_CHANGED:
+                case MSG_HANDOVER_STATE_CHANGED:
+                case MSG_MULTIPARTY_STATE_CHANGED:
+                    synchronized (mPendingUpdatesLock) {
+                        mOpenPendingUpdates = null;
+                        return super.sendMessageAtTime(msg, uptimeMillis);
+                    }
+                default:
+                    return super.sendMessageAtTime(msg, uptimeMillis);
+            }
+        }
+
         @Override
         public void handleMessage(Message msg) {
             switch (msg.what) {
@@ -184,40 +256,8 @@ abstract class TelephonyConnection extends Connection
                     notifyConferenceMergeFailed();
                     break;
 
-                case MSG_SET_VIDEO_STATE:
-                    int videoState = (int) msg.obj;
-                    setVideoState(videoState);
-
-                    // A change to the video state of the call can influence whether or not it
-                    // can be part of a conference, whether another call can be added, and
-                    // whether the call should have the HD audio property set.
-                    refreshConferenceSupported();
-                    refreshDisableAddCall();
-                    updateConnectionProperties();
-                    break;
-
-                case MSG_SET_VIDEO_PROVIDER:
-                    VideoProvider videoProvider = (VideoProvider) msg.obj;
-                    setVideoProvider(videoProvider);
-                    break;
-
-                case MSG_SET_AUDIO_QUALITY:
-                    int audioQuality = (int) msg.obj;
-                    setAudioQuality(audioQuality);
-                    break;
-
-                case MSG_SET_CONFERENCE_PARTICIPANTS:
-                    List<ConferenceParticipant> participants = (List<ConferenceParticipant>) msg.obj;
-                    updateConferenceParticipants(participants);
-                    break;
-
-                case MSG_CONNECTION_EXTRAS_CHANGED:
-                    final Bundle extras = (Bundle) msg.obj;
-                    updateExtras(extras);
-                    break;
-
-                case MSG_SET_ORIGNAL_CONNECTION_CAPABILITIES:
-                    setOriginalConnectionCapabilities(msg.arg1);
+                case MSG_APPLY_PENDING_UPDATES:
+                    applyPendingUpdates((PendingUpdates) msg.obj);
                     break;
 
                 case MSG_ON_HOLD_TONE:
@@ -529,7 +569,10 @@ abstract class TelephonyConnection extends Connection
             new com.android.internal.telephony.Connection.ListenerBase() {
         @Override
         public void onVideoStateChanged(int videoState) {
-            mHandler.obtainMessage(MSG_SET_VIDEO_STATE, videoState).sendToTarget();
+            synchronized (mPendingUpdatesLock) {
+                PendingUpdates updates = addPendingUpdateLocked(PENDING_VIDEO_STATE);
+                updates.mVideoState = videoState;
+            }
         }
 
         /*
@@ -539,8 +582,11 @@ abstract class TelephonyConnection extends Connection
          */
         @Override
         public void onConnectionCapabilitiesChanged(int capabilities) {
-            mHandler.obtainMessage(MSG_SET_ORIGNAL_CONNECTION_CAPABILITIES,
-                    capabilities, 0).sendToTarget();
+            synchronized (mPendingUpdatesLock) {
+                PendingUpdates updates =
+                        addPendingUpdateLocked(PENDING_ORIGINAL_CONNECTION_CAPABILITIES);
+                updates.mOriginalConnectionCapabilities = capabilities;
+            }
         }
 
         /**
@@ -551,7 +597,10 @@ abstract class TelephonyConnection extends Connection
          */
         @Override
         public void onVideoProviderChanged(VideoProvider videoProvider) {
-            mHandler.obtainMessage(MSG_SET_VIDEO_PROVIDER, videoProvider).sendToTarget();
+            synchronized (mPendingUpdatesLock) {
+                PendingUpdates updates = addPendingUpdateLocked(PENDING_VIDEO_PROVIDER);
+                updates.mVideoProvider = videoProvider;
+            }
         }
 
         /**
@@ -573,7 +622,10 @@ abstract class TelephonyConnection extends Connection
          */
         @Override
         public void onAudioQualityChanged(int audioQuality) {
-            mHandler.obtainMessage(MSG_SET_AUDIO_QUALITY, audioQuality).sendToTarget();
+            synchronized (mPendingUpdatesLock) {
+                PendingUpdates updates = addPendingUpdateLocked(PENDING_AUDIO_QUALITY);
+                updates.mAudioQuality = audioQuality;
+            }
         }
         /**
          * Handles a change in the state of conference participant(s), as reported by the
@@ -583,7 +635,11 @@ abstract class TelephonyConnection extends Connection
          */
         @Override
         public void onConferenceParticipantsChanged(List<ConferenceParticipant> participants) {
-            mHandler.obtainMessage(MSG_SET_CONFERENCE_PARTICIPANTS, participants).sendToTarget();
+            // Each report lists all of the participants, so only the latest one is needed.
+            synchronized (mPendingUpdatesLock) {
+                PendingUpdates updates = addPendingUpdateLocked(PENDING_CONFERENCE_PARTICIPANTS);
+                updates.mConferenceParticipants = participants;
+            }
         }
 
         /*
@@ -607,7 +663,7 @@ abstract class TelephonyConnection extends Connection
 
         @Override
         public void onExtrasChanged(Bundle extras) {
-            mHandler.obtainMessage(MSG_CONNECTION_EXTRAS_CHANGED, extras).sendToTarget();
+            postExtrasUpdate(extras);
         }
 
         /**
@@ -987,6 +1043,10 @@ abstract class TelephonyConnection extends Connection
     }
 
     protected final void updateConnectionCapabilities() {
+        if (mIsApplyingPendingUpdates) {
+            mIsCapabilitiesUpdateDeferred = true;
+            return;
+        }
         int newCapabilities = buildConnectionCapabilities();
 
         newCapabilities = applyOriginalConnectionCapabilities(newCapabilities);
@@ -1019,6 +1079,10 @@ abstract class TelephonyConnection extends Connection
      * Updates the properties of the connection.
      */
     protected final void updateConnectionProperties() {
+        if (mIsApplyingPendingUpdates) {
+            mIsPropertiesUpdateDeferred = true;
+            return;
+        }
         int newProperties = buildConnectionProperties();
 
         newProperties = changeBitmask(newProperties, PROPERTY_HIGH_DEF_AUDIO,
@@ -1135,8 +1199,7 @@ abstract class TelephonyConnection extends Connection
         // safety. The Extras Bundle is cloned in case the original extras are modified while they
         // are being added to mOriginalConnectionExtras in updateExtras.
         Bundle connExtras = mOriginalConnection.getConnectionExtras();
-            mHandler.obtainMessage(MSG_CONNECTION_EXTRAS_CHANGED, connExtras == null ? null :
-                    new Bundle(connExtras)).sendToTarget();
+            postExtrasUpdate(connExtras == null ? null : new Bundle(connExtras));
 
         if (PhoneUtils.isEmergencyNumber(mOriginalConnection.getAddress())) {
             mTreatAsEmergencyCall = true;
@@ -1269,13 +1332,10 @@ abstract class TelephonyConnection extends Connection
 
         boolean isVideoCall = VideoProfile.isVideo(getVideoState());
 
-        PersistableBundle b = getCarrierConfig();
-        boolean canWifiCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_WIFI_CALLS_CAN_BE_HD_AUDIO);
-        boolean canVideoCallsBeHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_VIDEO_CALLS_CAN_BE_HD_AUDIO);
-        boolean shouldDisplayHdAudio =
-                b != null && b.getBoolean(CarrierConfigManager.KEY_DISPLAY_HD_AUDIO_PROPERTY_BOOL);
+        CarrierFeatures features = getCarrierFeatures();
+        boolean canWifiCallsBeHdAudio = features != null && features.wifiCallsCanBeHdAudio();
+        boolean canVideoCallsBeHdAudio = features != null && features.videoCallsCanBeHdAudio();
+        boolean shouldDisplayHdAudio = features != null && features.displayHdAudioProperty();
 
         if (!shouldDisplayHdAudio) {
             return false;
@@ -1293,10 +1353,18 @@ abstract class TelephonyConnection extends Connection
     }
 
     private boolean canHoldImsCalls() {
-        PersistableBundle b = getCarrierConfig();
+        CarrierFeatures features = getCarrierFeatures();
         // Return true if the CarrierConfig is unavailable
-        return !doesDeviceRespectHoldCarrierConfig() || b == null ||
-                b.getBoolean(CarrierConfigManager.KEY_ALLOW_HOLD_IN_IMS_CALL_BOOL);
+        return !doesDeviceRespectHoldCarrierConfig() || features == null ||
+                features.allowHoldInImsCall();
+    }
+
+    private CarrierFeatures getCarrierFeatures() {
+        Phone phone = getPhone();
+        if (phone == null) {
+            return null;
+        }
+        return PhoneGlobals.getInstance().getCarrierFeaturesForSubId(phone.getSubId());
     }
 
     private PersistableBundle getCarrierConfig() {
@@ -1400,6 +1468,16 @@ abstract class TelephonyConnection extends Connection
         return mOriginalConnection;
     }
 
+    @VisibleForTesting
+    Handler getHandler() {
+        return mHandler;
+    }
+
+    @VisibleForTesting
+    com.android.internal.telephony.Connection.Listener getOriginalConnectionListener() {
+        return mOriginalConnectionListener;
+    }
+
     protected Call getCall() {
         if (mOriginalConnection != null) {
             return mOriginalConnection.getCall();
@@ -1477,6 +1555,112 @@ abstract class TelephonyConnection extends Connection
         return true;
     }
 
+    /**
+     * Schedules an update of the extras from the original connection; extras are updated via the
+     * handler to ensure thread safety.
+     */
+    private void postExtrasUpdate(Bundle extras) {
+        synchronized (mPendingUpdatesLock) {
+            PendingUpdates updates = addPendingUpdateLocked(PENDING_EXTRAS);
+            updates.mExtras = extras;
+        }
+    }
+
+    /**
+     * Records that the original connection reported a change.  Changes reported before the
+     * handler gets to {@link #MSG_APPLY_PENDING_UPDATES} are applied together, unless a message
+     * which must be handled between them is queued, see {@link #mHandler}.  Must be called with
+     * {@link #mPendingUpdatesLock} held.
+     *
+     * @param update The {@code PENDING_*} kind of the change.
+     * @return The batch to set the value of the change in.
+     */
+    private PendingUpdates addPendingUpdateLocked(int update) {
+        if (mOpenPendingUpdates == null) {
+            mOpenPendingUpdates = new PendingUpdates();
+            mHandler.obtainMessage(MSG_APPLY_PENDING_UPDATES, mOpenPendingUpdates).sendToTarget();
+        } else {
+            mCoalescedUpdateCount++;
+        }
+        mOpenPendingUpdates.add(update);
+        return mOpenPendingUpdates;
+    }
+
+    /**
+     * Applies a batch of changes reported by the original connection, in the order they were
+     * reported.  The capabilities and properties they affect are rebuilt once at the end, so that
+     * a burst of changes, e.g. during handover, results in a single update of each to Telecom.
+     */
+    private void applyPendingUpdates(PendingUpdates updates) {
+        synchronized (mPendingUpdatesLock) {
+            // Changes reported from now on go into a new batch.
+            if (mOpenPendingUpdates == updates) {
+                mOpenPendingUpdates = null;
+            }
+        }
+        mAppliedUpdateBatchCount++;
+
+        for (int i = 0; i < updates.mOrder.size(); i++) {
+            int update = updates.mOrder.get(i);
+            if (update == PENDING_CONFERENCE_PARTICIPANTS) {
+                // Participants are reported once the connection is up to date with the changes
+                // reported before them.
+                applyDeferredConnectionUpdates();
+                updateConferenceParticipants(updates.mConferenceParticipants);
+                continue;
+            }
+            mIsApplyingPendingUpdates = true;
+            try {
+                applyPendingUpdate(update, updates);
+            } finally {
+                mIsApplyingPendingUpdates = false;
+            }
+        }
+        applyDeferredConnectionUpdates();
+    }
+
+    private void applyPendingUpdate(int update, PendingUpdates updates) {
+        switch (update) {
+            case PENDING_ORIGINAL_CONNECTION_CAPABILITIES:
+                setOriginalConnectionCapabilities(updates.mOriginalConnectionCapabilities);
+                break;
+            case PENDING_VIDEO_STATE:
+                setVideoState(updates.mVideoState);
+
+                // A change to the video state of the call can influence whether or not it
+                // can be part of a conference, whether another call can be added, and
+                // whether the call should have the HD audio property set.
+                refreshConferenceSupported();
+                refreshDisableAddCall();
+                updateConnectionProperties();
+                break;
+            case PENDING_VIDEO_PROVIDER:
+                setVideoProvider(updates.mVideoProvider);
+                break;
+            case PENDING_AUDIO_QUALITY:
+                setAudioQuality(updates.mAudioQuality);
+                break;
+            case PENDING_EXTRAS:
+                updateExtras(updates.mExtras);
+                break;
+        }
+    }
+
+    /**
+     * Sends the capabilities and properties which changed while pending updates were applied to
+     * Telecom.
+     */
+    private void applyDeferredConnectionUpdates() {
+        if (mIsCapabilitiesUpdateDeferred) {
+            mIsCapabilitiesUpdateDeferred = false;
+            updateConnectionCapabilities();
+        }
+        if (mIsPropertiesUpdateDeferred) {
+            mIsPropertiesUpdateDeferred = false;
+            updateConnectionProperties();
+        }
+    }
+
     // Make sure the extras being passed into this method is a COPY of the original extras Bundle.
     // We do not want the extras to be cleared or modified during mOriginalConnectionExtras.putAll
     // below.
@@ -2257,6 +2441,10 @@ abstract class TelephonyConnection extends Connection
         }
         sb.append(" confSupported:");
         sb.append(mIsConferenceSupported ? "Y" : "N");
+        sb.append(" updateBatches:");
+        sb.append(mAppliedUpdateBatchCount);
+        sb.append(" coalescedUpdates:");
+        sb.append(mCoalescedUpdateCount);
         sb.append("]");
         return sb.toString();
     }
@@ -33,11 +33,22 @@ import java.io.InputStream;
  * @version $Id: Base64InputStream.java,v 1.3 2004/11/29 13:15:47 ntherning Exp $
  */
 public class Base64InputStream extends InputStream {
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
     private final InputStream s;
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inLength = 0;
+    // Sextets of the quantum being decoded, and how many of them there are.
+    private int quantum = 0;
+    private int quantumLength = 0;
+    // The last complete quantum. An early '=' decodes leftovers from it, as it always has.
+    private int lastQuantum = 0;
+    // Decoded bytes of a quantum which did not fit in the caller's buffer.
+    private final byte[] outputBuffer = new byte[3];
     private int outCount = 0;
     private int outIndex = 0;
-    private final int[] outputBuffer = new int[3];
-    private final byte[] inputBuffer = new byte[4];
+    private final byte[] singleByte = new byte[1];
     private boolean done = false;
 
     public Base64InputStream(InputStream s) {
@@ -56,79 +67,115 @@ public class Base64InputStream extends InputStream {
     
     @Override
     public int read() throws IOException {
-        if (outIndex == outCount) {
-            fillBuffer();
-            if (outIndex == outCount) {
-                return -1;
-            }
+        if (outIndex < outCount) {
+            return outputBuffer[outIndex++] & 0xFF;
         }
-
-        return outputBuffer[outIndex++];
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
     }
 
     /**
-     * Retrieve data from the underlying stream, decode it,
-     * and put the results in the byteq.
-     * @throws IOException
+     * Decodes up to {@code len} bytes, a whole block of the underlying stream at a time.
+     * Returns fewer bytes rather than block once something has been decoded.
      */
-    private void fillBuffer() throws IOException {
-        outCount = 0;
-        outIndex = 0;
-        int inCount = 0;
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int pos = off;
+        final int end = off + len;
+        while (outIndex < outCount && pos < end) {
+            b[pos++] = outputBuffer[outIndex++];
+        }
 
-        int i;
-        // "done" is needed for the two successive '=' at the end
-        while (!done) {
-            switch (i = s.read()) {
-                case -1:
-                    // No more input - just return, let outputBuffer drain out, and be done
-                    return;
-                case '=':
+        while (pos < end && !done) {
+            if (inIndex == inLength) {
+                if (pos > off) {
+                    break;
+                }
+                int count = s.read(inputBuffer, 0, inputBuffer.length);
+                if (count == -1) {
+                    // No more input; an incomplete quantum is dropped.
+                    quantum = 0;
+                    quantumLength = 0;
+                    break;
+                }
+                inIndex = 0;
+                inLength = count;
+                continue;
+            }
+
+            final byte[] in = inputBuffer;
+            final int inEnd = inLength;
+            int i = inIndex;
+            int q = quantum;
+            int qLength = quantumLength;
+            while (i < inEnd) {
+                final int c = in[i++] & 0xFF;
+                if (c == '=') {
                     // once we meet the first '=', avoid reading the second '='
                     done = true;
-                    decodeAndEnqueue(inCount);
-                    return;
-                default:
-                    byte sX = TRANSLATION[i];
-                    if (sX < 0) continue;
-                    inputBuffer[inCount++] = sX;
-                    if (inCount == 4) {
-                        decodeAndEnqueue(inCount);
-                        return;
-                    }
+                    pos = decodeFinalQuantum(q, qLength, b, pos, end);
+                    q = 0;
+                    qLength = 0;
                     break;
+                }
+                final int sX = TRANSLATION[c];
+                if (sX < 0) {
+                    continue;
+                }
+                q = (q << 6) | sX;
+                if (++qLength == 4) {
+                    if (end - pos >= 3) {
+                        b[pos] = (byte) (q >> 16);
+                        b[pos + 1] = (byte) (q >> 8);
+                        b[pos + 2] = (byte) q;
+                        pos += 3;
+                    } else {
+                        outputBuffer[0] = (byte) (q >> 16);
+                        outputBuffer[1] = (byte) (q >> 8);
+                        outputBuffer[2] = (byte) q;
+                        outCount = 3;
+                        outIndex = 0;
+                        while (pos < end) {
+                            b[pos++] = outputBuffer[outIndex++];
+                        }
+                    }
+                    lastQuantum = q;
+                    q = 0;
+                    qLength = 0;
+                    if (pos == end) {
+                        break;
+                    }
+                }
             }
+            inIndex = i;
+            quantum = q;
+            quantumLength = qLength;
         }
-    }
 
-    private void decodeAndEnqueue(int len) {
-        int accum = 0;
-        accum |= inputBuffer[0] << 18;
-        accum |= inputBuffer[1] << 12;
-        accum |= inputBuffer[2] << 6;
-        accum |= inputBuffer[3];
+        return pos > off ? pos - off : -1;
+    }
 
-        // There's a bit of duplicated code here because we want to have straight-through operation
-        // for the most common case of len==4
-        if (len == 4) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outputBuffer[2] = (accum) & 0xFF;
-            outCount = 3;
-            return;
-        } else if (len == 3) {
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outputBuffer[1] = (accum >> 8) & 0xFF;
-            outCount = 2;
-            return;
-        } else {    // len == 2
-            outputBuffer[0] = (accum >> 16) & 0xFF;
-            outCount = 1;
-            return;
+    /**
+     * Decodes the sextets before a '='. Two or three of them decode to one or two bytes. With
+     * fewer, one byte is still produced, made up of the positions of the last complete quantum
+     * that were not overwritten.
+     */
+    private int decodeFinalQuantum(int q, int qLength, byte[] b, int pos, int end) {
+        final int shift = 6 * (4 - qLength);
+        final int accum = (q << shift) | (lastQuantum & ((1 << shift) - 1));
+        outputBuffer[0] = (byte) (accum >> 16);
+        outputBuffer[1] = (byte) (accum >> 8);
+        outCount = qLength == 3 ? 2 : 1;
+        outIndex = 0;
+        while (outIndex < outCount && pos < end) {
+            b[pos++] = outputBuffer[outIndex++];
         }
+        return pos;
     }
 
-    private static byte[] TRANSLATION = {
+    private static final byte[] TRANSLATION = {
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x00 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, /* 0x10 */
         -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, -1, 62, -1, -1, -1, 63, /* 0x20 */
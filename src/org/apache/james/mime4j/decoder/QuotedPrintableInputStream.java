@@ -37,10 +37,29 @@ import org.apache.james.mime4j.LogFactory;
 public class QuotedPrintableInputStream extends InputStream {
     private static Log log = LogFactory.getLog(QuotedPrintableInputStream.class);
     
+    private static final int INPUT_BUFFER_SIZE = 4096;
+
     private InputStream stream;
-    ByteQueue byteq = new ByteQueue();
-    ByteQueue pushbackq = new ByteQueue();
+    private final byte[] inputBuffer = new byte[INPUT_BUFFER_SIZE];
+    private int inIndex = 0;
+    private int inLength = 0;
+    /*
+     * Whitespace which may turn out to be "transport padding", i.e. whitespace that appears
+     * immediately before a CRLF, and must then be dropped.
+     */
+    private byte[] whitespace = new byte[16];
+    private int whitespaceCount = 0;
+    // Decoded bytes which did not fit in the caller's buffer.
+    private byte[] overflow = new byte[16];
+    private int overflowIndex = 0;
+    private int overflowCount = 0;
+    // The caller's buffer, while a read is in progress.
+    private byte[] dest;
+    private int destPos;
+    private int destEnd;
+    private final byte[] singleByte = new byte[1];
     private byte state = 0;
+    private byte msdChar = 0;  // first digit of escaped num
 
     public QuotedPrintableInputStream(InputStream stream) {
         this.stream = stream;
@@ -56,173 +75,193 @@ public class QuotedPrintableInputStream extends InputStream {
     }
 
     public int read() throws IOException {
-        fillBuffer();
-        if (byteq.count() == 0)
-            return -1;
-        else {
-            byte val = byteq.dequeue();
-            if (val >= 0)
-                return val;
-            else
-                return val & 0xFF;
-        }
+        return read(singleByte, 0, 1) == -1 ? -1 : singleByte[0] & 0xFF;
     }
 
     /**
-     * Pulls bytes out of the underlying stream and places them in the
-     * pushback queue.  This is necessary (vs. reading from the
-     * underlying stream directly) to detect and filter out "transport
-     * padding" whitespace, i.e., all whitespace that appears immediately
-     * before a CRLF.
-     *
-     * @throws IOException Underlying stream threw IOException.
+     * Decodes up to {@code len} bytes, a whole block of the underlying stream at a time.
+     * Returns fewer bytes rather than block once something has been decoded.
      */
-    private void populatePushbackQueue() throws IOException {
-        //Debug.verify(pushbackq.count() == 0, "PopulatePushbackQueue called when pushback queue was not empty!");
-
-        if (pushbackq.count() != 0)
-            return;
-
-        while (true) {
-            int i = stream.read();
-            switch (i) {
-                case -1:
-                    // stream is done
-                    pushbackq.clear();  // discard any whitespace preceding EOF
-                    return;
-                case ' ':
-                case '\t':
-                    pushbackq.enqueue((byte)i);
-                    break;
-                case '\r':
-                case '\n':
-                    pushbackq.clear();  // discard any whitespace preceding EOL
-                    pushbackq.enqueue((byte)i);
-                    return;
-                default:
-                    pushbackq.enqueue((byte)i);
-                    return;
-            }
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int pos = off;
+        final int end = off + len;
+        while (overflowIndex < overflowCount && pos < end) {
+            b[pos++] = overflow[overflowIndex++];
+        }
+        if (overflowIndex == overflowCount) {
+            overflowIndex = 0;
+            overflowCount = 0;
         }
-    }
-
-    /**
-     * Causes the pushback queue to get populated if it is empty, then
-     * consumes and decodes bytes out of it until one or more bytes are
-     * in the byte queue.  This decoding step performs the actual QP
-     * decoding.
-     *
-     * @throws IOException Underlying stream threw IOException.
-     */
-    private void fillBuffer() throws IOException {
-        byte msdChar = 0;  // first digit of escaped num
-        while (byteq.count() == 0) {
-            if (pushbackq.count() == 0) {
-                populatePushbackQueue();
-                if (pushbackq.count() == 0)
-                    return;
-            }
-
-            byte b = (byte)pushbackq.dequeue();
 
-            switch (state) {
-                case 0:  // start state, no bytes pending
-                    if (b != '=') {
-                        byteq.enqueue(b);
-                        break;  // state remains 0
-                    } else {
-                        state = 1;
+        dest = b;
+        destPos = pos;
+        destEnd = end;
+        try {
+            while (destPos < destEnd) {
+                if (inIndex == inLength) {
+                    if (destPos > off) {
                         break;
                     }
-                case 1:  // encountered "=" so far
-                    if (b == '\r') {
-                        state = 2;
-                        break;
-                    } else if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        state = 3;
-                        msdChar = b;  // save until next digit encountered
-                        break;
-                    } else if (b == '=') {
-                        /*
-                         * Special case when == is encountered.
-                         * Emit one = and stay in this state.
-                         */
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; got ==");
-                        }
-                        byteq.enqueue((byte)'=');
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected \\r or "
-                                    + "[0-9A-Z], got " + b);
-                        }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(b);
+                    int count = stream.read(inputBuffer, 0, inputBuffer.length);
+                    if (count == -1) {
+                        // stream is done
+                        whitespaceCount = 0;  // discard any whitespace preceding EOF
                         break;
                     }
-                case 2:  // encountered "=\r" so far
-                    if (b == '\n') {
-                        state = 0;
-                        break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected " 
-                                    + (int)'\n' + ", got " + b);
+                    inIndex = 0;
+                    inLength = count;
+                    continue;
+                }
+
+                final byte c = inputBuffer[inIndex++];
+                switch (c) {
+                    case ' ':
+                    case '\t':
+                        if (whitespaceCount == whitespace.length) {
+                            whitespace = grow(whitespace);
                         }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue((byte)'\r');
-                        byteq.enqueue(b);
+                        whitespace[whitespaceCount++] = c;
                         break;
-                    }
-                case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
-                    if ((b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f')) {
-                        byte msd = asciiCharToNumericValue(msdChar);
-                        byte low = asciiCharToNumericValue(b);
-                        state = 0;
-                        byteq.enqueue((byte)((msd << 4) | low));
+                    case '\r':
+                    case '\n':
+                        whitespaceCount = 0;  // discard any whitespace preceding EOL
+                        decode(c);
                         break;
-                    } else {
-                        if (log.isWarnEnabled()) {
-                            log.warn("Malformed MIME; expected "
-                                     + "[0-9A-Z], got " + b);
+                    default:
+                        for (int i = 0; i < whitespaceCount; i++) {
+                            decode(whitespace[i]);
+                        }
+                        whitespaceCount = 0;
+                        if (state == 0 && c != '=' && destPos < destEnd) {
+                            // Fast path for the common case of a literal byte.
+                            dest[destPos++] = c;
+                        } else {
+                            decode(c);
                         }
-                        state = 0;
-                        byteq.enqueue((byte)'=');
-                        byteq.enqueue(msdChar);
-                        byteq.enqueue(b);
                         break;
+                }
+            }
+            return destPos > off ? destPos - off : -1;
+        } finally {
+            dest = null;
+        }
+    }
+
+    private void emit(byte b) {
+        if (destPos < destEnd) {
+            dest[destPos++] = b;
+            return;
+        }
+        if (overflowCount == overflow.length) {
+            overflow = grow(overflow);
+        }
+        overflow[overflowCount++] = b;
+    }
+
+    private static byte[] grow(byte[] array) {
+        byte[] grown = new byte[array.length * 2];
+        System.arraycopy(array, 0, grown, 0, array.length);
+        return grown;
+    }
+
+    /**
+     * Consumes one byte which is not transport padding.  This performs the actual QP decoding.
+     */
+    private void decode(byte b) {
+        switch (state) {
+            case 0:  // start state, no bytes pending
+                if (b != '=') {
+                    emit(b);
+                    break;  // state remains 0
+                } else {
+                    state = 1;
+                    break;
+                }
+            case 1:  // encountered "=" so far
+                if (b == '\r') {
+                    state = 2;
+                    break;
+                } else if (HEX_VALUES[b & 0xFF] >= 0) {
+                    state = 3;
+                    msdChar = b;  // save until next digit encountered
+                    break;
+                } else if (b == '=') {
+                    /*
+                     * Special case when == is encountered.
+                     * Emit one = and stay in this state.
+                     */
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; got ==");
+                    }
+                    emit((byte)'=');
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected \\r or "
+                                + "[0-9A-Z], got " + b);
                     }
-                default:  // should never happen
-                    log.error("Illegal state: " + state);
                     state = 0;
-                    byteq.enqueue(b);
+                    emit((byte)'=');
+                    emit(b);
                     break;
-            }
+                }
+            case 2:  // encountered "=\r" so far
+                if (b == '\n') {
+                    state = 0;
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected " 
+                                + (int)'\n' + ", got " + b);
+                    }
+                    state = 0;
+                    emit((byte)'=');
+                    emit((byte)'\r');
+                    emit(b);
+                    break;
+                }
+            case 3:  // encountered =<digit> so far; expecting another <digit> to complete the octet
+                if (HEX_VALUES[b & 0xFF] >= 0) {
+                    state = 0;
+                    emit((byte)((HEX_VALUES[msdChar & 0xFF] << 4) | HEX_VALUES[b & 0xFF]));
+                    break;
+                } else {
+                    if (log.isWarnEnabled()) {
+                        log.warn("Malformed MIME; expected "
+                                 + "[0-9A-Z], got " + b);
+                    }
+                    state = 0;
+                    emit((byte)'=');
+                    emit(msdChar);
+                    emit(b);
+                    break;
+                }
+            default:  // should never happen
+                log.error("Illegal state: " + state);
+                state = 0;
+                emit(b);
+                break;
         }
     }
 
     /**
-     * Converts '0' => 0, 'A' => 10, etc.
-     * @param c ASCII character value.
-     * @return Numeric value of hexadecimal character.
+     * Numeric values of the hexadecimal digits '0' => 0, 'A' => 10, 'a' => 10, etc., and -1 for
+     * any other byte.
      */
-    private byte asciiCharToNumericValue(byte c) {
-        if (c >= '0' && c <= '9') {
-            return (byte)(c - '0');
-        } else if (c >= 'A' && c <= 'Z') {
-            return (byte)(0xA + (c - 'A'));
-        } else if (c >= 'a' && c <= 'z') {
-            return (byte)(0xA + (c - 'a'));
-        } else {
-            /*
-             * This should never happen since all calls to this method
-             * are preceded by a check that c is in [0-9A-Za-z]
-             */
-            throw new IllegalArgumentException((char) c 
-                    + " is not a hexadecimal digit");
+    private static final byte[] HEX_VALUES = new byte[256];
+    static {
+        for (int i = 0; i < HEX_VALUES.length; i++) {
+            HEX_VALUES[i] = -1;
+        }
+        for (int i = 0; i < 10; i++) {
+            HEX_VALUES['0' + i] = (byte) i;
+        }
+        for (int i = 0; i < 6; i++) {
+            HEX_VALUES['A' + i] = (byte) (0xA + i);
+            HEX_VALUES['a' + i] = (byte) (0xA + i);
         }
     }
 
@@ -0,0 +1,169 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+
+import android.content.Context;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.PhoneNumberUtils;
+import android.telephony.SubscriptionInfo;
+import android.telephony.SubscriptionManager;
+import android.text.TextUtils;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks {@link EmergencyNumberMatcher} against {@link PhoneNumberUtils}.
+ */
+@RunWith(AndroidJUnit4.class)
+public class EmergencyNumberMatcherTest {
+
+    private static final String[] ECC_LISTS = {
+            "112,911,000,08,110,118,119,999",
+            "112,911",
+            "911,*911,#911,+112",
+            ",112",
+            "112,,911",
+    };
+
+    @Test
+    public void testIndex() {
+        EmergencyNumberMatcher.Index index = new EmergencyNumberMatcher.Index(
+                new String[] {"112,911", "110"});
+        assertTrue(index.isEmergencyNumber("911", true));
+        assertTrue(index.isEmergencyNumber("110", true));
+        assertTrue(index.isEmergencyNumber("1-1-0", true));
+        assertFalse(index.isEmergencyNumber("11", true));
+        assertFalse(index.isEmergencyNumber("1100", true));
+        assertTrue(index.isEmergencyNumber("1100", false));
+        assertFalse(index.isEmergencyNumber(0, "1100", false));
+        assertFalse(index.isEmergencyNumber("911@example.com", true));
+        assertFalse(index.isEmergencyNumber(null, true));
+    }
+
+    /**
+     * Compares the index with the matching loop of PhoneNumberUtils, for lists which cannot be
+     * set on the device under test.
+     */
+    @Test
+    public void testMatchesEccListLoop() {
+        for (String eccList : ECC_LISTS) {
+            EmergencyNumberMatcher.Index index =
+                    new EmergencyNumberMatcher.Index(new String[] {eccList});
+            for (String number : getNumbers(eccList)) {
+                String message = eccList + " " + number;
+                assertEquals(message, matchesEccList(eccList, number, true),
+                        index.isEmergencyNumber(0, number, true));
+                assertEquals(message, matchesEccList(eccList, number, false),
+                        index.isEmergencyNumber(0, number, false));
+            }
+        }
+    }
+
+    /**
+     * Compares the index with PhoneNumberUtils for the ECC lists of the device under test.
+     */
+    @Test
+    public void testMatchesPhoneNumberUtils() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        List<SubscriptionInfo> subscriptions =
+                SubscriptionManager.from(context).getActiveSubscriptionInfoList();
+        assumeFalse(subscriptions == null || subscriptions.isEmpty());
+        int checked = 0;
+        for (SubscriptionInfo subscription : subscriptions) {
+            int subId = subscription.getSubscriptionId();
+            int slotId = subscription.getSimSlotIndex();
+            String eccList = EmergencyNumberMatcher.getEccList(slotId);
+            if (TextUtils.isEmpty(eccList)) {
+                // PhoneNumberUtils uses country specific lists, which are not indexed.
+                continue;
+            }
+            EmergencyNumberMatcher.Index index =
+                    new EmergencyNumberMatcher.Index(new String[] {eccList});
+            for (String number : getNumbers(eccList)) {
+                String message = eccList + " " + number;
+                assertEquals(message, PhoneNumberUtils.isEmergencyNumber(subId, number),
+                        index.isEmergencyNumber(0, number, true));
+                assertEquals(message, PhoneNumberUtils.isPotentialEmergencyNumber(subId, number),
+                        index.isEmergencyNumber(0, number, false));
+            }
+            checked++;
+        }
+        assumeFalse(checked == 0);
+    }
+
+    /**
+     * The matching done by PhoneNumberUtils when the phone has an ECC list.
+     */
+    private static boolean matchesEccList(String eccList, String number, boolean exactMatch) {
+        if (number == null || PhoneNumberUtils.isUriNumber(number)) {
+            return false;
+        }
+        number = PhoneNumberUtils.extractNetworkPortionAlt(number);
+        for (String emergencyNumber : eccList.split(",")) {
+            if (exactMatch ? number.equals(emergencyNumber)
+                    : number.startsWith(emergencyNumber)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return numbers close to the entries of {@code eccList}, and random short numbers.
+     */
+    private static List<String> getNumbers(String eccList) {
+        List<String> numbers = new ArrayList<>();
+        for (String emergencyNumber : eccList.split(",")) {
+            numbers.add(emergencyNumber);
+            numbers.add(emergencyNumber + "0");
+            numbers.add(emergencyNumber + "123");
+            numbers.add("0" + emergencyNumber);
+            numbers.add(TextUtils.join("-", emergencyNumber.split("")));
+            numbers.add(emergencyNumber + "@example.com");
+            numbers.add("sip:" + emergencyNumber);
+            numbers.add(emergencyNumber + ",1234");
+            if (emergencyNumber.length() > 1) {
+                numbers.add(emergencyNumber.substring(0, emergencyNumber.length() - 1));
+            }
+        }
+        numbers.add("");
+        Random random = new Random(0);
+        String dialable = "0123456789*#+";
+        for (int i = 0; i < 1000; i++) {
+            StringBuilder number = new StringBuilder();
+            int length = 1 + random.nextInt(6);
+            for (int j = 0; j < length; j++) {
+                // Mostly digits, which are the ones ECC lists are made of.
+                number.append(dialable.charAt(random.nextInt(
+                        random.nextInt(4) == 0 ? dialable.length() : 10)));
+            }
+            numbers.add(number.toString());
+        }
+        return numbers;
+    }
+}
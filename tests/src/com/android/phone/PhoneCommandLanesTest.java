@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.when;
+
+import android.os.Handler;
+import android.support.test.runner.AndroidJUnit4;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link PhoneCommandLanes} keeps commands ordered per phone while letting different
+ * phones run independently.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PhoneCommandLanesTest extends TelephonyTestBase {
+
+    private static final long TIMEOUT_MS = 1000;
+
+    @Mock Phone mPhone0;
+    @Mock Phone mPhone1;
+    private PhoneCommandLanes mLanes;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mPhone0.getPhoneId()).thenReturn(0);
+        when(mPhone1.getPhoneId()).thenReturn(1);
+        mLanes = new PhoneCommandLanes(2, "PhoneCommandLanesTest", looper -> new Handler(looper));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mLanes.quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testLanesAreSeparatePerPhone() {
+        assertNotSame(mLanes.getHandlerForPhone(mPhone0), mLanes.getHandlerForPhone(mPhone1));
+        assertNotSame(mLanes.getHandlerForPhone(mPhone0).getLooper(),
+                mLanes.getHandlerForPhone(mPhone1).getLooper());
+        assertFalse(mLanes.isOnLaneThread());
+    }
+
+    @Test
+    public void testNullOrInvalidPhoneUsesFirstLane() {
+        Handler first = mLanes.getHandlerForPhoneId(0);
+        assertSame(first, mLanes.getHandlerForPhone(null));
+        assertSame(first, mLanes.getHandlerForPhoneId(-1));
+        assertSame(first, mLanes.getHandlerForPhoneId(5));
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotDelayOtherPhone() throws Exception {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch phone0Done = new CountDownLatch(1);
+        CountDownLatch phone1Done = new CountDownLatch(1);
+
+        // Simulate a slow APDU burst occupying phone 0's lane.
+        mLanes.getHandlerForPhone(mPhone0).post(() -> {
+            try {
+                release.await(TIMEOUT_MS * 5, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                // do nothing
+            }
+            phone0Done.countDown();
+        });
+        mLanes.getHandlerForPhone(mPhone1).post(phone1Done::countDown);
+
+        assertTrue(phone1Done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+        assertEquals(1, phone0Done.getCount());
+
+        release.countDown();
+        assertTrue(phone0Done.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testCommandsForOnePhoneRunInOrder() throws Exception {
+        List<Integer> order = Collections.synchronizedList(new ArrayList<>());
+        Handler handler = mLanes.getHandlerForPhone(mPhone0);
+        for (int i = 0; i < 20; i++) {
+            final int command = i;
+            handler.post(() -> order.add(command));
+        }
+        waitForHandlerAction(handler, TIMEOUT_MS);
+
+        assertEquals(20, order.size());
+        for (int i = 0; i < 20; i++) {
+            assertEquals(i, (int) order.get(i));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.when;
+
+import android.os.AsyncResult;
+import android.os.Looper;
+import android.os.Message;
+import android.support.test.runner.AndroidJUnit4;
+import android.telephony.SubscriptionManager;
+
+import com.android.TelephonyTestBase;
+import com.android.internal.telephony.Phone;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.Mock;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that {@link PhoneInterfaceManager#sendRequest} runs RIL commands on the lane of their
+ * phone, keeps other commands on the main thread and refuses requests which could deadlock.
+ */
+@RunWith(AndroidJUnit4.class)
+public class PhoneInterfaceManagerRequestTest extends TelephonyTestBase {
+
+    private static final int NETWORK_TYPE = 9;
+    private static final int OTHER_NETWORK_TYPE = 10;
+    private static final int SUB_ID_OF_SECOND_PHONE = 2;
+    private static final long TIMEOUT_MS = 5000;
+
+    @Mock Phone mPhone;
+    @Mock Phone mSecondPhone;
+    private PhoneInterfaceManager mPhoneInterfaceManager;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        when(mPhone.getPhoneId()).thenReturn(0);
+        when(mSecondPhone.getPhoneId()).thenReturn(1);
+        mPhoneInterfaceManager = new PhoneInterfaceManager(mPhone, 2) {
+            @Override
+            Phone getPhone(int subId) {
+                return subId == SUB_ID_OF_SECOND_PHONE ? mSecondPhone : mPhone;
+            }
+        };
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mPhoneInterfaceManager.getCommandLanes().quit();
+        super.tearDown();
+    }
+
+    @Test
+    public void testRilCommandRunsOnLaneOfPhone() {
+        final Looper[] looper = new Looper[1];
+        doAnswer(invocation -> {
+            looper[0] = Looper.myLooper();
+            completeWithNetworkType((Message) invocation.getArguments()[0], NETWORK_TYPE);
+            return null;
+        }).when(mPhone).getPreferredNetworkType(any(Message.class));
+
+        Object result = mPhoneInterfaceManager.sendRequest(
+                PhoneInterfaceManager.CMD_GET_PREFERRED_NETWORK_TYPE, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+        assertArrayEquals(new int[] {NETWORK_TYPE}, (int[]) result);
+        assertSame(mPhoneInterfaceManager.getCommandLanes().getHandlerForPhone(mPhone).getLooper(),
+                looper[0]);
+    }
+
+    @Test
+    public void testOtherCommandRunsOnMainThread() {
+        final Looper[] looper = new Looper[1];
+        when(mPhone.handlePinMmi(anyString())).thenAnswer(invocation -> {
+            looper[0] = Looper.myLooper();
+            return true;
+        });
+
+        Object result = mPhoneInterfaceManager.sendRequest(
+                PhoneInterfaceManager.CMD_HANDLE_PIN_MMI, "*#06#",
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+        assertEquals(true, result);
+        assertSame(Looper.getMainLooper(), looper[0]);
+    }
+
+    @Test
+    public void testBlockedLaneDoesNotDelayOtherPhone() throws Exception {
+        final CountDownLatch firstPhoneBlocked = new CountDownLatch(1);
+        final CountDownLatch unblockFirstPhone = new CountDownLatch(1);
+        doAnswer(invocation -> {
+            firstPhoneBlocked.countDown();
+            unblockFirstPhone.await(TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            completeWithNetworkType((Message) invocation.getArguments()[0], NETWORK_TYPE);
+            return null;
+        }).when(mPhone).getPreferredNetworkType(any(Message.class));
+        doAnswer(invocation -> {
+            completeWithNetworkType((Message) invocation.getArguments()[0], OTHER_NETWORK_TYPE);
+            return null;
+        }).when(mSecondPhone).getPreferredNetworkType(any(Message.class));
+
+        Thread firstRequester = new Thread(() -> mPhoneInterfaceManager.sendRequest(
+                PhoneInterfaceManager.CMD_GET_PREFERRED_NETWORK_TYPE, null,
+                SubscriptionManager.INVALID_SUBSCRIPTION_ID));
+        firstRequester.start();
+        try {
+            assertTrue(firstPhoneBlocked.await(TIMEOUT_MS, TimeUnit.MILLISECONDS));
+
+            // Would time out with a null result if it waited behind the first phone's command.
+            Object result = mPhoneInterfaceManager.sendRequest(
+                    PhoneInterfaceManager.CMD_GET_PREFERRED_NETWORK_TYPE, null,
+                    SUB_ID_OF_SECOND_PHONE);
+
+            assertArrayEquals(new int[] {OTHER_NETWORK_TYPE}, (int[]) result);
+        } finally {
+            unblockFirstPhone.countDown();
+            firstRequester.join();
+        }
+    }
+
+    @Test
+    public void testRequestFromLaneThreadIsRefused() {
+        final RuntimeException[] exception = new RuntimeException[1];
+        // Issue a main thread command while the lane is running a command.
+        doAnswer(invocation -> {
+            try {
+                mPhoneInterfaceManager.sendRequest(PhoneInterfaceManager.CMD_HANDLE_PIN_MMI,
+                        "*#06#", SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+            } catch (RuntimeException e) {
+                exception[0] = e;
+            }
+            completeWithNetworkType((Message) invocation.getArguments()[0], NETWORK_TYPE);
+            return null;
+        }).when(mPhone).getPreferredNetworkType(any(Message.class));
+
+        mPhoneInterfaceManager.sendRequest(PhoneInterfaceManager.CMD_GET_PREFERRED_NETWORK_TYPE,
+                null, SubscriptionManager.INVALID_SUBSCRIPTION_ID);
+
+        assertNotNull(exception[0]);
+    }
+
+    private static void completeWithNetworkType(Message onCompleted, int networkType) {
+        AsyncResult.forMessage(onCompleted, new int[] {networkType}, null);
+        onCompleted.sendToTarget();
+    }
+}
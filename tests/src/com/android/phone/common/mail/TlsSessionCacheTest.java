@@ -0,0 +1,111 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+public class TlsSessionCacheTest extends AndroidTestCase {
+
+    private static final String HOST = "vvm.example.com";
+    private static final int PORT = 993;
+    private static final byte[] SESSION_ID = {1, 2, 3, 4};
+    private static final byte[] OTHER_SESSION_ID = {5, 6, 7, 8};
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMockitoHelper = new MockitoHelper();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMockitoHelper.setUp(getContext(), getClass());
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMockitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testGetSocketFactory_sharedPerNetwork() {
+        TlsSessionCache cache = new TlsSessionCache();
+        SSLSocketFactory factory = cache.getSocketFactory(null);
+        assertNotNull(factory);
+        // Sockets to the same network must share a factory, and so its session cache.
+        assertSame(factory, cache.getSocketFactory(null));
+    }
+
+    public void testRecordHandshake() {
+        TlsSessionCache cache = new TlsSessionCache();
+        cache.recordHandshake(false);
+        cache.recordHandshake(true);
+        cache.recordHandshake(true);
+        assertEquals(1, cache.getFullHandshakeCount());
+        assertEquals(2, cache.getResumedHandshakeCount());
+    }
+
+    public void testGetCachedSessionId_nothingCached() {
+        TlsSessionCache cache = new TlsSessionCache();
+        assertNull(cache.getCachedSessionId(null, HOST, PORT));
+    }
+
+    public void testFindSessionId_matchesHostAndPort() {
+        SSLSessionContext sessionContext = mock(SSLSessionContext.class);
+        when(sessionContext.getIds()).thenReturn(
+                Collections.enumeration(Arrays.asList(OTHER_SESSION_ID, SESSION_ID)));
+        SSLSession otherSession = mockSession(OTHER_SESSION_ID, HOST, PORT + 1);
+        SSLSession session = mockSession(SESSION_ID, HOST.toUpperCase(), PORT);
+        when(sessionContext.getSession(OTHER_SESSION_ID)).thenReturn(otherSession);
+        when(sessionContext.getSession(SESSION_ID)).thenReturn(session);
+
+        assertTrue(Arrays.equals(SESSION_ID,
+                TlsSessionCache.findSessionId(sessionContext, HOST, PORT)));
+        assertNull(TlsSessionCache.findSessionId(sessionContext, "other.example.com", PORT));
+    }
+
+    public void testIsResumed_sameSessionId() {
+        assertTrue(TlsSessionCache.isResumed(SESSION_ID,
+                mockSession(SESSION_ID.clone(), HOST, PORT)));
+    }
+
+    public void testIsResumed_newSessionId() {
+        SSLSession session = mockSession(OTHER_SESSION_ID, HOST, PORT);
+        assertFalse(TlsSessionCache.isResumed(SESSION_ID, session));
+        assertFalse(TlsSessionCache.isResumed(null, session));
+        // Sessions which cannot be resumed have an empty ID.
+        assertFalse(TlsSessionCache.isResumed(new byte[0], mockSession(new byte[0], HOST, PORT)));
+    }
+
+    private static SSLSession mockSession(byte[] id, String host, int port) {
+        SSLSession session = mock(SSLSession.class);
+        when(session.getId()).thenReturn(id);
+        when(session.getPeerHost()).thenReturn(host);
+        when(session.getPeerPort()).thenReturn(port);
+        return session;
+    }
+}
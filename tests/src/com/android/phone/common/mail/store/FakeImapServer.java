@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.common.mail.store;
+
+import static junit.framework.Assert.assertFalse;
+import static junit.framework.Assert.assertNull;
+
+import com.android.phone.common.mail.store.imap.ImapConstants;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A scripted IMAP server on the loopback interface, just enough for {@link ImapConnection} to log
+ * in. Commands other than the ones needed for that are collected until the responder answers
+ * them, e.g. once there are {@code batchSize} of them, so a client which waits for each response
+ * before sending the next command times out.
+ */
+public class FakeImapServer extends Thread {
+    private static final int TIMEOUT_MILLIS = 5000;
+
+    public interface Responder {
+        /**
+         * @param commands the tag and the command of each command received since the last
+         *         answer.
+         * @return what to send back, in ISO-8859-1, or null to wait for more commands.
+         */
+        String respond(List<String[]> commands);
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Responder mResponder;
+    private volatile Throwable mError;
+
+    public FakeImapServer(final int batchSize, final Responder responder) throws IOException {
+        this(commands -> commands.size() == batchSize ? responder.respond(commands) : null);
+    }
+
+    /**
+     * @param responder called after each command, until it returns what to answer.
+     */
+    public FakeImapServer(Responder responder) throws IOException {
+        mServerSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+        mResponder = responder;
+    }
+
+    public int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    @Override
+    public void run() {
+        try (Socket socket = mServerSocket.accept()) {
+            socket.setSoTimeout(TIMEOUT_MILLIS);
+            BufferedReader in = new BufferedReader(new InputStreamReader(
+                    socket.getInputStream(), StandardCharsets.ISO_8859_1));
+            OutputStream out = socket.getOutputStream();
+            write(out, "* OK IMAP4rev1 ready\r\n");
+            List<String[]> batch = new ArrayList<>();
+            String line;
+            while ((line = in.readLine()) != null) {
+                String[] command = line.split(" ", 2);
+                String tag = command[0];
+                switch (command[1].split(" ")[0]) {
+                    case ImapConstants.CAPABILITY:
+                        write(out, "* CAPABILITY IMAP4rev1\r\n" + tag + " OK\r\n");
+                        break;
+                    case ImapConstants.LOGIN:
+                    case ImapConstants.NOOP:
+                        write(out, tag + " OK\r\n");
+                        break;
+                    case ImapConstants.LOGOUT:
+                        write(out, "* BYE\r\n" + tag + " OK\r\n");
+                        return;
+                    default:
+                        batch.add(command);
+                        String response = mResponder.respond(batch);
+                        if (response != null) {
+                            write(out, response);
+                            batch.clear();
+                        }
+                }
+            }
+        } catch (Throwable t) {
+            mError = t;
+        } finally {
+            try {
+                mServerSocket.close();
+            } catch (IOException e) {
+                // Ignore.
+            }
+        }
+    }
+
+    /**
+     * Waits for the client to log out, and checks that the script ran without errors.
+     */
+    public void assertFinished() throws InterruptedException {
+        join(TIMEOUT_MILLIS);
+        assertFalse(isAlive());
+        assertNull(String.valueOf(mError), mError);
+    }
+
+    private static void write(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.ISO_8859_1));
+        out.flush();
+    }
+}
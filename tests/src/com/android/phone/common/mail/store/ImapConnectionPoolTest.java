@@ -0,0 +1,110 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store;
+
+import junit.framework.TestCase;
+
+public class ImapConnectionPoolTest extends TestCase {
+
+    private static final String KEY = "key";
+
+    public void testRelease_healthyConnectionIsReused() {
+        ImapConnectionPool pool = new ImapConnectionPool(ImapConnectionPool.MAX_IDLE_MILLIS);
+        FakeConnection connection = new FakeConnection();
+        pool.release(KEY, connection);
+        assertFalse(connection.closed);
+        assertEquals(1, pool.getIdleCountForTest());
+
+        assertNull(pool.acquire("other key", null));
+        assertSame(connection, pool.acquire(KEY, null));
+        assertEquals(1, connection.noops);
+        assertEquals(0, pool.getIdleCountForTest());
+        // Only one user at a time.
+        assertNull(pool.acquire(KEY, null));
+    }
+
+    public void testRelease_brokenConnectionIsClosed() {
+        ImapConnectionPool pool = new ImapConnectionPool(ImapConnectionPool.MAX_IDLE_MILLIS);
+        FakeConnection connection = new FakeConnection();
+        connection.reusable = false;
+        pool.release(KEY, connection);
+        assertTrue(connection.closed);
+        assertEquals(0, pool.getIdleCountForTest());
+    }
+
+    public void testAcquire_failedNoopClosesConnection() {
+        ImapConnectionPool pool = new ImapConnectionPool(ImapConnectionPool.MAX_IDLE_MILLIS);
+        FakeConnection connection = new FakeConnection();
+        pool.release(KEY, connection);
+        connection.noopResult = false;
+        assertNull(pool.acquire(KEY, null));
+        assertTrue(connection.closed);
+    }
+
+    public void testRelease_replacesIdleConnection() {
+        ImapConnectionPool pool = new ImapConnectionPool(ImapConnectionPool.MAX_IDLE_MILLIS);
+        FakeConnection first = new FakeConnection();
+        FakeConnection second = new FakeConnection();
+        pool.release(KEY, first);
+        pool.release(KEY, second);
+        assertTrue(first.closed);
+        assertSame(second, pool.acquire(KEY, null));
+    }
+
+    public void testIdleConnectionExpires() throws Exception {
+        ImapConnectionPool pool = new ImapConnectionPool(50);
+        FakeConnection connection = new FakeConnection();
+        pool.release(KEY, connection);
+        synchronized (connection) {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (!connection.closed && System.currentTimeMillis() < deadline) {
+                connection.wait(100);
+            }
+        }
+        assertTrue(connection.closed);
+        assertEquals(0, pool.getIdleCountForTest());
+        assertNull(pool.acquire(KEY, null));
+    }
+
+    private static class FakeConnection extends ImapConnection {
+        boolean reusable = true;
+        boolean noopResult = true;
+        int noops;
+        boolean closed;
+
+        FakeConnection() {
+            super(null);
+        }
+
+        @Override
+        boolean isReusable() {
+            return reusable && !closed;
+        }
+
+        @Override
+        boolean noop() {
+            noops++;
+            return noopResult;
+        }
+
+        @Override
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.common.mail.store;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.store.ImapStore.ImapException;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.common.mail.store.imap.ImapResponse;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+
+import org.mockito.MockitoAnnotations;
+
+import java.util.Arrays;
+import java.util.List;
+
+public class ImapConnectionTest extends AndroidTestCase {
+
+    private static final List<String> COMMANDS = Arrays.asList(
+            "UID STORE 1 +FLAGS.SILENT (\\Deleted)",
+            "UID STORE 2 +FLAGS.SILENT (\\Seen)",
+            "UID FETCH 3 (FLAGS)");
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMokitoHelper = new MockitoHelper();
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMokitoHelper.setUp(getContext(), getClass());
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMokitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testExecutePipelinedCommands_responsesDemultiplexedByTag() throws Exception {
+        // The server only answers once all the commands have arrived, and out of order.
+        FakeImapServer server = new FakeImapServer(COMMANDS.size(), commands ->
+                commands.get(1)[0] + " OK STORE completed\r\n"
+                        + commands.get(0)[0] + " OK STORE completed\r\n"
+                        + "* 1 FETCH (UID 3 FLAGS (\\Seen))\r\n"
+                        + "* 1 EXISTS\r\n"
+                        + commands.get(2)[0] + " OK FETCH completed\r\n");
+        ImapConnection connection = openConnection(server);
+
+        List<List<ImapResponse>> results = connection.executePipelinedCommands(COMMANDS);
+        assertEquals(3, results.size());
+        assertEquals(1, results.get(0).size());
+        assertTrue(results.get(0).get(0).isOk());
+        assertEquals(1, results.get(1).size());
+        List<ImapResponse> fetch = results.get(2);
+        assertEquals(3, fetch.size());
+        assertTrue(fetch.get(0).isDataResponse(1, ImapConstants.FETCH));
+        assertTrue(fetch.get(1).isDataResponse(1, ImapConstants.EXISTS));
+        assertTrue(fetch.get(2).isTagged());
+        connection.destroyResponses();
+
+        connection.close();
+        server.assertFinished();
+    }
+
+    public void testExecutePipelinedCommands_failureReadsAllResponses() throws Exception {
+        FakeImapServer server = new FakeImapServer(COMMANDS.size(), commands ->
+                commands.get(0)[0] + " NO [NONEXISTENT] No such message\r\n"
+                        + commands.get(1)[0] + " OK STORE completed\r\n"
+                        + commands.get(2)[0] + " OK FETCH completed\r\n");
+        ImapConnection connection = openConnection(server);
+
+        try {
+            connection.executePipelinedCommands(COMMANDS);
+            fail("Expected ImapException");
+        } catch (ImapException expected) {
+            assertEquals(ImapConstants.NO, expected.getStatus());
+        }
+        // The connection is still in step with the server.
+        assertTrue(connection.noop());
+
+        connection.close();
+        server.assertFinished();
+    }
+
+    public void testSetStore_transportReportsToNewHelper() throws Exception {
+        FakeImapServer server = new FakeImapServer(1, commands -> commands.get(0)[0] + " OK\r\n");
+        ImapConnection connection = openConnection(server);
+        ImapStore nextStore = createStore(server);
+
+        // What happens when the pool hands the connection to another task.
+        connection.setStore(nextStore);
+        assertSame(nextStore.getImapHelper(), connection.getTransport().getImapHelper());
+
+        connection.close();
+        server.assertFinished();
+    }
+
+    private ImapConnection openConnection(FakeImapServer server) throws Exception {
+        server.start();
+        ImapConnection connection = new ImapConnection(createStore(server));
+        connection.open();
+        return connection;
+    }
+
+    private ImapStore createStore(FakeImapServer server) throws Exception {
+        OmtpVvmCarrierConfigHelper config = mock(OmtpVvmCarrierConfigHelper.class);
+        ImapHelper helper = mock(ImapHelper.class);
+        when(helper.getConfig()).thenReturn(config);
+        return new ImapStore(getContext(), helper, "user", "password",
+                server.getPort(), "127.0.0.1", ImapStore.FLAG_NONE, null);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.common.mail.store;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import android.test.AndroidTestCase;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.Flag;
+import com.android.phone.common.mail.Message;
+import com.android.phone.common.mail.MessagingException;
+import com.android.phone.common.mail.internet.MimeBodyPart;
+import com.android.phone.common.mail.internet.MimeHeader;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.imap.ImapHelper;
+
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ImapFolderTest extends AndroidTestCase {
+
+    private static final String UID = "7";
+    private static final String PART_ID = "2";
+    private static final String BODY = "UklGRiQAAABXQVZFZm10IBAAAAABAAEA";
+    private static final Pattern PARTIAL_FETCH = Pattern.compile(
+            "UID FETCH " + UID + " \\(UID BODY\\.PEEK\\[" + PART_ID + "\\]<(\\d+)\\.(\\d+)>\\)");
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMokitoHelper = new MockitoHelper();
+
+    private ImapStore mStore;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMokitoHelper.setUp(getContext(), getClass());
+        MockitoAnnotations.initMocks(this);
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        mMokitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testFetchPartChunks() throws Exception {
+        assertFetchesChunks(0, 10);
+        // The end of the part falls on a chunk boundary, so the last chunk is empty.
+        assertFetchesChunks(0, 8);
+        assertFetchesChunks(0, 1000);
+    }
+
+    public void testFetchPartChunks_resumesFromOffset() throws Exception {
+        assertFetchesChunks(12, 10);
+        assertFetchesChunks(BODY.length(), 10);
+    }
+
+    public void testFetchPartChunks_failure() throws Exception {
+        FakeImapServer server = new FakeImapServer(1, commands -> {
+            String tag = commands.get(0)[0];
+            String command = commands.get(0)[1];
+            Matcher matcher = PARTIAL_FETCH.matcher(command);
+            if (matcher.matches() && !matcher.group(1).equals("0")) {
+                return tag + " NO Mailbox is locked\r\n";
+            }
+            return respond(tag, command);
+        });
+        ImapFolder folder = openFolder(server);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try {
+            fetchPartChunks(folder, 0, 10, out);
+            fail("Expected MessagingException");
+        } catch (MessagingException expected) {
+        }
+        // Only what was received is passed on, and the connection is still usable.
+        assertEquals(BODY.substring(0, 10), out.toString("ISO-8859-1"));
+        assertTrue(mStore.getConnection().noop());
+
+        closeFolder(folder);
+        server.assertFinished();
+    }
+
+    public void testAddFlagsAndExpunge() throws Exception {
+        final boolean[] expunged = {false};
+        FakeImapServer server = new FakeImapServer(commands -> {
+            String tag = commands.get(0)[0];
+            String command = commands.get(0)[1];
+            if (command.startsWith("SELECT")) {
+                return respond(tag, command);
+            }
+            if (command.equals(ImapConstants.EXPUNGE)) {
+                expunged[0] = true;
+                return "* 1 EXPUNGE\r\n* 0 EXISTS\r\n" + tag + " OK\r\n";
+            }
+            // Both flag changes are pipelined, and EXPUNGE waits for them.
+            if (commands.size() < 2) {
+                return null;
+            }
+            assertTrue(commands.get(1)[1].startsWith("UID STORE"));
+            return tag + " OK\r\n" + commands.get(1)[0] + " OK\r\n";
+        });
+        ImapFolder folder = openFolder(server);
+
+        folder.addFlagsAndExpunge(getMessagesByFlag(folder));
+        assertTrue(expunged[0]);
+        assertEquals(0, folder.getMessageCount());
+
+        closeFolder(folder);
+        server.assertFinished();
+    }
+
+    public void testAddFlagsAndExpunge_failedFlagChangeIsNotExpunged() throws Exception {
+        FakeImapServer server = new FakeImapServer(commands -> {
+            String tag = commands.get(0)[0];
+            String command = commands.get(0)[1];
+            if (command.startsWith("SELECT")) {
+                return respond(tag, command);
+            }
+            assertFalse("EXPUNGE sent before the flags were set",
+                    command.equals(ImapConstants.EXPUNGE));
+            if (commands.size() < 2) {
+                return null;
+            }
+            return tag + " NO Mailbox is locked\r\n" + commands.get(1)[0] + " OK\r\n";
+        });
+        ImapFolder folder = openFolder(server);
+
+        try {
+            folder.addFlagsAndExpunge(getMessagesByFlag(folder));
+            fail("Expected MessagingException");
+        } catch (MessagingException expected) {
+        }
+        assertTrue(mStore.getConnection().noop());
+
+        closeFolder(folder);
+        server.assertFinished();
+    }
+
+    private static Map<String, Message[]> getMessagesByFlag(ImapFolder folder) {
+        Map<String, Message[]> messagesByFlag = new LinkedHashMap<>();
+        messagesByFlag.put(Flag.DELETED, new Message[] {folder.createMessage(UID)});
+        messagesByFlag.put(Flag.SEEN, new Message[] {folder.createMessage("8")});
+        return messagesByFlag;
+    }
+
+    private void assertFetchesChunks(int offset, int chunkSize) throws Exception {
+        FakeImapServer server = new FakeImapServer(1,
+                commands -> respond(commands.get(0)[0], commands.get(0)[1]));
+        ImapFolder folder = openFolder(server);
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertEquals(BODY.length(), fetchPartChunks(folder, offset, chunkSize, out));
+        assertEquals(BODY.substring(offset), out.toString("ISO-8859-1"));
+
+        closeFolder(folder);
+        server.assertFinished();
+    }
+
+    private static long fetchPartChunks(ImapFolder folder, int offset, int chunkSize,
+            final ByteArrayOutputStream out) throws MessagingException {
+        MimeBodyPart part = new MimeBodyPart();
+        part.setHeader(MimeHeader.HEADER_ANDROID_ATTACHMENT_STORE_DATA, PART_ID);
+        final long[] nextOffset = {offset};
+        return folder.fetchPartChunks(folder.createMessage(UID), part, offset, chunkSize,
+                new ImapFolder.PartChunkListener() {
+                    @Override
+                    public void onPartChunk(Message message, long chunkOffset, InputStream in)
+                            throws IOException {
+                        assertEquals(nextOffset[0], chunkOffset);
+                        int b;
+                        while ((b = in.read()) != -1) {
+                            out.write(b);
+                            nextOffset[0]++;
+                        }
+                    }
+                });
+    }
+
+    /** Answers SELECT and partial fetches of {@link #BODY}. */
+    private static String respond(String tag, String command) {
+        if (command.startsWith("SELECT")) {
+            return "* 1 EXISTS\r\n* OK [UIDVALIDITY 1]\r\n" + tag + " OK [READ-WRITE]\r\n";
+        }
+        Matcher matcher = PARTIAL_FETCH.matcher(command);
+        assertTrue(command, matcher.matches());
+        int offset = Integer.parseInt(matcher.group(1));
+        int length = Integer.parseInt(matcher.group(2));
+        String chunk = BODY.substring(Math.min(offset, BODY.length()),
+                Math.min(offset + length, BODY.length()));
+        // Past the end of the part, servers return an empty string rather than a literal.
+        String value = chunk.isEmpty() ? "\"\"" : "{" + chunk.length() + "}\r\n" + chunk;
+        return String.format(Locale.US, "* 1 FETCH (UID %s BODY[%s]<%d> %s)\r\n%s OK\r\n",
+                UID, PART_ID, offset, value, tag);
+    }
+
+    private ImapFolder openFolder(FakeImapServer server) throws Exception {
+        server.start();
+        OmtpVvmCarrierConfigHelper config = mock(OmtpVvmCarrierConfigHelper.class);
+        ImapHelper helper = mock(ImapHelper.class);
+        when(helper.getConfig()).thenReturn(config);
+        mStore = new ImapStore(getContext(), helper, "user", "password",
+                server.getPort(), "127.0.0.1", ImapStore.FLAG_NONE, null);
+        ImapFolder folder = new ImapFolder(mStore, "INBOX");
+        folder.open(ImapFolder.MODE_READ_WRITE);
+        return folder;
+    }
+
+    private void closeFolder(ImapFolder folder) {
+        folder.close(false);
+        // Log out rather than handing the connection to the pool, so the server finishes.
+        mStore.getConnection().close();
+    }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.common.mail.store.imap;
+
+import android.os.SystemClock;
+import android.support.test.InstrumentationRegistry;
+import android.util.Log;
+
+import com.android.phone.common.mail.PeekableInputStream;
+import com.android.phone.common.mail.TempDirectory;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+public class ImapResponseParserTest extends TestCase {
+
+    private static final String TAG = "ImapResponseParserTest";
+
+    private static final String FETCH_RESPONSE =
+            "* 1 FETCH (UID 7 FLAGS (\\Seen) BODY[1.MIME] {5}\r\nhello"
+                    + " BODYSTRUCTURE (\"AUDIO\" \"AMR\" NIL))\r\n"
+                    + "1 OK UID FETCH completed\r\n";
+
+    public void testParseFetchResponse() throws Exception {
+        assertFetchResponse(new ImapResponseParser(stream(FETCH_RESPONSE)));
+    }
+
+    public void testParseFetchResponse_oneBytePerRead() throws Exception {
+        // Every token crosses a refill of the parser's buffer.
+        assertFetchResponse(new ImapResponseParser(new OneByteInputStream(FETCH_RESPONSE)));
+    }
+
+    public void testParseFetchResponse_sharesPeekableInputStream() throws Exception {
+        PeekableInputStream in = new PeekableInputStream(stream(FETCH_RESPONSE + "tail"), 4);
+        assertFetchResponse(new ImapResponseParser(in));
+        assertEquals('t', in.read());
+    }
+
+    public void testReadUntil_endOfStream() throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(stream("no delimiter"));
+        try {
+            parser.readUntil('\n');
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testParseManyFetchResponses() throws Exception {
+        final int count = 5000;
+        StringBuilder sb = new StringBuilder();
+        for (int i = 1; i <= count; i++) {
+            sb.append("* ").append(i).append(" FETCH (UID ").append(i)
+                    .append(" FLAGS (\\Seen \\Flagged) INTERNALDATE \"14-Jan-2016 10:00:00 +0000\""
+                            + " BODY[HEADER.FIELDS (SUBJECT)] {18}\r\nSubject: voicemail"
+                            + " RFC822.SIZE 12345)\r\n");
+        }
+        sb.append("1 OK UID FETCH completed\r\n");
+        ImapResponseParser parser = new ImapResponseParser(stream(sb.toString()));
+
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 1; i <= count; i++) {
+            ImapResponse response = parser.readResponse(false);
+            assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+            ImapList fetchList = response.getListOrEmpty(2);
+            assertEquals(i, fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getNumberOrZero());
+            assertEquals("Subject: voicemail", fetchList.getKeyedStringOrEmpty(
+                    "BODY[HEADER.FIELDS (SUBJECT)]").getString());
+            assertEquals(12345, fetchList.getKeyedStringOrEmpty(
+                    ImapConstants.RFC822_SIZE).getNumberOrZero());
+            parser.destroyResponses();
+        }
+        assertTrue(parser.readResponse(false).isOk());
+        Log.d(TAG, "Parsed " + count + " FETCH responses in "
+                + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    public void testDestroyResponses_reusesElements() throws Exception {
+        ImapResponseParser parser = new ImapResponseParser(stream(
+                "* 1 FETCH (UID 7 FLAGS (\\Seen))\r\n* 2 FETCH (UID 8 FLAGS (\\Deleted))\r\n"));
+        ImapResponse first = parser.readResponse(false);
+        ImapList fetchList = first.getListOrEmpty(2);
+        ImapElement fetch = first.getElementOrNone(1);
+        assertEquals(7, fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getNumberOrZero());
+        parser.destroyResponses();
+
+        ImapResponse second = parser.readResponse(false);
+        // Well-known atoms are shared, and destroyed lists and strings are reused.
+        assertSame(fetch, second.getElementOrNone(1));
+        assertSame(fetchList, second.getListOrEmpty(2));
+        assertEquals(8, second.getListOrEmpty(2).getKeyedStringOrEmpty(ImapConstants.UID)
+                .getNumberOrZero());
+        assertTrue(second.getListOrEmpty(2).getKeyedListOrEmpty(ImapConstants.FLAGS)
+                .contains("\\Deleted"));
+        assertEquals("2", second.getStringOrEmpty(0).getString());
+        parser.destroyResponses();
+    }
+
+    public void testLiteralBudget_spillsToFileWhenUsedUp() throws Exception {
+        TempDirectory.setTempDirectory(InstrumentationRegistry.getTargetContext());
+        ImapLiteralBudget budget = new ImapLiteralBudget(10);
+        ImapResponseParser parser = new ImapResponseParser(stream(
+                "* 1 FETCH (BODY[1] {8}\r\n12345678)\r\n"
+                        + "* 2 FETCH (BODY[1] {8}\r\n87654321)\r\n"
+                        + "* 3 FETCH (BODY[1] {8}\r\nabcdefgh)\r\n"),
+                ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD, budget);
+
+        ImapString first = parser.readResponse(false).getListOrEmpty(2)
+                .getKeyedStringOrEmpty("BODY[1]");
+        assertTrue(first instanceof ImapMemoryLiteral);
+        assertEquals(8, budget.getUsed());
+
+        // Another connection's literals could be holding the rest of the budget.
+        ImapString second = parser.readResponse(false).getListOrEmpty(2)
+                .getKeyedStringOrEmpty("BODY[1]");
+        assertTrue(second instanceof ImapTempFileLiteral);
+        assertEquals("87654321", second.getString());
+        assertEquals(8, budget.getUsed());
+
+        parser.destroyResponses();
+        assertEquals(0, budget.getUsed());
+        assertFalse(((ImapTempFileLiteral) second).tempFileExistsForTest());
+
+        ImapString third = parser.readResponse(false).getListOrEmpty(2)
+                .getKeyedStringOrEmpty("BODY[1]");
+        assertTrue(third instanceof ImapMemoryLiteral);
+        assertEquals("abcdefgh", third.getString());
+        parser.destroyResponses();
+        assertEquals(0, budget.getUsed());
+    }
+
+    public void testLiteralBudget_releasedOnParseError() throws Exception {
+        ImapLiteralBudget budget = new ImapLiteralBudget(100);
+        ImapResponseParser parser = new ImapResponseParser(stream(
+                "* 1 FETCH (BODY[1] {8}\r\n12345678"),
+                ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD, budget);
+        try {
+            parser.readResponse(false);
+            fail("Expected IOException");
+        } catch (IOException expected) {
+        }
+        assertEquals(0, budget.getUsed());
+    }
+
+    public void testDefaultLiteralKeepInMemoryThreshold() {
+        int threshold = ImapLiteralBudget.getDefaultLiteralKeepInMemoryThreshold();
+        assertTrue(threshold > 0);
+        assertTrue(threshold <= ImapResponseParser.LITERAL_KEEP_IN_MEMORY_THRESHOLD);
+    }
+
+    public void testPeekableInputStream_atomTable() throws Exception {
+        String atom = new String("FETCH");
+        PeekableInputStream.AtomTable atoms = new PeekableInputStream.AtomTable("UID", atom);
+        boolean[] delimiters = new boolean[128];
+        delimiters[' '] = true;
+        PeekableInputStream in = new PeekableInputStream(stream("FETCH FETCHED FETCH "), 3);
+        assertSame(atom, in.readAsciiUntilAny(delimiters, atoms));
+        assertEquals(' ', in.read());
+        assertEquals("FETCHED", in.readAsciiUntilAny(delimiters, atoms));
+        assertEquals(' ', in.read());
+        assertSame(atom, in.readAsciiUntil(' ', atoms));
+    }
+
+    public void testPeekableInputStream_readAsciiUntilOrEnd() throws Exception {
+        PeekableInputStream in = new PeekableInputStream(stream("* OK\n* BYE"), 3);
+        assertEquals("* OK", in.readAsciiUntilOrEnd('\n'));
+        // The server may close the connection after a last line without a line break.
+        assertEquals("* BYE", in.readAsciiUntilOrEnd('\n'));
+        assertNull(in.readAsciiUntilOrEnd('\n'));
+    }
+
+    public void testPeekableInputStream_readIntoOffset() throws Exception {
+        PeekableInputStream in = new PeekableInputStream(stream("abc"));
+        assertEquals('a', in.peek());
+        byte[] buffer = new byte[5];
+        assertEquals(3, in.read(buffer, 2, 3));
+        assertEquals('a', buffer[2]);
+        assertEquals('c', buffer[4]);
+        assertEquals(0, buffer[0]);
+        assertEquals(-1, in.read(buffer, 0, 1));
+    }
+
+    public void testPeekableInputStream_readAsciiUntilAny() throws Exception {
+        boolean[] delimiters = new boolean[128];
+        delimiters[' '] = true;
+        PeekableInputStream in = new PeekableInputStream(stream("atom rest"), 2);
+        assertEquals("atom", in.readAsciiUntilAny(delimiters));
+        assertEquals(' ', in.read());
+        // No delimiter before the end of the stream.
+        assertNull(in.readAsciiUntilAny(delimiters));
+    }
+
+    private static void assertFetchResponse(ImapResponseParser parser) throws Exception {
+        ImapResponse response = parser.readResponse(false);
+        assertFalse(response.isTagged());
+        assertTrue(response.isDataResponse(1, ImapConstants.FETCH));
+        ImapList fetchList = response.getListOrEmpty(2);
+        assertEquals(7, fetchList.getKeyedStringOrEmpty(ImapConstants.UID).getNumberOrZero());
+        assertTrue(fetchList.getKeyedListOrEmpty(ImapConstants.FLAGS).contains("\\Seen"));
+        assertEquals("hello", fetchList.getKeyedStringOrEmpty("BODY[1.MIME]").getString());
+        ImapList structure = fetchList.getKeyedListOrEmpty(ImapConstants.BODYSTRUCTURE);
+        assertEquals("AMR", structure.getStringOrEmpty(1).getString());
+        assertTrue(structure.getStringOrEmpty(2).isEmpty());
+        parser.destroyResponses();
+
+        response = parser.readResponse(false);
+        assertTrue(response.isTagged());
+        assertTrue(response.isOk());
+        parser.destroyResponses();
+    }
+
+    private static InputStream stream(String s) {
+        return new ByteArrayInputStream(s.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    /** Returns at most one byte per read, like a slow network. */
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        OneByteInputStream(String s) {
+            super(s.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+}
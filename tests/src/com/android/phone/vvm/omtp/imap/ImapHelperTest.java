@@ -0,0 +1,375 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.phone.vvm.omtp.imap;
+
+import static org.mockito.Mockito.mock;
+
+import android.content.ComponentName;
+import android.net.Uri;
+import android.telecom.PhoneAccountHandle;
+import android.test.AndroidTestCase;
+import android.util.Base64;
+
+import com.android.phone.MockitoHelper;
+import com.android.phone.common.mail.store.FakeImapServer;
+import com.android.phone.common.mail.store.imap.ImapConstants;
+import com.android.phone.vvm.omtp.OmtpConstants;
+import com.android.phone.vvm.omtp.OmtpVvmCarrierConfigHelper;
+import com.android.phone.vvm.omtp.VisualVoicemailPreferences;
+import com.android.phone.vvm.omtp.fetch.VoicemailFetchedCallback;
+
+import org.mockito.MockitoAnnotations;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class ImapHelperTest extends AndroidTestCase {
+
+    private static final long UID_VALIDITY = 1;
+    private static final long HIGHEST_UID = 5;
+
+    private static final String PAYLOAD_UID = "7";
+    private static final String PAYLOAD_MIME_TYPE = "audio/amr";
+    /** Audio which takes more than one chunk once encoded. */
+    private static final byte[] AUDIO = new byte[ImapHelper.PAYLOAD_CHUNK_SIZE];
+    private static final String ENCODED_AUDIO;
+    private static final Pattern PARTIAL_FETCH = Pattern.compile(
+            "UID FETCH " + PAYLOAD_UID + " \\(UID BODY\\.PEEK\\[1\\]<(\\d+)\\.(\\d+)>\\)");
+
+    static {
+        for (int i = 0; i < AUDIO.length; i++) {
+            AUDIO[i] = (byte) i;
+        }
+        ENCODED_AUDIO = Base64.encodeToString(AUDIO, Base64.NO_WRAP);
+    }
+
+    /**
+     * Collects what each attempt to fetch a payload writes, rather than writing it to the
+     * voicemail provider.
+     */
+    private class FakeFetchedCallback extends VoicemailFetchedCallback {
+        final List<ByteArrayOutputStream> mContents = new ArrayList<>();
+        String mMimeType;
+
+        FakeFetchedCallback() {
+            super(getContext(), Uri.EMPTY, mPhoneAccount);
+        }
+
+        @Override
+        public OutputStream openVoicemailContentStream() {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            mContents.add(content);
+            return content;
+        }
+
+        @Override
+        public void setVoicemailContentWritten(String mimeType) {
+            mMimeType = mimeType;
+        }
+
+        @Override
+        public void onProgress(long bytesReceived, long totalBytes) {
+        }
+
+        byte[] getLastContent() {
+            return mContents.get(mContents.size() - 1).toByteArray();
+        }
+    }
+
+    // ClassLoader need to be replaced for mockito to work.
+    private MockitoHelper mMokitoHelper = new MockitoHelper();
+
+    private PhoneAccountHandle mPhoneAccount;
+    private FakeImapServer mServer;
+    /** The commands the server received, other than the ones to log in. */
+    private final List<String> mCommands = new ArrayList<>();
+    /** The offset of the chunk of {@link #ENCODED_AUDIO} the server fails to send, or -1. */
+    private int mFailedChunkOffset = -1;
+
+    @Override
+    public void setUp() throws Exception {
+        super.setUp();
+        mMokitoHelper.setUp(getContext(), getClass());
+        MockitoAnnotations.initMocks(this);
+        mPhoneAccount = new PhoneAccountHandle(new ComponentName(getContext(), getClass()),
+                getName());
+        deletePartialPayloads();
+    }
+
+    @Override
+    public void tearDown() throws Exception {
+        deletePartialPayloads();
+        mMokitoHelper.tearDown();
+        super.tearDown();
+    }
+
+    public void testFetchVoicemailDelta_fetchesVoicemailsMissingLocally() throws Exception {
+        ImapHelper helper = createImapHelper(UID_VALIDITY, "1 2 3 4 5");
+
+        // 3 was seen by the last sync, but never made it into the provider.
+        ImapHelper.VoicemailDelta delta = helper.fetchVoicemailDelta(localSourceData("1 2 4 5"));
+
+        assertNotNull(delta);
+        assertFalse(delta.isFullSync());
+        assertTrue(delta.isRemaining("3"));
+        assertFalse(delta.isRemaining("6"));
+        assertTrue(delta.getChangedReadStates().get("3"));
+        assertEquals(1, countStructureFetches());
+        assertTrue(getStructureFetch().startsWith(ImapConstants.UID_FETCH + " 3 ("));
+        finish(helper);
+    }
+
+    public void testFetchVoicemailDelta_nothingMissingLocally() throws Exception {
+        ImapHelper helper = createImapHelper(UID_VALIDITY, "1 2 4");
+
+        ImapHelper.VoicemailDelta delta = helper.fetchVoicemailDelta(localSourceData("1 2 4 5"));
+
+        assertNotNull(delta);
+        assertFalse(delta.isFullSync());
+        assertFalse(delta.isRemaining("5"));
+        // UIDNEXT shows that there is nothing new either.
+        assertEquals(0, countStructureFetches());
+        finish(helper);
+    }
+
+    public void testFetchVoicemailDelta_uidValidityChanged() throws Exception {
+        ImapHelper helper = createImapHelper(UID_VALIDITY + 1, "1 2 3 4 5");
+
+        ImapHelper.VoicemailDelta delta = helper.fetchVoicemailDelta(localSourceData("1 2 4 5"));
+
+        assertNotNull(delta);
+        // The UIDs of the last sync no longer mean anything.
+        assertTrue(delta.isFullSync());
+        for (String command : mCommands) {
+            assertFalse(command, command.startsWith(ImapConstants.UID_SEARCH));
+        }
+        assertEquals(1, countStructureFetches());
+        assertTrue(getStructureFetch().startsWith(ImapConstants.UID_FETCH + " 1:* ("));
+
+        helper.commitSyncState(delta);
+        assertEquals(UID_VALIDITY + 1, new VisualVoicemailPreferences(getContext(), mPhoneAccount)
+                .getLong(ImapHelper.PREF_KEY_SYNC_UID_VALIDITY, 0));
+        finish(helper);
+    }
+
+    public void testFetchVoicemailPayload_resumesInterruptedDownload() throws Exception {
+        ImapHelper helper = createImapHelper(this::respondToPayloadFetch);
+        FakeFetchedCallback callback = new FakeFetchedCallback();
+
+        mFailedChunkOffset = ImapHelper.PAYLOAD_CHUNK_SIZE;
+        assertFalse(helper.fetchVoicemailPayload(callback, PAYLOAD_UID));
+        assertNull(callback.mMimeType);
+        File[] partialFiles = getPartialPayloadDirectory().listFiles();
+        assertEquals(1, partialFiles.length);
+        assertEquals(ImapHelper.PAYLOAD_CHUNK_SIZE, partialFiles[0].length());
+
+        mFailedChunkOffset = -1;
+        mCommands.clear();
+        assertTrue(helper.fetchVoicemailPayload(callback, PAYLOAD_UID));
+        // Only what the first attempt did not receive is fetched again.
+        assertEquals(ImapHelper.PAYLOAD_CHUNK_SIZE, getFirstChunkOffset());
+        assertEquals(PAYLOAD_MIME_TYPE, callback.mMimeType);
+        assertTrue(Arrays.equals(AUDIO, callback.getLastContent()));
+        assertFalse(partialFiles[0].exists());
+        finish(helper);
+    }
+
+    public void testFetchVoicemailPayload_dropsStalePartialPayloads() throws Exception {
+        ImapHelper helper = createImapHelper(this::respondToPayloadFetch);
+        FakeFetchedCallback callback = new FakeFetchedCallback();
+
+        mFailedChunkOffset = ImapHelper.PAYLOAD_CHUNK_SIZE;
+        assertFalse(helper.fetchVoicemailPayload(callback, PAYLOAD_UID));
+        File directory = getPartialPayloadDirectory();
+        File partialFile = directory.listFiles()[0];
+        File otherPartialFile = new File(directory, "other");
+        assertTrue(otherPartialFile.createNewFile());
+        long stale = System.currentTimeMillis() - ImapHelper.PARTIAL_PAYLOAD_MAX_AGE_MILLIS
+                - 60 * 1000;
+        assertTrue(partialFile.setLastModified(stale));
+        assertTrue(otherPartialFile.setLastModified(stale));
+
+        mFailedChunkOffset = -1;
+        mCommands.clear();
+        assertTrue(helper.fetchVoicemailPayload(callback, PAYLOAD_UID));
+        // The download starts over rather than resuming from the stale file.
+        assertEquals(0, getFirstChunkOffset());
+        assertTrue(Arrays.equals(AUDIO, callback.getLastContent()));
+        assertFalse(otherPartialFile.exists());
+        assertEquals(0, directory.listFiles().length);
+        finish(helper);
+    }
+
+    /**
+     * Creates a helper for a server whose inbox has the given UIDVALIDITY and undeleted UIDs, and
+     * the state of a previous sync which saw UIDs up to {@link #HIGHEST_UID}. Only UID 3 is
+     * flagged as seen, and fetching the structures returns no messages.
+     */
+    private ImapHelper createImapHelper(final long uidValidity, final String undeletedUids)
+            throws Exception {
+        return createImapHelper((tag, command) -> {
+            if (command.startsWith(ImapConstants.SELECT)) {
+                return respondToSelect(tag, uidValidity);
+            }
+            if (command.startsWith(ImapConstants.UID_SEARCH)) {
+                return "* SEARCH " + undeletedUids + "\r\n" + tag + " OK\r\n";
+            }
+            if (command.startsWith(ImapConstants.UID_FETCH) && !isStructureFetch(command)) {
+                return "* 3 FETCH (UID 3 FLAGS (\\Seen))\r\n" + tag + " OK\r\n";
+            }
+            return tag + " OK\r\n";
+        });
+    }
+
+    /** Answers a single command. */
+    private interface CommandResponder {
+        String respond(String tag, String command);
+    }
+
+    /**
+     * Creates a helper for a server which answers each command with {@code responder}, and
+     * records the commands in {@link #mCommands}.
+     */
+    private ImapHelper createImapHelper(final CommandResponder responder) throws Exception {
+        mServer = new FakeImapServer(1, commands -> {
+            String tag = commands.get(0)[0];
+            String command = commands.get(0)[1];
+            mCommands.add(command);
+            return responder.respond(tag, command);
+        });
+        mServer.start();
+
+        new VisualVoicemailPreferences(getContext(), mPhoneAccount).edit()
+                .putString(OmtpConstants.IMAP_USER_NAME, "user")
+                .putString(OmtpConstants.IMAP_PASSWORD, "password")
+                .putString(OmtpConstants.SERVER_ADDRESS, "127.0.0.1")
+                .putString(OmtpConstants.IMAP_PORT, Integer.toString(mServer.getPort()))
+                .putLong(ImapHelper.PREF_KEY_SYNC_UID_VALIDITY, UID_VALIDITY)
+                .putLong(ImapHelper.PREF_KEY_SYNC_HIGHEST_UID, HIGHEST_UID)
+                .apply();
+        return new ImapHelper(getContext(), mock(OmtpVvmCarrierConfigHelper.class),
+                mPhoneAccount, null, null);
+    }
+
+    private void finish(ImapHelper helper) throws Exception {
+        // Log out rather than handing the connection to the pool, so the server finishes.
+        helper.connect().sendCommand(ImapConstants.LOGOUT, false);
+        mServer.assertFinished();
+    }
+
+    /**
+     * Answers the commands to fetch the payload of {@link #PAYLOAD_UID}, whose audio is
+     * {@link #ENCODED_AUDIO}, failing the chunk at {@link #mFailedChunkOffset}.
+     */
+    private String respondToPayloadFetch(String tag, String command) {
+        if (command.startsWith(ImapConstants.SELECT)) {
+            return respondToSelect(tag, UID_VALIDITY);
+        }
+        if (command.startsWith(ImapConstants.UID_SEARCH)) {
+            return "* SEARCH " + PAYLOAD_UID + "\r\n" + tag + " OK\r\n";
+        }
+        if (isStructureFetch(command)) {
+            return "* 1 FETCH (UID " + PAYLOAD_UID + " FLAGS () BODYSTRUCTURE ((\"audio\" \"amr\""
+                    + " NIL NIL NIL \"base64\" " + ENCODED_AUDIO.length() + ") \"mixed\"))\r\n"
+                    + tag + " OK\r\n";
+        }
+        Matcher matcher = PARTIAL_FETCH.matcher(command);
+        if (!matcher.matches()) {
+            return tag + " OK\r\n";
+        }
+        int offset = Integer.parseInt(matcher.group(1));
+        int length = Integer.parseInt(matcher.group(2));
+        if (offset == mFailedChunkOffset) {
+            return tag + " NO Connection reset\r\n";
+        }
+        String chunk = ENCODED_AUDIO.substring(Math.min(offset, ENCODED_AUDIO.length()),
+                Math.min(offset + length, ENCODED_AUDIO.length()));
+        String value = chunk.isEmpty() ? "\"\"" : "{" + chunk.length() + "}\r\n" + chunk;
+        return String.format(Locale.US, "* 1 FETCH (UID %s BODY[1]<%d> %s)\r\n%s OK\r\n",
+                PAYLOAD_UID, offset, value, tag);
+    }
+
+    private static String respondToSelect(String tag, long uidValidity) {
+        return "* 5 EXISTS\r\n"
+                + "* OK [UIDVALIDITY " + uidValidity + "]\r\n"
+                + "* OK [UIDNEXT " + (HIGHEST_UID + 1) + "]\r\n"
+                + tag + " OK [READ-WRITE]\r\n";
+    }
+
+    /**
+     * @return the offset of the first chunk of the payload which was fetched.
+     */
+    private int getFirstChunkOffset() {
+        for (String command : mCommands) {
+            Matcher matcher = PARTIAL_FETCH.matcher(command);
+            if (matcher.matches()) {
+                return Integer.parseInt(matcher.group(1));
+            }
+        }
+        fail("No chunk fetched");
+        return -1;
+    }
+
+    private File getPartialPayloadDirectory() {
+        return new File(getContext().getCacheDir(), ImapHelper.PARTIAL_PAYLOAD_DIRECTORY);
+    }
+
+    private void deletePartialPayloads() {
+        File[] files = getPartialPayloadDirectory().listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+    }
+
+    private static Set<String> localSourceData(String uids) {
+        return new HashSet<>(Arrays.asList(uids.split(" ")));
+    }
+
+    private static boolean isStructureFetch(String command) {
+        return command.contains(ImapConstants.BODYSTRUCTURE);
+    }
+
+    private int countStructureFetches() {
+        int count = 0;
+        for (String command : mCommands) {
+            if (isStructureFetch(command)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private String getStructureFetch() {
+        for (String command : mCommands) {
+            if (isStructureFetch(command)) {
+                return command;
+            }
+        }
+        return null;
+    }
+}
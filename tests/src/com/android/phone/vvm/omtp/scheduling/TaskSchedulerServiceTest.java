@@ -19,13 +19,18 @@ package com.android.phone.vvm.omtp.scheduling;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
+import android.os.Message;
 import android.support.test.runner.AndroidJUnit4;
 
+import com.android.phone.Assert;
 import com.android.phone.vvm.omtp.scheduling.Task.TaskId;
+import com.android.phone.vvm.omtp.scheduling.TaskSchedulerService.WorkerThreadHandler;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.TimeoutException;
 
 @RunWith(AndroidJUnit4.class)
@@ -139,4 +144,109 @@ public class TaskSchedulerServiceTest extends TaskSchedulerServiceTestBase {
         verifyRanOnce(task1);
         verifyRanOnce(task2);
     }
+
+    @Test
+    public void testDifferentSubIdsRunConcurrently() {
+        HoldingMessageSender sender = new HoldingMessageSender();
+        mService.setMessageSenderForTest(sender);
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 0)));
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(2, 0)));
+        TestTask task3 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        TestTask task4 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 2)));
+
+        // task2 waits for task1, which has the same subId.
+        assertTrue(mService.runNextTask());
+        assertTrue(mService.runNextTask());
+        assertTrue(task1.onBeforeExecuteCounter.invokedOnce());
+        assertTrue(task2.onBeforeExecuteCounter.neverInvoked());
+        assertTrue(task3.onBeforeExecuteCounter.invokedOnce());
+        assertTrue(sender.heldMessages.size() == 2);
+        assertTrue(sender.heldMessages.get(0).getTarget().getLooper()
+                != sender.heldMessages.get(1).getTarget().getLooper());
+
+        // MAX_CONCURRENT_TASKS are running.
+        assertTrue(!mService.runNextTask());
+        verifyNotRan(task4);
+
+        sender.runHeldMessage(0);
+        verifyRanOnce(task1);
+        assertTrue(mService.runNextTask());
+        assertTrue(task2.onBeforeExecuteCounter.invokedOnce());
+        verifyNotRan(task4);
+
+        sender.runHeldMessage(0);
+        sender.runHeldMessage(0);
+        verifyRanOnce(task2);
+        verifyRanOnce(task3);
+        assertTrue(mService.runNextTask());
+        sender.runHeldMessage(0);
+        verifyRanOnce(task4);
+        assertTrue(!mService.runNextTask());
+    }
+
+    @Test
+    public void testReadyTaskNotBlockedByBusySubId() {
+        HoldingMessageSender sender = new HoldingMessageSender();
+        mService.setMessageSenderForTest(sender);
+        TestTask task1 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 0)));
+        TestTask task2 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(2, 0)));
+        TestTask task3 = (TestTask) submitTask(
+                putTaskId(TaskSchedulerService.createIntent(mTestContext, TestTask.class),
+                        new TaskId(1, 1)));
+        task3.readyInMilliseconds = 1000;
+
+        assertTrue(mService.runNextTask());
+        // task2 is ready but its subId is busy, task3 is not ready yet.
+        assertTrue(!mService.runNextTask());
+        task3.readyInMilliseconds = 0;
+        assertTrue(mService.runNextTask());
+        assertTrue(task3.onBeforeExecuteCounter.invokedOnce());
+        assertTrue(task2.onBeforeExecuteCounter.neverInvoked());
+
+        sender.runHeldMessage(0);
+        sender.runHeldMessage(0);
+        verifyRanOnce(task1);
+        verifyRanOnce(task3);
+        assertTrue(mService.runNextTask());
+        sender.runHeldMessage(0);
+        verifyRanOnce(task2);
+    }
+
+    /**
+     * Holds the tasks sent to the worker threads until {@link #runHeldMessage(int)} is called, so
+     * several tasks can be running at once.
+     */
+    private static class HoldingMessageSender extends TaskSchedulerService.MessageSender {
+
+        public final List<Message> heldMessages = new ArrayList<>();
+
+        @Override
+        public void send(Message message) {
+            if (message.getTarget() instanceof WorkerThreadHandler) {
+                heldMessages.add(message);
+                return;
+            }
+            Assert.setIsMainThreadForTesting(true);
+            message.getTarget().handleMessage(message);
+        }
+
+        public void runHeldMessage(int index) {
+            Message message = heldMessages.remove(index);
+            Assert.setIsMainThreadForTesting(false);
+            message.getTarget().handleMessage(message);
+            Assert.setIsMainThreadForTesting(true);
+        }
+    }
 }
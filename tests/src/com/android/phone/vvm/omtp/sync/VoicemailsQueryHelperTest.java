@@ -0,0 +1,228 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.phone.vvm.omtp.sync;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import android.content.ContentProvider;
+import android.content.ContentProviderOperation;
+import android.content.ContentProviderResult;
+import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
+import android.content.Context;
+import android.content.ContextWrapper;
+import android.content.OperationApplicationException;
+import android.database.Cursor;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.provider.VoicemailContract;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.Voicemail;
+import android.test.mock.MockContentResolver;
+import android.util.Log;
+
+import com.android.TelephonyTestBase;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+
+/**
+ * Compares the binder calls made by {@link VoicemailsQueryHelper.Batch} with the per-row writes
+ * against a local fake voicemail provider.
+ */
+@RunWith(AndroidJUnit4.class)
+public class VoicemailsQueryHelperTest extends TelephonyTestBase {
+
+    private static final String TAG = "VoicemailsQueryHelperTest";
+    private static final int VOICEMAIL_COUNT = 200;
+
+    private FakeVoicemailProvider mProvider;
+    private VoicemailsQueryHelper mQueryHelper;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mProvider = new FakeVoicemailProvider();
+        mProvider.attachInfo(mContext, null);
+        final MockContentResolver resolver = new MockContentResolver();
+        resolver.addProvider(VoicemailContract.AUTHORITY, mProvider);
+        mQueryHelper = new VoicemailsQueryHelper(new ContextWrapper(mContext) {
+            @Override
+            public ContentResolver getContentResolver() {
+                return resolver;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        super.tearDown();
+    }
+
+    @Test
+    public void testBatchReconcileUsesOneCall() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
+        for (int i = 0; i < VOICEMAIL_COUNT; i++) {
+            Voicemail voicemail = createVoicemail(i);
+            if (i % 4 == 0) {
+                batch.delete(voicemail);
+            } else if (i % 4 == 1) {
+                batch.markRead(voicemail);
+            } else if (i % 4 == 2) {
+                batch.updateWithTranscription(voicemail, "transcription " + i);
+            } else {
+                batch.insert(Voicemail.createForInsertion(i, "5550100")
+                        .setSourceData(Integer.toString(i)).build());
+            }
+        }
+        assertTrue(batch.apply());
+        long batchNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(1, mProvider.mApplyBatchCalls);
+        assertEquals(1, mProvider.mDeleteCalls);
+        assertEquals(VOICEMAIL_COUNT / 2, mProvider.mUpdateCalls);
+        assertEquals(VOICEMAIL_COUNT / 4, mProvider.mInsertCalls);
+        assertEquals(1, mProvider.getTotalCalls());
+        Log.i(TAG, VOICEMAIL_COUNT + " writes batched: " + mProvider.getTotalCalls()
+                + " calls, " + batchNanos / 1000 + "us");
+    }
+
+    @Test
+    public void testPerRowReconcileUsesOneCallPerVoicemail() {
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < VOICEMAIL_COUNT; i++) {
+            mQueryHelper.updateWithTranscription(createVoicemail(i), "transcription " + i);
+        }
+        long perRowNanos = SystemClock.elapsedRealtimeNanos() - start;
+
+        assertEquals(VOICEMAIL_COUNT, mProvider.getTotalCalls());
+        Log.i(TAG, VOICEMAIL_COUNT + " writes per row: " + mProvider.getTotalCalls()
+                + " calls, " + perRowNanos / 1000 + "us");
+    }
+
+    @Test
+    public void testBatchReturnsInsertedUris() {
+        VoicemailsQueryHelper.Batch batch = mQueryHelper.newBatch();
+        int first = batch.insert(Voicemail.createForInsertion(1, "5550100")
+                .setSourceData("1").build());
+        int second = batch.insert(Voicemail.createForInsertion(2, "5550101")
+                .setSourceData("2").build());
+        assertTrue(batch.apply());
+
+        assertNotNull(batch.getInsertedUri(first));
+        assertNotNull(batch.getInsertedUri(second));
+        assertEquals(1, ContentUris.parseId(batch.getInsertedUri(first)));
+        assertEquals(2, ContentUris.parseId(batch.getInsertedUri(second)));
+    }
+
+    @Test
+    public void testMarkCleanListIsBatched() {
+        ArrayList<Voicemail> voicemails = new ArrayList<>();
+        for (int i = 0; i < VOICEMAIL_COUNT; i++) {
+            voicemails.add(createVoicemail(i));
+        }
+        assertEquals(VOICEMAIL_COUNT, mQueryHelper.markCleanInDatabase(voicemails));
+        assertEquals(1, mProvider.mApplyBatchCalls);
+        assertEquals(VOICEMAIL_COUNT, mProvider.mUpdateCalls);
+    }
+
+    private static Voicemail createVoicemail(int id) {
+        return Voicemail.createForUpdate(id, Integer.toString(id)).build();
+    }
+
+    /**
+     * Counts the calls it receives. Every call except those made from
+     * {@link #applyBatch} would be a separate binder transaction with the real provider.
+     */
+    private static class FakeVoicemailProvider extends ContentProvider {
+        int mApplyBatchCalls;
+        int mInsertCalls;
+        int mUpdateCalls;
+        int mDeleteCalls;
+        private boolean mInBatch;
+        private int mDirectCalls;
+        private long mNextId = 1;
+
+        int getTotalCalls() {
+            return mApplyBatchCalls + mDirectCalls;
+        }
+
+        @Override
+        public boolean onCreate() {
+            return true;
+        }
+
+        @Override
+        public ContentProviderResult[] applyBatch(ArrayList<ContentProviderOperation> operations)
+                throws OperationApplicationException {
+            mApplyBatchCalls++;
+            mInBatch = true;
+            try {
+                return super.applyBatch(operations);
+            } finally {
+                mInBatch = false;
+            }
+        }
+
+        @Override
+        public Cursor query(Uri uri, String[] projection, String selection,
+                String[] selectionArgs, String sortOrder) {
+            return null;
+        }
+
+        @Override
+        public String getType(Uri uri) {
+            return null;
+        }
+
+        @Override
+        public Uri insert(Uri uri, ContentValues values) {
+            onCall();
+            mInsertCalls++;
+            return ContentUris.withAppendedId(uri, mNextId++);
+        }
+
+        @Override
+        public int delete(Uri uri, String selection, String[] selectionArgs) {
+            onCall();
+            mDeleteCalls++;
+            return 1;
+        }
+
+        @Override
+        public int update(Uri uri, ContentValues values, String selection,
+                String[] selectionArgs) {
+            onCall();
+            mUpdateCalls++;
+            return 1;
+        }
+
+        private void onCall() {
+            if (!mInBatch) {
+                mDirectCalls++;
+            }
+        }
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import android.net.Uri;
+import android.os.SystemClock;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.ConferenceParticipant;
+import android.telecom.Connection;
+import android.util.Log;
+
+import com.android.TelephonyTestBase;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the ConferenceParticipantReconciler, which works out how the participants of a conference
+ * changed between conference event package updates.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ConferenceParticipantReconcilerTest extends TelephonyTestBase {
+
+    private static final String LOG_TAG = "ConferenceParticipantReconcilerTest";
+    private static final int LARGE_CONFERENCE_SIZE = 50;
+    private static final int BENCHMARK_UPDATES = 10000;
+
+    /**
+     * Records the changes it is told about, and names each participant by its handle. Like
+     * ImsConference, forgets participants as soon as they disconnect.
+     */
+    private class RecordingListener
+            implements ConferenceParticipantReconciler.Listener<String> {
+        final List<String> mEvents = new ArrayList<>();
+        String mIgnoredHandle;
+
+        @Override
+        public String onParticipantAdded(ConferenceParticipant participant) {
+            String handle = participant.getHandle().toString();
+            if (handle.equals(mIgnoredHandle)) {
+                return null;
+            }
+            mEvents.add("add " + handle);
+            return handle;
+        }
+
+        @Override
+        public void onParticipantStateChanged(String participant, int state) {
+            mEvents.add(participant + " " + Connection.stateToString(state));
+            if (state == Connection.STATE_DISCONNECTED) {
+                Uri handle = Uri.parse(participant);
+                mReconciler.remove(handle, handle);
+            }
+        }
+
+        @Override
+        public void onParticipantRemoved(String participant) {
+            mEvents.add("remove " + participant);
+        }
+    }
+
+    private ConferenceParticipantReconciler<String> mReconciler;
+    private RecordingListener mListener;
+
+    @Before
+    public void setUp() throws Exception {
+        super.setUp();
+        mReconciler = new ConferenceParticipantReconciler<>();
+        mListener = new RecordingListener();
+    }
+
+    @Test
+    public void testAddUpdateAndRemove() {
+        assertTrue(mReconciler.update(Arrays.asList(
+                participant("tel:1", Connection.STATE_DIALING),
+                participant("tel:2", Connection.STATE_ACTIVE)), mListener));
+        // New participants get their state once all of them have been added.
+        assertEvents("add tel:1", "add tel:2", "tel:1 DIALING", "tel:2 ACTIVE");
+
+        assertFalse(mReconciler.update(Arrays.asList(
+                participant("tel:1", Connection.STATE_ACTIVE),
+                participant("tel:2", Connection.STATE_ACTIVE)), mListener));
+        assertEvents("tel:1 ACTIVE");
+
+        assertTrue(mReconciler.update(Arrays.asList(
+                participant("tel:2", Connection.STATE_HOLDING),
+                participant("tel:3", Connection.STATE_ACTIVE)), mListener));
+        assertEvents("tel:2 HOLDING", "add tel:3", "tel:3 ACTIVE", "remove tel:1");
+        assertEquals(2, mReconciler.size());
+    }
+
+    @Test
+    public void testParticipantRemovedWhileOtherDisconnects() {
+        mReconciler.update(Arrays.asList(
+                participant("tel:1", Connection.STATE_ACTIVE),
+                participant("tel:2", Connection.STATE_ACTIVE)), mListener);
+        mListener.mEvents.clear();
+
+        // tel:1 is forgotten by the listener as it disconnects, and tel:2 has left.
+        assertTrue(mReconciler.update(Arrays.asList(
+                participant("tel:1", Connection.STATE_DISCONNECTED),
+                participant("tel:3", Connection.STATE_ACTIVE)), mListener));
+        assertEvents("tel:1 DISCONNECTED", "add tel:3", "tel:3 ACTIVE", "remove tel:2");
+        assertEquals(Arrays.asList("tel:3"), mReconciler.getParticipants());
+    }
+
+    @Test
+    public void testUnchangedUpdateReportsNothing() {
+        List<ConferenceParticipant> participants = largeConference(Connection.STATE_ACTIVE);
+        mReconciler.update(participants, mListener);
+        mListener.mEvents.clear();
+
+        assertFalse(mReconciler.update(largeConference(Connection.STATE_ACTIVE), mListener));
+        assertEvents();
+    }
+
+    @Test
+    public void testParticipantsWithSameHandleDifferentEndpoints() {
+        mReconciler.update(Arrays.asList(
+                participant("tel:1", "sip:a", Connection.STATE_ACTIVE),
+                participant("tel:1", "sip:b", Connection.STATE_ACTIVE)), mListener);
+        assertEquals(2, mReconciler.size());
+
+        assertEquals("tel:1", mReconciler.remove(Uri.parse("tel:1"), Uri.parse("sip:a")));
+        assertNull(mReconciler.remove(Uri.parse("tel:1"), Uri.parse("sip:a")));
+        assertEquals(1, mReconciler.size());
+    }
+
+    @Test
+    public void testIgnoredParticipantOfferedAgain() {
+        mListener.mIgnoredHandle = "tel:host";
+        mReconciler.update(Arrays.asList(
+                participant("tel:host", Connection.STATE_ACTIVE)), mListener);
+        assertTrue(mReconciler.isEmpty());
+        assertEvents();
+
+        mListener.mIgnoredHandle = null;
+        assertTrue(mReconciler.update(Arrays.asList(
+                participant("tel:host", Connection.STATE_ACTIVE)), mListener));
+        assertEvents("add tel:host", "tel:host ACTIVE");
+    }
+
+    /**
+     * Benchmarks a large conference receiving a rapid stream of conference event packages, in
+     * which one participant toggles between active and held.
+     */
+    @Test
+    public void testBenchmarkLargeConferenceRapidUpdates() {
+        List<ConferenceParticipant> active = largeConference(Connection.STATE_ACTIVE);
+        List<ConferenceParticipant> oneHeld = largeConference(Connection.STATE_ACTIVE);
+        oneHeld.set(LARGE_CONFERENCE_SIZE / 2,
+                participant("tel:" + LARGE_CONFERENCE_SIZE / 2, Connection.STATE_HOLDING));
+        mReconciler.update(active, mListener);
+        mListener.mEvents.clear();
+
+        long start = SystemClock.elapsedRealtimeNanos();
+        for (int i = 0; i < BENCHMARK_UPDATES; i++) {
+            assertFalse(mReconciler.update(i % 2 == 0 ? oneHeld : active, mListener));
+        }
+        long elapsed = SystemClock.elapsedRealtimeNanos() - start;
+        Log.i(LOG_TAG, "Applied " + BENCHMARK_UPDATES + " updates of " + LARGE_CONFERENCE_SIZE
+                + " participants in " + elapsed / 1000000 + " ms, "
+                + elapsed / BENCHMARK_UPDATES + " ns per update");
+
+        // Only the participant whose state changed is reported.
+        assertEquals(BENCHMARK_UPDATES, mListener.mEvents.size());
+        assertEquals(LARGE_CONFERENCE_SIZE, mReconciler.size());
+    }
+
+    private void assertEvents(String... events) {
+        assertEquals(Arrays.asList(events), mListener.mEvents);
+        mListener.mEvents.clear();
+    }
+
+    private static List<ConferenceParticipant> largeConference(int state) {
+        List<ConferenceParticipant> participants = new ArrayList<>(LARGE_CONFERENCE_SIZE);
+        for (int i = 0; i < LARGE_CONFERENCE_SIZE; i++) {
+            participants.add(participant("tel:" + i, state));
+        }
+        return participants;
+    }
+
+    private static ConferenceParticipant participant(String handle, int state) {
+        return participant(handle, handle, state);
+    }
+
+    private static ConferenceParticipant participant(String handle, String endpoint, int state) {
+        return new ConferenceParticipant(Uri.parse(handle), null /* displayName */,
+                Uri.parse(endpoint), state);
+    }
+}
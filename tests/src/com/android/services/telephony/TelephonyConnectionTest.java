@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License
+ */
+
+package com.android.services.telephony;
+
+import android.net.Uri;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.telecom.ConferenceParticipant;
+import android.telecom.Connection;
+import android.telecom.VideoProfile;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests how TelephonyConnection batches the changes reported by its original connection.
+ */
+@RunWith(AndroidJUnit4.class)
+public class TelephonyConnectionTest {
+
+    private static class TestTelephonyConnection extends TelephonyConnection {
+        TestTelephonyConnection() {
+            super(null /* originalConnection */, "TC@1");
+        }
+
+        @Override
+        public TelephonyConnection cloneConnection() {
+            return new TestTelephonyConnection();
+        }
+    }
+
+    private TelephonyConnection mConnection;
+    private com.android.internal.telephony.Connection.Listener mOriginalConnectionListener;
+    /** What Telecom was told, in order. Only accessed from the main thread. */
+    private final List<String> mEvents = new ArrayList<>();
+
+    @Before
+    public void setUp() throws Exception {
+        // The connection handles the changes on the thread which created it.
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            mConnection = new TestTelephonyConnection();
+            mConnection.addConnectionListener(new Connection.Listener() {
+                @Override
+                public void onVideoStateChanged(Connection c, int videoState) {
+                    mEvents.add("video " + videoState);
+                }
+
+                @Override
+                public void onConferenceParticipantsChanged(Connection c,
+                        List<ConferenceParticipant> participants) {
+                    mEvents.add("participants " + participants.size());
+                }
+
+                @Override
+                public void onConferenceStarted() {
+                    mEvents.add("conference started");
+                }
+            });
+        });
+        mOriginalConnectionListener = mConnection.getOriginalConnectionListener();
+    }
+
+    @Test
+    public void testChangesOfOneKindAreCoalesced() {
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_TX_ENABLED);
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_BIDIRECTIONAL);
+
+        assertEvents("video " + VideoProfile.STATE_BIDIRECTIONAL);
+    }
+
+    @Test
+    public void testChangesAreAppliedInReportedOrder() {
+        mOriginalConnectionListener.onConferenceParticipantsChanged(participants(2));
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_BIDIRECTIONAL);
+
+        assertEvents("participants 2", "video " + VideoProfile.STATE_BIDIRECTIONAL);
+    }
+
+    @Test
+    public void testRepeatedChangeIsAppliedInPositionOfLatestReport() {
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_TX_ENABLED);
+        mOriginalConnectionListener.onConferenceParticipantsChanged(participants(2));
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_BIDIRECTIONAL);
+
+        assertEvents("participants 2", "video " + VideoProfile.STATE_BIDIRECTIONAL);
+    }
+
+    @Test
+    public void testMultipartyChangeClosesBatch() {
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_TX_ENABLED);
+        mOriginalConnectionListener.onMultipartyStateChanged(true);
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_BIDIRECTIONAL);
+
+        assertEvents("video " + VideoProfile.STATE_TX_ENABLED, "conference started",
+                "video " + VideoProfile.STATE_BIDIRECTIONAL);
+    }
+
+    @Test
+    public void testPreciseCallStateChangeClosesBatch() {
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_TX_ENABLED);
+        mConnection.getHandler().sendEmptyMessage(
+                TelephonyConnection.MSG_PRECISE_CALL_STATE_CHANGED);
+        mOriginalConnectionListener.onVideoStateChanged(VideoProfile.STATE_BIDIRECTIONAL);
+
+        // The second change is not folded into the batch queued before the state change.
+        assertEvents("video " + VideoProfile.STATE_TX_ENABLED,
+                "video " + VideoProfile.STATE_BIDIRECTIONAL);
+    }
+
+    /**
+     * Waits for the main thread to handle the changes queued so far, and checks what Telecom was
+     * told about them.
+     */
+    private void assertEvents(String... events) {
+        final List<String> applied = new ArrayList<>();
+        InstrumentationRegistry.getInstrumentation().runOnMainSync(() -> {
+            applied.addAll(mEvents);
+            mEvents.clear();
+        });
+        assertEquals(Arrays.asList(events), applied);
+    }
+
+    private static List<ConferenceParticipant> participants(int count) {
+        List<ConferenceParticipant> participants = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            Uri handle = Uri.parse("tel:" + i);
+            participants.add(new ConferenceParticipant(handle, null /* displayName */, handle,
+                    Connection.STATE_ACTIVE));
+        }
+        return participants;
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.os.SystemClock;
+import android.util.Base64;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link Base64InputStream} decodes exactly like the original byte at a time
+ * implementation, malformed input included.
+ */
+public class Base64InputStreamTest extends TestCase {
+
+    private static final String TAG = "Base64InputStreamTest";
+
+    private static final int[] READ_SIZES = {0, 1, 2, 3, 5, 4096, 65536};
+
+    public void testWellFormed() throws Exception {
+        assertDecodes("");
+        assertDecodes("QQ==");
+        assertDecodes("QUI=");
+        assertDecodes("QUJD");
+        assertDecodes("QUJDRA==\r\n");
+        assertDecodes("TWFu\r\nTWFu\r\n");
+    }
+
+    public void testMalformed() throws Exception {
+        assertDecodes("=");
+        assertDecodes("QUJD=");
+        assertDecodes("QUJDR=");
+        assertDecodes("QUJDRE=QUJD");
+        assertDecodes("QUJ");
+        assertDecodes("Q!U@J#D$\u00ff");
+        assertDecodes("QUJD====");
+    }
+
+    public void testRandom() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(5000)];
+            random.nextBytes(data);
+            byte[] encoded = Base64.encode(data, Base64.DEFAULT);
+            // Corrupt some of them, including with early padding.
+            if (i % 2 == 1 && encoded.length > 0) {
+                for (int j = random.nextInt(4); j >= 0; j--) {
+                    encoded[random.nextInt(encoded.length)] = (byte) random.nextInt(256);
+                }
+                encoded[random.nextInt(encoded.length)] = '=';
+            }
+            assertDecodes(encoded);
+            if (i % 2 == 0) {
+                assertTrue(Arrays.equals(data, decode(new Base64InputStream(
+                        new ByteArrayInputStream(encoded)), 4096)));
+            }
+        }
+    }
+
+    public void testDecodeLargeAttachment() throws Exception {
+        byte[] data = new byte[4 * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        byte[] encoded = Base64.encode(data, Base64.DEFAULT);
+
+        long start = SystemClock.elapsedRealtime();
+        byte[] legacy =
+                decode(new LegacyBase64InputStream(new ByteArrayInputStream(encoded)), 0);
+        long legacyMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        byte[] decoded = decode(new Base64InputStream(new ByteArrayInputStream(encoded)), 16384);
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        assertTrue(Arrays.equals(data, legacy));
+        assertTrue(Arrays.equals(data, decoded));
+        Log.d(TAG, "Decoded " + data.length + " bytes in " + millis + "ms, byte at a time: "
+                + legacyMillis + "ms");
+    }
+
+    private static void assertDecodes(String encoded) throws IOException {
+        assertDecodes(encoded.getBytes("ISO-8859-1"));
+    }
+
+    private static void assertDecodes(byte[] encoded) throws IOException {
+        byte[] expected =
+                decode(new LegacyBase64InputStream(new ByteArrayInputStream(encoded)), 0);
+        for (int readSize : READ_SIZES) {
+            byte[] actual = decode(new Base64InputStream(new OneByteInputStream(encoded)),
+                    readSize);
+            assertTrue("Read size " + readSize, Arrays.equals(expected, actual));
+            actual = decode(new Base64InputStream(new ByteArrayInputStream(encoded)), readSize);
+            assertTrue("Read size " + readSize, Arrays.equals(expected, actual));
+        }
+    }
+
+    /**
+     * @param readSize the size of bulk reads, or 0 to read one byte at a time.
+     */
+    private static byte[] decode(InputStream in, int readSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (readSize == 0) {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } else {
+            byte[] buffer = new byte[readSize + 2];
+            int count;
+            // Use an offset to check that it is honored.
+            while ((count = in.read(buffer, 2, readSize)) != -1) {
+                assertTrue(count > 0);
+                out.write(buffer, 2, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns at most one byte per read, like a slow network. */
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        OneByteInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    /** The byte at a time implementation {@link Base64InputStream} replaced. */
+    private static class LegacyBase64InputStream extends InputStream {
+        private final InputStream s;
+        private int outCount = 0;
+        private int outIndex = 0;
+        private final int[] outputBuffer = new int[3];
+        private final byte[] inputBuffer = new byte[4];
+        private boolean done = false;
+
+        LegacyBase64InputStream(InputStream s) {
+            this.s = s;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (outIndex == outCount) {
+                fillBuffer();
+                if (outIndex == outCount) {
+                    return -1;
+                }
+            }
+            return outputBuffer[outIndex++];
+        }
+
+        private void fillBuffer() throws IOException {
+            outCount = 0;
+            outIndex = 0;
+            int inCount = 0;
+            int i;
+            while (!done) {
+                switch (i = s.read()) {
+                    case -1:
+                        return;
+                    case '=':
+                        done = true;
+                        decodeAndEnqueue(inCount);
+                        return;
+                    default:
+                        byte sX = Base64InputStreamTest.translate(i);
+                        if (sX < 0) continue;
+                        inputBuffer[inCount++] = sX;
+                        if (inCount == 4) {
+                            decodeAndEnqueue(inCount);
+                            return;
+                        }
+                        break;
+                }
+            }
+        }
+
+        private void decodeAndEnqueue(int len) {
+            int accum = 0;
+            accum |= inputBuffer[0] << 18;
+            accum |= inputBuffer[1] << 12;
+            accum |= inputBuffer[2] << 6;
+            accum |= inputBuffer[3];
+            if (len == 4) {
+                outputBuffer[0] = (accum >> 16) & 0xFF;
+                outputBuffer[1] = (accum >> 8) & 0xFF;
+                outputBuffer[2] = (accum) & 0xFF;
+                outCount = 3;
+            } else if (len == 3) {
+                outputBuffer[0] = (accum >> 16) & 0xFF;
+                outputBuffer[1] = (accum >> 8) & 0xFF;
+                outCount = 2;
+            } else {
+                outputBuffer[0] = (accum >> 16) & 0xFF;
+                outCount = 1;
+            }
+        }
+    }
+
+    private static byte translate(int c) {
+        if (c >= 'A' && c <= 'Z') return (byte) (c - 'A');
+        if (c >= 'a' && c <= 'z') return (byte) (c - 'a' + 26);
+        if (c >= '0' && c <= '9') return (byte) (c - '0' + 52);
+        if (c == '+') return 62;
+        if (c == '/') return 63;
+        return -1;
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * Copyright (C) 2016 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.james.mime4j.decoder;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks that {@link QuotedPrintableInputStream} decodes exactly like the original byte at a
+ * time implementation, malformed input included.
+ */
+public class QuotedPrintableInputStreamTest extends TestCase {
+
+    private static final String TAG = "QuotedPrintableInputStreamTest";
+
+    private static final int[] READ_SIZES = {0, 1, 2, 3, 5, 4096, 65536};
+
+    /** Bytes which drive the decoder through all of its states. */
+    private static final byte[] ALPHABET =
+            "= \t\r\nAf09zG!\u00ff".getBytes(StandardCharsets.ISO_8859_1);
+
+    public void testWellFormed() throws Exception {
+        assertDecodes("");
+        assertDecodes("plain text");
+        assertDecodes("caf=C3=A9 =e2=82=ac");
+        assertDecodes("soft=\r\nbreak");
+        assertDecodes("padding   \r\nremoved\t \r\n");
+        assertDecodes("padding before end   ");
+        assertDecodes("kept   inside");
+    }
+
+    public void testMalformed() throws Exception {
+        assertDecodes("==41");
+        assertDecodes("=G1");
+        assertDecodes("=4G");
+        assertDecodes("=\rX");
+        assertDecodes("=\n");
+        assertDecodes("=  \r\nsoft break with padding");
+        assertDecodes("= x");
+        assertDecodes("trailing =");
+        assertDecodes("trailing =4");
+        assertDecodes("trailing =\r");
+    }
+
+    public void testRandom() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            byte[] encoded = new byte[random.nextInt(300)];
+            for (int j = 0; j < encoded.length; j++) {
+                encoded[j] = ALPHABET[random.nextInt(ALPHABET.length)];
+            }
+            assertDecodes(encoded);
+        }
+    }
+
+    public void testLongWhitespace() throws Exception {
+        byte[] encoded = new byte[10000];
+        Arrays.fill(encoded, (byte) ' ');
+        encoded[encoded.length - 1] = 'x';
+        assertDecodes(encoded);
+        encoded[encoded.length - 1] = '\n';
+        assertDecodes(encoded);
+    }
+
+    public void testDecodeLargeAttachment() throws Exception {
+        byte[] data = new byte[2 * 1024 * 1024];
+        new Random(0).nextBytes(data);
+        byte[] encoded = encode(data);
+
+        long start = SystemClock.elapsedRealtime();
+        byte[] legacy = decode(
+                new LegacyQuotedPrintableInputStream(new ByteArrayInputStream(encoded)), 0);
+        long legacyMillis = SystemClock.elapsedRealtime() - start;
+
+        start = SystemClock.elapsedRealtime();
+        byte[] decoded = decode(
+                new QuotedPrintableInputStream(new ByteArrayInputStream(encoded)), 16384);
+        long millis = SystemClock.elapsedRealtime() - start;
+
+        assertTrue(Arrays.equals(data, legacy));
+        assertTrue(Arrays.equals(data, decoded));
+        Log.d(TAG, "Decoded " + data.length + " bytes in " + millis + "ms, byte at a time: "
+                + legacyMillis + "ms");
+    }
+
+    private static byte[] encode(byte[] data) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        int lineLength = 0;
+        for (byte b : data) {
+            int c = b & 0xFF;
+            if (c >= 33 && c <= 126 && c != '=') {
+                out.write(c);
+                lineLength++;
+            } else {
+                out.write('=');
+                out.write(Character.toUpperCase(Character.forDigit(c >> 4, 16)));
+                out.write(Character.toUpperCase(Character.forDigit(c & 0xF, 16)));
+                lineLength += 3;
+            }
+            if (lineLength >= 72) {
+                out.write('=');
+                out.write('\r');
+                out.write('\n');
+                lineLength = 0;
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertDecodes(String encoded) throws IOException {
+        assertDecodes(encoded.getBytes("ISO-8859-1"));
+    }
+
+    private static void assertDecodes(byte[] encoded) throws IOException {
+        byte[] expected = decode(
+                new LegacyQuotedPrintableInputStream(new ByteArrayInputStream(encoded)), 0);
+        for (int readSize : READ_SIZES) {
+            byte[] actual = decode(
+                    new QuotedPrintableInputStream(new OneByteInputStream(encoded)), readSize);
+            assertTrue("Read size " + readSize, Arrays.equals(expected, actual));
+            actual = decode(
+                    new QuotedPrintableInputStream(new ByteArrayInputStream(encoded)), readSize);
+            assertTrue("Read size " + readSize, Arrays.equals(expected, actual));
+        }
+    }
+
+    /**
+     * @param readSize the size of bulk reads, or 0 to read one byte at a time.
+     */
+    private static byte[] decode(InputStream in, int readSize) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if (readSize == 0) {
+            int b;
+            while ((b = in.read()) != -1) {
+                out.write(b);
+            }
+        } else {
+            byte[] buffer = new byte[readSize + 2];
+            int count;
+            // Use an offset to check that it is honored.
+            while ((count = in.read(buffer, 2, readSize)) != -1) {
+                assertTrue(count > 0);
+                out.write(buffer, 2, count);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /** Returns at most one byte per read, like a slow network. */
+    private static class OneByteInputStream extends ByteArrayInputStream {
+        OneByteInputStream(byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1));
+        }
+    }
+
+    /** The byte at a time implementation {@link QuotedPrintableInputStream} replaced. */
+    private static class LegacyQuotedPrintableInputStream extends InputStream {
+        private final InputStream stream;
+        private final ByteQueue byteq = new ByteQueue();
+        private final ByteQueue pushbackq = new ByteQueue();
+        private byte state = 0;
+
+        LegacyQuotedPrintableInputStream(InputStream stream) {
+            this.stream = stream;
+        }
+
+        @Override
+        public int read() throws IOException {
+            fillBuffer();
+            if (byteq.count() == 0) {
+                return -1;
+            }
+            return byteq.dequeue() & 0xFF;
+        }
+
+        private void populatePushbackQueue() throws IOException {
+            if (pushbackq.count() != 0) {
+                return;
+            }
+            while (true) {
+                int i = stream.read();
+                switch (i) {
+                    case -1:
+                        pushbackq.clear();
+                        return;
+                    case ' ':
+                    case '\t':
+                        pushbackq.enqueue((byte) i);
+                        break;
+                    case '\r':
+                    case '\n':
+                        pushbackq.clear();
+                        pushbackq.enqueue((byte) i);
+                        return;
+                    default:
+                        pushbackq.enqueue((byte) i);
+                        return;
+                }
+            }
+        }
+
+        private void fillBuffer() throws IOException {
+            byte msdChar = 0;
+            while (byteq.count() == 0) {
+                if (pushbackq.count() == 0) {
+                    populatePushbackQueue();
+                    if (pushbackq.count() == 0) {
+                        return;
+                    }
+                }
+                byte b = pushbackq.dequeue();
+                switch (state) {
+                    case 0:
+                        if (b != '=') {
+                            byteq.enqueue(b);
+                        } else {
+                            state = 1;
+                        }
+                        break;
+                    case 1:
+                        if (b == '\r') {
+                            state = 2;
+                        } else if (isHexDigit(b)) {
+                            state = 3;
+                            msdChar = b;
+                        } else if (b == '=') {
+                            byteq.enqueue((byte) '=');
+                        } else {
+                            state = 0;
+                            byteq.enqueue((byte) '=');
+                            byteq.enqueue(b);
+                        }
+                        break;
+                    case 2:
+                        state = 0;
+                        if (b != '\n') {
+                            byteq.enqueue((byte) '=');
+                            byteq.enqueue((byte) '\r');
+                            byteq.enqueue(b);
+                        }
+                        break;
+                    case 3:
+                        state = 0;
+                        if (isHexDigit(b)) {
+                            byteq.enqueue((byte) ((Character.digit(msdChar, 16) << 4)
+                                    | Character.digit(b, 16)));
+                        } else {
+                            byteq.enqueue((byte) '=');
+                            byteq.enqueue(msdChar);
+                            byteq.enqueue(b);
+                        }
+                        break;
+                }
+            }
+        }
+
+        private static boolean isHexDigit(byte b) {
+            return (b >= '0' && b <= '9') || (b >= 'A' && b <= 'F') || (b >= 'a' && b <= 'f');
+        }
+    }
+}